@@ -41,7 +41,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketImpl;
 
-import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 
 /**
  * This class is the same as java.net.Socket but with an additional public
@@ -55,7 +55,7 @@ import cf.monteux.silvertunnel.netlib.api.NetSocket;
  * @author hapke
  * @author Tobias Boese
  */
-public class ExtendedSocket extends Socket implements NetSocket
+public class ExtendedSocket extends Socket implements ReadTimeoutNetSocket
 {
 	// /////////////////////////////////////////////////////
 	// constructor from java.net.Socket
@@ -105,4 +105,16 @@ public class ExtendedSocket extends Socket implements NetSocket
 	{
 		super(socketImpl);
 	}
+
+	/**
+	 * Uses SO_TIMEOUT.
+	 * 
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws SocketException
+	{
+		setSoTimeout(timeoutInMs);
+		return true;
+	}
 }
@@ -22,7 +22,9 @@ package cf.monteux.silvertunnel.netlib.api.impl;
  * Simple volative boolean value - without any dependencies.
  * 
  * @author hapke
+ * @deprecated not used by netlib any more; kept for compatibility
  */
+@Deprecated
 public class BooleanHolder
 {
 	public volatile boolean value;
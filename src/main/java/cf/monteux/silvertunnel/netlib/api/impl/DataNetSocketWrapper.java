@@ -26,7 +26,7 @@ import java.io.OutputStream;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
 
-public class DataNetSocketWrapper implements DataNetSocket
+public class DataNetSocketWrapper implements DataNetSocket, ReadTimeoutNetSocket
 {
 	/** wrapped object. */
 	NetSocket netSocket;
@@ -68,6 +68,16 @@ public class DataNetSocketWrapper implements DataNetSocket
 		return dos;
 	}
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		return netSocket instanceof ReadTimeoutNetSocket
+				&& ((ReadTimeoutNetSocket) netSocket).setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public void close() throws IOException
 	{
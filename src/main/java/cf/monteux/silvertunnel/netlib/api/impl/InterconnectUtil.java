@@ -36,23 +36,29 @@ public class InterconnectUtil
 	/** */
 	private static final Logger logger = LogManager.getLogger(InterconnectUtil.class);
 
-	private static final int SLEEP_ON_INACTIVITY_MS = 10;
-	private static final int DEFAULT_BUFFER_SIZE = 2048;
-
-	private static long id;
-
 	/**
 	 * Copy the streams of the two sockets to the other side.
 	 * 
-	 * The method blocks until all the streams are closed.
+	 * The method blocks until all the streams are closed. If one side ends its
+	 * output, the other direction continues (half-close).
 	 * 
 	 */
 	public static void relay(NetSocket netSocket1, NetSocket netSocket2)
 			throws IOException
 	{
-		relay(netSocket1.getInputStream(), netSocket2.getOutputStream(),
-				netSocket2.getInputStream(), netSocket1.getOutputStream(),
-				DEFAULT_BUFFER_SIZE);
+		await(RelayEngine.getInstance().relay(netSocket1, netSocket2));
+	}
+
+	/**
+	 * Copy the streams of the two sockets to the other side.
+	 * 
+	 * The method doesn't block. The data is moved by the {@link RelayEngine}.
+	 * 
+	 */
+	public static RelayEngine.Relay relayNonBlocking(NetSocket netSocket1, NetSocket netSocket2)
+			throws IOException
+	{
+		return RelayEngine.getInstance().relay(netSocket1, netSocket2);
 	}
 
 	/**
@@ -69,18 +75,18 @@ public class InterconnectUtil
 	 * @param out2
 	 *            open stream; not null
 	 * @param bufferSize
-	 *            use 2048 if you don't know what to take
+	 *            ignored, the buffers are pooled by the {@link RelayEngine}
 	 */
 	public static void relay(InputStream in1, OutputStream out1,
 			InputStream in2, OutputStream out2, final int bufferSize)
 	{
-		relayInTwoThreads(in1, out1, in2, out2, bufferSize);
+		await(RelayEngine.getInstance().relay(in1, out1, in2, out2));
 	}
 
 	/**
 	 * Copy two streams: in1-&gt;out1 and in2-&gt;out2.
 	 * 
-	 * The method doesn't block. All operations are done in two extra threads.
+	 * The method doesn't block. The data is moved by the {@link RelayEngine}.
 	 * 
 	 * @param in1
 	 *            open stream; not null
@@ -91,21 +97,13 @@ public class InterconnectUtil
 	 * @param out2
 	 *            open stream; not null
 	 * @param bufferSize
-	 *            use 2048 if you don't know what to take
+	 *            ignored, the buffers are pooled by the {@link RelayEngine}
 	 */
 	public static void relayNonBlocking(final InputStream in1,
 			final OutputStream out1, final InputStream in2,
 			final OutputStream out2, final int bufferSize)
 	{
-		// open the first of two new threads
-		new Thread(createUniqueThreadName())
-		{
-			@Override
-			public void run()
-			{
-				relayInTwoThreads(in1, out1, in2, out2, bufferSize);
-			}
-		}.start();
+		RelayEngine.getInstance().relay(in1, out1, in2, out2);
 	}
 
 	/**
@@ -113,92 +111,14 @@ public class InterconnectUtil
 	 * 
 	 * The method blocks until all the streams are closed.
 	 * 
-	 * @param in1
-	 *            open stream; not null
-	 * @param out1
-	 *            open stream; not null
-	 * @param in2
-	 *            open stream; not null
-	 * @param out2
-	 *            open stream; not null
-	 * @param bufferSize
-	 *            use 2048 if you don't know what to take
+	 * @deprecated the streams are not polled any more, use
+	 *             {@link #relay(InputStream, OutputStream, InputStream, OutputStream, int)}
 	 */
+	@Deprecated
 	public static void relayInOneThread(InputStream in1, OutputStream out1,
 			InputStream in2, OutputStream out2, final int bufferSize)
 	{
-		long byteCounterForLog1 = 0;
-		long byteCounterForLog2 = 0;
-		try
-		{
-			final byte[] buffer = new byte[bufferSize];
-			boolean tryToClose = false;
-			while (true)
-			{
-				boolean action = false;
-
-				// data from in1?
-				try
-				{
-					if (in1.available() > 0)
-					{
-						final int cc = in1.read(buffer);
-						byteCounterForLog1 += cc;
-						logger.info(" > " + cc + " bytes (" + byteCounterForLog1
-								+ " bytes total)");
-						out1.write(buffer, 0, cc);
-						out1.flush();
-						action = true;
-					}
-				}
-				catch (final IOException e)
-				{
-					logger.debug("relay1: {}", e.toString(), e);
-					tryToClose = true;
-				}
-
-				// data from in2?
-				try
-				{
-					if (in2.available() > 0)
-					{
-						final int cc = in2.read(buffer);
-						byteCounterForLog2 += cc;
-						logger.info(" < " + cc + " bytes (" + byteCounterForLog2
-								+ " bytes total)");
-						out2.write(buffer, 0, cc);
-						out2.flush();
-						action = true;
-					}
-				}
-				catch (final IOException e)
-				{
-					logger.debug("relay2: {}", e.toString(), e);
-					tryToClose = true;
-				}
-
-				// close?
-				if (!action && tryToClose)
-				{
-					// yes
-					in1.close();
-					in2.close();
-					out1.close();
-					out2.close();
-					break;
-				}
-
-				// rest a bit, if no action
-				if (!action)
-				{
-					Thread.sleep(SLEEP_ON_INACTIVITY_MS);
-				}
-			}
-		}
-		catch (final Exception e)
-		{
-			logger.warn("connection interrupted", e);
-		}
+		relay(in1, out1, in2, out2, bufferSize);
 	}
 
 	/**
@@ -206,197 +126,27 @@ public class InterconnectUtil
 	 * 
 	 * The method blocks until all the streams are closed.
 	 * 
-	 * One copy direction will be handled in the current thread, the other in a
-	 * new thread.
-	 * 
-	 * @param in1
-	 *            open stream; not null
-	 * @param out1
-	 *            open stream; not null
-	 * @param in2
-	 *            open stream; not null
-	 * @param out2
-	 *            open stream; not null
-	 * @param bufferSize
-	 *            use 2048 if you don't know what to take
+	 * @deprecated the directions are handled by the {@link RelayEngine}, use
+	 *             {@link #relay(InputStream, OutputStream, InputStream, OutputStream, int)}
 	 */
+	@Deprecated
 	public static void relayInTwoThreads(final InputStream in1,
 			final OutputStream out1, final InputStream in2,
 			final OutputStream out2, final int bufferSize)
 	{
-		final BooleanHolder tryToClose = new BooleanHolder();
-		tryToClose.value = false;
-
-		// open the new thread for direction 1
-		new Thread(createUniqueThreadName())
-		{
-			@Override
-			public void run()
-			{
-				relayOneDirection2(" >1> ", in1, out1, bufferSize, tryToClose);
-			}
-		}.start();
-
-		// current thread for direction 2
-		relayOneDirection2(" <2< ", in2, out2, bufferSize, tryToClose);
-	}
-
-	/**
-	 * Copy data from in to out until any stream is closed.
-	 * 
-	 * Attention: relayOneDirection2() is much faster than relayOneDirection1().
-	 * 
-	 * @param in
-	 *            open stream
-	 * @param out
-	 *            open stream
-	 * @param bufferSize
-	 * @param tryToClose
-	 *            if false than at least one stream is closed - now close the
-	 *            other streams as soon as possible
-	 */
-	static void relayOneDirection1(String logMsg, final InputStream in,
-			OutputStream out, final int bufferSize, BooleanHolder tryToClose)
-	{
-		long byteCounterForLog = 0;
-		try
-		{
-			final byte[] buffer = new byte[bufferSize];
-			while (true)
-			{
-				boolean action = false;
-
-				// data from in?
-				try
-				{
-					if (in.available() > 0)
-					{
-						final int cc = in.read(buffer);
-						byteCounterForLog += cc;
-						if (logMsg != null)
-						{
-							logger.info(logMsg + " " + cc + " bytes ("
-									+ byteCounterForLog + " bytes total)");
-						}
-						out.write(buffer, 0, cc);
-						out.flush();
-						action = true;
-					}
-				}
-				catch (final IOException e)
-				{
-					logger.debug("relay: {}", e.toString(), e);
-					tryToClose.value = true;
-				}
-
-				// close?
-				if (!action && tryToClose.value)
-				{
-					// yes
-					in.close();
-					out.close();
-					break;
-				}
-
-				// rest a bit, if no action
-				if (!action)
-				{
-					Thread.sleep(SLEEP_ON_INACTIVITY_MS);
-				}
-			}
-		}
-		catch (final Exception e)
-		{
-			logger.warn("connection interrupted", e);
-		}
+		relay(in1, out1, in2, out2, bufferSize);
 	}
 
-	/**
-	 * Copy data from in to out until any stream is closed.
-	 * 
-	 * Attention: relayOneDirection2() is much faster than relayOneDirection1().
-	 * 
-	 * @param in
-	 *            open stream
-	 * @param out
-	 *            open stream
-	 * @param bufferSize
-	 * @param tryToClose
-	 *            if false than at least one stream is closed - now close the
-	 *            other streams as soon as possible
-	 */
-	static void relayOneDirection2(String logMsg, InputStream in,
-			OutputStream out, final int bufferSize, BooleanHolder tryToClose)
+	private static void await(RelayEngine.Relay relay)
 	{
-		long byteCounterForLog = 0;
 		try
 		{
-			final byte[] buffer = new byte[bufferSize];
-			try
-			{
-				while (true)
-				{
-					final int cc = in.read(buffer);
-					if (cc <= 0)
-					{
-						// input stream closed
-						logger.info(logMsg
-								+ " input stream closed - close the rest");
-						break;
-					}
-					else
-					{
-						byteCounterForLog += cc;
-						if (logMsg != null)
-						{
-							logger.info(logMsg + " " + cc + " bytes ("
-									+ byteCounterForLog + " bytes total)");
-						}
-						out.write(buffer, 0, cc);
-						out.flush();
-					}
-				}
-			}
-			catch (final IOException e)
-			{
-				// e.g. output stream closed
-				logger.info(logMsg + " close all because of " + e.toString());
-			}
-
-			// close
-			tryToClose.value = true;
-			try
-			{
-				in.close();
-			}
-			catch (final IOException e)
-			{
-				// no problem
-				logger.debug("got IOException : {}", e.getMessage(), e);
-			}
-			try
-			{
-				out.close();
-			}
-			catch (final IOException e)
-			{
-				// no problem
-				logger.debug("got IOException : {}", e.getMessage(), e);
-			}
+			relay.await();
 		}
-		catch (final Exception e)
+		catch (final InterruptedException e)
 		{
 			logger.warn("connection interrupted", e);
+			Thread.currentThread().interrupt();
 		}
 	}
-
-	/**
-	 * @return a new unique name for a thread
-	 */
-	protected static synchronized String createUniqueThreadName()
-	{
-		id++;
-		return InterconnectUtil.class.getName() + id + "-"
-				+ Thread.currentThread().getName();
-	}
 }
@@ -67,7 +67,12 @@ public class NetSocket2SocketImpl extends SocketImpl
 	private static final Integer DEFAULT_SO_LINGER = 0;
 	private Integer soLinger = DEFAULT_SO_LINGER;
 
-	private SocketTimeoutInputStream inputStream;
+	private InputStream inputStream;
+	/**
+	 * only used if the NetSocket does not support read timeouts, see
+	 * {@link ReadTimeoutNetSocket}.
+	 */
+	private SocketTimeoutInputStream timeoutInputStream;
 
 	/**
 	 * @param netSocket
@@ -221,9 +226,19 @@ public class NetSocket2SocketImpl extends SocketImpl
 	{
 		if (inputStream == null)
 		{
-			// create new wrapper
-			inputStream = new SocketTimeoutInputStream(
-					netSocket.getInputStream(), inputStreamTimeout);
+			if (netSocket instanceof ReadTimeoutNetSocket
+					&& ((ReadTimeoutNetSocket) netSocket).setReadTimeout(inputStreamTimeout))
+			{
+				// the NetSocket handles the timeout by itself
+				inputStream = netSocket.getInputStream();
+			}
+			else
+			{
+				// create new wrapper with helper thread
+				timeoutInputStream = new SocketTimeoutInputStream(
+						netSocket.getInputStream(), inputStreamTimeout);
+				inputStream = timeoutInputStream;
+			}
 		}
 		return inputStream;
 	}
@@ -291,9 +306,22 @@ public class NetSocket2SocketImpl extends SocketImpl
 			if (value instanceof Integer)
 			{
 				inputStreamTimeout = (Integer) value;
-				if (inputStream != null)
+				if (timeoutInputStream != null)
+				{
+					timeoutInputStream.setTimeout(inputStreamTimeout);
+				}
+				else if (inputStream != null)
 				{
-					inputStream.setTimeout(inputStreamTimeout);
+					try
+					{
+						((ReadTimeoutNetSocket) netSocket).setReadTimeout(inputStreamTimeout);
+					}
+					catch (final IOException e)
+					{
+						final SocketException socketException = new SocketException("could not set timeout: " + e.getMessage());
+						socketException.initCause(e);
+						throw socketException;
+					}
 				}
 			}
 			else
@@ -0,0 +1,47 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.api.impl;
+
+import java.io.IOException;
+
+import cf.monteux.silvertunnel.netlib.api.NetSocket;
+
+/**
+ * NetSocket whose InputStream can time out by itself (like SO_TIMEOUT of a
+ * Socket), i.e. without the helper thread of {@link SocketTimeoutInputStream}.
+ *
+ * Sockets which wrap another NetSocket usually delegate to it and return its
+ * result.
+ *
+ * @author Tobias Boese
+ */
+public interface ReadTimeoutNetSocket extends NetSocket
+{
+	/**
+	 * Limit the time a read of the InputStream blocks. An expired read throws
+	 * a SocketTimeoutException; the socket stays usable.
+	 *
+	 * @param timeoutInMs
+	 *            0=no timeout
+	 * @return false if the timeout is not supported (e.g. by the lower layer
+	 *         socket) and was not set
+	 * @throws IOException
+	 */
+	boolean setReadTimeout(int timeoutInMs) throws IOException;
+}
@@ -0,0 +1,367 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.api.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Moves the data of connection pairs in both directions.
+ *
+ * Each direction is served with blocking reads by a thread of a shared pool,
+ * i.e. a pair uses two pooled threads while it is active: the streams of the
+ * NetLayers (Tor streams, TLS, ...) can not be selected. Idle threads are
+ * reused for the next pairs and the buffers are pooled.
+ *
+ * A relay between two NetSockets supports half-close: if one side ends its
+ * output, the output of the other side is shut down (if it is a TCP socket)
+ * and the opposite direction continues until it ends, too.
+ *
+ * @author Tobias Boese
+ */
+public final class RelayEngine
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(RelayEngine.class);
+
+	/** size of the pooled buffers. */
+	private static final int BUFFER_SIZE = 16 * 1024;
+	/** maximum number of idle buffers per pool. */
+	private static final int MAX_POOLED_BUFFERS = 256;
+
+	private static final RelayEngine instance = new RelayEngine();
+
+	private final Queue<byte[]> heapBuffers = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger heapBuffersPooled = new AtomicInteger();
+
+	/** threads of the stream relays; idle threads terminate after 60 seconds. */
+	private final ExecutorService streamExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "RelayEngine-stream-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final AtomicInteger activeRelays = new AtomicInteger();
+	private final AtomicLong relayedBytes = new AtomicLong();
+
+	/**
+	 * @return singleton instance
+	 */
+	public static RelayEngine getInstance()
+	{
+		return instance;
+	}
+
+	private RelayEngine()
+	{
+	}
+
+	/**
+	 * Relay the data of the two sockets in both directions. The method does
+	 * not block.
+	 *
+	 * Both sockets are closed when both directions ended.
+	 *
+	 * @param netSocket1
+	 *            open socket; not null
+	 * @param netSocket2
+	 *            open socket; not null
+	 * @return the handle of the relay
+	 * @throws IOException
+	 */
+	public Relay relay(final NetSocket netSocket1, final NetSocket netSocket2) throws IOException
+	{
+		final StreamRelay relay = new StreamRelay(new NetSocket[] {netSocket1, netSocket2});
+		startDirection(relay, netSocket1.getInputStream(), netSocket2.getOutputStream(), getSocket(netSocket2), null);
+		startDirection(relay, netSocket2.getInputStream(), netSocket1.getOutputStream(), getSocket(netSocket1), null);
+		return relay;
+	}
+
+	/**
+	 * Copy two streams: in1-&gt;out1 and in2-&gt;out2. The method does not
+	 * block.
+	 *
+	 * The streams of a direction are closed when the direction ends.
+	 *
+	 * @param in1
+	 *            open stream; not null
+	 * @param out1
+	 *            open stream; not null
+	 * @param in2
+	 *            open stream; not null
+	 * @param out2
+	 *            open stream; not null
+	 * @return the handle of the relay
+	 */
+	public Relay relay(final InputStream in1, final OutputStream out1, final InputStream in2, final OutputStream out2)
+	{
+		final StreamRelay relay = new StreamRelay(new NetSocket[0]);
+		startDirection(relay, in1, out1, null, new Closeable[] {in1, out1});
+		startDirection(relay, in2, out2, null, new Closeable[] {in2, out2});
+		return relay;
+	}
+
+	/**
+	 * @return number of relays which did not end yet
+	 */
+	public int getActiveRelays()
+	{
+		return activeRelays.get();
+	}
+
+	/**
+	 * @return number of bytes relayed in total
+	 */
+	public long getRelayedBytes()
+	{
+		return relayedBytes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RelayEngine(activeRelays=" + activeRelays + ", relayedBytes=" + relayedBytes + ")";
+	}
+
+	// /////////////////////////////////////////////////////
+	// handle of a relay
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * Handle of one connection pair.
+	 */
+	public abstract static class Relay
+	{
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		/**
+		 * Wait until both directions ended.
+		 *
+		 * @throws InterruptedException
+		 */
+		public void await() throws InterruptedException
+		{
+			finished.await();
+		}
+
+		/**
+		 * @return true if both directions ended
+		 */
+		public boolean isFinished()
+		{
+			return finished.getCount() == 0;
+		}
+
+		void setFinished()
+		{
+			finished.countDown();
+		}
+	}
+
+	// /////////////////////////////////////////////////////
+	// blocking streams
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * Relay of two (blocking) directions.
+	 */
+	private final class StreamRelay extends Relay
+	{
+		/** closed when both directions ended. */
+		private final NetSocket[] netSockets;
+		private final AtomicInteger runningDirections = new AtomicInteger(2);
+
+		private StreamRelay(final NetSocket[] netSockets)
+		{
+			this.netSockets = netSockets;
+			activeRelays.incrementAndGet();
+		}
+
+		private void directionFinished()
+		{
+			if (runningDirections.decrementAndGet() == 0)
+			{
+				closeAll();
+				activeRelays.decrementAndGet();
+				setFinished();
+			}
+		}
+
+		private void closeAll()
+		{
+			for (final NetSocket netSocket : netSockets)
+			{
+				try
+				{
+					netSocket.close();
+				}
+				catch (final IOException e)
+				{
+					// no problem
+					logger.debug("got IOException : {}", e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param halfCloseSocket
+	 *            the socket of out if its output can be shut down at the end of
+	 *            in; null=close the socket pair at the end of in
+	 * @param closeAtEnd
+	 *            closed at the end of the direction; null=nothing
+	 */
+	private void startDirection(final StreamRelay relay,
+	                            final InputStream in,
+	                            final OutputStream out,
+	                            final Socket halfCloseSocket,
+	                            final Closeable[] closeAtEnd)
+	{
+		streamExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final byte[] buffer = borrowHeapBuffer();
+				boolean endOfStream = false;
+				try
+				{
+					int count;
+					while ((count = in.read(buffer)) != -1)
+					{
+						if (count > 0)
+						{
+							out.write(buffer, 0, count);
+							out.flush();
+							relayedBytes.addAndGet(count);
+						}
+					}
+					endOfStream = true;
+				}
+				catch (final IOException e)
+				{
+					logger.debug("relay direction ended because of {}", e.toString());
+				}
+				finally
+				{
+					releaseHeapBuffer(buffer);
+				}
+				if (closeAtEnd != null)
+				{
+					for (final Closeable closeable : closeAtEnd)
+					{
+						closeQuietly(closeable);
+					}
+				}
+				else if (endOfStream && halfCloseSocket != null)
+				{
+					// forward the end of stream, the other direction continues
+					try
+					{
+						halfCloseSocket.shutdownOutput();
+					}
+					catch (final IOException e)
+					{
+						logger.debug("could not shut down output: {}", e.toString());
+					}
+				}
+				else
+				{
+					// no half-close possible: end the complete relay
+					relay.closeAll();
+				}
+				relay.directionFinished();
+			}
+		});
+	}
+
+	// /////////////////////////////////////////////////////
+	// helpers
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * @return the TCP socket of the NetSocket; null if it is no plain TCP socket
+	 */
+	private static Socket getSocket(final NetSocket netSocket)
+	{
+		if (netSocket instanceof Socket2NetSocket)
+		{
+			return ((Socket2NetSocket) netSocket).getSocket();
+		}
+		return null;
+	}
+
+	private byte[] borrowHeapBuffer()
+	{
+		final byte[] buffer = heapBuffers.poll();
+		if (buffer == null)
+		{
+			return new byte[BUFFER_SIZE];
+		}
+		heapBuffersPooled.decrementAndGet();
+		return buffer;
+	}
+
+	private void releaseHeapBuffer(final byte[] buffer)
+	{
+		if (heapBuffersPooled.incrementAndGet() <= MAX_POOLED_BUFFERS)
+		{
+			heapBuffers.add(buffer);
+		}
+		else
+		{
+			heapBuffersPooled.decrementAndGet();
+		}
+	}
+
+	private static void closeQuietly(final Closeable closeable)
+	{
+		try
+		{
+			closeable.close();
+		}
+		catch (final IOException e)
+		{
+			// no problem
+			logger.debug("got IOException : {}", e.getMessage(), e);
+		}
+	}
+}
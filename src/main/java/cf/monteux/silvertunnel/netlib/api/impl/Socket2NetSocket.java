@@ -25,7 +25,7 @@ import java.net.Socket;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
 
-public class Socket2NetSocket implements NetSocket
+public class Socket2NetSocket implements ReadTimeoutNetSocket
 {
 	/** the wrapped Socket object */
 	private final Socket socket;
@@ -53,6 +53,26 @@ public class Socket2NetSocket implements NetSocket
 		socket.close();
 	}
 
+	/**
+	 * Uses SO_TIMEOUT of the wrapped socket.
+	 * 
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		socket.setSoTimeout(timeoutInMs);
+		return true;
+	}
+
+	/**
+	 * @return the wrapped socket
+	 */
+	public Socket getSocket()
+	{
+		return socket;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -29,6 +29,9 @@ import org.apache.logging.log4j.Logger;
 /**
  * InputStream wrapper needed by NetSocket2SocketImpl to handle timeout
  * (SO_TIMEOUT) correctly.
+ * 
+ * Uses one helper thread per stream; only needed for NetSockets which do not
+ * implement {@link ReadTimeoutNetSocket}.
  */
 public class SocketTimeoutInputStream extends FilterInputStream
 {
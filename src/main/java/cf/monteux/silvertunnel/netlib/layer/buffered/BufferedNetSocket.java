@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 
 /**
  * NetSocket of BufferedNetLayer that buffers data.
@@ -34,7 +35,7 @@ import cf.monteux.silvertunnel.netlib.api.NetSocket;
  * 
  * @author hapke
  */
-public class BufferedNetSocket implements NetSocket
+public class BufferedNetSocket implements ReadTimeoutNetSocket
 {
 	private final NetSocket lowerLayerSocket;
 	private BufferedInputStream in;
@@ -45,6 +46,16 @@ public class BufferedNetSocket implements NetSocket
 		this.lowerLayerSocket = lowerLayerSocket;
 	}
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		return lowerLayerSocket instanceof ReadTimeoutNetSocket
+				&& ((ReadTimeoutNetSocket) lowerLayerSocket).setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public void close() throws IOException
 	{
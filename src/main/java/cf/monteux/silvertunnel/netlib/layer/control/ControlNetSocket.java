@@ -24,6 +24,7 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -33,7 +34,7 @@ import org.apache.logging.log4j.Logger;
  * 
  * @author hapke
  */
-public class ControlNetSocket implements NetSocket
+public class ControlNetSocket implements ReadTimeoutNetSocket
 {
 	/** */
 	private static final Logger logger = LogManager.getLogger(ControlNetSocket.class);
@@ -58,6 +59,9 @@ public class ControlNetSocket implements NetSocket
 	 */
 	private InterruptedIOException interruptedIOException;
 
+	/** the deadlines scheduled by the {@link ControlNetSocketThread}. */
+	private volatile ControlNetSocketThread.Timeout[] timeouts;
+
 	public ControlNetSocket(final NetSocket lowerLayerSocket,
 			final ControlParameters parameters)
 	{
@@ -126,6 +130,16 @@ public class ControlNetSocket implements NetSocket
 		return result;
 	}
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		return lowerLayerSocket instanceof ReadTimeoutNetSocket
+				&& ((ReadTimeoutNetSocket) lowerLayerSocket).setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public void close() throws IOException
 	{
@@ -207,6 +221,16 @@ public class ControlNetSocket implements NetSocket
 		}
 	}
 
+	protected void setTimeouts(final ControlNetSocketThread.Timeout[] timeouts)
+	{
+		this.timeouts = timeouts;
+	}
+
+	protected ControlNetSocketThread.Timeout[] getTimeouts()
+	{
+		return timeouts;
+	}
+
 	// /////////////////////////////////////////////////////
 	// various getters
 	// /////////////////////////////////////////////////////
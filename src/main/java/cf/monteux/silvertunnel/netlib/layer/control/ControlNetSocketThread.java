@@ -37,18 +37,23 @@ package cf.monteux.silvertunnel.netlib.layer.control;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.WeakHashMap;
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * NetSocket of transparent NetLayer that tracks the time stamp of the last
- * activity.
+ * Thread that enforces the limits of the ControlParameters on all
+ * ControlNetSockets.
+ * 
+ * The deadlines (overall timeout, end of the current throughput time frame)
+ * are kept in a hashed timer wheel: scheduling and cancelling a deadline is
+ * O(1) and a tick only touches the deadlines of one bucket, i.e. only sockets
+ * whose deadline is reached. The sockets are referenced weakly.
  * 
  * @author hapke
  * @author Tobias Boese
@@ -59,11 +64,30 @@ public class ControlNetSocketThread extends Thread
 	/** */
 	private static final Logger logger = LogManager.getLogger(ControlNetSocketThread.class);
 
+	/** duration of one tick. */
+	private static final long TICK_NANOS = 10L * 1000L * 1000L;
+	/** number of buckets, a power of two: one round of the wheel takes 5.12 seconds. */
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
 	private static ControlNetSocketThread instance;
 
-	/** all ControlNetSockets to control. */
-	private final Map<ControlNetSocket, ControlParameters> sockets = Collections
-			.synchronizedMap(new WeakHashMap<ControlNetSocket, ControlParameters>());
+	/**
+	 * true=sockets which reach their limits are closed; false=only the
+	 * throughput time frames are maintained (default, the checks have been
+	 * switched off so far).
+	 */
+	private static volatile boolean limitsEnforced = false;
+
+	private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+	/** timeouts to add to the wheel with the next tick. */
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	/** timeouts to remove from the wheel with the next tick. */
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	/** all deadlines are relative to this value of System.nanoTime(). */
+	private final long startTime = System.nanoTime();
+	/** the tick which will be processed next; only accessed by this thread. */
+	private long tick;
 
 	static
 	{
@@ -83,6 +107,14 @@ public class ControlNetSocketThread extends Thread
 		}
 	}
 
+	private ControlNetSocketThread()
+	{
+		for (int i = 0; i < WHEEL_SIZE; i++)
+		{
+			wheel[i] = new Bucket();
+		}
+	}
+
 	/**
 	 * Start checking on ControlNetSocket with the provided ControlParameters.
 	 * 
@@ -92,9 +124,27 @@ public class ControlNetSocketThread extends Thread
 	public static void startControlingControlNetSocket(final ControlNetSocket socket,
 			final ControlParameters parameters)
 	{
-		synchronized (instance.sockets)
+		final long now = System.nanoTime() - instance.startTime;
+		Timeout overallTimeout = null;
+		if (parameters.getOverallTimeoutMillis() > 0)
+		{
+			overallTimeout = new Timeout(socket, parameters, false,
+					now + TimeUnit.MILLISECONDS.toNanos(parameters.getOverallTimeoutMillis()));
+		}
+		Timeout throughputTimeout = null;
+		if (parameters.getThroughputTimeframeMillis() > 0)
+		{
+			throughputTimeout = new Timeout(socket, parameters, true,
+					now + TimeUnit.MILLISECONDS.toNanos(parameters.getThroughputTimeframeMillis()));
+		}
+		socket.setTimeouts(new Timeout[] {overallTimeout, throughputTimeout});
+		if (overallTimeout != null)
 		{
-			instance.sockets.put(socket, parameters);
+			instance.newTimeouts.add(overallTimeout);
+		}
+		if (throughputTimeout != null)
+		{
+			instance.newTimeouts.add(throughputTimeout);
 		}
 	}
 
@@ -105,10 +155,36 @@ public class ControlNetSocketThread extends Thread
 	 */
 	public static void stopControlingControlNetSocket(final ControlNetSocket socket)
 	{
-		synchronized (instance.sockets)
+		final Timeout[] timeouts = socket.getTimeouts();
+		if (timeouts == null)
 		{
-			instance.sockets.remove(socket);
+			return;
 		}
+		for (final Timeout timeout : timeouts)
+		{
+			if (timeout != null && timeout.state.compareAndSet(Timeout.ST_INIT, Timeout.ST_CANCELLED))
+			{
+				instance.cancelledTimeouts.add(timeout);
+			}
+		}
+	}
+
+	/**
+	 * @return true if sockets which reach their limits are closed
+	 */
+	public static boolean isLimitsEnforced()
+	{
+		return limitsEnforced;
+	}
+
+	/**
+	 * @param limitsEnforced
+	 *            true=close sockets which reach the overall timeout or have a
+	 *            too low throughput
+	 */
+	public static void setLimitsEnforced(final boolean limitsEnforced)
+	{
+		ControlNetSocketThread.limitsEnforced = limitsEnforced;
 	}
 
 	@Override
@@ -116,38 +192,30 @@ public class ControlNetSocketThread extends Thread
 	{
 		while (true)
 		{
-			// check all sockets
-			final Map<ControlNetSocket, String> socketsToRemoveFromChecklist = new HashMap<ControlNetSocket, String>(); // value=timeout
-			// text
-			synchronized (sockets)
-			{
-				for (final Entry<ControlNetSocket, ControlParameters> e : sockets.entrySet())
-				{
-					// check one socket
-					final String timeoutText = checkSingleSocketOnce(e.getKey(), e.getValue());
-					if (timeoutText != null)
-					{
-						socketsToRemoveFromChecklist.put(e.getKey(), timeoutText);
-					}
-				}
-
-				// cleanup sockets
-				for (final Entry<ControlNetSocket, String> e : socketsToRemoveFromChecklist.entrySet())
-				{
-					sockets.remove(e.getKey());
-				}
-			}
-
-			// close sockets that timed out
-			for (final Entry<ControlNetSocket, String> e : socketsToRemoveFromChecklist.entrySet())
+			waitForNextTick();
+			transferNewTimeouts();
+			removeCancelledTimeouts();
+			expireTimeouts(wheel[(int) (tick & WHEEL_MASK)]);
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleep until the end of the current tick.
+	 */
+	private void waitForNextTick()
+	{
+		final long deadline = TICK_NANOS * (tick + 1);
+		while (true)
+		{
+			final long sleepMillis = (deadline - (System.nanoTime() - startTime) + 999999L) / 1000000L;
+			if (sleepMillis <= 0)
 			{
-				sendTimeoutToSingleSocket(e.getKey(), e.getValue());
+				return;
 			}
-
-			// wait a bit
 			try
 			{
-				Thread.sleep(100);
+				Thread.sleep(sleepMillis);
 			}
 			catch (final InterruptedException e)
 			{ /* ignore it */
@@ -156,38 +224,98 @@ public class ControlNetSocketThread extends Thread
 		}
 	}
 
+	private void transferNewTimeouts()
+	{
+		Timeout timeout;
+		while ((timeout = newTimeouts.poll()) != null)
+		{
+			if (timeout.state.get() != Timeout.ST_INIT)
+			{
+				continue;
+			}
+			final long calculated = timeout.deadline / TICK_NANOS;
+			timeout.remainingRounds = (calculated - tick) / WHEEL_SIZE;
+			// a deadline in the past is expired with the current tick
+			wheel[(int) (Math.max(calculated, tick) & WHEEL_MASK)].add(timeout);
+		}
+	}
+
+	private void removeCancelledTimeouts()
+	{
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null)
+		{
+			if (timeout.bucket != null)
+			{
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void expireTimeouts(final Bucket bucket)
+	{
+		Timeout timeout = bucket.head;
+		while (timeout != null)
+		{
+			final Timeout next = timeout.next;
+			if (timeout.remainingRounds <= 0)
+			{
+				bucket.remove(timeout);
+				expireTimeout(timeout);
+			}
+			else
+			{
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+
 	/**
-	 * Check whether socket should be closed.
+	 * Check whether socket should be closed. A throughput time frame which
+	 * passes the check is followed by the next one.
 	 * 
-	 * @param socket
-	 * @param parameters
-	 * @return error message: null=no timeout text=timeout with this text
+	 * @param timeout
+	 *            the reached deadline
 	 */
-	private String checkSingleSocketOnce(final ControlNetSocket socket,
-			final ControlParameters parameters)
+	private void expireTimeout(final Timeout timeout)
 	{
-		// check overall timeout
-		/*if (parameters.getOverallTimeoutMillis() > 0
-				&& socket.getOverallMillis() > parameters
-						.getOverallTimeoutMillis())
+		final ControlNetSocket socket = timeout.socket.get();
+		if (socket == null || timeout.state.get() != Timeout.ST_INIT)
 		{
-			return "overall timeout reached";
+			return;
 		}
-		if (parameters.getThroughputTimeframeMillis() > 0
-				&& socket.getCurrentTimeframeMillis() >= parameters
-						.getThroughputTimeframeMillis())
+		final ControlParameters parameters = timeout.parameters;
+		final String timeoutText;
+		if (timeout.throughput)
 		{
-			final long bytes = socket
-					.getCurrentTimeframeStartInputOutputBytesAndStartNewTimeframe();
-			if (parameters.getThroughputTimeframeMinBytes() > 0
+			final long bytes = socket.getCurrentTimeframeStartInputOutputBytesAndStartNewTimeframe();
+			if (limitsEnforced && parameters.getThroughputTimeframeMinBytes() > 0
 					&& bytes < parameters.getThroughputTimeframeMinBytes())
 			{
-				return "throughput is too low";
+				timeoutText = "throughput is too low";
 			}
-		}*/
-
-		// no timeout
-		return null;
+			else
+			{
+				timeout.deadline = System.nanoTime() - startTime
+						+ TimeUnit.MILLISECONDS.toNanos(parameters.getThroughputTimeframeMillis());
+				newTimeouts.add(timeout);
+				return;
+			}
+		}
+		else if (limitsEnforced)
+		{
+			timeoutText = "overall timeout reached";
+		}
+		else
+		{
+			return;
+		}
+		if (timeout.state.compareAndSet(Timeout.ST_INIT, Timeout.ST_EXPIRED))
+		{
+			stopControlingControlNetSocket(socket);
+			sendTimeoutToSingleSocket(socket, timeoutText);
+		}
 	}
 
 	private void sendTimeoutToSingleSocket(final ControlNetSocket socket, final String msg)
@@ -209,4 +337,87 @@ public class ControlNetSocketThread extends Thread
 			logger.info("Exception while calling close() (want to close because of: {})", msg, e);
 		}
 	}
+
+	/**
+	 * A deadline of one socket.
+	 */
+	static final class Timeout
+	{
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+
+		private final WeakReference<ControlNetSocket> socket;
+		private final ControlParameters parameters;
+		/** true=end of a throughput time frame; false=overall timeout. */
+		private final boolean throughput;
+		private final AtomicInteger state = new AtomicInteger(ST_INIT);
+		/** relative to startTime; only changed by the thread or before scheduling. */
+		private long deadline;
+
+		// the following fields are only accessed by the thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(final ControlNetSocket socket,
+				final ControlParameters parameters,
+				final boolean throughput,
+				final long deadline)
+		{
+			this.socket = new WeakReference<ControlNetSocket>(socket);
+			this.parameters = parameters;
+			this.throughput = throughput;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts of one slot of the wheel.
+	 */
+	private static final class Bucket
+	{
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(final Timeout timeout)
+		{
+			timeout.bucket = this;
+			if (head == null)
+			{
+				head = timeout;
+				tail = timeout;
+			}
+			else
+			{
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		private void remove(final Timeout timeout)
+		{
+			if (timeout.prev != null)
+			{
+				timeout.prev.next = timeout.next;
+			}
+			else
+			{
+				head = timeout.next;
+			}
+			if (timeout.next != null)
+			{
+				timeout.next.prev = timeout.prev;
+			}
+			else
+			{
+				tail = timeout.prev;
+			}
+			timeout.bucket = null;
+			timeout.next = null;
+			timeout.prev = null;
+		}
+	}
 }
@@ -24,6 +24,7 @@ import java.io.OutputStream;
 import java.util.logging.Level;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -32,7 +33,7 @@ import org.apache.logging.log4j.Logger;
  * 
  * @author hapke
  */
-public class LoggingNetSocket implements NetSocket
+public class LoggingNetSocket implements ReadTimeoutNetSocket
 {
 	private final NetSocket lowerLayerSocket;
 	private final Logger summaryLog;
@@ -61,6 +62,16 @@ public class LoggingNetSocket implements NetSocket
 		this.bottomUpLoggingPrefix = bottomUpLoggingPrefix;
 	}
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		return lowerLayerSocket instanceof ReadTimeoutNetSocket
+				&& ((ReadTimeoutNetSocket) lowerLayerSocket).setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public void close() throws IOException
 	{
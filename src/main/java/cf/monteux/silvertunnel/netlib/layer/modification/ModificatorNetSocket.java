@@ -23,13 +23,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 
 /**
  * Bytewise modification of the input and output stream
  * 
  * @author hapke
  */
-public class ModificatorNetSocket implements NetSocket
+public class ModificatorNetSocket implements ReadTimeoutNetSocket
 {
 	private final NetSocket lowerLayerSocket;
 	private ByteModificatorInputStream in;
@@ -46,6 +47,16 @@ public class ModificatorNetSocket implements NetSocket
 		this.outByteModificator = outByteModificator;
 	}
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		return lowerLayerSocket instanceof ReadTimeoutNetSocket
+				&& ((ReadTimeoutNetSocket) lowerLayerSocket).setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public void close() throws IOException
 	{
@@ -31,8 +31,14 @@ import cf.monteux.silvertunnel.netlib.api.util.TcpipNetAddress;
  */
 public class Condition
 {
+	/** any IPv4 address octet, in canonical notation. */
+	private static final String OCTET_PATTERN = "(?:25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)";
+
 	private final Pattern pattern;
 	private final NetLayer netLayer;
+	/** IPv4 network of a CIDR condition; null for other conditions. */
+	private final byte[] network;
+	private final int prefixLength;
 
 	/**
 	 * Create a condition that exactly maps the provided IP address to the
@@ -74,6 +80,59 @@ public class Condition
 				+ "))" + "$"), netLayer);
 	}
 
+	/**
+	 * Create a condition that maps all IPv4 addresses of the network (with or
+	 * without port) to the provided NetLayer.
+	 * 
+	 * @param network
+	 *            IPv4 address of the network, e.g. 10.0.0.0
+	 * @param prefixLength
+	 *            0..32, e.g. 8 for 10.0.0.0/8
+	 * @param netLayer
+	 */
+	public Condition(IpNetAddress network, int prefixLength, NetLayer netLayer)
+	{
+		final byte[] address = network.getIpaddress();
+		if (address == null || address.length != 4 || prefixLength < 0 || prefixLength > 32)
+		{
+			throw new IllegalArgumentException("invalid IPv4 network " + network + "/" + prefixLength);
+		}
+		final byte[] masked = new byte[4];
+		final StringBuilder regex = new StringBuilder("^");
+		for (int i = 0; i < 4; i++)
+		{
+			final int bits = Math.max(0, Math.min(8, prefixLength - 8 * i));
+			final int low = (address[i] & 0xff) & (0xff << (8 - bits));
+			masked[i] = (byte) low;
+			if (i > 0)
+			{
+				regex.append("\\.");
+			}
+			if (bits == 8)
+			{
+				regex.append(low);
+			}
+			else if (bits == 0)
+			{
+				regex.append(OCTET_PATTERN);
+			}
+			else
+			{
+				regex.append("(?:");
+				for (int value = low; value < low + (1 << (8 - bits)); value++)
+				{
+					regex.append(value == low ? "" : "|").append(value);
+				}
+				regex.append(')');
+			}
+		}
+		regex.append("(?::\\d{1,5})?$");
+		this.pattern = Pattern.compile(regex.toString());
+		this.netLayer = netLayer;
+		this.network = masked;
+		this.prefixLength = prefixLength;
+	}
+
 	/**
 	 * @param pattern
 	 * @param netLayer
@@ -82,6 +141,8 @@ public class Condition
 	{
 		this.pattern = pattern;
 		this.netLayer = netLayer;
+		this.network = null;
+		this.prefixLength = -1;
 	}
 
 	@Override
@@ -103,4 +164,20 @@ public class Condition
 	{
 		return netLayer;
 	}
+
+	/**
+	 * @return the IPv4 network of a CIDR condition; null otherwise
+	 */
+	byte[] getNetwork()
+	{
+		return network;
+	}
+
+	/**
+	 * @return the prefix length of a CIDR condition; -1 otherwise
+	 */
+	int getPrefixLength()
+	{
+		return prefixLength;
+	}
 }
@@ -0,0 +1,870 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.redirect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import cf.monteux.silvertunnel.netlib.api.NetLayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The conditions of a {@link ConditionalNetLayer}, compiled for fast lookups.
+ *
+ * The patterns are analyzed once. Patterns which only describe a fixed string,
+ * a host name or a domain with its sub domains (optionally followed by a port)
+ * are stored in hash maps and in a trie of reversed domain labels, CIDR
+ * conditions in a binary prefix tree. The remaining patterns are combined to
+ * one regular expression. The result is the same as checking the patterns one
+ * after the other: the first matching condition wins.
+ *
+ * Instances are immutable except for the cache of the last decisions.
+ *
+ * @author Tobias Boese
+ */
+final class ConditionTable
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(ConditionTable.class);
+
+	/** maximum number of cached decisions. */
+	private static final int MAX_CACHED_DECISIONS = 4096;
+	/** cached decision: no condition matches. */
+	private static final Object NO_MATCH = new Object();
+
+	/** ".*\." - sub domains only. */
+	private static final String[] SUBDOMAIN_PREFIXES = {".*\\."};
+	/** "(.*\.)?" - domain and sub domains. */
+	private static final String[] DOMAIN_PREFIXES = {"(.*\\.)?", "(?:.*\\.)?"};
+	/** port suffixes and their port specification: none, any, maximum digits. */
+	private static final String[] PORT_SUFFIXES = {
+		":\\d+", ":(\\d+)", ":[0-9]+", ":([0-9]+)",
+		":\\d{1,5}", ":(\\d{1,5})",
+		"(:\\d+)?", "(?::\\d+)?",
+		"(:\\d{1,5})?", "(?::\\d{1,5})?"};
+	private static final Rule[] PORT_SUFFIX_SPECS = {
+		new Rule(false, true, Integer.MAX_VALUE), new Rule(false, true, Integer.MAX_VALUE),
+		new Rule(false, true, Integer.MAX_VALUE), new Rule(false, true, Integer.MAX_VALUE),
+		new Rule(false, true, 5), new Rule(false, true, 5),
+		new Rule(true, true, Integer.MAX_VALUE), new Rule(true, true, Integer.MAX_VALUE),
+		new Rule(true, true, 5), new Rule(true, true, 5)};
+
+	/** all conditions in order. */
+	private final Condition[] conditions;
+	/** key=complete string, value=lowest condition index. */
+	private final Map<String, Integer> exactStrings = new HashMap<String, Integer>();
+	/** key=host name or IP address (without port). */
+	private final Map<String, Rule[]> exactHosts = new HashMap<String, Rule[]>();
+	/** sub domain rules, by reversed labels. */
+	private final LabelNode domains = new LabelNode();
+	/** CIDR rules, by address bits. */
+	private final AddressNode networks = new AddressNode();
+	private boolean hasDomains;
+	private boolean hasNetworks;
+	/** all remaining patterns as alternatives; null if there are none. */
+	private final Pattern combined;
+	/** condition index of each alternative of combined. */
+	private final int[] combinedIndexes;
+	/** group number of each alternative of combined. */
+	private final int[] combinedGroups;
+	/** remaining patterns which cannot be combined, in order. */
+	private final int[] separateIndexes;
+
+	/** key=looked up string, value=NetLayer or NO_MATCH; guarded by itself. */
+	private final Map<String, Object> decisions = new LinkedHashMap<String, Object>(64, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Object> eldest)
+		{
+			return size() > MAX_CACHED_DECISIONS;
+		}
+	};
+
+	/**
+	 * @param conditions
+	 *            in order of priority
+	 */
+	ConditionTable(final List<Condition> conditions)
+	{
+		this.conditions = conditions.toArray(new Condition[conditions.size()]);
+		final List<Integer> leftovers = new ArrayList<Integer>();
+		for (int index = 0; index < this.conditions.length; index++)
+		{
+			final Condition condition = this.conditions[index];
+			if (condition.getNetwork() != null)
+			{
+				addNetwork(condition.getNetwork(), condition.getPrefixLength(), new Rule(true, true, 5).forIndex(index));
+			}
+			else if (condition.getPattern().flags() != 0 || !addPattern(index, condition.getPattern().pattern()))
+			{
+				leftovers.add(index);
+			}
+		}
+
+		// combine the remaining patterns: (p1)|(p2)|...
+		final List<Integer> combinable = new ArrayList<Integer>();
+		final List<Integer> separate = new ArrayList<Integer>();
+		for (final Integer index : leftovers)
+		{
+			(isCombinable(this.conditions[index].getPattern()) ? combinable : separate).add(index);
+		}
+		Pattern combinedPattern = null;
+		int[] indexes = new int[combinable.size()];
+		final int[] groups = new int[combinable.size()];
+		if (!combinable.isEmpty())
+		{
+			final StringBuilder regex = new StringBuilder();
+			int group = 1;
+			for (int i = 0; i < indexes.length; i++)
+			{
+				final Pattern pattern = this.conditions[combinable.get(i)].getPattern();
+				regex.append(i == 0 ? "(" : "|(").append(pattern.pattern()).append(')');
+				indexes[i] = combinable.get(i);
+				groups[i] = group;
+				group += 1 + pattern.matcher("").groupCount();
+			}
+			try
+			{
+				combinedPattern = Pattern.compile(regex.toString());
+				if (combinedPattern.matcher("").groupCount() != group - 1)
+				{
+					combinedPattern = null;
+				}
+			}
+			catch (final PatternSyntaxException e)
+			{
+				combinedPattern = null;
+			}
+			if (combinedPattern == null)
+			{
+				logger.debug("could not combine the patterns, check them one by one");
+				separate.addAll(combinable);
+				Collections.sort(separate);
+				indexes = new int[0];
+			}
+		}
+		combined = combinedPattern;
+		combinedIndexes = indexes;
+		combinedGroups = groups;
+		separateIndexes = new int[separate.size()];
+		for (int i = 0; i < separateIndexes.length; i++)
+		{
+			separateIndexes[i] = separate.get(i);
+		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("compiled {} conditions: {} exact strings, {} hosts, {} combined patterns, {} separate patterns",
+					this.conditions.length, exactStrings.size(), exactHosts.size(), combinedIndexes.length, separateIndexes.length);
+		}
+	}
+
+	/**
+	 * @param s
+	 *            e.g. host:port or IP address
+	 * @return the NetLayer of the first matching condition; null if no
+	 *         condition matches
+	 */
+	NetLayer getNetLayer(final String s)
+	{
+		if (s == null)
+		{
+			return null;
+		}
+		Object decision;
+		synchronized (decisions)
+		{
+			decision = decisions.get(s);
+		}
+		if (decision == null)
+		{
+			final int index = containsLineTerminator(s) ? findOneByOne(s) : find(s);
+			decision = index < conditions.length ? conditions[index].getNetLayer() : NO_MATCH;
+			synchronized (decisions)
+			{
+				decisions.put(s, decision);
+			}
+		}
+		return decision == NO_MATCH ? null : (NetLayer) decision;
+	}
+
+	/**
+	 * @return the index of the first matching condition; conditions.length if
+	 *         none matches
+	 */
+	private int find(final String s)
+	{
+		int best = conditions.length;
+		final Integer exact = exactStrings.get(s);
+		if (exact != null)
+		{
+			best = exact;
+		}
+
+		// the host with and without port
+		best = findHost(s, null, best);
+		final int colon = s.lastIndexOf(':');
+		if (colon >= 0 && colon < s.length() - 1 && isDigits(s, colon + 1))
+		{
+			best = findHost(s.substring(0, colon), s.substring(colon + 1), best);
+		}
+
+		// the remaining patterns
+		if (combined != null && combinedIndexes[0] < best)
+		{
+			final Matcher matcher = combined.matcher(s);
+			if (matcher.matches())
+			{
+				for (int i = 0; i < combinedGroups.length && combinedIndexes[i] < best; i++)
+				{
+					if (matcher.start(combinedGroups[i]) >= 0)
+					{
+						best = combinedIndexes[i];
+						break;
+					}
+				}
+			}
+		}
+		for (final int index : separateIndexes)
+		{
+			if (index >= best)
+			{
+				break;
+			}
+			if (conditions[index].getPattern().matcher(s).matches())
+			{
+				best = index;
+				break;
+			}
+		}
+		return best;
+	}
+
+	private int findHost(final String host, final String port, final int bestSoFar)
+	{
+		int best = bestSoFar;
+		best = findRule(exactHosts.get(host), port, best);
+		if (hasDomains)
+		{
+			LabelNode node = domains;
+			int end = host.length();
+			while (end > 0)
+			{
+				final int dot = host.lastIndexOf('.', end - 1);
+				node = node.children.get(host.substring(dot + 1, end));
+				if (node == null || dot < 0)
+				{
+					break;
+				}
+				// something is left in front of the dot
+				best = findRule(node.rules, port, best);
+				end = dot;
+			}
+		}
+		if (hasNetworks)
+		{
+			final long address = parseIPv4(host);
+			if (address >= 0)
+			{
+				AddressNode node = networks;
+				for (int bit = 31; node != null; bit--)
+				{
+					best = findRule(node.rules, port, best);
+					node = bit < 0 ? null : ((address >>> bit) & 1) == 0 ? node.zero : node.one;
+				}
+			}
+		}
+		return best;
+	}
+
+	private static int findRule(final Rule[] rules, final String port, final int best)
+	{
+		if (rules != null)
+		{
+			for (final Rule rule : rules)
+			{
+				if (rule.index >= best)
+				{
+					break;
+				}
+				if (rule.accepts(port))
+				{
+					return rule.index;
+				}
+			}
+		}
+		return best;
+	}
+
+	/** the original algorithm: check all patterns in order. */
+	private int findOneByOne(final String s)
+	{
+		for (int index = 0; index < conditions.length; index++)
+		{
+			if (conditions[index].getPattern().matcher(s).matches())
+			{
+				return index;
+			}
+		}
+		return conditions.length;
+	}
+
+	// /////////////////////////////////////////////////////
+	// compilation
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * @return false if the pattern has no supported form
+	 */
+	private boolean addPattern(final int index, final String regex)
+	{
+		final List<String> alternatives = splitAlternatives(regex);
+		if (alternatives == null)
+		{
+			return false;
+		}
+		final List<Runnable> additions = new ArrayList<Runnable>();
+		for (final String alternative : alternatives)
+		{
+			if (!analyze(index, alternative, additions))
+			{
+				return false;
+			}
+		}
+		for (final Runnable addition : additions)
+		{
+			addition.run();
+		}
+		return true;
+	}
+
+	/**
+	 * Analyze one alternative: [^][prefix]literal[port suffix][$].
+	 *
+	 * @param additions
+	 *            receives the table changes
+	 * @return false if the alternative has no supported form
+	 */
+	private boolean analyze(final int index, final String alternative, final List<Runnable> additions)
+	{
+		String body = alternative;
+		if (body.startsWith("^"))
+		{
+			body = body.substring(1);
+		}
+		if (body.endsWith("$") && !isEscaped(body, body.length() - 1))
+		{
+			body = body.substring(0, body.length() - 1);
+		}
+		boolean exact = true;
+		boolean subdomains = false;
+		for (final String prefix : SUBDOMAIN_PREFIXES)
+		{
+			if (body.startsWith(prefix))
+			{
+				body = body.substring(prefix.length());
+				exact = false;
+				subdomains = true;
+			}
+		}
+		for (int i = 0; i < DOMAIN_PREFIXES.length && exact && !subdomains; i++)
+		{
+			if (body.startsWith(DOMAIN_PREFIXES[i]))
+			{
+				body = body.substring(DOMAIN_PREFIXES[i].length());
+				subdomains = true;
+			}
+		}
+		Rule spec = null;
+		for (int i = 0; i < PORT_SUFFIXES.length && spec == null; i++)
+		{
+			if (body.endsWith(PORT_SUFFIXES[i]))
+			{
+				body = body.substring(0, body.length() - PORT_SUFFIXES[i].length());
+				spec = PORT_SUFFIX_SPECS[i];
+			}
+		}
+		final String literal = parseLiteral(body);
+		if (literal == null)
+		{
+			return false;
+		}
+
+		if (spec == null && !subdomains)
+		{
+			// a fixed string
+			additions.add(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (!exactStrings.containsKey(literal))
+					{
+						exactStrings.put(literal, index);
+					}
+				}
+			});
+			return true;
+		}
+		String host = literal;
+		if (spec == null)
+		{
+			final int colon = literal.lastIndexOf(':');
+			if (colon < 0)
+			{
+				spec = new Rule(true, false, 0);
+			}
+			else if (colon < literal.length() - 1 && isDigits(literal, colon + 1))
+			{
+				spec = new Rule(literal.substring(colon + 1));
+				host = literal.substring(0, colon);
+			}
+			else
+			{
+				return false;
+			}
+		}
+		if (host.indexOf(':') >= 0 || (subdomains && !isDomain(host)))
+		{
+			return false;
+		}
+		final Rule rule = spec.forIndex(index);
+		final String key = host;
+		final boolean addExact = exact;
+		final boolean addSubdomains = subdomains;
+		additions.add(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (addExact)
+				{
+					exactHosts.put(key, append(exactHosts.get(key), rule));
+				}
+				if (addSubdomains)
+				{
+					addDomain(key, rule);
+				}
+			}
+		});
+		return true;
+	}
+
+	private void addDomain(final String domain, final Rule rule)
+	{
+		LabelNode node = domains;
+		final String[] labels = domain.split("\\.");
+		for (int i = labels.length - 1; i >= 0; i--)
+		{
+			LabelNode child = node.children.get(labels[i]);
+			if (child == null)
+			{
+				child = new LabelNode();
+				node.children.put(labels[i], child);
+			}
+			node = child;
+		}
+		node.rules = append(node.rules, rule);
+		hasDomains = true;
+	}
+
+	private void addNetwork(final byte[] network, final int prefixLength, final Rule rule)
+	{
+		AddressNode node = networks;
+		for (int bit = 0; bit < prefixLength; bit++)
+		{
+			final boolean one = ((network[bit / 8] >>> (7 - bit % 8)) & 1) != 0;
+			AddressNode child = one ? node.one : node.zero;
+			if (child == null)
+			{
+				child = new AddressNode();
+				if (one)
+				{
+					node.one = child;
+				}
+				else
+				{
+					node.zero = child;
+				}
+			}
+			node = child;
+		}
+		node.rules = append(node.rules, rule);
+		hasNetworks = true;
+	}
+
+	/** rules are added in order of their index. */
+	private static Rule[] append(final Rule[] rules, final Rule rule)
+	{
+		if (rules == null)
+		{
+			return new Rule[] {rule};
+		}
+		final Rule[] result = new Rule[rules.length + 1];
+		System.arraycopy(rules, 0, result, 0, rules.length);
+		result[rules.length] = rule;
+		return result;
+	}
+
+	// /////////////////////////////////////////////////////
+	// regex parsing
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * Split the regex into its top level alternatives; a group around the
+	 * complete regex is removed.
+	 *
+	 * @return the alternatives; null if the regex is too complex
+	 */
+	private static List<String> splitAlternatives(final String regex)
+	{
+		final List<String> result = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		int firstGroupEnd = -1;
+		for (int i = 0; i < regex.length(); i++)
+		{
+			final char c = regex.charAt(i);
+			if (c == '\\')
+			{
+				if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q')
+				{
+					final int end = regex.indexOf("\\E", i + 2);
+					if (end < 0)
+					{
+						return null;
+					}
+					i = end + 1;
+				}
+				else
+				{
+					i++;
+				}
+			}
+			else if (c == '[')
+			{
+				// character classes are not supported
+				return null;
+			}
+			else if (c == '(')
+			{
+				depth++;
+			}
+			else if (c == ')')
+			{
+				depth--;
+				if (depth == 0 && firstGroupEnd < 0 && regex.charAt(0) == '(')
+				{
+					firstGroupEnd = i;
+				}
+			}
+			else if (c == '|' && depth == 0)
+			{
+				result.add(regex.substring(start, i));
+				start = i + 1;
+			}
+		}
+		if (depth != 0)
+		{
+			return null;
+		}
+		result.add(regex.substring(start));
+		if (result.size() == 1 && firstGroupEnd == regex.length() - 1)
+		{
+			// (...) or (?:...) around everything
+			final String inner = regex.startsWith("(?:") ? regex.substring(3, regex.length() - 1)
+					: regex.startsWith("(?") ? null : regex.substring(1, regex.length() - 1);
+			return inner == null ? null : splitAlternatives(inner);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the string matched by the regex; null if the regex is not a
+	 *         plain literal (groups without quantifier are allowed)
+	 */
+	private static String parseLiteral(final String regex)
+	{
+		final StringBuilder result = new StringBuilder(regex.length());
+		int depth = 0;
+		for (int i = 0; i < regex.length(); i++)
+		{
+			final char c = regex.charAt(i);
+			if (c == '\\')
+			{
+				if (i + 1 >= regex.length())
+				{
+					return null;
+				}
+				final char next = regex.charAt(i + 1);
+				if (next == 'Q')
+				{
+					int end = regex.indexOf("\\E", i + 2);
+					if (end < 0)
+					{
+						end = regex.length();
+					}
+					result.append(regex, i + 2, end);
+					i = end + 1;
+				}
+				else if (Character.isLetterOrDigit(next))
+				{
+					return null;
+				}
+				else
+				{
+					result.append(next);
+					i++;
+				}
+			}
+			else if (c == '(')
+			{
+				if (regex.startsWith("(?:", i))
+				{
+					i += 2;
+				}
+				else if (regex.startsWith("(?", i))
+				{
+					return null;
+				}
+				depth++;
+			}
+			else if (c == ')')
+			{
+				depth--;
+				if (depth < 0 || (i + 1 < regex.length() && "?*+{".indexOf(regex.charAt(i + 1)) >= 0))
+				{
+					return null;
+				}
+			}
+			else if ("^$.|?*+[]{}".indexOf(c) >= 0)
+			{
+				return null;
+			}
+			else
+			{
+				result.append(c);
+			}
+		}
+		return depth == 0 && result.length() > 0 ? result.toString() : null;
+	}
+
+	/**
+	 * @return true if the pattern can be part of the combined pattern
+	 */
+	private static boolean isCombinable(final Pattern pattern)
+	{
+		final String regex = pattern.pattern();
+		if (pattern.flags() != 0 || regex.contains("\\k<") || regex.lastIndexOf("\\Q") > regex.lastIndexOf("\\E"))
+		{
+			return false;
+		}
+		for (int i = 0; i < regex.length() - 1; i++)
+		{
+			final char c = regex.charAt(i);
+			final char next = regex.charAt(i + 1);
+			if (c == '\\')
+			{
+				// back references and named groups refer to group numbers/names
+				if (next >= '1' && next <= '9')
+				{
+					return false;
+				}
+				i++;
+			}
+			else if (c == '(' && next == '?' && i + 2 < regex.length()
+					&& (Character.isLetter(regex.charAt(i + 2)) || regex.charAt(i + 2) == '<')
+					&& !regex.startsWith("(?<=", i) && !regex.startsWith("(?<!", i))
+			{
+				// named groups and flags (e.g. comments mode) are not combined
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isEscaped(final String regex, final int index)
+	{
+		int backslashes = 0;
+		for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--)
+		{
+			backslashes++;
+		}
+		return backslashes % 2 == 1 || regex.lastIndexOf("\\Q") > regex.lastIndexOf("\\E");
+	}
+
+	/**
+	 * @return true for names like example.com (no empty labels)
+	 */
+	private static boolean isDomain(final String name)
+	{
+		return name.length() > 0 && !name.startsWith(".") && !name.endsWith(".") && !name.contains("..");
+	}
+
+	private static boolean isDigits(final String s, final int start)
+	{
+		for (int i = start; i < s.length(); i++)
+		{
+			final char c = s.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** '.' of the patterns does not match these characters. */
+	private static boolean containsLineTerminator(final String s)
+	{
+		for (int i = 0; i < s.length(); i++)
+		{
+			final char c = s.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the address of a canonical dotted quad (e.g. 10.0.0.1); -1 if s
+	 *         is no such address
+	 */
+	private static long parseIPv4(final String s)
+	{
+		long result = 0;
+		int octets = 0;
+		int i = 0;
+		while (octets < 4)
+		{
+			final int start = i;
+			int value = 0;
+			while (i < s.length() && i - start < 3 && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+			{
+				value = value * 10 + s.charAt(i) - '0';
+				i++;
+			}
+			if (i == start || value > 255 || (i - start > 1 && s.charAt(start) == '0'))
+			{
+				return -1;
+			}
+			result = (result << 8) | value;
+			octets++;
+			if (octets < 4)
+			{
+				if (i >= s.length() || s.charAt(i) != '.')
+				{
+					return -1;
+				}
+				i++;
+			}
+		}
+		return i == s.length() ? result : -1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ConditionTable(conditions=" + conditions.length + ", combined=" + combinedIndexes.length + ", separate="
+				+ separateIndexes.length + ")";
+	}
+
+	// /////////////////////////////////////////////////////
+	// helper classes
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * A condition for a host with its port specification.
+	 */
+	private static final class Rule
+	{
+		private final int index;
+		/** true=the string without port matches. */
+		private final boolean withoutPort;
+		/** true=any port with at most maxPortDigits digits matches. */
+		private final boolean anyPort;
+		private final int maxPortDigits;
+		/** the only matching port; null if not fixed. */
+		private final String port;
+
+		Rule(final boolean withoutPort, final boolean anyPort, final int maxPortDigits)
+		{
+			this(-1, withoutPort, anyPort, maxPortDigits, null);
+		}
+
+		Rule(final String port)
+		{
+			this(-1, false, false, 0, port);
+		}
+
+		private Rule(final int index, final boolean withoutPort, final boolean anyPort, final int maxPortDigits, final String port)
+		{
+			this.index = index;
+			this.withoutPort = withoutPort;
+			this.anyPort = anyPort;
+			this.maxPortDigits = maxPortDigits;
+			this.port = port;
+		}
+
+		Rule forIndex(final int conditionIndex)
+		{
+			return new Rule(conditionIndex, withoutPort, anyPort, maxPortDigits, port);
+		}
+
+		/**
+		 * @param digits
+		 *            the port; null if the string has no port
+		 */
+		boolean accepts(final String digits)
+		{
+			if (digits == null)
+			{
+				return withoutPort;
+			}
+			return port != null ? port.equals(digits) : anyPort && digits.length() <= maxPortDigits;
+		}
+	}
+
+	/** node of the trie of reversed domain labels. */
+	private static final class LabelNode
+	{
+		private final Map<String, LabelNode> children = new HashMap<String, LabelNode>(4);
+		/** rules of the sub domains of this node. */
+		private Rule[] rules;
+	}
+
+	/** node of the binary trie of IPv4 networks. */
+	private static final class AddressNode
+	{
+		private AddressNode zero;
+		private AddressNode one;
+		private Rule[] rules;
+	}
+}
@@ -52,23 +52,54 @@ public class ConditionalNetLayer implements NetLayer
 	/** */
 	private static final Logger logger = LogManager.getLogger(ConditionalNetLayer.class);
 
-	/** patterns and its assigned lower NetLayers */
-	private List<Condition> conditions = new ArrayList<Condition>();
+	/** patterns and its assigned lower NetLayers; an unmodifiable snapshot */
+	private volatile List<Condition> conditions;
+	/** conditions compiled for the lookups */
+	private volatile ConditionTable conditionTable;
 	/** use this NetLayer if no condition matches */
 	private final NetLayer defaultLowerNetLayer;
+	private final NetAddressNameService netAddressNameService = new ConditionalNetAddressNameService(this);
 
 	/**
 	 * Start with the provided lowerNetLayer. The lowerNetLayer can be exchanged
 	 * later by calling the method setLowerNetLayer().
 	 * 
+	 * The conditions are copied; later changes of the list are not visible, use
+	 * {@link #setConditions(List)} instead.
+	 * 
 	 * @param conditions
 	 * @param defaultLowerNetLayer
 	 */
 	public ConditionalNetLayer(List<Condition> conditions,
 			NetLayer defaultLowerNetLayer)
 	{
-		this.conditions = Collections.synchronizedList(conditions);
 		this.defaultLowerNetLayer = defaultLowerNetLayer;
+		setConditions(conditions);
+	}
+
+	/**
+	 * Replace the conditions.
+	 * 
+	 * @param conditions
+	 *            in order of priority; will be copied
+	 */
+	public final void setConditions(List<Condition> conditions)
+	{
+		final List<Condition> snapshot;
+		synchronized (conditions)
+		{
+			snapshot = Collections.unmodifiableList(new ArrayList<Condition>(conditions));
+		}
+		this.conditionTable = new ConditionTable(snapshot);
+		this.conditions = snapshot;
+	}
+
+	/**
+	 * @return the current conditions; unmodifiable
+	 */
+	public List<Condition> getConditions()
+	{
+		return conditions;
 	}
 
 	/**
@@ -102,54 +133,48 @@ public class ConditionalNetLayer implements NetLayer
 	 */
 	private NetLayer getMatchingNetLayerOrNull(NetAddress netAddress)
 	{
-		// synchronized here to keep the result consistent if conditions will be
-		// modified in parallel
-		synchronized (conditions)
+		// one table for all checks to keep the result consistent if the
+		// conditions will be replaced in parallel
+		final ConditionTable table = conditionTable;
+		if (netAddress == null)
+		{
+			return defaultLowerNetLayer;
+		}
+		else if (netAddress instanceof TcpipNetAddress)
 		{
-			if (netAddress == null)
+			final TcpipNetAddress tcpipNetAddress = (TcpipNetAddress) netAddress;
+
+			// check hostname+port
+			NetLayer result = table.getNetLayer(tcpipNetAddress.getHostnameAndPort());
+			if (result != null)
 			{
-				return defaultLowerNetLayer;
+				return result;
 			}
-			else if (netAddress instanceof TcpipNetAddress)
+			// check IP address+port
+			result = table.getNetLayer(tcpipNetAddress.getIpaddressAndPort());
+			if (result != null)
 			{
-				final TcpipNetAddress tcpipNetAddress = (TcpipNetAddress) netAddress;
-
-				// check hostname+port
-				String s = tcpipNetAddress.getHostnameAndPort();
-				NetLayer result = getMatchingNetLayerOrNull(s);
-				if (result != null)
-				{
-					return result;
-				}
-				// check IP address+port
-				s = tcpipNetAddress.getIpaddressAndPort();
-				result = getMatchingNetLayerOrNull(s);
-				if (result != null)
-				{
-					return result;
-				}
+				return result;
 			}
-			else if (netAddress instanceof IpNetAddress)
-			{
-				final IpNetAddress ipNetAddress = (IpNetAddress) netAddress;
+		}
+		else if (netAddress instanceof IpNetAddress)
+		{
+			final IpNetAddress ipNetAddress = (IpNetAddress) netAddress;
 
-				// check hostname+port
-				final String s = ipNetAddress.getIpaddressAsString();
-				final NetLayer result = getMatchingNetLayerOrNull(s);
-				if (result != null)
-				{
-					return result;
-				}
+			// check hostname+port
+			final NetLayer result = table.getNetLayer(ipNetAddress.getIpaddressAsString());
+			if (result != null)
+			{
+				return result;
 			}
-			else
+		}
+		else
+		{
+			// check via toString()
+			final NetLayer result = table.getNetLayer(netAddress.toString());
+			if (result != null)
 			{
-				// check via toString()
-				final String s = netAddress.toString();
-				final NetLayer result = getMatchingNetLayerOrNull(s);
-				if (result != null)
-				{
-					return result;
-				}
+				return result;
 			}
 		}
 
@@ -166,7 +191,7 @@ public class ConditionalNetLayer implements NetLayer
 	 */
 	protected NetLayer getMatchingNetLayer(String addressName)
 	{
-		NetLayer result = getMatchingNetLayerOrNull(addressName);
+		NetLayer result = conditionTable.getNetLayer(addressName);
 		if (result == null)
 		{
 			result = defaultLowerNetLayer;
@@ -178,42 +203,17 @@ public class ConditionalNetLayer implements NetLayer
 		return result;
 	}
 
-	/**
-	 * Find entry in conditions.
-	 * 
-	 * @param s
-	 * @return matching entry from conditions; null if no condition matches
-	 */
-	private NetLayer getMatchingNetLayerOrNull(final String s)
-	{
-		synchronized (conditions)
-		{
-			for (final Condition condition : conditions)
-			{
-				if (condition.getPattern().matcher(s).matches())
-				{
-					// found result
-					return condition.getNetLayer();
-				}
-			}
-		}
-		// nothing found
-		return null;
-	}
-
 	/**
 	 * @return all possible lower NetLayers.
 	 */
 	private Set<NetLayer> getAllLowerNetLayers()
 	{
+		final List<Condition> currentConditions = conditions;
 		final Set<NetLayer> result = new HashSet<NetLayer>(
-				conditions.size() + 1);
-		synchronized (conditions)
+				currentConditions.size() + 1);
+		for (final Condition condition : currentConditions)
 		{
-			for (final Condition condition : conditions)
-			{
-				result.add(condition.getNetLayer());
-			}
+			result.add(condition.getNetLayer());
 		}
 		result.add(defaultLowerNetLayer);
 		return result;
@@ -315,6 +315,6 @@ public class ConditionalNetLayer implements NetLayer
 	@Override
 	public NetAddressNameService getNetAddressNameService()
 	{
-		return new ConditionalNetAddressNameService(this);
+		return netAddressNameService;
 	}
 }
@@ -23,13 +23,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 
 /**
  * NetSocket of SwitchingNetLayer.
  * 
  * @author hapke
  */
-public class SwitchingNetSocket implements NetSocket
+public class SwitchingNetSocket implements ReadTimeoutNetSocket
 {
 	/** reference to the layer instance of this socket. */
 	private final SwitchingNetLayer switchingNetLayer;
@@ -73,6 +74,16 @@ public class SwitchingNetSocket implements NetSocket
 		}
 	}
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		return lowerNetSocket instanceof ReadTimeoutNetSocket
+				&& ((ReadTimeoutNetSocket) lowerNetSocket).setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public synchronized void close() throws IOException
 	{
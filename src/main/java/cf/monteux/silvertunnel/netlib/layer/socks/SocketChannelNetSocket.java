@@ -0,0 +1,136 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.socks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import cf.monteux.silvertunnel.netlib.api.impl.Socket2NetSocket;
+
+/**
+ * A blocking {@link SocketChannel} as NetSocket.
+ *
+ * The streams call {@link SocketChannel#read(ByteBuffer)} and
+ * {@link SocketChannel#write(ByteBuffer)} directly: the streams of the socket
+ * adaptor synchronize reads and writes on the same lock before Java 13
+ * (JDK-4774871), so a thread blocked in read() would stop the other direction
+ * of the relay from writing. The socket is still exposed for the half-close of
+ * the {@link cf.monteux.silvertunnel.netlib.api.impl.RelayEngine}.
+ *
+ * @author Tobias Boese
+ */
+class SocketChannelNetSocket extends Socket2NetSocket
+{
+	private final SocketChannel channel;
+	private final InputStream in = new ChannelInputStream();
+	private final OutputStream out = new ChannelOutputStream();
+
+	/**
+	 * @param channel
+	 *            connected channel in blocking mode
+	 */
+	SocketChannelNetSocket(final SocketChannel channel) throws IOException
+	{
+		super(channel.socket());
+		this.channel = channel;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		return out;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SocketChannelNetSocket(" + channel + ")";
+	}
+
+	// /////////////////////////////////////////////////////
+	// streams
+	// /////////////////////////////////////////////////////
+
+	private final class ChannelInputStream extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+			final byte[] b = new byte[1];
+			final int count = read(b, 0, 1);
+			return count <= 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	private final class ChannelOutputStream extends OutputStream
+	{
+		@Override
+		public void write(final int b) throws IOException
+		{
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+}
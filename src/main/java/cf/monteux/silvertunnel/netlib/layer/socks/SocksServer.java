@@ -0,0 +1,418 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.socks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cf.monteux.silvertunnel.netlib.api.NetLayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Socks4/Socks4a/Socks5 server for many concurrent clients.
+ *
+ * One selector thread accepts the clients and parses their handshakes
+ * without blocking, so only the handshake phase is selector driven. Complete
+ * CONNECT requests are executed on the lowerNetLayer by a bounded pool of
+ * connect threads; afterwards the data is moved by the
+ * {@link cf.monteux.silvertunnel.netlib.api.impl.RelayEngine}, which uses two
+ * pooled threads per client with blocking I/O (the sockets of the lower
+ * layer, e.g. Tor streams, can not be selected).
+ *
+ * The Socks5 username/password (and the Socks4 user id) are not checked but
+ * used as stream isolation key: clients with different credentials never
+ * share a Tor circuit (see
+ * {@link cf.monteux.silvertunnel.netlib.layer.tor.TorNetLayer#PROPERTY_ISOLATION_KEY}).
+ *
+ * @author Tobias Boese
+ */
+public class SocksServer implements Runnable
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(SocksServer.class);
+
+	/** default maximum number of lower layer connects in parallel. */
+	public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 256;
+	/** clients which did not complete their handshake in this time are closed. */
+	static final long HANDSHAKE_TIMEOUT_MS = 30000L;
+	/** interval of the handshake timeout check. */
+	private static final long SELECT_TIMEOUT_MS = 1000L;
+
+	private final NetLayer lowerNetLayer;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final ThreadPoolExecutor connectExecutor;
+	/** connections which left the selector; only used by the selector thread. */
+	private final List<SocksServerConnection> handedOver = new ArrayList<SocksServerConnection>();
+	private volatile boolean stopped;
+	private Thread selectorThread;
+
+	private final AtomicLong acceptedConnections = new AtomicLong();
+	private final AtomicInteger activeHandshakes = new AtomicInteger();
+	private final AtomicLong handshakeFailures = new AtomicLong();
+	private final AtomicLong succeededConnects = new AtomicLong();
+	private final AtomicLong failedConnects = new AtomicLong();
+	private final AtomicLong connectLatencySumMs = new AtomicLong();
+	private final AtomicLong maxConnectLatencyMs = new AtomicLong();
+
+	/**
+	 * Open the server port; call {@link #start()} to accept clients.
+	 *
+	 * @param lowerNetLayer
+	 *            layer that should be compatible to TcpipNetLayer, i.e. it
+	 *            should accept TcpipNetAddress objects to create sockets
+	 * @param listenAddress
+	 *            local address and port of the server
+	 * @param maxConcurrentConnects
+	 *            maximum number of lower layer connects in parallel
+	 * @throws IOException
+	 */
+	public SocksServer(final NetLayer lowerNetLayer, final InetSocketAddress listenAddress, final int maxConcurrentConnects)
+			throws IOException
+	{
+		this.lowerNetLayer = lowerNetLayer;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(listenAddress, 1024);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		connectExecutor = new ThreadPoolExecutor(maxConcurrentConnects, maxConcurrentConnects, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+				{
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable runnable)
+					{
+						final Thread thread = new Thread(runnable, "SocksServer-connect-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		connectExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @see #SocksServer(NetLayer, InetSocketAddress, int)
+	 */
+	public SocksServer(final NetLayer lowerNetLayer, final InetSocketAddress listenAddress) throws IOException
+	{
+		this(lowerNetLayer, listenAddress, DEFAULT_MAX_CONCURRENT_CONNECTS);
+	}
+
+	/**
+	 * Start accepting clients in a background thread.
+	 */
+	public synchronized void start()
+	{
+		if (selectorThread == null)
+		{
+			selectorThread = new Thread(this, "SocksServer-" + getLocalPort());
+			selectorThread.setDaemon(true);
+			selectorThread.start();
+		}
+	}
+
+	/**
+	 * Stop accepting clients. Established connections are not affected.
+	 */
+	public void close()
+	{
+		stopped = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getLocalPort()
+	{
+		return serverChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public void run()
+	{
+		long nextTimeoutCheck = System.currentTimeMillis() + SELECT_TIMEOUT_MS;
+		while (!stopped)
+		{
+			try
+			{
+				if (handedOver.isEmpty())
+				{
+					selector.select(SELECT_TIMEOUT_MS);
+				}
+				else
+				{
+					// deregister the cancelled keys of the handed over connections
+					selector.selectNow();
+					for (final SocksServerConnection connection : handedOver)
+					{
+						startConnect(connection);
+					}
+					handedOver.clear();
+				}
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+					{
+						continue;
+					}
+					if (key.isAcceptable())
+					{
+						accept();
+					}
+					else
+					{
+						((SocksServerConnection) key.attachment()).handle();
+					}
+				}
+				final long now = System.currentTimeMillis();
+				if (now >= nextTimeoutCheck)
+				{
+					closeTimedOutHandshakes(now);
+					nextTimeoutCheck = now + SELECT_TIMEOUT_MS;
+				}
+			}
+			catch (final Exception e)
+			{
+				logger.warn("unexpected exception in SocksServer", e);
+			}
+		}
+		// shut down
+		for (final SelectionKey key : selector.keys())
+		{
+			if (key.isValid() && key.attachment() instanceof SocksServerConnection)
+			{
+				((SocksServerConnection) key.attachment()).close();
+			}
+		}
+		// complete handshakes whose connect was not started any more
+		for (final SocksServerConnection connection : handedOver)
+		{
+			connection.close();
+		}
+		handedOver.clear();
+		try
+		{
+			serverChannel.close();
+			selector.close();
+		}
+		catch (final IOException e)
+		{
+			logger.debug("got IOException : {}", e.getMessage(), e);
+		}
+		connectExecutor.shutdown();
+		logger.info("SocksServer on port {} stopped: {}", getLocalPort(), this);
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null)
+		{
+			acceptedConnections.incrementAndGet();
+			activeHandshakes.incrementAndGet();
+			try
+			{
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				final SocksServerConnection connection = new SocksServerConnection(this, channel);
+				connection.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, connection));
+			}
+			catch (final IOException e)
+			{
+				logger.debug("could not register client: {}", e.toString());
+				handshakeFailed();
+				channel.close();
+			}
+		}
+	}
+
+	private void closeTimedOutHandshakes(final long now)
+	{
+		for (final SelectionKey key : selector.keys())
+		{
+			// cancelled keys (handed over or closed connections) stay in
+			// keys() until the next select
+			if (key.isValid() && key.attachment() instanceof SocksServerConnection)
+			{
+				final SocksServerConnection connection = (SocksServerConnection) key.attachment();
+				if (now - connection.getCreated() > HANDSHAKE_TIMEOUT_MS)
+				{
+					logger.debug("handshake timeout of {}", connection);
+					handshakeFailed();
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The handshake of the connection is complete and its key is cancelled;
+	 * called by the selector thread.
+	 */
+	void handOver(final SocksServerConnection connection)
+	{
+		activeHandshakes.decrementAndGet();
+		handedOver.add(connection);
+	}
+
+	private void startConnect(final SocksServerConnection connection)
+	{
+		try
+		{
+			connection.prepareConnect();
+			connectExecutor.execute(connection);
+		}
+		catch (final IOException e)
+		{
+			logger.debug("could not prepare connect of {}: {}", connection, e.toString());
+			connectFailed();
+			connection.close();
+		}
+	}
+
+	/** called if a handshake failed. */
+	void handshakeFailed()
+	{
+		activeHandshakes.decrementAndGet();
+		handshakeFailures.incrementAndGet();
+	}
+
+	/** called if a lower layer connect succeeded. */
+	void connectSucceeded(final long latencyMs)
+	{
+		succeededConnects.incrementAndGet();
+		connectLatencySumMs.addAndGet(latencyMs);
+		long max;
+		while ((max = maxConnectLatencyMs.get()) < latencyMs && !maxConnectLatencyMs.compareAndSet(max, latencyMs))
+		{
+			// retry
+		}
+	}
+
+	/** called if a lower layer connect failed. */
+	void connectFailed()
+	{
+		failedConnects.incrementAndGet();
+	}
+
+	NetLayer getLowerNetLayer()
+	{
+		return lowerNetLayer;
+	}
+
+	// /////////////////////////////////////////////////////
+	// metrics
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * @return number of accepted clients
+	 */
+	public long getAcceptedConnections()
+	{
+		return acceptedConnections.get();
+	}
+
+	/**
+	 * @return number of clients in handshake
+	 */
+	public int getActiveHandshakes()
+	{
+		return activeHandshakes.get();
+	}
+
+	/**
+	 * @return number of clients closed because of an invalid or incomplete handshake
+	 */
+	public long getHandshakeFailures()
+	{
+		return handshakeFailures.get();
+	}
+
+	/**
+	 * @return number of CONNECT requests waiting for or executing the lower layer connect
+	 */
+	public int getPendingConnects()
+	{
+		return connectExecutor.getQueue().size() + connectExecutor.getActiveCount();
+	}
+
+	/**
+	 * @return number of successful lower layer connects
+	 */
+	public long getSucceededConnects()
+	{
+		return succeededConnects.get();
+	}
+
+	/**
+	 * @return number of failed lower layer connects
+	 */
+	public long getFailedConnects()
+	{
+		return failedConnects.get();
+	}
+
+	/**
+	 * @return average duration of the successful lower layer connects in milliseconds
+	 */
+	public long getAverageConnectLatencyMs()
+	{
+		final long count = succeededConnects.get();
+		return count == 0 ? 0 : connectLatencySumMs.get() / count;
+	}
+
+	/**
+	 * @return maximum duration of a successful lower layer connect in milliseconds
+	 */
+	public long getMaxConnectLatencyMs()
+	{
+		return maxConnectLatencyMs.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SocksServer(accepted=" + getAcceptedConnections() + ", handshakes=" + getActiveHandshakes()
+				+ ", handshakeFailures=" + getHandshakeFailures() + ", pendingConnects=" + getPendingConnects()
+				+ ", connects=" + getSucceededConnects() + ", failedConnects=" + getFailedConnects()
+				+ ", avgConnectMs=" + getAverageConnectLatencyMs() + ", maxConnectMs=" + getMaxConnectLatencyMs() + ")";
+	}
+}
@@ -0,0 +1,565 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.socks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import cf.monteux.silvertunnel.netlib.api.NetAddress;
+import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.RelayEngine;
+import cf.monteux.silvertunnel.netlib.api.util.TcpipNetAddress;
+import cf.monteux.silvertunnel.netlib.layer.tor.TorNetLayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One client of the {@link SocksServer}.
+ *
+ * The handshake is parsed by the selector thread whenever data arrives; the
+ * parse methods work on the buffered bytes and return 0 as long as a message
+ * is incomplete. The lower layer connect is executed by the connect pool
+ * ({@link #run()}); afterwards the data is relayed with blocking I/O on two
+ * pooled threads of the {@link RelayEngine}.
+ *
+ * @author Tobias Boese
+ */
+class SocksServerConnection implements Runnable
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(SocksServerConnection.class);
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/** the longest handshake: Socks5 authentication (513 bytes). */
+	private static final int MAX_HANDSHAKE_LENGTH = 1024;
+
+	private static final int STATE_VERSION = 0;
+	private static final int STATE_SOCKS5_AUTH = 1;
+	private static final int STATE_SOCKS5_REQUEST = 2;
+	private static final int STATE_CONNECT = 3;
+
+	private static final byte SOCKS4_GRANTED = 0x5a;
+	private static final byte SOCKS4_REJECTED = 0x5b;
+	private static final byte SOCKS5_SUCCEEDED = 0x00;
+	private static final byte SOCKS5_HOST_UNREACHABLE = 0x04;
+	private static final byte SOCKS5_COMMAND_NOT_SUPPORTED = 0x07;
+	private static final byte SOCKS5_ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
+	private static final byte SOCKS5_METHOD_NO_AUTH = 0x00;
+	private static final byte SOCKS5_METHOD_USERNAME_PASSWORD = 0x02;
+	private static final byte SOCKS5_NO_ACCEPTABLE_METHOD = (byte) 0xff;
+
+	private final SocksServer server;
+	private final SocketChannel channel;
+	private final long created = System.currentTimeMillis();
+	private SelectionKey selectionKey;
+	/** received, not yet parsed bytes; in fill mode. */
+	private final ByteBuffer in = ByteBuffer.allocate(MAX_HANDSHAKE_LENGTH);
+	/** answers not yet written; in fill mode. */
+	private final ByteBuffer out = ByteBuffer.allocate(64);
+	private int state = STATE_VERSION;
+
+	/** 4 or 5. */
+	private int version;
+	private NetAddress remoteAddress;
+	private String isolationKey;
+
+	SocksServerConnection(final SocksServer server, final SocketChannel channel)
+	{
+		this.server = server;
+		this.channel = channel;
+	}
+
+	void setSelectionKey(final SelectionKey selectionKey)
+	{
+		this.selectionKey = selectionKey;
+	}
+
+	long getCreated()
+	{
+		return created;
+	}
+
+	/**
+	 * Read and parse the available data; called by the selector thread.
+	 */
+	void handle()
+	{
+		try
+		{
+			if (selectionKey.isWritable())
+			{
+				flushNonBlocking();
+			}
+			if (selectionKey.isValid() && selectionKey.isReadable())
+			{
+				final int count = channel.read(in);
+				if (count < 0)
+				{
+					throw new IOException("client closed the connection during handshake");
+				}
+				if (!in.hasRemaining() && count == 0)
+				{
+					throw new IOException("handshake too long");
+				}
+				in.flip();
+				try
+				{
+					parse();
+				}
+				finally
+				{
+					in.compact();
+				}
+				if (state == STATE_CONNECT)
+				{
+					// leave the selector: the rest is done with blocking I/O
+					selectionKey.cancel();
+					server.handOver(this);
+					return;
+				}
+				flushNonBlocking();
+			}
+		}
+		catch (final IOException e)
+		{
+			logger.debug("handshake of {} failed: {}", this, e.toString());
+			server.handshakeFailed();
+			// best effort to send the error answer
+			try
+			{
+				out.flip();
+				channel.write(out);
+			}
+			catch (final IOException e1)
+			{
+				logger.debug("got IOException : {}", e1.getMessage(), e1);
+			}
+			close();
+		}
+	}
+
+	/**
+	 * Parse as many messages as available; in is in read mode.
+	 */
+	private void parse() throws IOException
+	{
+		int consumed;
+		do
+		{
+			switch (state)
+			{
+				case STATE_VERSION:
+					consumed = parseVersion();
+					break;
+				case STATE_SOCKS5_AUTH:
+					consumed = parseSocks5Auth();
+					break;
+				case STATE_SOCKS5_REQUEST:
+					consumed = parseSocks5Request();
+					break;
+				default:
+					consumed = 0;
+					break;
+			}
+			in.position(in.position() + consumed);
+		}
+		while (consumed > 0 && state != STATE_CONNECT);
+	}
+
+	private int parseVersion() throws IOException
+	{
+		if (!in.hasRemaining())
+		{
+			return 0;
+		}
+		version = in.get(in.position());
+		if (version == 4)
+		{
+			return parseSocks4Request();
+		}
+		if (version == 5)
+		{
+			return parseSocks5Greeting();
+		}
+		throw new IOException("only support for Socks-4(a)/5, got version " + version);
+	}
+
+	/**
+	 * VN CD DSTPORT(2) DSTIP(4) USERID 0 [HOSTNAME 0].
+	 */
+	private int parseSocks4Request() throws IOException
+	{
+		final int start = in.position();
+		if (in.remaining() < 9)
+		{
+			return 0;
+		}
+		final int userIdEnd = indexOfZero(start + 8);
+		if (userIdEnd < 0)
+		{
+			return 0;
+		}
+		int end = userIdEnd;
+		final byte[] ip = new byte[4];
+		for (int i = 0; i < ip.length; i++)
+		{
+			ip[i] = in.get(start + 4 + i);
+		}
+		final int port = ((in.get(start + 2) & 0xff) << 8) | (in.get(start + 3) & 0xff);
+		String hostname = null;
+		if (ip[0] == 0 && ip[1] == 0 && ip[2] == 0 && ip[3] != 0)
+		{
+			// Socks4a
+			end = indexOfZero(userIdEnd + 1);
+			if (end < 0)
+			{
+				return 0;
+			}
+			hostname = getString(userIdEnd + 1, end);
+		}
+		if (in.get(start + 1) != 1)
+		{
+			reply(new byte[] {0, SOCKS4_REJECTED, 0, 0, 0, 0, 0, 0});
+			throw new IOException("only CONNECT supported");
+		}
+		if (userIdEnd > start + 8)
+		{
+			isolationKey = "socks4:" + getString(start + 8, userIdEnd);
+		}
+		remoteAddress = hostname != null ? new TcpipNetAddress(hostname, port) : new TcpipNetAddress(ip, port);
+		state = STATE_CONNECT;
+		return end + 1 - start;
+	}
+
+	/**
+	 * VER NMETHODS METHODS.
+	 */
+	private int parseSocks5Greeting() throws IOException
+	{
+		final int start = in.position();
+		if (in.remaining() < 2)
+		{
+			return 0;
+		}
+		final int methods = in.get(start + 1) & 0xff;
+		if (in.remaining() < 2 + methods)
+		{
+			return 0;
+		}
+		boolean foundNoAuth = false;
+		boolean foundUsernamePassword = false;
+		for (int i = 0; i < methods; i++)
+		{
+			final byte method = in.get(start + 2 + i);
+			foundNoAuth |= method == SOCKS5_METHOD_NO_AUTH;
+			foundUsernamePassword |= method == SOCKS5_METHOD_USERNAME_PASSWORD;
+		}
+		if (foundUsernamePassword)
+		{
+			// the credentials are used as isolation key
+			reply(new byte[] {5, SOCKS5_METHOD_USERNAME_PASSWORD});
+			state = STATE_SOCKS5_AUTH;
+		}
+		else if (foundNoAuth)
+		{
+			reply(new byte[] {5, SOCKS5_METHOD_NO_AUTH});
+			state = STATE_SOCKS5_REQUEST;
+		}
+		else
+		{
+			reply(new byte[] {5, SOCKS5_NO_ACCEPTABLE_METHOD});
+			throw new IOException("no accepted method listed by client");
+		}
+		return 2 + methods;
+	}
+
+	/**
+	 * VER(1) ULEN UNAME PLEN PASSWD (RFC 1929).
+	 */
+	private int parseSocks5Auth() throws IOException
+	{
+		final int start = in.position();
+		if (in.remaining() < 2)
+		{
+			return 0;
+		}
+		final int usernameLength = in.get(start + 1) & 0xff;
+		if (in.remaining() < 3 + usernameLength)
+		{
+			return 0;
+		}
+		final int passwordLength = in.get(start + 2 + usernameLength) & 0xff;
+		final int length = 3 + usernameLength + passwordLength;
+		if (in.remaining() < length)
+		{
+			return 0;
+		}
+		if (in.get(start) != 1)
+		{
+			reply(new byte[] {1, 1});
+			throw new IOException("unsupported username/password authentication version " + in.get(start));
+		}
+		isolationKey = "socks5:" + getString(start + 2, start + 2 + usernameLength) + ":"
+				+ getString(start + 3 + usernameLength, start + length);
+		reply(new byte[] {1, 0});
+		state = STATE_SOCKS5_REQUEST;
+		return length;
+	}
+
+	/**
+	 * VER CMD RSV ATYP DST.ADDR DST.PORT(2).
+	 */
+	private int parseSocks5Request() throws IOException
+	{
+		final int start = in.position();
+		if (in.remaining() < 5)
+		{
+			return 0;
+		}
+		final byte addressType = in.get(start + 3);
+		final int addressLength;
+		int addressStart = start + 4;
+		switch (addressType)
+		{
+			case 1:
+				addressLength = 4;
+				break;
+			case 3:
+				addressLength = in.get(start + 4) & 0xff;
+				addressStart++;
+				break;
+			case 4:
+				addressLength = 16;
+				break;
+			default:
+				socks5Reply(SOCKS5_ADDRESS_TYPE_NOT_SUPPORTED);
+				throw new IOException("unsupported address type " + addressType);
+		}
+		final int length = addressStart - start + addressLength + 2;
+		if (in.remaining() < length)
+		{
+			return 0;
+		}
+		if (in.get(start) != 5)
+		{
+			throw new IOException("why the f*** does the client change its version number?");
+		}
+		if (in.get(start + 1) != 1)
+		{
+			socks5Reply(SOCKS5_COMMAND_NOT_SUPPORTED);
+			throw new IOException("only CONNECT supported");
+		}
+		final int portIndex = addressStart + addressLength;
+		final int port = ((in.get(portIndex) & 0xff) << 8) | (in.get(portIndex + 1) & 0xff);
+		if (addressType == 3)
+		{
+			remoteAddress = new TcpipNetAddress(getString(addressStart, addressStart + addressLength), port);
+		}
+		else
+		{
+			final byte[] ip = new byte[addressLength];
+			for (int i = 0; i < ip.length; i++)
+			{
+				ip[i] = in.get(addressStart + i);
+			}
+			remoteAddress = new TcpipNetAddress(ip, port);
+		}
+		state = STATE_CONNECT;
+		return length;
+	}
+
+	/**
+	 * Switch to blocking mode; called by the selector thread after the key was
+	 * deregistered.
+	 */
+	void prepareConnect() throws IOException
+	{
+		channel.configureBlocking(true);
+	}
+
+	/**
+	 * Connect to the remote address via the lower layer and start to relay;
+	 * called by the connect pool.
+	 */
+	@Override
+	public void run()
+	{
+		final long start = System.currentTimeMillis();
+		NetSocket lowerNetSocket;
+		try
+		{
+			Map<String, Object> localProperties = null;
+			if (isolationKey != null)
+			{
+				localProperties = new HashMap<String, Object>();
+				localProperties.put(TorNetLayer.PROPERTY_ISOLATION_KEY, isolationKey);
+			}
+			lowerNetSocket = server.getLowerNetLayer().createNetSocket(localProperties, null, remoteAddress);
+		}
+		catch (final Exception e)
+		{
+			logger.info("connect to {} failed: {}", remoteAddress, e.toString());
+			server.connectFailed();
+			try
+			{
+				if (version == 4)
+				{
+					reply(new byte[] {0, SOCKS4_REJECTED, 0, 0, 0, 0, 0, 0});
+				}
+				else
+				{
+					socks5Reply(SOCKS5_HOST_UNREACHABLE);
+				}
+				flushBlocking();
+			}
+			catch (final IOException e1)
+			{
+				logger.debug("got IOException : {}", e1.getMessage(), e1);
+			}
+			close();
+			return;
+		}
+		server.connectSucceeded(System.currentTimeMillis() - start);
+
+		try
+		{
+			if (version == 4)
+			{
+				reply(new byte[] {0, SOCKS4_GRANTED, 0, 0, 0, 0, 0, 0});
+			}
+			else
+			{
+				socks5Reply(SOCKS5_SUCCEEDED);
+			}
+			flushBlocking();
+
+			// data the client sent after the request
+			in.flip();
+			if (in.hasRemaining())
+			{
+				final OutputStream lowerOut = lowerNetSocket.getOutputStream();
+				lowerOut.write(in.array(), in.position(), in.remaining());
+				lowerOut.flush();
+			}
+			in.clear();
+
+			RelayEngine.getInstance().relay(new SocketChannelNetSocket(channel), lowerNetSocket);
+		}
+		catch (final IOException e)
+		{
+			logger.debug("relay of {} could not be started: {}", this, e.toString());
+			close();
+			try
+			{
+				lowerNetSocket.close();
+			}
+			catch (final IOException e1)
+			{
+				logger.debug("got IOException : {}", e1.getMessage(), e1);
+			}
+		}
+	}
+
+	void close()
+	{
+		if (selectionKey != null)
+		{
+			selectionKey.cancel();
+		}
+		try
+		{
+			channel.close();
+		}
+		catch (final IOException e)
+		{
+			// no problem
+			logger.debug("got IOException : {}", e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SocksServerConnection(" + channel.socket().getRemoteSocketAddress() + "->" + remoteAddress + ")";
+	}
+
+	// /////////////////////////////////////////////////////
+	// helpers
+	// /////////////////////////////////////////////////////
+
+	private void socks5Reply(final byte code) throws IOException
+	{
+		reply(new byte[] {5, code, 0, 1, 0, 0, 0, 0, 0, 0});
+	}
+
+	private void reply(final byte[] answer) throws IOException
+	{
+		if (answer.length > out.remaining())
+		{
+			throw new IOException("too many unsent answers");
+		}
+		out.put(answer);
+	}
+
+	private void flushNonBlocking() throws IOException
+	{
+		out.flip();
+		channel.write(out);
+		out.compact();
+		selectionKey.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void flushBlocking() throws IOException
+	{
+		out.flip();
+		while (out.hasRemaining())
+		{
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * @return absolute index of the next 0 byte at or after from; -1 if not
+	 *         (yet) received
+	 */
+	private int indexOfZero(final int from)
+	{
+		for (int i = from; i < in.limit(); i++)
+		{
+			if (in.get(i) == 0)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String getString(final int from, final int to)
+	{
+		return new String(in.array(), from, to - from, ISO_8859_1);
+	}
+}
@@ -24,6 +24,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import cf.monteux.silvertunnel.netlib.api.NetAddress;
 import cf.monteux.silvertunnel.netlib.api.NetLayer;
@@ -70,6 +73,18 @@ public class SocksServerNetSession implements Runnable
 
 	private static long id;
 
+	/** executes the sessions; idle threads are reused instead of starting one per session. */
+	private static final ExecutorService SESSION_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, createUniqueThreadName());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	public SocksServerNetSession(final NetLayer lowerNetLayer,
 								 final Map<String, Object> localProperties, 
 								 final NetAddress localAddress,
@@ -95,7 +110,7 @@ public class SocksServerNetSession implements Runnable
 		socksOut = higherLayerSocketInternallyUsed.getDataOutputStream();
 
 		// start background processing
-		new Thread(this, createUniqueThreadName()).start();
+		SESSION_EXECUTOR.execute(this);
 
 		return higherLayerSocketExported;
 	}
@@ -40,6 +40,7 @@ import cf.monteux.silvertunnel.netlib.util.PropertiesUtil;
  * Supported localProperties:
  * TLSNetLayer.enabledCipherSuites=TLS_RSA_WITH_AES_128_CBC_SHA
  * ,TLS_DHE_RSA_WITH_AES_128_CBC_SHA,...
+ * TLSNetLayer.applicationProtocols=h2,http/1.1 (ALPN, if supported by the JRE)
  * 
  * @author hapke
  */
@@ -48,6 +49,7 @@ public class TLSNetLayer implements NetLayer
 	public static final String ENABLES_CIPHER_SUITES = "TLSNetLayer.enabledCipherSuites";
 	public static final String KEY_MANAGERS = "TLSNetLayer.KEYManagers";
 	public static final String TRUST_MANAGERS = "TLSNetLayer.TrustManagers";
+	public static final String APPLICATION_PROTOCOLS = "TLSNetLayer.applicationProtocols";
 
 	private final NetLayer lowerNetLayer;
 
@@ -71,12 +73,14 @@ public class TLSNetLayer implements NetLayer
 			lowerLayerProperties.remove(ENABLES_CIPHER_SUITES);
 			lowerLayerProperties.remove(KEY_MANAGERS);
 			lowerLayerProperties.remove(TRUST_MANAGERS);
+			lowerLayerProperties.remove(APPLICATION_PROTOCOLS);
 		}
 		final NetSocket lowerLayerSocket = lowerNetLayer.createNetSocket(
 				lowerLayerProperties, localAddress, remoteAddress);
 
 		// read (optional) properties
 		final String[] enabledCipherSuites = PropertiesUtil.getAsStringArray(localProperties, ENABLES_CIPHER_SUITES, null);
+		final String[] applicationProtocols = PropertiesUtil.getAsStringArray(localProperties, APPLICATION_PROTOCOLS, null);
 
 		final Object keyManagersObj = PropertiesUtil.getAsObject(localProperties, KEY_MANAGERS, null);
 		KeyManager[] keyManagers = null;
@@ -104,7 +108,8 @@ public class TLSNetLayer implements NetLayer
 				true, // auto close
 				enabledCipherSuites, 
 				keyManagers, 
-				trustManagers);
+				trustManagers,
+				applicationProtocols);
 
 		return higherLayerSocket;
 	}
@@ -25,13 +25,14 @@ import java.io.OutputStream;
 import javax.net.ssl.SSLSession;
 
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 
 /**
  * NetSocket of TLSNetLayer.
  * 
  * @author hapke
  */
-public class TLSNetSocket implements NetSocket
+public class TLSNetSocket implements ReadTimeoutNetSocket
 {
 	/** NetSocket that is doing the communication */
 	protected NetSocket innerNetSocket;
@@ -41,14 +42,25 @@ public class TLSNetSocket implements NetSocket
 	// additional fields
 	/** SSLSession */
 	protected SSLSession sslSession;
+	/** protocol selected by ALPN; null if none. */
+	protected String applicationProtocol;
 
 	protected TLSNetSocket(final NetSocket innerNetSocket, 
 	                       final SSLSession sslSession,
 	                       final String lowerLayerSocketInfoMsg)
+	{
+		this(innerNetSocket, sslSession, lowerLayerSocketInfoMsg, null);
+	}
+
+	protected TLSNetSocket(final NetSocket innerNetSocket, 
+	                       final SSLSession sslSession,
+	                       final String lowerLayerSocketInfoMsg,
+	                       final String applicationProtocol)
 	{
 		this.innerNetSocket = innerNetSocket;
 		this.sslSession = sslSession;
 		this.lowerLayerSocketInfoMsg = lowerLayerSocketInfoMsg;
+		this.applicationProtocol = applicationProtocol;
 	}
 
 	public SSLSession getSSLSession()
@@ -56,6 +68,15 @@ public class TLSNetSocket implements NetSocket
 		return sslSession;
 	}
 
+	/**
+	 * @return protocol selected by ALPN (e.g. h2); null if ALPN was not used
+	 *         or not supported
+	 */
+	public String getApplicationProtocol()
+	{
+		return applicationProtocol;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -66,6 +87,16 @@ public class TLSNetSocket implements NetSocket
 	// method calls forwarded to innerNetSocket
 	// /////////////////////////////////////////////////////
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs) throws IOException
+	{
+		return innerNetSocket instanceof ReadTimeoutNetSocket
+				&& ((ReadTimeoutNetSocket) innerNetSocket).setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public void close() throws IOException
 	{
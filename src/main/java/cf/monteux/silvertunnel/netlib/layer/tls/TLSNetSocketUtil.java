@@ -19,6 +19,7 @@
 package cf.monteux.silvertunnel.netlib.layer.tls;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -27,6 +28,7 @@ import java.util.Arrays;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -70,6 +72,25 @@ public class TLSNetSocketUtil
 			TcpipNetAddress remoteAddress, boolean autoClose,
 			String[] enabledCipherSuites, KeyManager[] keyManagers,
 			TrustManager[] trustManagers) throws IOException
+	{
+		return createTLSSocket(lowerLayerNetSocket, remoteAddress, autoClose,
+				enabledCipherSuites, keyManagers, trustManagers, null);
+	}
+
+	/**
+	 * Like {@link #createTLSSocket(NetSocket, TcpipNetAddress, boolean, String[], KeyManager[], TrustManager[])}
+	 * with ALPN.
+	 * 
+	 * @param applicationProtocols
+	 *            protocols offered by ALPN, e.g. h2 and http/1.1; if null or
+	 *            not supported by the JRE, ALPN is not used
+	 * @return the socket; see {@link TLSNetSocket#getApplicationProtocol()}
+	 * @throws IOException
+	 */
+	public static NetSocket createTLSSocket(NetSocket lowerLayerNetSocket,
+			TcpipNetAddress remoteAddress, boolean autoClose,
+			String[] enabledCipherSuites, KeyManager[] keyManagers,
+			TrustManager[] trustManagers, String[] applicationProtocols) throws IOException
 	{
 		final Socket lowerLayerSocket = new NetSocket2Socket(
 				lowerLayerNetSocket);
@@ -124,7 +145,57 @@ public class TLSNetSocketUtil
 			}
 		}
 
+		if (applicationProtocols != null)
+		{
+			setApplicationProtocols(resultSocket, applicationProtocols);
+		}
+
 		return new TLSNetSocket(new Socket2NetSocket(resultSocket),
-				resultSocket.getSession(), "" + lowerLayerNetSocket);
+				resultSocket.getSession(), "" + lowerLayerNetSocket,
+				applicationProtocols == null ? null : getApplicationProtocol(resultSocket));
+	}
+
+	/**
+	 * ALPN is available since Java 9 (and 8u252); it is accessed by
+	 * reflection to keep running on older JREs.
+	 */
+	private static void setApplicationProtocols(SSLSocket socket, String[] applicationProtocols)
+	{
+		try
+		{
+			final Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+			final SSLParameters parameters = socket.getSSLParameters();
+			method.invoke(parameters, (Object) applicationProtocols);
+			socket.setSSLParameters(parameters);
+		}
+		catch (final NoSuchMethodException e)
+		{
+			logger.debug("ALPN is not supported by this JRE");
+		}
+		catch (final Exception e)
+		{
+			logger.debug("could not set ALPN protocols: {}", e.toString());
+		}
+	}
+
+	/**
+	 * @return the protocol selected by ALPN; null if none
+	 */
+	private static String getApplicationProtocol(SSLSocket socket)
+	{
+		try
+		{
+			final Object protocol = SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket);
+			return protocol == null || "".equals(protocol) ? null : protocol.toString();
+		}
+		catch (final NoSuchMethodException e)
+		{
+			return null;
+		}
+		catch (final Exception e)
+		{
+			logger.debug("could not get ALPN protocol: {}", e.toString());
+			return null;
+		}
 	}
 }
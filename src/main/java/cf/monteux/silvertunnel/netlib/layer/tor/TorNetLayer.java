@@ -62,7 +62,6 @@ import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
 import cf.monteux.silvertunnel.netlib.layer.tor.directory.FingerprintImpl;
 import cf.monteux.silvertunnel.netlib.layer.tor.hiddenservice.HiddenServiceProperties;
 import cf.monteux.silvertunnel.netlib.layer.tor.stream.TCPStream;
-import cf.monteux.silvertunnel.netlib.nameservice.cache.CachingNetAddressNameService;
 import cf.monteux.silvertunnel.netlib.nameservice.tor.TorNetAddressNameService;
 import cf.monteux.silvertunnel.netlib.util.StringStorage;
 import org.apache.logging.log4j.LogManager;
@@ -87,7 +86,20 @@ public class TorNetLayer implements NetLayer
 	 * the instance of NetAddressNameService; will be initialized during the
 	 * first call of getNetAddressNameService().
 	 */
-	private transient NetAddressNameService netAddressNameService;
+	private transient TorNetAddressNameService netAddressNameService;
+
+	/**
+	 * key of the localProperties of {@link #createNetSocket(Map, NetAddress, NetAddress)}:
+	 * String value; streams with different values never share a circuit.
+	 */
+	public static final String PROPERTY_ISOLATION_KEY = "TorNetLayer.isolationKey";
+	/**
+	 * key of the localProperties of {@link #createNetSocket(Map, NetAddress, NetAddress)}:
+	 * Boolean or String value; true=return the socket before the exit confirmed
+	 * the connection and send the first data without waiting (optimistic data).
+	 * Errors of the exit show up at the first read or write.
+	 */
+	public static final String PROPERTY_OPTIMISTIC_DATA = "TorNetLayer.optimisticData";
 
 	private static final String EXIT = "exit";
 	private static final Pattern EXIT_PATTERN = Pattern.compile("(.*)\\.([^\\.]+)\\." + EXIT);
@@ -143,6 +155,14 @@ public class TorNetLayer implements NetLayer
 
 		// create TCP stream via Tor
 		final TCPStreamProperties sp = convertTcpipNetAddress2TCPStreamProperties(ra);
+		if (localProperties != null && localProperties.get(PROPERTY_ISOLATION_KEY) != null)
+		{
+			sp.setIsolationKey(localProperties.get(PROPERTY_ISOLATION_KEY).toString());
+		}
+		if (localProperties != null && localProperties.get(PROPERTY_OPTIMISTIC_DATA) != null)
+		{
+			sp.setOptimisticData(Boolean.parseBoolean(localProperties.get(PROPERTY_OPTIMISTIC_DATA).toString()));
+		}
 
 		// check if we want a connection to a DirServer (so IP belongs to a
 		// DirServer and dest port = dirport)
@@ -273,15 +293,24 @@ public class TorNetLayer implements NetLayer
 	 */
 	@Override
 	public NetAddressNameService getNetAddressNameService()
+	{
+		return getTorNetAddressNameService();
+	}
+
+	/**
+	 * @return the TorNetAddressNameService instance; it caches the answers
+	 *         with their TTL and allows to prefetch names
+	 */
+	public synchronized TorNetAddressNameService getTorNetAddressNameService()
 	{
 		if (netAddressNameService == null)
 		{
 			// create a new instance
-			netAddressNameService = new CachingNetAddressNameService(new TorNetAddressNameService(tor)
+			netAddressNameService = new TorNetAddressNameService(tor)
 			{
 				// use this anonymous class to access the protected
 				// constructor
-			});
+			};
 		}
 
 		return netAddressNameService;
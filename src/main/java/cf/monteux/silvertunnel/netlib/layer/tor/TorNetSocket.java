@@ -22,7 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 import cf.monteux.silvertunnel.netlib.layer.tor.stream.TCPStream;
 
 /**
@@ -30,7 +30,7 @@ import cf.monteux.silvertunnel.netlib.layer.tor.stream.TCPStream;
  * 
  * @author hapke
  */
-public class TorNetSocket implements NetSocket
+public class TorNetSocket implements ReadTimeoutNetSocket
 {
 	private final TCPStream tcpStream;
 	private final String socketInfoMsg;
@@ -59,6 +59,15 @@ public class TorNetSocket implements NetSocket
 		return tcpStream.getOutputStream();
 	}
 
+	/**
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs)
+	{
+		return tcpStream.setReadTimeout(timeoutInMs);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -115,6 +115,13 @@ public interface Router
 
     boolean exitPolicyAccepts(final InetAddress addr, final int port);
 
+    /**
+     * Check if the exit policy accepts the port for at least one address.
+     * @param port the destination port
+     * @return true if the port is not rejected for all addresses
+     */
+    boolean exitPolicyAcceptsPort(final int port);
+
     void save(ConvenientStreamWriter convenientStreamWriter) throws IOException;
 
     float getRefinedRankingIndex(final float p);
@@ -127,4 +134,16 @@ public interface Router
 	RouterFlags getRouterFlags();
 
 	float getRankingIndex();
+
+	/**
+	 * @return the bandwidth of the "w" line of the consensus in kilobytes per
+	 *         second; 0 if unknown
+	 */
+	long getConsensusBandwidth();
+
+	/**
+	 * @return product of all punishments of {@link #punishRanking()}; 1 if
+	 *         never punished
+	 */
+	float getPunishment();
 }
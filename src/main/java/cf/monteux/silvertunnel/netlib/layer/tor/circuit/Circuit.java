@@ -138,6 +138,8 @@ public final class Circuit
 	private Queue queue;
 	/** has this Circuit already been used for something? */
 	private boolean unused = true;
+	/** is this Circuit kept as spare circuit for a hidden service rendezvous? */
+	private volatile boolean reservedForRendezvous;
 	/** how many relayearly cells do we have ?*/
 	private int relayEarlyCellsRemaining = 8;
 	/**
@@ -153,6 +155,10 @@ public final class Circuit
 	private final transient Set<Object> streamHistory = new HashSet<Object>();
 	/** counts the number of established streams. */
 	private int establishedStreams = 0;
+	/** isolation key of all streams of this circuit; null=not isolated. */
+	private String isolationKey;
+	/** true if a stream without isolation key was attached. */
+	private boolean usedWithoutIsolationKey;
 	/** service descriptor in case if used for rendezvous point. */
 	private RendezvousServiceDescriptor serviceDescriptor;
 	/** Circuit ID. */
@@ -254,6 +260,7 @@ public final class Circuit
 			createdTime = System.currentTimeMillis();
 			lastAction = createdTime;
 			lastCell = createdTime;
+			CircuitScheduler.watch(this);
 
 			// save original Thread name
 			final Thread currentThread = Thread.currentThread();
@@ -460,11 +467,31 @@ public final class Circuit
 		}
 		final byte[] identifier = new byte[20];
 		System.arraycopy(cell.getData(), 0, identifier, 0, 20);
-		final HiddenServiceProperties introProps = getHiddenServiceInstanceForIntroduction().getHiddenServiceProperties();
-		if (!Arrays.equals(identifier, introProps.getPubKeyHash()))
+		final HiddenServiceInstance hiddenServiceInstance = getHiddenServiceInstanceForIntroduction();
+		if (!Arrays.equals(identifier, hiddenServiceInstance.getHiddenServiceProperties().getPubKeyHash()))
 		{
 			throw new TorException("Circuit.handleIntroduce2: onion is for unknown key-pair");
 		}
+
+		// do the rest (decryption and rendezvous) on the workers of the hidden service
+		hiddenServiceInstance.getIntroductionHandler(tlsConnectionAdmin, directory, torEventService).handleIntroduce2(this, cell);
+		/*
+		 * https://gitweb.torproject.org/torspec.git/blob/HEAD:/rend-spec.txt -
+		 * 1.10. Rendezvous
+		 */
+		return false;
+	}
+
+	/**
+	 * Decrypt and parse the content of an INTRODUCE2 cell which was already
+	 * checked by {@link #handleIntroduce2(CellRelay)}.
+	 * 
+	 * @param cell the INTRODUCE2 cell
+	 * @return the data needed for the rendezvous; null if the cell is not supported
+	 */
+	HiddenServiceIntroductionHandler.RendezvousRequest parseIntroduce2(final CellRelay cell) throws TorException
+	{
+		final HiddenServiceProperties introProps = getHiddenServiceInstanceForIntroduction().getHiddenServiceProperties();
 		final byte[] onionData = new byte[cell.getLength() - 20];
 		System.arraycopy(cell.getData(), 20, onionData, 0, cell.getLength() - 20);
 
@@ -551,60 +578,15 @@ public final class Circuit
 			{
 				logger.warn("Intro2-Cell not supported with version=" + version[0]);
 			}
-			return false;
+			return null;
 		}
-
-		// do the rest in an extra thread/in background
-		new Thread()
+		if (rendezvousServer == null)
 		{
-			@Override
-			public void run()
-			{
-				// build circuit to rendezvous
-				final TCPStreamProperties sp = new TCPStreamProperties();
-				sp.setExitPolicyRequired(false);
-				sp.setCustomExitpoint(rendezvousServer.getFingerprint());
-
-				// make new circuit where the last node is rendezvous point
-				for (int j = 0; j < sp.getConnectRetries(); ++j)
-				{
-					try
-					{
-						final Circuit c2rendezvous = CircuitAdmin.provideSuitableNewCircuit(tlsConnectionAdmin, directory, sp, torEventService);
-						if (c2rendezvous == null)
-						{
-							continue;
-						}
-						// send dhY
-						final Node virtualNode = new Node(rendezvousServer, dhX);
-						c2rendezvous.sendCell(new CellRelayRendezvous1(c2rendezvous, cookie, virtualNode.getDhYBytes(), virtualNode.getKeyHandshake()));
-						if (logger.isDebugEnabled())
-						{
-							logger.debug("Circuit.handleIntroduce2: connected to rendezvous '" + rendezvousServer + "' over " + c2rendezvous.toString());
-						}
-
-						// extend circuit to 'virtual' next point AFTER doing
-						// the rendezvous
-						c2rendezvous.addNode(virtualNode);
-
-						// connect - with empty address in begin cell set
-						c2rendezvous.setHiddenServiceInstanceForRendezvous(hiddenServiceInstanceForIntroduction);
-
-						break;
+			logger.warn("Intro2-Cell with unknown rendezvous point");
+			return null;
+		}
 
-					}
-					catch (final Throwable e)
-					{
-						logger.warn("Exception in handleIntroduce2", e);
-					}
-				}
-			}
-		}.start();
-		/*
-		 * https://gitweb.torproject.org/torspec.git/blob/HEAD:/rend-spec.txt -
-		 * 1.10. Rendezvous
-		 */
-		return false;
+		return new HiddenServiceIntroductionHandler.RendezvousRequest(rendezvousServer, cookie, dhX);
 	}
 
 	/**
@@ -834,6 +816,7 @@ public final class Circuit
 		// route to set new array
 		routeNodes = newRoute;		
 		extend(routeEstablished, router);
+		++routeEstablished;
 	}
 	/**
 	 * adds node as the last one in the route.
@@ -932,6 +915,7 @@ public final class Circuit
 		if (oldStream == null)
 		{
 			// success
+			CircuitScheduler.watch(stream);
 			return true;
 		}
 		else
@@ -957,6 +941,12 @@ public final class Circuit
 		{
 			streamHistory.add(sp.getHostname());
 		}
+		// check if this circuit should not accept more streams
+		if (establishedStreams > TorConfig.getStreamsPerCircuit() && !closed)
+		{
+			logger.debug("Circuit.registerStream(): closing (maximum streams) {}", this);
+			close(false);
+		}
 	}
 
 	/**
@@ -1192,6 +1182,11 @@ public final class Circuit
 			{
 				close(true);
 			}
+			else if (closed && !destruct && streams.isEmpty())
+			{
+				// soft closed circuit waited for this stream
+				CircuitScheduler.tearDown(this);
+			}
 			return result;
 		}
 	}
@@ -1215,7 +1210,7 @@ public final class Circuit
 		return hiddenServiceInstanceForIntroduction != null;
 	}
 
-	private void setHiddenServiceInstanceForRendezvous(final HiddenServiceInstance hiddenServiceInstanceForRendezvous)
+	void setHiddenServiceInstanceForRendezvous(final HiddenServiceInstance hiddenServiceInstanceForRendezvous)
 	{
 		this.hiddenServiceInstanceForRendezvous = hiddenServiceInstanceForRendezvous;
 	}
@@ -1268,6 +1263,14 @@ public final class Circuit
 		}
 	}
 
+	/**
+	 * @return true if the stream is (still) attached to this circuit
+	 */
+	boolean hasStream(final Stream stream)
+	{
+		return streams.get(stream.getId()) == stream;
+	}
+
 	/**
 	 * Receive a special {@link CellRelay}.
 	 * 
@@ -1622,6 +1625,7 @@ public final class Circuit
 	public boolean isUnused()
 	{
 		return unused 
+			&& !reservedForRendezvous
 			&& establishedStreams == 0 
 		    && !isUsedByHiddenServiceToConnectToIntroductionPoint() 
 		    && !isUsedByHiddenServiceToConnectToRendezvousPoint();
@@ -1630,8 +1634,113 @@ public final class Circuit
 	/**
 	 * @param unused the unused to set
 	 */
-	public void setUnused(final boolean unused)
+	public synchronized void setUnused(final boolean unused)
 	{
 		this.unused = unused;
 	}
+
+	/**
+	 * @return true if this circuit is kept for the rendezvous of a hidden service (server side)
+	 */
+	public boolean isReservedForRendezvous()
+	{
+		return reservedForRendezvous;
+	}
+
+	/**
+	 * Take this circuit for the rendezvous of a hidden service if it is
+	 * unused; from then on it is kept away from all other uses.
+	 * 
+	 * Check and update are done atomically with {@link #claimUnused()}, so
+	 * the circuit is never handed out twice.
+	 * 
+	 * @return true if the circuit was unused and is now reserved
+	 */
+	synchronized boolean claimForRendezvous()
+	{
+		if (!isUnused())
+		{
+			return false;
+		}
+		unused = false;
+		reservedForRendezvous = true;
+		return true;
+	}
+
+	/**
+	 * Take this circuit for exclusive use if it is unused.
+	 * 
+	 * Check and update are done atomically, so concurrent callers never get the same circuit.
+	 * 
+	 * @return true if the circuit was unused and is now marked as used
+	 */
+	public boolean claimUnused()
+	{
+		synchronized (this)
+		{
+			if (!isUnused())
+			{
+				return false;
+			}
+			unused = false;
+		}
+		torEventService.fireEvent(new TorEvent(TorEvent.CIRCUIT_CLAIMED, this, "Circuit claimed " + toString()));
+		return true;
+	}
+
+	/**
+	 * Check if a stream with the given isolation key may use this circuit.
+	 * 
+	 * @param key
+	 *            isolation key of the stream; null=not isolated
+	 * @return true if the stream may use this circuit
+	 */
+	public synchronized boolean isIsolationCompatible(final String key)
+	{
+		if (isolationKey != null)
+		{
+			return isolationKey.equals(key);
+		}
+		if (key == null)
+		{
+			return true;
+		}
+		return !usedWithoutIsolationKey && establishedStreams == 0 && streamHistory.isEmpty();
+	}
+
+	/**
+	 * Attach a stream with the given isolation key: an unused circuit is bound
+	 * to the key of its first stream.
+	 * 
+	 * Check and update are done atomically, so streams of different keys never
+	 * get the same circuit.
+	 * 
+	 * @param key
+	 *            isolation key of the stream; null=not isolated
+	 * @return true if the stream may use this circuit
+	 */
+	public synchronized boolean claimIsolation(final String key)
+	{
+		if (!isIsolationCompatible(key))
+		{
+			return false;
+		}
+		if (key == null)
+		{
+			usedWithoutIsolationKey = true;
+		}
+		else
+		{
+			isolationKey = key;
+		}
+		return true;
+	}
+
+	/**
+	 * @return isolation key of all streams of this circuit; null=not isolated
+	 */
+	public synchronized String getIsolationKey()
+	{
+		return isolationKey;
+	}
 }
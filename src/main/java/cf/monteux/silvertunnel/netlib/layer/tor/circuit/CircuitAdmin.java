@@ -54,6 +54,7 @@ import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
 import cf.monteux.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
 import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
 import cf.monteux.silvertunnel.netlib.layer.tor.common.TorEventService;
+import cf.monteux.silvertunnel.netlib.layer.tor.directory.BandwidthWeights;
 import cf.monteux.silvertunnel.netlib.layer.tor.directory.Directory;
 import cf.monteux.silvertunnel.netlib.layer.tor.directory.RouterFlags;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.NodeType;
@@ -187,21 +188,30 @@ public class CircuitAdmin
 			{
 				for (final Circuit circuit : tls.getCircuits())
 				{
-					if (circuit.isUnused())
+					// claim the circuit atomically: hidden service connections ask for exclusive circuits in parallel
+					if (circuit.claimUnused())
 					{
 						if (sp.getCustomExitpoint() == null)
 						{
-							circuit.setUnused(false);
 							logger.debug("we successfully used an unused Circuit! Id : {}", circuit.getId());
 							return circuit;
 						}
 						if (circuit.getRelayEarlyCellsRemaining() > 0) // is extendable?
 						{
-							circuit.extend(sp.getCustomExitpoint());
-							circuit.setUnused(false);
+							try
+							{
+								circuit.extend(sp.getCustomExitpoint());
+							}
+							catch (final Exception exception)
+							{
+								circuit.setUnused(true);
+								throw exception;
+							}
 							logger.debug("we successfully extended and used an unused Circuit! Id : {}", circuit.getId());
 							return circuit;
 						}
+						// not extendable: give it back
+						circuit.setUnused(true);
 					}
 				}
 			}
@@ -422,7 +432,7 @@ public class CircuitAdmin
 					flags.setStable(true);
 				}
 				flags.setExit(true);
-				for (final Router r : directory.getValidRoutersByFlags(flags).values())
+				for (final Router r : directory.getValidExitRoutersByFlags(flags, sp.getPort()).values())
 				{
 					// exit server must be trusted
 					if (r.exitPolicyAccepts(sp.getAddr(), sp.getPort()) && (sp.isUntrustedExitAllowed() || r.isDirv2Exit()))
@@ -436,6 +446,7 @@ public class CircuitAdmin
 
 				route[i] = directory.selectRandomNode(suitableServerFingerprints, 
 													  x, 
+													  BandwidthWeights.Position.EXIT,
 													  rankingInfluenceIndex,
 													  sp.isFastRoute(),
 													  sp.isStableRoute());
@@ -448,7 +459,9 @@ public class CircuitAdmin
 			}
 			else
 			{
+				// a non-guard entry is still weighted for the guard position
 				route[i] = directory.selectRandomNode(validRoutersByFingerprint, excludedServerFingerprints,
+				                                      i == 0 ? BandwidthWeights.Position.GUARD : BandwidthWeights.Position.MIDDLE,
 				                                      rankingInfluenceIndex, sp.isFastRoute(), sp.isStableRoute());
 			}
 
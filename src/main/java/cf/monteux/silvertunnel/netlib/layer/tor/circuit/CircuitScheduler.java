@@ -0,0 +1,272 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.circuit;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Deadlines of circuits and streams: build timeouts, keep-alive cells and the
+ * teardown of closed circuits.
+ *
+ * Every circuit and every stream gets one task, scheduled for the moment its
+ * next deadline falls due. The deadline is computed from the last activity of
+ * the object, so sending cells only updates timestamps and nothing has to be
+ * rescheduled per cell. When the task runs it checks whether the deadline
+ * really passed, acts and schedules itself for the next deadline; it ends
+ * when the object is gone.
+ *
+ * @author Tobias Boese
+ */
+final class CircuitScheduler
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(CircuitScheduler.class);
+
+	/** general factor seconds:milliseconds. */
+	private static final int MILLISEC = 1000;
+	/** interval of padding messages on circuits in seconds. */
+	private static final int CIRCUITS_KEEP_ALIVE_INTERVAL_S = 30;
+	/** interval of padding messages on streams in seconds. */
+	private static final int STREAMS_KEEP_ALIVE_INTERVAL_S = 30;
+	/** shortest delay between two runs of the same task in milliseconds. */
+	private static final long MIN_DELAY_MS = 100;
+
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, CircuitScheduler.class.getSimpleName());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private CircuitScheduler()
+	{
+	}
+
+	/**
+	 * Watch the build timeout and, once established, the keep-alive of a
+	 * circuit; tear it down after close.
+	 *
+	 * @param circuit
+	 *            a circuit under construction
+	 */
+	static void watch(final Circuit circuit)
+	{
+		new CircuitDeadline(circuit).schedule(System.currentTimeMillis());
+	}
+
+	/**
+	 * Watch the build timeout and, once established, the keep-alive of a
+	 * stream.
+	 *
+	 * @param stream
+	 *            a stream just attached to its circuit
+	 */
+	static void watch(final Stream stream)
+	{
+		new StreamDeadline(stream).schedule(System.currentTimeMillis());
+	}
+
+	/**
+	 * Finish the teardown of a closed circuit soon, e.g. after its last stream
+	 * was removed.
+	 *
+	 * @param circuit
+	 */
+	static void tearDown(final Circuit circuit)
+	{
+		SCHEDULER.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if (circuit.isClosed() && !circuit.isDestruct())
+					{
+						circuit.close(false);
+					}
+				}
+				catch (final Exception e)
+				{
+					logger.warn("tear down of circuit failed", e);
+				}
+			}
+		});
+	}
+
+	// /////////////////////////////////////////////////////
+	// deadlines
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * Task of one object that re-arms itself.
+	 */
+	private abstract static class Deadline implements Runnable
+	{
+		/**
+		 * Check the state of the object and act on passed deadlines.
+		 *
+		 * @param now
+		 *            current time in milliseconds
+		 * @return time of the next deadline in milliseconds; -1=done
+		 */
+		abstract long check(long now);
+
+		final void schedule(final long now)
+		{
+			final long next;
+			try
+			{
+				next = check(now);
+			}
+			catch (final Exception e)
+			{
+				logger.warn("unexpected", e);
+				return;
+			}
+			if (next >= 0)
+			{
+				SCHEDULER.schedule(this, Math.max(next - now, MIN_DELAY_MS), TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public final void run()
+		{
+			schedule(System.currentTimeMillis());
+		}
+	}
+
+	private static final class CircuitDeadline extends Deadline
+	{
+		private final Circuit circuit;
+
+		CircuitDeadline(final Circuit circuit)
+		{
+			this.circuit = circuit;
+		}
+
+		@Override
+		long check(final long now)
+		{
+			if (circuit.isDestruct())
+			{
+				return -1;
+			}
+			if (!circuit.isClosed() && !circuit.isEstablished())
+			{
+				// circuit is establishing: does it still make progress?
+				final long buildDeadline = circuit.getLastAction() + 2L * TorConfig.queueTimeoutCircuit * MILLISEC;
+				if (now < buildDeadline)
+				{
+					return buildDeadline;
+				}
+				logger.debug("CircuitScheduler: closing (too long building) {}", circuit);
+				circuit.close(false);
+			}
+			if (circuit.isClosed())
+			{
+				// call close() again until the remaining streams are gone
+				circuit.close(false);
+				if (circuit.isDestruct())
+				{
+					return -1;
+				}
+				return now + TorConfig.queueTimeoutStreamBuildup * MILLISEC;
+			}
+			final long keepAliveDeadline = circuit.getLastCell() + CIRCUITS_KEEP_ALIVE_INTERVAL_S * MILLISEC;
+			if (now < keepAliveDeadline)
+			{
+				return keepAliveDeadline;
+			}
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("CircuitScheduler: keep-alive on circuit " + circuit.toString());
+			}
+			circuit.sendKeepAlive();
+			return now + CIRCUITS_KEEP_ALIVE_INTERVAL_S * MILLISEC;
+		}
+	}
+
+	private static final class StreamDeadline extends Deadline
+	{
+		private final Stream stream;
+		/** the circuit the stream was attached to when this task started. */
+		private final Circuit circuit;
+
+		StreamDeadline(final Stream stream)
+		{
+			this.stream = stream;
+			this.circuit = stream.getCircuit();
+		}
+
+		@Override
+		long check(final long now)
+		{
+			if (stream.getCircuit() != circuit)
+			{
+				// moved to another circuit, which started its own task
+				return -1;
+			}
+			if (!stream.isEstablished() || stream.isClosed())
+			{
+				if (!circuit.hasStream(stream))
+				{
+					// already removed from the circuit
+					return -1;
+				}
+				// stream is establishing (or closed, but still attached)
+				final long buildDeadline = stream.getLastAction() + 2L * TorConfig.queueTimeoutStreamBuildup * MILLISEC;
+				if (now < buildDeadline)
+				{
+					return buildDeadline;
+				}
+				if (logger.isDebugEnabled())
+				{
+					logger.debug("CircuitScheduler: closing stream (too long building) " + stream.toString());
+				}
+				stream.close(true);
+				return -1;
+			}
+			final long keepAliveDeadline = stream.getLastCellSentDate() + STREAMS_KEEP_ALIVE_INTERVAL_S * MILLISEC;
+			if (now < keepAliveDeadline)
+			{
+				return keepAliveDeadline;
+			}
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("CircuitScheduler: keep-alive on stream " + stream.toString());
+			}
+			stream.sendKeepAlive();
+			return now + STREAMS_KEEP_ALIVE_INTERVAL_S * MILLISEC;
+		}
+	}
+}
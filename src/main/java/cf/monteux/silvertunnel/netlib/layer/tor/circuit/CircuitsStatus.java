@@ -33,6 +33,8 @@ public class CircuitsStatus
 	private int circuitsEstablished = 0;
 	/** closing down. */
 	private int circuitsClosed = 0;
+	/** established and not yet used by any stream. */
+	private int circuitsIdle = 0;
 
 	// /////////////////////////////////////////////////////
 	// generated getters and setters
@@ -77,4 +79,14 @@ public class CircuitsStatus
 	{
 		this.circuitsClosed = circuitsClosed;
 	}
+
+	public int getCircuitsIdle()
+	{
+		return circuitsIdle;
+	}
+
+	public void setCircuitsIdle(int circuitsIdle)
+	{
+		this.circuitsIdle = circuitsIdle;
+	}
 }
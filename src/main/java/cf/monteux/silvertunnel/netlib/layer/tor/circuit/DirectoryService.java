@@ -45,6 +45,16 @@ public class DirectoryService
 	                                   final boolean forHiddenService)
 	                                		   throws TorException
 	{
+		if (circ.isReservedForRendezvous())
+		{
+			// spare circuit of a hidden service (server side)
+			return false;
+		}
+		if (!forHiddenService && !circ.isIsolationCompatible(sp.getIsolationKey()))
+		{
+			// circuit is bound to the streams of another client
+			return false;
+		}
 		final Router[] routeCopy = new Router[circ.getRouteNodes().length];
 		for (int i = 0; i < circ.getRouteNodes().length; ++i)
 		{
@@ -21,6 +21,8 @@ import java.net.BindException;
 import java.util.HashMap;
 import java.util.Map;
 
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorEventService;
+import cf.monteux.silvertunnel.netlib.layer.tor.directory.Directory;
 import cf.monteux.silvertunnel.netlib.layer.tor.hiddenservice.HiddenServiceProperties;
 
 /**
@@ -35,6 +37,9 @@ public class HiddenServiceInstance
 
 	private final HiddenServiceProperties hiddenServiceProperties;
 
+	/** handles the introductions of this hidden service; created on demand. */
+	private HiddenServiceIntroductionHandler introductionHandler;
+
 	public HiddenServiceInstance(HiddenServiceProperties hiddenServiceProperties)
 	{
 		this.hiddenServiceProperties = hiddenServiceProperties;
@@ -48,6 +53,53 @@ public class HiddenServiceInstance
 		return hiddenServiceProperties;
 	}
 
+	/**
+	 * Get the handler of the introductions of this hidden service; it is
+	 * created (and starts to build spare circuits) with the first call.
+	 * 
+	 * @param tlsConnectionAdmin
+	 *            tor environment
+	 * @param directory
+	 *            tor environment
+	 * @param torEventService
+	 *            tor environment
+	 * @return the handler
+	 */
+	public synchronized HiddenServiceIntroductionHandler getIntroductionHandler(final TLSConnectionAdmin tlsConnectionAdmin,
+	                                                                            final Directory directory,
+	                                                                            final TorEventService torEventService)
+	{
+		if (introductionHandler == null)
+		{
+			introductionHandler = new HiddenServiceIntroductionHandler(this, tlsConnectionAdmin, directory, torEventService);
+		}
+		return introductionHandler;
+	}
+
+	/**
+	 * Stop the handler of the introductions if it works for the given Tor
+	 * instance.
+	 * 
+	 * @param tlsConnectionAdmin
+	 *            tor environment which is closed
+	 */
+	public synchronized void closeIntroductionHandler(final TLSConnectionAdmin tlsConnectionAdmin)
+	{
+		if (introductionHandler != null && introductionHandler.belongsTo(tlsConnectionAdmin))
+		{
+			introductionHandler.close();
+			introductionHandler = null;
+		}
+	}
+
+	/**
+	 * @return the handler of the introductions of this hidden service; null if not created yet
+	 */
+	public synchronized HiddenServiceIntroductionHandler getIntroductionHandler()
+	{
+		return introductionHandler;
+	}
+
 	/**
 	 * Assign a HiddenServicePortInstance to a port.
 	 * 
@@ -0,0 +1,510 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.circuit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
+import cf.monteux.silvertunnel.netlib.layer.tor.circuit.cells.CellRelay;
+import cf.monteux.silvertunnel.netlib.layer.tor.circuit.cells.CellRelayRendezvous1;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorEventService;
+import cf.monteux.silvertunnel.netlib.layer.tor.directory.Directory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Handles the INTRODUCE2 cells of one hidden service (server side).
+ *
+ * The cells are only checked briefly on the thread of the TLS connection; the
+ * expensive part (decryption and connecting to the rendezvous point) is done
+ * by a bounded pool of workers, so several clients are served in parallel.
+ * Introductions which don't fit into the backlog are dropped; the client will
+ * retry them.
+ *
+ * Some circuits are kept pre-built (one hop shorter than usual). For a
+ * rendezvous such a spare circuit only has to be extended to the rendezvous
+ * point instead of building a complete new circuit.
+ *
+ * @author Tobias Boese
+ */
+public final class HiddenServiceIntroductionHandler
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(HiddenServiceIntroductionHandler.class);
+
+	/** maximum number of introductions waiting for a worker. */
+	private static final int MAX_BACKLOG = 128;
+	/** number of pre-built circuits kept for rendezvous. */
+	private static final int SPARE_CIRCUITS = 2;
+	/** idle workers are stopped after this time. */
+	private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+	/** the hidden service this handler belongs to. */
+	private final HiddenServiceInstance hiddenServiceInstance;
+	private final TLSConnectionAdmin tlsConnectionAdmin;
+	private final Directory directory;
+	private final TorEventService torEventService;
+
+	/** connects to the rendezvous points. */
+	private final ThreadPoolExecutor workers;
+	/** builds the spare circuits. */
+	private final ExecutorService spareCircuitBuilder;
+	/** pre-built circuits. */
+	private final BlockingQueue<Circuit> spareCircuits = new LinkedBlockingQueue<Circuit>();
+	/** number of spare circuits currently being built. */
+	private final AtomicInteger spareCircuitsInProgress = new AtomicInteger();
+	/** set by close(). */
+	private volatile boolean closed;
+
+	/** number of introductions which led to a rendezvous. */
+	private final AtomicLong acceptedIntroductions = new AtomicLong();
+	/** number of introductions dropped because the backlog was full. */
+	private final AtomicLong rejectedIntroductions = new AtomicLong();
+	/** number of introductions which could not be completed. */
+	private final AtomicLong failedIntroductions = new AtomicLong();
+	/** sum of the accept latencies of all accepted introductions. */
+	private final AtomicLong acceptLatencySumMs = new AtomicLong();
+	/** accept latency of the last accepted introduction. */
+	private volatile long lastAcceptLatencyMs;
+	/** highest accept latency so far. */
+	private final AtomicLong maxAcceptLatencyMs = new AtomicLong();
+
+	/**
+	 * Data of an INTRODUCE2 cell which is needed to do the rendezvous.
+	 */
+	static final class RendezvousRequest
+	{
+		/** the rendezvous point chosen by the client. */
+		private final Router rendezvousServer;
+		/** rendezvous cookie. */
+		private final byte[] cookie;
+		/** first part of the DH handshake (from the client). */
+		private final byte[] dhX;
+
+		RendezvousRequest(final Router rendezvousServer, final byte[] cookie, final byte[] dhX)
+		{
+			this.rendezvousServer = rendezvousServer;
+			this.cookie = cookie;
+			this.dhX = dhX;
+		}
+	}
+
+	HiddenServiceIntroductionHandler(final HiddenServiceInstance hiddenServiceInstance,
+	                                 final TLSConnectionAdmin tlsConnectionAdmin,
+	                                 final Directory directory,
+	                                 final TorEventService torEventService)
+	{
+		this.hiddenServiceInstance = hiddenServiceInstance;
+		this.tlsConnectionAdmin = tlsConnectionAdmin;
+		this.directory = directory;
+		this.torEventService = torEventService;
+		final int numberOfWorkers = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+		workers = new ThreadPoolExecutor(numberOfWorkers,
+		                                 numberOfWorkers,
+		                                 WORKER_KEEP_ALIVE_SECONDS,
+		                                 TimeUnit.SECONDS,
+		                                 new ArrayBlockingQueue<Runnable>(MAX_BACKLOG),
+		                                 new DaemonThreadFactory("HiddenServiceIntroduction"));
+		workers.allowCoreThreadTimeOut(true);
+		spareCircuitBuilder = Executors.newFixedThreadPool(SPARE_CIRCUITS, new DaemonThreadFactory("HiddenServiceSpareCircuit"));
+		replenishSpareCircuits();
+	}
+
+	/**
+	 * Queue an INTRODUCE2 cell for processing.
+	 *
+	 * @param introCircuit
+	 *            the circuit to the introduction point which received the cell
+	 * @param cell
+	 *            the INTRODUCE2 cell
+	 */
+	void handleIntroduce2(final Circuit introCircuit, final CellRelay cell)
+	{
+		final long receivedTime = System.currentTimeMillis();
+		try
+		{
+			workers.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					processIntroduce2(introCircuit, cell, receivedTime);
+				}
+			});
+		}
+		catch (final RejectedExecutionException e)
+		{
+			rejectedIntroductions.incrementAndGet();
+			logger.info("dropped introduction for hidden service: backlog is full");
+		}
+	}
+
+	/**
+	 * Decrypt the INTRODUCE2 cell and connect to the rendezvous point.
+	 */
+	private void processIntroduce2(final Circuit introCircuit, final CellRelay cell, final long receivedTime)
+	{
+		try
+		{
+			final RendezvousRequest request = introCircuit.parseIntroduce2(cell);
+			if (request == null)
+			{
+				failedIntroductions.incrementAndGet();
+				return;
+			}
+			if (connectToRendezvousPoint(request))
+			{
+				final long latency = System.currentTimeMillis() - receivedTime;
+				acceptedIntroductions.incrementAndGet();
+				acceptLatencySumMs.addAndGet(latency);
+				lastAcceptLatencyMs = latency;
+				long max;
+				while ((max = maxAcceptLatencyMs.get()) < latency && !maxAcceptLatencyMs.compareAndSet(max, latency))
+				{
+					// retry
+				}
+				logger.debug("rendezvous with {} done after {} ms", request.rendezvousServer, latency);
+			}
+			else
+			{
+				failedIntroductions.incrementAndGet();
+			}
+		}
+		catch (final Exception e)
+		{
+			failedIntroductions.incrementAndGet();
+			logger.warn("Exception in handleIntroduce2", e);
+		}
+	}
+
+	/**
+	 * Build a circuit to the rendezvous point (a spare one if possible) and
+	 * send the RENDEZVOUS1 cell.
+	 *
+	 * @return true if successful
+	 */
+	private boolean connectToRendezvousPoint(final RendezvousRequest request)
+	{
+		final TCPStreamProperties sp = new TCPStreamProperties();
+		sp.setExitPolicyRequired(false);
+		sp.setCustomExitpoint(request.rendezvousServer.getFingerprint());
+
+		for (int j = 0; j < sp.getConnectRetries(); ++j)
+		{
+			Circuit c2rendezvous = null;
+			try
+			{
+				c2rendezvous = takeSpareCircuit(request.rendezvousServer);
+				if (c2rendezvous == null)
+				{
+					c2rendezvous = CircuitAdmin.provideSuitableNewCircuit(tlsConnectionAdmin, directory, sp, torEventService);
+					if (c2rendezvous == null)
+					{
+						continue;
+					}
+				}
+				// send dhY
+				final Node virtualNode = new Node(request.rendezvousServer, request.dhX);
+				c2rendezvous.sendCell(new CellRelayRendezvous1(c2rendezvous, request.cookie, virtualNode.getDhYBytes(), virtualNode.getKeyHandshake()));
+				logger.debug("connected to rendezvous '{}' over {}", request.rendezvousServer, c2rendezvous);
+
+				// extend circuit to 'virtual' next point AFTER doing
+				// the rendezvous
+				c2rendezvous.addNode(virtualNode);
+
+				// connect - with empty address in begin cell set
+				c2rendezvous.setHiddenServiceInstanceForRendezvous(hiddenServiceInstance);
+				return true;
+			}
+			catch (final Throwable e)
+			{
+				logger.warn("Exception while connecting to rendezvous point " + request.rendezvousServer, e);
+				if (c2rendezvous != null)
+				{
+					c2rendezvous.close(true);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Take a spare circuit and extend it to the rendezvous point.
+	 *
+	 * @return the extended circuit; null if no usable spare circuit is available
+	 */
+	private Circuit takeSpareCircuit(final Router rendezvousServer)
+	{
+		try
+		{
+			Circuit circuit;
+			while ((circuit = spareCircuits.poll()) != null)
+			{
+				if (!circuit.isEstablished() || circuit.isClosed() || circuit.getRelayEarlyCellsRemaining() <= 0)
+				{
+					circuit.close(false);
+					continue;
+				}
+				boolean containsRendezvousServer = false;
+				for (final Node node : circuit.getRouteNodes())
+				{
+					if (node.getRouter().getFingerprint().equals(rendezvousServer.getFingerprint()))
+					{
+						containsRendezvousServer = true;
+						break;
+					}
+				}
+				if (containsRendezvousServer)
+				{
+					// cannot be used for this rendezvous point, but for the next one
+					spareCircuits.offer(circuit);
+					return null;
+				}
+				try
+				{
+					circuit.extend(rendezvousServer.getFingerprint());
+					return circuit;
+				}
+				catch (final Exception e)
+				{
+					logger.debug("could not extend spare circuit to {}", rendezvousServer, e);
+					circuit.close(true);
+				}
+			}
+			return null;
+		}
+		finally
+		{
+			replenishSpareCircuits();
+		}
+	}
+
+	/**
+	 * Start building spare circuits until {@link #SPARE_CIRCUITS} are available.
+	 */
+	private void replenishSpareCircuits()
+	{
+		while (!closed && spareCircuits.size() + spareCircuitsInProgress.get() < SPARE_CIRCUITS)
+		{
+			spareCircuitsInProgress.incrementAndGet();
+			try
+			{
+				spareCircuitBuilder.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							final Circuit circuit = buildSpareCircuit();
+							if (circuit != null)
+							{
+								spareCircuits.offer(circuit);
+								if (closed)
+								{
+									closeSpareCircuits();
+								}
+							}
+						}
+						finally
+						{
+							spareCircuitsInProgress.decrementAndGet();
+						}
+					}
+				});
+			}
+			catch (final RejectedExecutionException e)
+			{
+				spareCircuitsInProgress.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return a new circuit which is one hop shorter than a normal one; null in case of error
+	 */
+	private Circuit buildSpareCircuit()
+	{
+		final TCPStreamProperties sp = new TCPStreamProperties();
+		sp.setExitPolicyRequired(false);
+		final int length = Math.max(1, TorConfig.getRouteMinLength() - 1);
+		sp.setMinRouteLength(length);
+		sp.setMaxRouteLength(length);
+		try
+		{
+			final Circuit circuit = CircuitAdmin.provideSuitableNewCircuit(tlsConnectionAdmin, directory, sp, torEventService);
+			// keep it away from normal streams and other hidden service
+			// connections; another thread may have taken it already
+			if (circuit == null || !circuit.claimForRendezvous())
+			{
+				return null;
+			}
+			return circuit;
+		}
+		catch (final Throwable e)
+		{
+			logger.debug("could not build spare circuit for rendezvous", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if this handler works for the given Tor instance
+	 */
+	boolean belongsTo(final TLSConnectionAdmin tlsConnectionAdmin)
+	{
+		return this.tlsConnectionAdmin == tlsConnectionAdmin;
+	}
+
+	/**
+	 * Stop the workers and the building of spare circuits; close the spare
+	 * circuits.
+	 */
+	void close()
+	{
+		closed = true;
+		workers.shutdownNow();
+		spareCircuitBuilder.shutdownNow();
+		closeSpareCircuits();
+	}
+
+	private void closeSpareCircuits()
+	{
+		Circuit circuit;
+		while ((circuit = spareCircuits.poll()) != null)
+		{
+			circuit.close(true);
+		}
+	}
+
+	// /////////////////////////////////////////////////////
+	// metrics
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * @return number of introductions waiting for or being processed by a worker
+	 */
+	public int getBacklog()
+	{
+		return workers.getQueue().size() + workers.getActiveCount();
+	}
+
+	/**
+	 * @return number of introductions which led to a rendezvous
+	 */
+	public long getAcceptedIntroductions()
+	{
+		return acceptedIntroductions.get();
+	}
+
+	/**
+	 * @return number of introductions dropped because the backlog was full
+	 */
+	public long getRejectedIntroductions()
+	{
+		return rejectedIntroductions.get();
+	}
+
+	/**
+	 * @return number of introductions which could not be completed
+	 */
+	public long getFailedIntroductions()
+	{
+		return failedIntroductions.get();
+	}
+
+	/**
+	 * @return average time in ms from receiving INTRODUCE2 until RENDEZVOUS1 was sent
+	 */
+	public long getAverageAcceptLatencyMs()
+	{
+		final long accepted = acceptedIntroductions.get();
+		return accepted == 0 ? 0 : acceptLatencySumMs.get() / accepted;
+	}
+
+	/**
+	 * @return accept latency in ms of the last accepted introduction
+	 */
+	public long getLastAcceptLatencyMs()
+	{
+		return lastAcceptLatencyMs;
+	}
+
+	/**
+	 * @return highest accept latency in ms so far
+	 */
+	public long getMaxAcceptLatencyMs()
+	{
+		return maxAcceptLatencyMs.get();
+	}
+
+	/**
+	 * @return number of pre-built circuits ready for rendezvous
+	 */
+	public int getSpareCircuits()
+	{
+		return spareCircuits.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "HiddenServiceIntroductionHandler(backlog=" + getBacklog()
+				+ ",accepted=" + getAcceptedIntroductions()
+				+ ",rejected=" + getRejectedIntroductions()
+				+ ",failed=" + getFailedIntroductions()
+				+ ",avgAcceptLatencyMs=" + getAverageAcceptLatencyMs()
+				+ ",spareCircuits=" + getSpareCircuits() + ")";
+	}
+
+	/**
+	 * Creates named daemon threads.
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory
+	{
+		private final String name;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		DaemonThreadFactory(final String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -69,6 +69,21 @@ public interface Stream
 	 */
 	long getLastCellSentDate();
 
+	/**
+	 * @return timestamp of the last sent cell that was not a padding cell.
+	 */
+	long getLastAction();
+
+	/**
+	 * @return is this {@link Stream} connected to its target?
+	 */
+	boolean isEstablished();
+
+	/**
+	 * Send a dummy cell to keep this {@link Stream} alive.
+	 */
+	void sendKeepAlive();
+
 	/**
 	 * @return get {@link Circuit} where this stream is attached to.
 	 */
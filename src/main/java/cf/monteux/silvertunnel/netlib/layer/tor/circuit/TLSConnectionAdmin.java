@@ -111,7 +111,7 @@ public final class TLSConnectionAdmin
 		{
 			conn = weakConn.get();
 		}
-		if (conn == null)
+		if (conn == null || conn.isClosed())
 		{
 			// not in cache: build new TLS connection
 			logger.debug("TLSConnectionAdmin: TLS connection to {}", router.getNickname());
@@ -195,14 +195,14 @@ public final class TLSConnectionAdmin
 				if (weakReference != null)
 				{
 					final TLSConnection tlsConnection = weakReference.get();
-					if (tlsConnection != null)
+					if (tlsConnection != null && !tlsConnection.isClosed())
 					{
 						// valid TLSConnection found
 						result.add(tlsConnection);
 					}
 					else
 					{
-						// entry with lost reference found
+						// entry with lost reference or closed connection found
 						entriesToRemove.add(fingerprint);
 					}
 				}
@@ -522,7 +522,7 @@ public class CellRelay extends Cell
 		return relayCommand == RELAY_END;
 	}
 
-	boolean isTypeConnected()
+	public boolean isTypeConnected()
 	{
 		return relayCommand == RELAY_CONNECTED;
 	}
@@ -37,6 +37,13 @@ package cf.monteux.silvertunnel.netlib.layer.tor.clientimpl;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import cf.monteux.silvertunnel.netlib.api.NetLayer;
 import cf.monteux.silvertunnel.netlib.layer.tor.api.Fingerprint;
@@ -56,6 +63,7 @@ import cf.monteux.silvertunnel.netlib.layer.tor.directory.RendezvousServiceDescr
 import cf.monteux.silvertunnel.netlib.layer.tor.directory.RouterImpl;
 import cf.monteux.silvertunnel.netlib.layer.tor.directory.SDIntroductionPoint;
 import cf.monteux.silvertunnel.netlib.layer.tor.hiddenservice.HiddenServiceDescriptorCache;
+import cf.monteux.silvertunnel.netlib.layer.tor.hiddenservice.HiddenServiceDescriptorLoader;
 import cf.monteux.silvertunnel.netlib.layer.tor.stream.TCPStream;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Encoding;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.TorException;
@@ -106,13 +114,23 @@ public final class HiddenServiceClient
 		//
 		// get a copy from the rendezvous service descriptor
 		//
-		RendezvousServiceDescriptor sd = HiddenServiceDescriptorCache.getInstance().get(z);
+		final HiddenServiceDescriptorCache cache = HiddenServiceDescriptorCache.getInstance();
+		// popular descriptors are refreshed in the background with the current tor environment
+		cache.setLoader(new HiddenServiceDescriptorLoader()
+		{
+			@Override
+			public RendezvousServiceDescriptor load(final String onionAddress) throws IOException
+			{
+				return rendezvousServiceDescriptorService.loadRendezvousServiceDescriptorFromDirectory(onionAddress, directory, torNetLayer);
+			}
+		});
+		RendezvousServiceDescriptor sd = cache.get(z);
 		if (sd == null || !sd.isPublicationTimeValid())
 		{
 			// no valid entry in cache: retrieve a fresh one
 			sd = rendezvousServiceDescriptorService.loadRendezvousServiceDescriptorFromDirectory(z, directory, torNetLayer);
 			// cache it
-			HiddenServiceDescriptorCache.getInstance().put(z, sd);
+			cache.put(z, sd);
 		}
 		if (sd == null)
 		{
@@ -126,19 +144,67 @@ public final class HiddenServiceClient
 		boolean establishedRendezvousPoint = false;
 		boolean connectedToIntroPoint = false;
 		boolean didRendezvous = false;
+		final RendezvousServiceDescriptor descriptor = sd;
 		for (int attempts = 0; attempts < spo.getConnectRetries(); attempts++)
 		{
 			Circuit rendezvousPointCircuit = null;
+			// the rendezvous point and the circuits to all introduction points are built in parallel
+			final ExecutorService executor = Executors.newCachedThreadPool();
+			final CompletionService<IntroductionPointCircuit> introCircuits = new ExecutorCompletionService<IntroductionPointCircuit>(executor);
+			int pendingIntroCircuits = 0;
 			try
 			{
 				//
 				// establish a rendezvous point (section 1.7 of Tor Rendezvous
 				// Specification)
 				//
-				RendezvousPointData rendezvousPointData = null;
-				rendezvousPointData = createRendezvousPoint(directory, torEventService, tlsConnectionAdmin, z);
+				final Future<RendezvousPointData> rendezvousPointFuture = executor.submit(new Callable<RendezvousPointData>()
+				{
+					@Override
+					public RendezvousPointData call() throws Exception
+					{
+						try
+						{
+							return createRendezvousPoint(directory, torEventService, tlsConnectionAdmin, z);
+						}
+						catch (final Throwable t)
+						{
+							throw asException(t);
+						}
+					}
+				});
+				for (final SDIntroductionPoint introPoint : descriptor.getIntroductionPoints())
+				{
+					introCircuits.submit(new Callable<IntroductionPointCircuit>()
+					{
+						@Override
+						public IntroductionPointCircuit call() throws Exception
+						{
+							try
+							{
+								return new IntroductionPointCircuit(introPoint,
+								                                    createIntroductionPointCircuit(directory, torEventService, tlsConnectionAdmin, introPoint, z));
+							}
+							catch (final Throwable t)
+							{
+								throw asException(t);
+							}
+						}
+					});
+					pendingIntroCircuits++;
+				}
+
+				final RendezvousPointData rendezvousPointData;
+				try
+				{
+					rendezvousPointData = rendezvousPointFuture.get();
+				}
+				catch (final ExecutionException e)
+				{
+					throw e.getCause();
+				}
 				rendezvousPointCircuit = rendezvousPointData.getMyRendezvousCirc();
-				rendezvousPointCircuit.setServiceDescriptor(sd);
+				rendezvousPointCircuit.setServiceDescriptor(descriptor);
 				establishedRendezvousPoint = true;
 				logger.info("connectToHiddenService(): use circuit to rendezvous point=" + rendezvousPointData.getMyRendezvousCirc());
 
@@ -146,15 +212,29 @@ public final class HiddenServiceClient
 				// Introduction: from Alice's OP to Introduction Point (section
 				// 1.8 & 1.9 of Tor Rendezvous Specification)
 				//
-				for (final SDIntroductionPoint introPoint : sd.getIntroductionPoints())
+				// use the introduction points in the order their circuits get ready;
+				// only one introduction is in flight as the rendezvous cookie is shared
+				while (pendingIntroCircuits > 0)
 				{
+					final IntroductionPointCircuit introCircuit;
 					try
 					{
-						final Node introPointServicePublicKeyNode = sendIntroduction1Cell(directory, 
-						                                                                  torEventService,
-						                                                                  tlsConnectionAdmin,
+						introCircuit = introCircuits.take().get();
+					}
+					catch (final ExecutionException e)
+					{
+						logger.debug("got Exception while building circuit to introduction point", e.getCause());
+						continue;
+					}
+					finally
+					{
+						pendingIntroCircuits--;
+					}
+					try
+					{
+						final Node introPointServicePublicKeyNode = sendIntroduction1Cell(introCircuit.circuit,
 						                                                                  rendezvousPointData, 
-						                                                                  introPoint, 
+						                                                                  introCircuit.introPoint, 
 						                                                                  z);
 						connectedToIntroPoint = true;
 
@@ -198,6 +278,7 @@ public final class HiddenServiceClient
 				{
 					rendezvousPointCircuit.setCloseCircuitIfLastStreamIsClosed(true);
 				}
+				closeIntroductionPointCircuits(executor, introCircuits, pendingIntroCircuits);
 			}
 		}
 
@@ -295,48 +376,136 @@ public final class HiddenServiceClient
 	}
 
 	/**
-	 * Send introduction1 cell.
+	 * Circuit to an introduction point, built ahead of the introduction.
+	 */
+	private static final class IntroductionPointCircuit
+	{
+		private final SDIntroductionPoint introPoint;
+		private final Circuit circuit;
+
+		private IntroductionPointCircuit(final SDIntroductionPoint introPoint, final Circuit circuit)
+		{
+			this.introPoint = introPoint;
+			this.circuit = circuit;
+		}
+	}
+
+	/**
+	 * @return t to be thrown by a task: exceptions as they are, errors wrapped
+	 *         in an {@link ExecutionException}
+	 */
+	private static Exception asException(final Throwable t)
+	{
+		return t instanceof Exception ? (Exception) t : new ExecutionException(t);
+	}
+
+	/**
+	 * Close the circuits to the introduction points which were not used (yet).
+	 * Circuits which are still being built are closed as soon as they are ready.
 	 * 
-	 * "Introduction: from Alice's OP to Introduction Point (section 1.8 of Tor Rendezvous Specification)"
+	 * @param executor
+	 *            the executor building the circuits; will be shut down
+	 * @param introCircuits
+	 *            the circuits
+	 * @param pendingIntroCircuits
+	 *            number of circuits not taken from introCircuits yet
+	 */
+	private static void closeIntroductionPointCircuits(final ExecutorService executor,
+	                                                   final CompletionService<IntroductionPointCircuit> introCircuits,
+	                                                   final int pendingIntroCircuits)
+	{
+		if (pendingIntroCircuits > 0)
+		{
+			executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < pendingIntroCircuits; i++)
+					{
+						try
+						{
+							introCircuits.take().get().circuit.close(true);
+						}
+						catch (final ExecutionException e)
+						{
+							/* circuit was not built: nothing to close */
+							logger.debug("got ExecutionException : {}", e.getMessage());
+						}
+						catch (final InterruptedException e)
+						{
+							logger.debug("got InterruptedException : {}", e.getMessage(), e);
+							return;
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Build a circuit where the last node is the introduction point.
 	 * 
 	 * @param directory
 	 * @param torEventService
 	 * @param tlsConnectionAdmin
-	 * @param rendezvousPointData
 	 * @param introPoint
-	 *            send the introduction1 cell to this introPoint
+	 *            the introduction point
 	 * @param z
-	 * @return introPointServicePublicKeyNode; not null
-	 * @throws IOException
+	 * @return an established circuit; not null
 	 * @throws TorException
-	 * @throws InterruptedException
 	 */
-	private static Node sendIntroduction1Cell(final Directory directory,
-	                                          final TorEventService torEventService,
-	                                          final TLSConnectionAdmin tlsConnectionAdmin,
-	                                          final RendezvousPointData rendezvousPointData,
-	                                          final SDIntroductionPoint introPoint,
-	                                          final String z) throws Throwable {
-
+	private static Circuit createIntroductionPointCircuit(final Directory directory,
+	                                                      final TorEventService torEventService,
+	                                                      final TLSConnectionAdmin tlsConnectionAdmin,
+	                                                      final SDIntroductionPoint introPoint,
+	                                                      final String z) throws Throwable
+	{
 		final Fingerprint introPointFingerprint = introPoint.getIdentifierAsFingerprint();
-		logger.info("sendIntroduction1Cell(): contacting introduction point=" + introPointFingerprint + " for " + z);
+		logger.info("createIntroductionPointCircuit(): contacting introduction point=" + introPointFingerprint + " for " + z);
 
 		// build new circuit where the last node is introduction point
 		final TCPStreamProperties spIntro = new TCPStreamProperties();
 		spIntro.setExitPolicyRequired(false);
 		spIntro.setCustomExitpoint(introPointFingerprint);
-		Circuit myIntroCirc = null;
-		try
+		final Circuit myIntroCirc = CircuitAdmin.provideSuitableExclusiveCircuit(tlsConnectionAdmin, directory, spIntro, torEventService);
+		if (myIntroCirc == null || !myIntroCirc.isEstablished())
 		{
-//			myIntroCirc = new Circuit(tlsConnectionAdmin, directory, spIntro, torEventService);
-			myIntroCirc = CircuitAdmin.provideSuitableExclusiveCircuit(tlsConnectionAdmin, directory, spIntro, torEventService);
-
-			if (!myIntroCirc.isEstablished())
+			logger.debug("Circuit to Introductionpoint not successful.");
+			if (myIntroCirc != null)
 			{
-				logger.debug("Circuit to Introductionpoint not successful.");
-				throw new TorException("Circuit to Introductionpoint " + introPointFingerprint + " not successful.");
+				myIntroCirc.close(true);
 			}
-			logger.info("sendIntroduction1Cell(): use Circuit to introduction point=" + myIntroCirc);
+			throw new TorException("Circuit to Introductionpoint " + introPointFingerprint + " not successful.");
+		}
+		logger.info("createIntroductionPointCircuit(): use Circuit to introduction point=" + myIntroCirc);
+		return myIntroCirc;
+	}
+
+	/**
+	 * Send introduction1 cell.
+	 * 
+	 * "Introduction: from Alice's OP to Introduction Point (section 1.8 of Tor Rendezvous Specification)"
+	 * 
+	 * @param myIntroCirc
+	 *            established circuit to the introPoint; will be closed
+	 * @param rendezvousPointData
+	 * @param introPoint
+	 *            send the introduction1 cell to this introPoint
+	 * @param z
+	 * @return introPointServicePublicKeyNode; not null
+	 * @throws IOException
+	 * @throws TorException
+	 */
+	private static Node sendIntroduction1Cell(final Circuit myIntroCirc,
+	                                          final RendezvousPointData rendezvousPointData,
+	                                          final SDIntroductionPoint introPoint,
+	                                          final String z) throws IOException, TorException
+	{
+		try
+		{
+			logger.info("sendIntroduction1Cell(): contacting introduction point=" + introPoint.getIdentifierAsFingerprint() + " for " + z);
 
 			// send CellIntro1 data encrypted with PK of the introPoint
 			final Router introPointServicePublicKey = new RouterImpl(introPoint.getServicePublicKey());
@@ -361,12 +530,8 @@ public final class HiddenServiceClient
 		finally
 		{
 			// close the circuit: not needed anymore
-			if (myIntroCirc != null)
-			{
-				myIntroCirc.close(true);
-			}
+			myIntroCirc.close(true);
 		}
-
 	}
 
 	/**
@@ -34,6 +34,7 @@ import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.Circuit;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.CircuitAdmin;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.HiddenServiceInstance;
+import cf.monteux.silvertunnel.netlib.layer.tor.circuit.HiddenServiceIntroductionHandler;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.HiddenServicePortInstance;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.TLSConnectionAdmin;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.cells.CellRelay;
@@ -73,6 +74,41 @@ public class HiddenServiceServer
 		return instance;
 	}
 
+	/**
+	 * Get the statistics (accept latency, backlog, ...) of a hidden service provided by this process.
+	 * 
+	 * @param hiddenServicePermanentIdBase32
+	 *            z part of the hidden service address
+	 * @return the handler of the introductions; null if the hidden service is unknown
+	 */
+	public HiddenServiceIntroductionHandler getIntroductionHandler(final String hiddenServicePermanentIdBase32)
+	{
+		final HiddenServiceInstance hiddenServiceInstance;
+		synchronized (allHiddenServices)
+		{
+			hiddenServiceInstance = allHiddenServices.get(hiddenServicePermanentIdBase32);
+		}
+		return hiddenServiceInstance == null ? null : hiddenServiceInstance.getIntroductionHandler();
+	}
+
+	/**
+	 * Stop handling introductions of all hidden services provided by the
+	 * given Tor instance.
+	 * 
+	 * @param tlsConnectionAdmin
+	 *            tor environment which is closed
+	 */
+	public void close(final TLSConnectionAdmin tlsConnectionAdmin)
+	{
+		synchronized (allHiddenServices)
+		{
+			for (final HiddenServiceInstance hiddenServiceInstance : allHiddenServices.values())
+			{
+				hiddenServiceInstance.closeIntroductionHandler(tlsConnectionAdmin);
+			}
+		}
+	}
+
 	/**
 	 * Establish a hidden service (server-side).
 	 * 
@@ -114,101 +150,111 @@ public class HiddenServiceServer
 			}
 		}
 
+		// start to handle introductions: this also pre-builds the circuits for the rendezvous
+		hiddenServiceInstance.getIntroductionHandler(tlsConnectionAdmin, directory, torEventService);
+
 		//
 		// establish circuits to (randomly chosen) introduction points
 		// - in parallel (as good as possible)
 		//
 
-		final ExecutorService executor = Executors.newCachedThreadPool();
-		while (hiddenServiceProps.getNumberOfIntroPoints() < hiddenServiceProps.getMinimumNumberOfIntroPoints())
+		final int TRY_MORE_NUMBER_OF_INTRO_POINTS = 2;
+		final ExecutorService executor = Executors.newFixedThreadPool(hiddenServiceProps.getMinimumNumberOfIntroPoints()
+				+ TRY_MORE_NUMBER_OF_INTRO_POINTS);
+		try
 		{
-			logger.debug("establish circuits to (randomly chosen) introduction points for {}", hiddenServicePortInstance);
-
-			// define the tasks for later parallel execution
-			final Collection<Callable<Circuit>> allTasks = new ArrayList<Callable<Circuit>>();
-			final int TRY_MORE_NUMBER_OF_INTRO_POINTS = 2;
-			for (int i = hiddenServiceProps.getNumberOfIntroPoints(); i < hiddenServiceProps.getMinimumNumberOfIntroPoints()
-					+ TRY_MORE_NUMBER_OF_INTRO_POINTS; i++)
+			while (hiddenServiceProps.getNumberOfIntroPoints() < hiddenServiceProps.getMinimumNumberOfIntroPoints())
 			{
-				final HiddenServiceInstance hiddenServiceInstanceFinal = hiddenServiceInstance;
-				final Callable<Circuit> callable = new Callable<Circuit>()
+				logger.debug("establish circuits to (randomly chosen) introduction points for {}", hiddenServicePortInstance);
+
+				// define the tasks for later parallel execution
+				final Collection<Callable<Circuit>> allTasks = new ArrayList<Callable<Circuit>>();
+				for (int i = hiddenServiceProps.getNumberOfIntroPoints(); i < hiddenServiceProps.getMinimumNumberOfIntroPoints()
+						+ TRY_MORE_NUMBER_OF_INTRO_POINTS; i++)
 				{
-					/** establish Circuit to one introduction point */
-					@Override
-					public Circuit call() throws Exception
+					final HiddenServiceInstance hiddenServiceInstanceFinal = hiddenServiceInstance;
+					final Callable<Circuit> callable = new Callable<Circuit>()
 					{
-						logger.debug("Callable Started..");
-						final TCPStreamProperties spIntro = new TCPStreamProperties();
-						spIntro.setExitPolicyRequired(false);
-						// spIntro.setCustomExitpoint(new
-						// FingerprintImpl(Encoding.parseHex("F9B29AC7C015DE52419D7754A4A9E2F823A34771")));
-						// // FreedomFries/98.157.178.36:443
-						// spIntro.setCustomExitpoint(new
-						// FingerprintImpl(Encoding.parseHex("F5A78ED829191D76C7399B86E4429F8F663E0C02")));
-						// // bach/212.42.236.140:443
-						Circuit result = null;
-                        try {
-                            result = establishIntroductionPoint(directory,
-                                                                              torEventService,
-                                                                              tlsConnectionAdmin,
-                                                                              hiddenServiceProps,
-                                                                              spIntro,
-                                                                              hiddenServiceInstanceFinal);
-                        } catch (Throwable throwable) {
-                            logger.warn("got Exception", throwable);
-                        }
-                        logger.debug("Callable Finished!");
-						return result;
-					}
-				};
-				allTasks.add(callable);
-			}
-
-			// execute the tasks in parallel
-			logger.debug("start to execute the tasks in parallel");
-			final int TIMEOUT_SECONDS = 120;
-			Collection<Future<Circuit>> allTaskResults = null;
-			try
-			{
-				allTaskResults = executor.invokeAll(allTasks, TIMEOUT_SECONDS, TimeUnit.SECONDS);
-			}
-			catch (final Exception e)
-			{
-				logger.info("Exception in background task", e);
-			}
+						/** establish Circuit to one introduction point */
+						@Override
+						public Circuit call() throws Exception
+						{
+							logger.debug("Callable Started..");
+							final TCPStreamProperties spIntro = new TCPStreamProperties();
+							spIntro.setExitPolicyRequired(false);
+							// spIntro.setCustomExitpoint(new
+							// FingerprintImpl(Encoding.parseHex("F9B29AC7C015DE52419D7754A4A9E2F823A34771")));
+							// // FreedomFries/98.157.178.36:443
+							// spIntro.setCustomExitpoint(new
+							// FingerprintImpl(Encoding.parseHex("F5A78ED829191D76C7399B86E4429F8F663E0C02")));
+							// // bach/212.42.236.140:443
+							Circuit result = null;
+	                        try {
+	                            result = establishIntroductionPoint(directory,
+	                                                                              torEventService,
+	                                                                              tlsConnectionAdmin,
+	                                                                              hiddenServiceProps,
+	                                                                              spIntro,
+	                                                                              hiddenServiceInstanceFinal);
+	                        } catch (Throwable throwable) {
+	                            logger.warn("got Exception", throwable);
+	                        }
+	                        logger.debug("Callable Finished!");
+							return result;
+						}
+					};
+					allTasks.add(callable);
+				}
 
-			// check the results
-			for (final Future<Circuit> taskResult : allTaskResults)
-			{
+				// execute the tasks in parallel
+				logger.debug("start to execute the tasks in parallel");
+				final int TIMEOUT_SECONDS = 120;
+				Collection<Future<Circuit>> allTaskResults = null;
 				try
 				{
-					logger.debug("analyse taskResult={}", taskResult);
-					final Circuit c = taskResult.get();
-					if (c != null)
-					{
-						final Router introPointRouter = c.getRouteNodes()[c.getRouteEstablished() - 1].getRouter();
-						logger.info("Tor.provideHiddenService: establish introduction point at " + introPointRouter.getNickname());
-						hiddenServiceProps.addIntroPoint(new SDIntroductionPoint(Encoding.toBase32(introPointRouter.getFingerprint().getBytes()),
-						                                                         new TcpipNetAddress(introPointRouter.getAddress().getAddress(),
-						                                                                             introPointRouter.getOrPort()),
-						                                                         introPointRouter.getOnionKey(),
-						                                                         hiddenServiceProps.getPublicKey() // TODO: introPointRouter.getSigningKey() OR use intro-point specific key
-								));
-					}
+					allTaskResults = executor.invokeAll(allTasks, TIMEOUT_SECONDS, TimeUnit.SECONDS);
 				}
-				catch (final InterruptedException e)
+				catch (final Exception e)
 				{
-					logger.debug("task interruped");
+					logger.info("Exception in background task", e);
 				}
-				catch (final Exception e)
+
+				// check the results
+				for (final Future<Circuit> taskResult : allTaskResults)
 				{
-					logger.info("in background task", e);
+					try
+					{
+						logger.debug("analyse taskResult={}", taskResult);
+						final Circuit c = taskResult.get();
+						if (c != null)
+						{
+							final Router introPointRouter = c.getRouteNodes()[c.getRouteEstablished() - 1].getRouter();
+							logger.info("Tor.provideHiddenService: establish introduction point at " + introPointRouter.getNickname());
+							hiddenServiceProps.addIntroPoint(new SDIntroductionPoint(Encoding.toBase32(introPointRouter.getFingerprint().getBytes()),
+							                                                         new TcpipNetAddress(introPointRouter.getAddress().getAddress(),
+							                                                                             introPointRouter.getOrPort()),
+							                                                         introPointRouter.getOnionKey(),
+							                                                         hiddenServiceProps.getPublicKey() // TODO: introPointRouter.getSigningKey() OR use intro-point specific key
+									));
+						}
+					}
+					catch (final InterruptedException e)
+					{
+						logger.debug("task interruped");
+					}
+					catch (final Exception e)
+					{
+						logger.info("in background task", e);
+					}
 				}
+				logger.info("(server side) circuit(s) to hidden service introduction point(s)==" + hiddenServiceProps.getIntroPoints() + " established for "
+						+ hiddenServicePortInstance);
 			}
-			logger.info("(server side) circuit(s) to hidden service introduction point(s)==" + hiddenServiceProps.getIntroPoints() + " established for "
-					+ hiddenServicePortInstance);
 		}
-		executor.shutdown();
+		finally
+		{
+			executor.shutdown();
+		}
 		logger.debug("establish circuits finished introduction points for {}", hiddenServicePortInstance);
 
 		//
@@ -243,8 +289,8 @@ public class HiddenServiceServer
 				circuit = CircuitAdmin.provideSuitableExclusiveCircuit(tlsConnectionAdmin, directory, spIntro, torEventService);
 				if (circuit == null || !circuit.isEstablished())
 				{
+					// try again at once: provideSuitableExclusiveCircuit() already waits while building
 					logger.warn("could not establish Circuit to introduction point with spIntro=" + spIntro);
-					Thread.sleep(5000); // TODO : check if this timeout is really needed
 					continue;
 				}
 				// mark circuit as "used by hidden service to connect to
@@ -58,6 +58,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cf.monteux.silvertunnel.netlib.api.NetAddress;
 import cf.monteux.silvertunnel.netlib.api.NetLayer;
@@ -79,6 +80,7 @@ import cf.monteux.silvertunnel.netlib.layer.tor.directory.Directory;
 import cf.monteux.silvertunnel.netlib.layer.tor.hiddenservice.HiddenServiceProperties;
 import cf.monteux.silvertunnel.netlib.layer.tor.stream.ClosingThread;
 import cf.monteux.silvertunnel.netlib.layer.tor.stream.ResolveStream;
+import cf.monteux.silvertunnel.netlib.layer.tor.stream.ResolvedAddresses;
 import cf.monteux.silvertunnel.netlib.layer.tor.stream.StreamThread;
 import cf.monteux.silvertunnel.netlib.layer.tor.stream.TCPStream;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.NetLayerStatusAdmin;
@@ -112,7 +114,9 @@ public class Tor implements NetLayerStatusAdmin
 	private static final long TOR_CONNECT_MILLISECONDS_BETWEEN_RETRIES = 10;
 	private Directory directory;
 	private TLSConnectionAdmin tlsConnectionAdmin;
-	private TorBackgroundMgmtThread torBackgroundMgmtThread;
+	private TorBackgroundMgmt torBackgroundMgmt;
+	/** used to spread the resolve queries over the circuits. */
+	private final AtomicInteger resolveCounter = new AtomicInteger();
 	/**
 	 * Absolute time in milliseconds: until this date/time the init is in
 	 * progress.
@@ -179,7 +183,7 @@ public class Tor implements NetLayerStatusAdmin
 		// establish handler for TLS connections
 		tlsConnectionAdmin = new TLSConnectionAdmin(lowerTlsConnectionNetLayer);
 		// initialize thread to renew every now and then
-		torBackgroundMgmtThread = new TorBackgroundMgmtThread(this);
+		torBackgroundMgmt = new TorBackgroundMgmt(this);
 	}
 
 	/**
@@ -236,10 +240,10 @@ public class Tor implements NetLayerStatusAdmin
 			final Circuit[] circuits = CircuitAdmin.provideSuitableCircuits(tlsConnectionAdmin, directory, sp, torEventService, false);
 			if (circuits == null || circuits.length < 1)
 			{
-				logger.debug("no valid circuit found: wait for new one created by the TorBackgroundMgmtThread");
+				logger.debug("no valid circuit found: wait for new one created by the TorBackgroundMgmt");
 				try
 				{
-					Thread.sleep(TorBackgroundMgmtThread.INTERVAL_S * 1000L);
+					torBackgroundMgmt.awaitCircuitBuild(TorBackgroundMgmt.INTERVAL_S * 1000L);
 				}
 				catch (final InterruptedException e)
 				{
@@ -250,7 +254,9 @@ public class Tor implements NetLayerStatusAdmin
 			
 			
 			
-			if (TorConfig.isVeryAggressiveStreamBuilding())
+			// an optimistic stream returns before it is connected: racing
+			// several of them gives no hint which one wins
+			if (TorConfig.isVeryAggressiveStreamBuilding() && !sp.isOptimisticData())
 			{
 
 				for (int j = 0; j < circuits.length; ++j)
@@ -323,7 +329,14 @@ public class Tor implements NetLayerStatusAdmin
 				{
 					try
 					{
-						return new TCPStream(circuits[i], sp);
+						// an optimistic stream replays on the remaining circuits if
+						// the exit refuses it
+						final List<Circuit> replayCircuits = new ArrayList<Circuit>();
+						for (int k = i + 1; k < circuits.length; ++k)
+						{
+							replayCircuits.add(circuits[k]);
+						}
+						return new TCPStream(circuits[i], sp, replayCircuits);
 					}
 					catch (final TorNoAnswerException e)
 					{
@@ -389,7 +402,9 @@ public class Tor implements NetLayerStatusAdmin
 	{
 		logger.info("TorJava ist closing down");
 		// shutdown mgmt
-		torBackgroundMgmtThread.close();
+		torBackgroundMgmt.close();
+		// stop handling introductions of the hidden services
+		HiddenServiceServer.getInstance().close(tlsConnectionAdmin);
 		// shut down connections
 		tlsConnectionAdmin.close(force);
 		// shutdown directory
@@ -414,6 +429,18 @@ public class Tor implements NetLayerStatusAdmin
      * @return the resolved IP; null if no mapping found
      */
     public List<NetAddress> resolveAll(final String hostname) throws Throwable
+    {
+        return resolveInternal(hostname).getAddresses();
+    }
+
+    /**
+     * Anonymously resolve a host name.
+     *
+     * @param hostname
+     *            the host name
+     * @return the resolved IPs together with their time-to-live
+     */
+    public ResolvedAddresses resolveAllWithTtl(final String hostname) throws Throwable
     {
         return resolveInternal(hostname);
     }
@@ -427,7 +454,7 @@ public class Tor implements NetLayerStatusAdmin
      */
     public IpNetAddress resolve(final String hostname) throws Throwable
     {
-        return (IpNetAddress) resolveInternal(hostname).get(0);
+        return (IpNetAddress) resolveInternal(hostname).getAddresses().get(0);
     }
 
 	/**
@@ -449,7 +476,7 @@ public class Tor implements NetLayerStatusAdmin
 		}
 		sb.append("in-addr.arpa");
 		// resolve address
-		final List<NetAddress> o = resolveInternal(sb.toString());
+		final List<NetAddress> o = resolveInternal(sb.toString()).getAddresses();
 		if (o.get(0) instanceof Hostname)
 		{
 			return ((Hostname) o.get(0)).getHostname();
@@ -466,45 +493,54 @@ public class Tor implements NetLayerStatusAdmin
 	 * @param query
 	 *            a hostname to be resolved, or for a reverse lookup:
 	 *            A.B.C.D.in-addr.arpa
-	 * @return either an IpNetAddress (normal query), or a String
+	 * @return either IpNetAddresses (normal query), or Hostnames
 	 *         (reverse-DNS-lookup)
 	 */
-	private List<NetAddress> resolveInternal(final String query) throws Throwable
+	private ResolvedAddresses resolveInternal(final String query) throws Throwable
 	{
 		try
 		{
 			// check, if tor is still in startup-phase
 			checkStartup();
-			// try to resolve query over all existing circuits
-			// so iterate over all TLS-Connections
+			// try to resolve query over the existing circuits;
+			// concurrent queries start at different circuits to spread the load
+			final List<Circuit> circuits = new ArrayList<Circuit>();
 			for (final TLSConnection tls : tlsConnectionAdmin.getConnections())
 			{
-				// and over all circuits in each TLS-Connection
 				for (final Circuit circuit : tls.getCircuits())
 				{
-					try
-					{
-						if (circuit.isEstablished())
-						{
-							// if an answer is given, we're satisfied
-							final ResolveStream rs = new ResolveStream(circuit);
-							final List<NetAddress> o = rs.resolve(query);
-							rs.close();
-							return o;
-						}
-					}
-					catch (final Exception e)
+					if (circuit.isEstablished()
+							&& !circuit.isClosed()
+							&& !circuit.isReservedForRendezvous()
+							&& circuit.getServiceDescriptor() == null
+							&& !circuit.isUsedByHiddenServiceToConnectToIntroductionPoint())
 					{
-						// in case of error, do nothing, but retry with the next
-						// circuit
-						logger.debug("got Exception : {}", e.getMessage(), e);
+						circuits.add(circuit);
 					}
 				}
 			}
+			final int start = circuits.isEmpty() ? 0 : (resolveCounter.getAndIncrement() & Integer.MAX_VALUE) % circuits.size();
+			for (int i = 0; i < circuits.size(); i++)
+			{
+				final Circuit circuit = circuits.get((start + i) % circuits.size());
+				try
+				{
+					// if an answer is given, we're satisfied
+					final ResolveStream rs = new ResolveStream(circuit);
+					final ResolvedAddresses o = rs.resolveWithTtl(query);
+					rs.close();
+					return o;
+				}
+				catch (final Exception e)
+				{
+					// in case of error, do nothing, but retry with the next
+					// circuit
+					logger.debug("got Exception : {}", e.getMessage(), e);
+				}
+			}
 			// if no circuit could give an answer (possibly there was no
 			// established circuit?)
 			// build a new circuit and ask this one to resolve the query
-//			final ResolveStream rs = new ResolveStream(new Circuit(tlsConnectionAdmin, directory, new TCPStreamProperties(), torEventService));
 			final TCPStreamProperties streamProperties = new TCPStreamProperties();
 			final Circuit [] rsCircuit = CircuitAdmin.provideSuitableCircuits(tlsConnectionAdmin, 
 																			  directory, 
@@ -512,7 +548,7 @@ public class Tor implements NetLayerStatusAdmin
 																			  torEventService, 
 																			  false);
 			final ResolveStream rs = new ResolveStream(rsCircuit[0]);
-			final List<NetAddress> o = rs.resolve(query);
+			final ResolvedAddresses o = rs.resolveWithTtl(query);
 			rs.close();
 			return o;
 		}
@@ -649,6 +685,7 @@ public class Tor implements NetLayerStatusAdmin
 		int circuitsAlive = 0; // circuits that are building up, or that are established
 		int circuitsEstablished = 0; // established, but not already closed
 		int circuitsClosed = 0; // closing down
+		int circuitsIdle = 0; // established, but not yet used
 
 		for (final TLSConnection tls : tlsConnectionAdmin.getConnections())
 		{
@@ -669,6 +706,10 @@ public class Tor implements NetLayerStatusAdmin
 					{
 						flag = "E";
 						++circuitsEstablished;
+						if (c.isUnused())
+						{
+							++circuitsIdle;
+						}
 					}
 				}
 //				if (logger.isDebugEnabled())
@@ -684,6 +725,7 @@ public class Tor implements NetLayerStatusAdmin
 		result.setCircuitsAlive(circuitsAlive);
 		result.setCircuitsEstablished(circuitsEstablished);
 		result.setCircuitsClosed(circuitsClosed);
+		result.setCircuitsIdle(circuitsIdle);
 
 		return result;
 	}
@@ -0,0 +1,323 @@
+/*
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.clientimpl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cf.monteux.silvertunnel.netlib.api.NetLayerStatus;
+import cf.monteux.silvertunnel.netlib.layer.tor.api.TorNetLayerStatus;
+import cf.monteux.silvertunnel.netlib.layer.tor.circuit.Circuit;
+import cf.monteux.silvertunnel.netlib.layer.tor.circuit.CircuitsStatus;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorEvent;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorEventHandler;
+import cf.monteux.silvertunnel.netlib.layer.tor.directory.DirectoryManagerThread;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Management of the pool of idle circuits.
+ * 
+ * The pool is checked whenever a circuit is built, closed or taken (by a
+ * stream or for exclusive use) and missing circuits are spawned right away.
+ * Keep-alive, build timeouts and teardown of single circuits and streams are
+ * scheduled per object by the circuit package.
+ * 
+ * @author Lexi Pimenidis
+ * @author Michael Koellejan
+ * @author hapke
+ * @author Tobias Boese
+ */
+class TorBackgroundMgmt implements TorEventHandler
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(TorBackgroundMgmt.class);
+
+	/** general factor seconds:milliseconds. */
+	private static final int MILLISEC = 1000;
+	/** time to wait before the pool is checked again if nothing could be done, in seconds. */
+	protected static final int INTERVAL_S = 3;
+
+	private static final AtomicLong idleThreadCounter = new AtomicLong();
+
+	/** reference to main class. */
+	private final Tor tor;
+	/** runs the pool checks. */
+	private final ScheduledExecutorService scheduler;
+	/** builds idle circuits. */
+	private final ExecutorService circuitBuilder;
+	/** guards {@link #pendingCheck} and {@link #pendingCheckDeadline}. */
+	private final Object checkLock = new Object();
+	/** the pool check which is scheduled but did not start yet; null=none. */
+	private ScheduledFuture<?> pendingCheck;
+	/** time in ms when {@link #pendingCheck} is due. */
+	private long pendingCheckDeadline;
+	/** idle circuits currently built by {@link #circuitBuilder}. */
+	private final AtomicInteger spawningCircuits = new AtomicInteger();
+	/** used to wait for new circuits. */
+	private final Object circuitBuilt = new Object();
+	/** As stop() is depreciated we follow the Sun recommendation. */
+	private volatile boolean stopped = false;
+	private final DirectoryManagerThread directoryManagerThread;
+
+	/**
+	 * Start the management of the {@link Tor} object.
+	 * @param tor current {@link Tor} object
+	 */
+	TorBackgroundMgmt(final Tor tor)
+	{
+		this.tor = tor;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, TorBackgroundMgmt.class.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		circuitBuilder = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				// name is checked by Circuit
+				final Thread thread = new Thread(runnable, "Idle Thread " + idleThreadCounter.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		tor.getTorEventService().registerEventHandler(this);
+		this.directoryManagerThread = new DirectoryManagerThread(tor.getDirectory());
+		checkIdleCircuits(0);
+	}
+
+	@Override
+	public void fireEvent(final TorEvent event)
+	{
+		switch (event.getType())
+		{
+			case TorEvent.CIRCUIT_BUILD:
+				synchronized (circuitBuilt)
+				{
+					circuitBuilt.notifyAll();
+				}
+				checkIdleCircuits(0);
+				break;
+			case TorEvent.CIRCUIT_CLOSED:
+			case TorEvent.CIRCUIT_CLAIMED:
+			case TorEvent.STREAM_BUILD:
+				checkIdleCircuits(0);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Wait until a new circuit was built.
+	 * 
+	 * @param timeoutMs
+	 *            maximum time to wait
+	 * @throws InterruptedException
+	 */
+	void awaitCircuitBuild(final long timeoutMs) throws InterruptedException
+	{
+		synchronized (circuitBuilt)
+		{
+			circuitBuilt.wait(timeoutMs);
+		}
+	}
+
+	/**
+	 * Schedule a check of the idle circuits; several requests before the check
+	 * runs are handled by one check. A pending check is moved forward if a
+	 * sooner one is requested.
+	 * 
+	 * @param delayMs
+	 *            0=as soon as possible
+	 */
+	private void checkIdleCircuits(final long delayMs)
+	{
+		if (stopped)
+		{
+			return;
+		}
+		final long deadline = System.currentTimeMillis() + delayMs;
+		synchronized (checkLock)
+		{
+			if (pendingCheck != null)
+			{
+				// an earlier check is pending, or one which cannot be cancelled
+				// any more is about to run
+				if (pendingCheckDeadline <= deadline || !pendingCheck.cancel(false))
+				{
+					return;
+				}
+			}
+			pendingCheckDeadline = deadline;
+			pendingCheck = scheduler.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runCheck();
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void runCheck()
+	{
+		synchronized (checkLock)
+		{
+			pendingCheck = null;
+		}
+		try
+		{
+			manageIdleCircuits();
+		}
+		catch (final Exception e)
+		{
+			logger.error("TorBackgroundMgmt.manageIdleCircuits() failed", e);
+		}
+	}
+
+	/**
+	 * builds up new circuits, if there are not enough idle ones.
+	 */
+	private void manageIdleCircuits()
+	{
+		if (stopped)
+		{
+			return;
+		}
+		// Don't create circuits until not at least a certain fraction of the
+		// routers is known
+		if (!tor.getDirectory().isDirectoryReady())
+		{
+			logger.debug("Not yet spawning circuits (too few routers known until now)");
+			checkIdleCircuits(INTERVAL_S * MILLISEC);
+			return;
+		}
+		final CircuitsStatus circuitsStatus = tor.getCircuitsStatus();
+		final int spawning = spawningCircuits.get();
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("TorBackgroundMgmt.manageIdleCircuits(): circuit counts: "
+				+ (circuitsStatus.getCircuitsAlive() - circuitsStatus
+						.getCircuitsEstablished()) + " building, "
+				+ circuitsStatus.getCircuitsEstablished() + " established ("
+				+ circuitsStatus.getCircuitsIdle() + " idle) + "
+				+ circuitsStatus.getCircuitsClosed() + " closed = "
+				+ circuitsStatus.getCircuitsTotal() + ", " + spawning + " idle circuits spawning");
+		}
+		// check if enough idle circuits are there
+		final int missing = TorConfig.getMinimumIdleCircuits() - circuitsStatus.getCircuitsIdle() - spawning;
+		final int allowed = TorConfig.circuitsMaximumNumber - circuitsStatus.getCircuitsAlive() - spawning;
+		if (missing > 0 && allowed > 0)
+		{
+			spawnIdleCircuits(Math.min(missing, allowed));
+		}
+		// update final state
+		if (circuitsStatus.getCircuitsEstablished() >= TorConfig.getMinimumIdleCircuits())
+		{
+			tor.updateStatus(NetLayerStatus.READY);
+		}
+	}
+
+	/** create some empty circuits to have at hand - does so in the background. */
+	private void spawnIdleCircuits(final int amount)
+	{
+		logger.info("TorBackgroundMgmt.spawnIdleCircuits: Spawn {} new circuits", amount);
+		tor.updateStatus(TorNetLayerStatus.INITIAL_CIRCUITES_ESTABLISHING);
+		for (int i = 0; i < amount; ++i)
+		{
+			spawningCircuits.incrementAndGet();
+			circuitBuilder.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					boolean successful = false;
+					try
+					{
+						// TODO : implement circuit predictor here
+						// idle threads should at least allow using port 80
+						final TCPStreamProperties sp = new TCPStreamProperties();
+						sp.setFastRoute(true);
+						sp.setPort(80);
+						successful = new Circuit(tor.getTlsConnectionAdmin(),
+								tor.getDirectory(), sp,
+								tor.getTorEventService(), null).isEstablished();
+					}
+					catch (final Exception e)
+					{
+						logger.debug("TorBackgroundMgmt.spawnIdleCircuits got Exception: {}", e.getMessage(), e);
+					}
+					finally
+					{
+						spawningCircuits.decrementAndGet();
+					}
+					// a failed circuit is replaced after a pause, not in a tight loop
+					checkIdleCircuits(successful ? 0 : INTERVAL_S * MILLISEC);
+				}
+			});
+		}
+	}
+
+	public void close()
+	{
+		// stop sub-thread
+		directoryManagerThread.setStopped();
+		directoryManagerThread.interrupt();
+		// stop the pool management
+		stopped = true;
+		tor.getTorEventService().removeEventHandler(this);
+		scheduler.shutdownNow();
+		circuitBuilder.shutdownNow();
+	}
+}
@@ -17,6 +17,10 @@
  */
 package cf.monteux.silvertunnel.netlib.layer.tor.common;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 
 import org.apache.logging.log4j.LogManager;
@@ -27,6 +31,10 @@ import com.maxmind.geoip.LookupService;
 /**
  * Helper class to access LookupService.
  * 
+ * Holds one IPv4 and optionally one IPv6 country database. A newer database
+ * can be loaded at runtime with {@link #loadDatabase(File)}; lookups running
+ * in parallel continue with the previous database, no locking is involved.
+ * 
  * @author hapke
  */
 public class LookupServiceUtil
@@ -34,7 +42,8 @@ public class LookupServiceUtil
 	/** */
 	private static final Logger logger = LogManager.getLogger(LookupServiceUtil.class);
 
-	private static LookupService lookupService;
+	private static volatile LookupService lookupService;
+	private static volatile LookupService lookupServiceIPv6;
 
 	static
 	{
@@ -49,6 +58,35 @@ public class LookupServiceUtil
 		}
 	}
 
+	/**
+	 * Replace the IPv4 or IPv6 database (depending on the edition of the file)
+	 * with the content of a GeoIP country database file.
+	 * 
+	 * @param databaseFile
+	 *            GeoIP.dat or GeoIPv6.dat (legacy MaxMind country edition)
+	 * @throws IOException
+	 *             if the file could not be read or is no country database; the
+	 *             database used so far stays active
+	 */
+	public static void loadDatabase(final File databaseFile) throws IOException
+	{
+		final long length = databaseFile.length();
+		if (length > Integer.MAX_VALUE)
+		{
+			throw new IOException("GeoIP database too large: " + databaseFile);
+		}
+		final LookupService newService = new LookupService(new FileInputStream(databaseFile), (int) length);
+		if (newService.isIPv6())
+		{
+			lookupServiceIPv6 = newService;
+		}
+		else
+		{
+			lookupService = newService;
+		}
+		logger.info("loaded GeoIP database {} with {} ranges", databaseFile, newService.getRangeCount());
+	}
+
 	/**
 	 * Determine the country code of an IP address.
 	 * 
@@ -57,10 +95,22 @@ public class LookupServiceUtil
 	 */
 	public static String getCountryCodeOfIpAddress(final InetAddress address)
 	{
+		final LookupService ipv4 = lookupService;
+		final LookupService ipv6 = lookupServiceIPv6;
+		final LookupService service;
+		if (address instanceof Inet6Address)
+		{
+			service = ipv6 != null ? ipv6 : ipv4;
+		}
+		else
+		{
+			service = ipv4 != null ? ipv4 : ipv6;
+		}
+
 		String countryCode = null;
-		if (lookupService != null)
+		if (service != null)
 		{
-			countryCode = lookupService.getCountry(address.getAddress());
+			countryCode = service.getCountry(address.getAddress());
 		}
 
 		if (countryCode == null || countryCode.length() < 1)
@@ -91,6 +91,16 @@ public final class TCPStreamProperties
 	private float rankingInfluenceIndex;
 	/** custom/predefined route. */
 	private Fingerprint[] route;
+	/**
+	 * streams with different isolation keys never share a circuit; null=no
+	 * isolation.
+	 */
+	private String isolationKey;
+	/**
+	 * send data right behind RELAY_BEGIN, without waiting for RELAY_CONNECTED
+	 * (optimistic data, proposal 181).
+	 */
+	private boolean optimisticData;
 
 	/**
 	 * preset the data structure with all necessary attributes.
@@ -470,4 +480,40 @@ public final class TCPStreamProperties
 	{
 		this.connectToDirServer = connectToDirServer;
 	}
+
+	/**
+	 * @return the stream isolation key; null=no isolation
+	 */
+	public String getIsolationKey()
+	{
+		return isolationKey;
+	}
+
+	/**
+	 * @param isolationKey
+	 *            streams with different isolation keys never share a circuit;
+	 *            null=no isolation
+	 */
+	public void setIsolationKey(final String isolationKey)
+	{
+		this.isolationKey = isolationKey;
+	}
+
+	/**
+	 * @return true if data may be sent before RELAY_CONNECTED was received
+	 */
+	public boolean isOptimisticData()
+	{
+		return optimisticData;
+	}
+
+	/**
+	 * @param optimisticData
+	 *            true=the stream is returned right after RELAY_BEGIN and data
+	 *            written to it is sent before RELAY_CONNECTED was received
+	 */
+	public void setOptimisticData(final boolean optimisticData)
+	{
+		this.optimisticData = optimisticData;
+	}
 }
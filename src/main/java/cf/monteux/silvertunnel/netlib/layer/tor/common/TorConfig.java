@@ -301,6 +301,8 @@ public final class TorConfig {
 	public static final String SYSTEMPROPERTY_TOR_MAXIMUM_ROUTE_LENGTH = SYSTEMPROPERTY_TOR_PREFIX + "maximumRouteLength";
 	/** identifier for System property @see caching Hidden service descriptor. */
 	public static final String SYSTEMPROPERTY_TOR_CACHE_HS_DESCRIPTOR = SYSTEMPROPERTY_TOR_PREFIX + "cacheHiddenServiceDescriptor";
+	/** identifier for System property @see size of the Hidden service descriptor cache. */
+	public static final String SYSTEMPROPERTY_TOR_CACHE_HS_DESCRIPTOR_SIZE = SYSTEMPROPERTY_TOR_PREFIX + "cacheHiddenServiceDescriptorSize";
 	/** identifier for System properties. */
 	public static final String SYSTEMPROPERTY_TOR_MAX_ALLOWED_SETUP_DURATION_MS = SYSTEMPROPERTY_TOR_PREFIX + "maxAllowedSetupDurationMs";
 
@@ -677,6 +679,8 @@ public final class TorConfig {
 	 * circuits.
 	 */
 	private Set<String> avoidedCountries = new HashSet<String>();
+	/** incremented on every change of {@link #avoidedCountries}. */
+	private volatile int avoidedCountriesVersion = 0;
 
 	/**
 	 * Check if the specified Country is allowed to be used for Circuit
@@ -705,6 +709,7 @@ public final class TorConfig {
 	 */
 	public static synchronized void setCountryAllowed(final Set<String> countryCodes) {
 		getInstance().avoidedCountries = countryCodes;
+		getInstance().avoidedCountriesVersion++;
 	}
 
 	/**
@@ -722,6 +727,15 @@ public final class TorConfig {
 		} else {
 			getInstance().avoidedCountries.add(countryCode);
 		}
+		getInstance().avoidedCountriesVersion++;
+	}
+
+	/**
+	 * @return a number which changes whenever the avoided countries are changed;
+	 *         allows to cache results of {@link #isCountryAllowed(String)}
+	 */
+	public static int getAvoidedCountriesVersion() {
+		return getInstance().avoidedCountriesVersion;
 	}
 
 	/** collection of fingerprints to be avoided. */
@@ -797,6 +811,10 @@ public final class TorConfig {
 	 * Default : true
 	 */
 	private boolean cacheHiddenServiceDescriptor = true;
+	/** maximum number of cached hidden service descriptors. */
+	private int cacheHiddenServiceDescriptorSize = DEFAULT_CACHE_HS_DESCRIPTOR_SIZE;
+	/** default for the maximum number of cached hidden service descriptors. */
+	private static final int DEFAULT_CACHE_HS_DESCRIPTOR_SIZE = 5000;
 	/** directory and Co. config */
 	public static final int MIN_NUMBER_OF_ROUTERS_IN_CONSENSUS = 50;
 	/**
@@ -817,6 +835,8 @@ public final class TorConfig {
 			setRouteMaxLength(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_MAXIMUM_ROUTE_LENGTH, getRouteMaxLength()));
 			setCacheHiddenServiceDescriptor(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_CACHE_HS_DESCRIPTOR,
 					isCacheHiddenServiceDescriptor()));
+			setCacheHiddenServiceDescriptorSize(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_CACHE_HS_DESCRIPTOR_SIZE,
+					getCacheHiddenServiceDescriptorSize()));
 			maxAllowedSetupDurationMs = SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_MAX_ALLOWED_SETUP_DURATION_MS,
 					(int) maxAllowedSetupDurationMs);
 		} catch (final Exception e) {
@@ -848,6 +868,29 @@ public final class TorConfig {
 		getInstance().cacheHiddenServiceDescriptor = cacheHiddenServiceDescriptor;
 	}
 
+	/**
+	 * @return the maximum number of cached hidden service descriptors
+	 */
+	public static int getCacheHiddenServiceDescriptorSize() {
+		return getInstance().cacheHiddenServiceDescriptorSize;
+	}
+
+	/**
+	 * Set the maximum number of cached hidden service descriptors. <br>
+	 * <br>
+	 * default value : 5000
+	 * 
+	 * @param cacheHiddenServiceDescriptorSize
+	 *            the maximum number of cached descriptors; should be higher than 0
+	 */
+	public static void setCacheHiddenServiceDescriptorSize(final int cacheHiddenServiceDescriptorSize) {
+		if (cacheHiddenServiceDescriptorSize <= 0) {
+			logger.warn("setCacheHiddenServiceDescriptorSize : wrong value for cacheHiddenServiceDescriptorSize found!");
+			return; // keep the old value
+		}
+		getInstance().cacheHiddenServiceDescriptorSize = cacheHiddenServiceDescriptorSize;
+	}
+
 	/**
 	 * Shall we save the Circuit history?
 	 * 
@@ -910,8 +953,10 @@ public final class TorConfig {
 	public static void reset() {
 		TorConfig config = getInstance();
 		config.avoidedCountries.clear();
+		config.avoidedCountriesVersion++;
 		config.avoidedNodeFingerprints.clear();
 		config.cacheHiddenServiceDescriptor = true;
+		config.cacheHiddenServiceDescriptorSize = DEFAULT_CACHE_HS_DESCRIPTOR_SIZE;
 		config.circuitClosesOnFailures = 3;
 		config.minimumIdleCircuits = 3;
 		config.parallelCircuitBuilds = 1;
@@ -26,6 +26,8 @@ public class TorEvent
 	public static final int GENERAL = 0;
 	public static final int CIRCUIT_BUILD = 10;
 	public static final int CIRCUIT_CLOSED = 11;
+	/** an unused circuit was taken for exclusive use. */
+	public static final int CIRCUIT_CLAIMED = 12;
 	public static final int STREAM_BUILD = 20;
 	public static final int STREAM_CLOSED = 21;
 
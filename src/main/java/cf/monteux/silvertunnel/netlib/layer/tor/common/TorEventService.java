@@ -17,8 +17,8 @@
  */
 package cf.monteux.silvertunnel.netlib.layer.tor.common;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -33,7 +33,7 @@ public class TorEventService
 	/** */
 	private static final Logger logger = LogManager.getLogger(TorEventService.class);
 
-	private final Collection<TorEventHandler> eventHandlers = new ArrayList<TorEventHandler>();
+	private final Collection<TorEventHandler> eventHandlers = new CopyOnWriteArrayList<TorEventHandler>();
 
 	public void registerEventHandler(final TorEventHandler eventHandler)
 	{
@@ -27,6 +27,7 @@ import javax.xml.bind.DatatypeConverter;
 
 import cf.monteux.silvertunnel.netlib.layer.tor.api.Fingerprint;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Encryption;
+import cf.monteux.silvertunnel.netlib.layer.tor.util.SignatureVerifier;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.TorException;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Util;
 import org.apache.logging.log4j.LogManager;
@@ -166,7 +167,7 @@ public class AuthorityKeyCertificate implements Cloneable
 		{
 			logger.warn("unexpected", e);
 		}
-		if (!Encryption.verifySignature(dirKeyCertification, dirIdentityKey,
+		if (!SignatureVerifier.verifySignature(dirKeyCertification, dirIdentityKey,
 				signedData))
 		{
 			throw new TorException(
@@ -0,0 +1,105 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.Map;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
+
+/**
+ * The bandwidth-weights of a consensus (path-spec section 2.2): the share of
+ * the bandwidth of a router which may be used for a position in a circuit,
+ * depending on its Guard and Exit flags.
+ *
+ * @author Tobias Boese
+ */
+public final class BandwidthWeights
+{
+	/** Position of a router in a circuit. */
+	public enum Position
+	{
+		GUARD, MIDDLE, EXIT
+	}
+
+	/** all weights are given in 1/WEIGHT_SCALE (dir-spec: bwweightscale). */
+	private static final int WEIGHT_SCALE = 10000;
+
+	/** [position][Guard flag ? 1 : 0][Exit flag ? 1 : 0]. */
+	private final int[][][] weights = new int[Position.values().length][2][2];
+
+	private BandwidthWeights()
+	{
+	}
+
+	/**
+	 * @param values
+	 *            the values of the bandwidth-weights line of the consensus
+	 * @return the weights; null if values are missing, i.e. bandwidth weighted
+	 *         selection is not possible
+	 */
+	static BandwidthWeights parse(final Map<String, Integer> values)
+	{
+		final BandwidthWeights result = new BandwidthWeights();
+		// a router with Exit flag but without Guard flag is never used as guard
+		if (!result.set(values, Position.GUARD, "Wgm", "Wgg", null, "Wgd")
+				|| !result.set(values, Position.MIDDLE, "Wmm", "Wmg", "Wme", "Wmd")
+				|| !result.set(values, Position.EXIT, "Wem", "Weg", "Wee", "Wed"))
+		{
+			return null;
+		}
+		return result;
+	}
+
+	private boolean set(final Map<String, Integer> values,
+	                    final Position position,
+	                    final String none,
+	                    final String guard,
+	                    final String exit,
+	                    final String guardAndExit)
+	{
+		final Integer wNone = values.get(none);
+		final Integer wGuard = values.get(guard);
+		final Integer wExit = exit == null ? Integer.valueOf(0) : values.get(exit);
+		final Integer wGuardAndExit = values.get(guardAndExit);
+		if (wNone == null || wGuard == null || wExit == null || wGuardAndExit == null)
+		{
+			return false;
+		}
+		final int[][] w = weights[position.ordinal()];
+		w[0][0] = wNone;
+		w[1][0] = wGuard;
+		w[0][1] = wExit;
+		w[1][1] = wGuardAndExit;
+		return true;
+	}
+
+	/**
+	 * @param router
+	 * @param position
+	 *            the position the router is selected for
+	 * @return the weighted consensus bandwidth of the router in kilobytes per
+	 *         second; 0 = never select
+	 */
+	public double getWeightedBandwidth(final Router router, final Position position)
+	{
+		final int guard = router.isDirv2Guard() ? 1 : 0;
+		final int exit = router.isDirv2Exit() ? 1 : 0;
+		return (double) router.getConsensusBandwidth() * weights[position.ordinal()][guard][exit] / WEIGHT_SCALE;
+	}
+}
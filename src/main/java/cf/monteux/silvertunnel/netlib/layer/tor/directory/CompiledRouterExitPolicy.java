@@ -0,0 +1,306 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.api.RouterExitPolicy;
+
+/**
+ * Compiled form of the exit policy of a single router.
+ *
+ * The port space is split into sorted segments. Each segment holds sorted,
+ * disjoint address intervals with the accept/reject decision of the first
+ * matching policy item. Adjacent segments with the same address intervals are
+ * merged, so a typical policy compiles into a handful of segments. A lookup is
+ * two binary searches instead of a walk over all policy items.
+ *
+ * Policies with non-contiguous netmasks cannot be expressed as address
+ * intervals; they are kept as they are and evaluated item by item.
+ *
+ * An object is read-only.
+ *
+ * @author Tobias Boese
+ */
+final class CompiledRouterExitPolicy
+{
+	/** highest port number. */
+	private static final int MAX_PORT = 65535;
+	/** highest IPv4 address (as unsigned value). */
+	private static final long MAX_IP = 0xffffffffL;
+
+	/** an exit policy which rejects everything. */
+	static final CompiledRouterExitPolicy REJECT_ALL = compile(new RouterExitPolicy[0]);
+
+	/** first port of each segment; sorted, first element is always 0. */
+	private final int[] segmentStarts;
+	/** per segment: first address of each address interval; sorted, first element is always 0. */
+	private final long[][] addressStarts;
+	/** per segment: decision of each address interval. */
+	private final boolean[][] addressAccepts;
+	/** per segment: is there at least one accepted address? */
+	private final boolean[] segmentAcceptsSomeAddress;
+	/** is there at least one accepted port/address combination? */
+	private final boolean acceptsSomething;
+	/** the original policy if it could not be compiled; null otherwise. */
+	private final RouterExitPolicy[] uncompiled;
+
+	private CompiledRouterExitPolicy(final int[] segmentStarts,
+	                                 final long[][] addressStarts,
+	                                 final boolean[][] addressAccepts)
+	{
+		this.segmentStarts = segmentStarts;
+		this.addressStarts = addressStarts;
+		this.addressAccepts = addressAccepts;
+		this.segmentAcceptsSomeAddress = new boolean[segmentStarts.length];
+		boolean any = false;
+		for (int i = 0; i < segmentStarts.length; i++)
+		{
+			for (final boolean accept : addressAccepts[i])
+			{
+				if (accept)
+				{
+					segmentAcceptsSomeAddress[i] = true;
+					any = true;
+					break;
+				}
+			}
+		}
+		this.acceptsSomething = any;
+		this.uncompiled = null;
+	}
+
+	private CompiledRouterExitPolicy(final RouterExitPolicy[] uncompiled)
+	{
+		this.segmentStarts = null;
+		this.addressStarts = null;
+		this.addressAccepts = null;
+		this.segmentAcceptsSomeAddress = null;
+		boolean any = false;
+		for (final RouterExitPolicy item : uncompiled)
+		{
+			any |= item.isAccept();
+		}
+		this.acceptsSomething = any;
+		this.uncompiled = uncompiled;
+	}
+
+	/**
+	 * Compile the given exit policy.
+	 *
+	 * @param exitpolicy
+	 *            the exit policy items in the order of the router descriptor
+	 * @return the compiled exit policy
+	 */
+	static CompiledRouterExitPolicy compile(final RouterExitPolicy[] exitpolicy)
+	{
+		if (exitpolicy == null || exitpolicy.length == 0)
+		{
+			return new CompiledRouterExitPolicy(new int[] {0}, new long[][] {{0}}, new boolean[][] {{false}});
+		}
+		for (final RouterExitPolicy item : exitpolicy)
+		{
+			final long hostmask = ~item.getNetmask() & MAX_IP;
+			if ((hostmask & (hostmask + 1)) != 0)
+			{
+				// non-contiguous netmask
+				return new CompiledRouterExitPolicy(exitpolicy.clone());
+			}
+		}
+		// determine the port segments
+		final TreeSet<Integer> portBoundaries = new TreeSet<Integer>();
+		portBoundaries.add(0);
+		for (final RouterExitPolicy item : exitpolicy)
+		{
+			final int loPort = Math.max(0, item.getLoPort());
+			final int hiPort = Math.min(MAX_PORT, item.getHiPort());
+			if (loPort <= hiPort)
+			{
+				portBoundaries.add(loPort);
+				if (hiPort < MAX_PORT)
+				{
+					portBoundaries.add(hiPort + 1);
+				}
+			}
+		}
+
+		final List<Integer> starts = new ArrayList<Integer>(portBoundaries.size());
+		final List<long[]> intervalStarts = new ArrayList<long[]>(portBoundaries.size());
+		final List<boolean[]> intervalAccepts = new ArrayList<boolean[]>(portBoundaries.size());
+		for (final int port : portBoundaries)
+		{
+			// paint the address space in reverse order: the first matching item wins
+			final TreeMap<Long, Boolean> intervals = new TreeMap<Long, Boolean>();
+			intervals.put(0L, Boolean.FALSE);
+			for (int i = exitpolicy.length - 1; i >= 0; i--)
+			{
+				final RouterExitPolicy item = exitpolicy[i];
+				if (item.getLoPort() > port || item.getHiPort() < port)
+				{
+					continue;
+				}
+				final long netmask = item.getNetmask() & MAX_IP;
+				final long ip = item.getIp();
+				if ((ip & ~netmask) != 0)
+				{
+					// can never match an address
+					continue;
+				}
+				paint(intervals, ip, ip | (~netmask & MAX_IP), item.isAccept());
+			}
+			final long[] addresses = new long[intervals.size()];
+			final boolean[] accepts = new boolean[intervals.size()];
+			int count = 0;
+			for (final Map.Entry<Long, Boolean> entry : intervals.entrySet())
+			{
+				if (count > 0 && accepts[count - 1] == entry.getValue())
+				{
+					// merge with the previous interval
+					continue;
+				}
+				addresses[count] = entry.getKey();
+				accepts[count] = entry.getValue();
+				count++;
+			}
+			final long[] segmentAddresses = Arrays.copyOf(addresses, count);
+			final boolean[] segmentAccepts = Arrays.copyOf(accepts, count);
+			final int last = starts.size() - 1;
+			if (last >= 0 && Arrays.equals(intervalStarts.get(last), segmentAddresses)
+					&& Arrays.equals(intervalAccepts.get(last), segmentAccepts))
+			{
+				// same decisions as the previous segment: extend it
+				continue;
+			}
+			starts.add(port);
+			intervalStarts.add(segmentAddresses);
+			intervalAccepts.add(segmentAccepts);
+		}
+
+		final int[] segmentStarts = new int[starts.size()];
+		for (int i = 0; i < segmentStarts.length; i++)
+		{
+			segmentStarts[i] = starts.get(i);
+		}
+		return new CompiledRouterExitPolicy(segmentStarts,
+		                                    intervalStarts.toArray(new long[intervalStarts.size()][]),
+		                                    intervalAccepts.toArray(new boolean[intervalAccepts.size()][]));
+	}
+
+	/**
+	 * Set the decision for the address range [from, to].
+	 */
+	private static void paint(final TreeMap<Long, Boolean> intervals, final long from, final long to, final boolean accept)
+	{
+		if (to < MAX_IP && !intervals.containsKey(to + 1))
+		{
+			// keep the decision behind the painted range
+			intervals.put(to + 1, intervals.floorEntry(to + 1).getValue());
+		}
+		intervals.subMap(from, true, to, true).clear();
+		intervals.put(from, accept);
+	}
+
+	/**
+	 * @param ip
+	 *            IPv4 address as unsigned value
+	 * @param port
+	 *            destination port
+	 * @return true if the first matching exit policy item accepts the address and port
+	 */
+	boolean accepts(final long ip, final int port)
+	{
+		if (port < 0 || port > MAX_PORT)
+		{
+			return false;
+		}
+		if (uncompiled != null)
+		{
+			for (final RouterExitPolicy item : uncompiled)
+			{
+				if ((item.getLoPort() <= port) && (item.getHiPort() >= port) && (item.getIp() == (ip & item.getNetmask())))
+				{
+					return item.isAccept();
+				}
+			}
+			return false;
+		}
+		final int segment = findSegment(port);
+		final long[] addresses = addressStarts[segment];
+		int index = Arrays.binarySearch(addresses, ip);
+		if (index < 0)
+		{
+			index = -index - 2;
+		}
+		return addressAccepts[segment][index];
+	}
+
+	/**
+	 * @param port
+	 *            destination port
+	 * @return true if at least one address is accepted for the given port
+	 */
+	boolean acceptsPort(final int port)
+	{
+		if (port < 0 || port > MAX_PORT)
+		{
+			return false;
+		}
+		if (uncompiled != null)
+		{
+			// conservative: the exact check is done by accepts()
+			return acceptsSomething;
+		}
+		return segmentAcceptsSomeAddress[findSegment(port)];
+	}
+
+	/**
+	 * @return true if at least one port/address combination is accepted
+	 */
+	boolean acceptsSomething()
+	{
+		return acceptsSomething;
+	}
+
+	/**
+	 * @return the index of the segment containing the port
+	 */
+	private int findSegment(final int port)
+	{
+		final int index = Arrays.binarySearch(segmentStarts, port);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	/**
+	 * used for debugging purposes.
+	 */
+	@Override
+	public String toString()
+	{
+		if (uncompiled != null)
+		{
+			return "CompiledRouterExitPolicy(uncompiled items=" + uncompiled.length + ")";
+		}
+		return "CompiledRouterExitPolicy(segments=" + segmentStarts.length + ")";
+	}
+}
@@ -0,0 +1,692 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.directory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import cf.monteux.silvertunnel.netlib.layer.tor.util.Encryption;
+import cf.monteux.silvertunnel.netlib.layer.tor.util.TorException;
+import cf.monteux.silvertunnel.netlib.layer.tor.util.Util;
+
+/**
+ * Single pass parser of a directory protocol V3 network-status consensus
+ * document.
+ *
+ * The document is scanned line by line over its bytes; tokens are addressed by
+ * offsets and only converted into objects where the result needs them. The
+ * digest of the signed part of the document is calculated while parsing.
+ *
+ * @author Tobias Boese
+ */
+final class ConsensusParser
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(ConsensusParser.class);
+
+	private static final byte[] KEYWORD_VERSION = ascii("network-status-version");
+	private static final byte[] KEYWORD_VALID_AFTER = ascii("valid-after");
+	private static final byte[] KEYWORD_FRESH_UNTIL = ascii("fresh-until");
+	private static final byte[] KEYWORD_VALID_UNTIL = ascii("valid-until");
+	private static final byte[] KEYWORD_FOOTER = ascii("directory-footer");
+	private static final byte[] KEYWORD_SIGNATURE = ascii("directory-signature");
+	private static final byte[] KEYWORD_BANDWIDTH = ascii("Bandwidth=");
+	private static final byte[] KEYWORD_BANDWIDTH_WEIGHTS = ascii("bandwidth-weights");
+	private static final byte[] BEGIN_OBJECT = ascii("-----BEGIN ");
+	private static final byte[] END_OBJECT = ascii("-----END ");
+	private static final byte[] ALGORITHM_SHA1 = ascii("sha1");
+
+	/**
+	 * maximum number of tokens of one line which are addressed; the
+	 * bandwidth-weights line has 19 values.
+	 */
+	private static final int MAX_TOKENS = 32;
+
+	/** value of a base64 character; -1 = no base64 character. */
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static
+	{
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+		final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++)
+		{
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	/**
+	 * A directory-signature of the consensus.
+	 */
+	static final class Signature
+	{
+		private final Fingerprint identityKeyDigest;
+		private final Fingerprint signingKeyDigest;
+		private final byte[] signature;
+
+		private Signature(final Fingerprint identityKeyDigest, final Fingerprint signingKeyDigest, final byte[] signature)
+		{
+			this.identityKeyDigest = identityKeyDigest;
+			this.signingKeyDigest = signingKeyDigest;
+			this.signature = signature;
+		}
+
+		Fingerprint getIdentityKeyDigest()
+		{
+			return identityKeyDigest;
+		}
+
+		Fingerprint getSigningKeyDigest()
+		{
+			return signingKeyDigest;
+		}
+
+		byte[] getSignature()
+		{
+			return signature;
+		}
+	}
+
+	private final byte[] document;
+	/** start/end offsets of the tokens of the current line. */
+	private final int[] tokenStart = new int[MAX_TOKENS];
+	private final int[] tokenEnd = new int[MAX_TOKENS];
+	private int tokenCount;
+
+	private String version = "";
+	private Date validAfter;
+	private Date freshUntil;
+	private Date validUntil;
+	/** SHA-1 digest of the signed part; null if there is no signature. */
+	private byte[] signedDataDigest;
+	private final List<Signature> signatures = new ArrayList<Signature>();
+	private final List<RouterStatusDescription> routers = new ArrayList<RouterStatusDescription>(8192);
+	private final Map<String, Integer> bandwidthWeights = new HashMap<String, Integer>();
+
+	/**
+	 * Parse the document.
+	 *
+	 * @param consensusStr
+	 *            document received from directory server
+	 * @throws TorException
+	 *             if the document can not be parsed
+	 */
+	ConsensusParser(final String consensusStr) throws TorException
+	{
+		try
+		{
+			this.document = consensusStr.getBytes(Util.UTF8);
+		}
+		catch (final UnsupportedEncodingException e)
+		{
+			throw new TorException("unexpected: " + e);
+		}
+		parse();
+	}
+
+	/**
+	 * @return the value of network-status-version; empty if not found
+	 */
+	String getVersion()
+	{
+		return version;
+	}
+
+	Date getValidAfter()
+	{
+		return validAfter;
+	}
+
+	Date getFreshUntil()
+	{
+		return freshUntil;
+	}
+
+	Date getValidUntil()
+	{
+		return validUntil;
+	}
+
+	/**
+	 * @return SHA-1 digest from "network-status-version" up to and including
+	 *         the space after the first "directory-signature"; null if there
+	 *         is no signature
+	 */
+	byte[] getSignedDataDigest()
+	{
+		return signedDataDigest;
+	}
+
+	/**
+	 * @return the SHA-1 signatures of the document
+	 */
+	List<Signature> getSignatures()
+	{
+		return signatures;
+	}
+
+	/**
+	 * @return all router entries, in the order of the document
+	 */
+	List<RouterStatusDescription> getRouters()
+	{
+		return routers;
+	}
+
+	/**
+	 * @return the values of the bandwidth-weights footer line, e.g. "Wgg"
+	 *         -&gt; 5893; empty if there is none
+	 */
+	Map<String, Integer> getBandwidthWeights()
+	{
+		return bandwidthWeights;
+	}
+
+	private void parse() throws TorException
+	{
+		final int length = document.length;
+		int signedDataStart = -1;
+		RouterStatusDescription router = null;
+		int lineStart = 0;
+		while (lineStart < length)
+		{
+			int lineEnd = lineStart;
+			while (lineEnd < length && document[lineEnd] != '\n')
+			{
+				lineEnd++;
+			}
+			tokenize(lineStart, lineEnd);
+			if (tokenCount > 0)
+			{
+				final int keywordLength = tokenEnd[0] - tokenStart[0];
+				final byte first = document[lineStart];
+				if (keywordLength == 1 && first == 'r')
+				{
+					router = parseRouterLine();
+					if (router != null)
+					{
+						routers.add(router);
+					}
+				}
+				else if (keywordLength == 1 && first == 's')
+				{
+					if (router != null)
+					{
+						router.setRouterFlags(tokenCount > 1 ? toString(tokenStart[1], lineEnd) : "");
+					}
+				}
+				else if (keywordLength == 1 && first == 'w')
+				{
+					if (router != null)
+					{
+						parseBandwidthLine(router);
+					}
+				}
+				else if (keywordLength == 1)
+				{
+					// "a", "v", "p", "m" etc. are not used
+				}
+				else if (isKeyword(KEYWORD_SIGNATURE))
+				{
+					router = null;
+					if (signedDataDigest == null && signedDataStart >= 0)
+					{
+						// the signed part ends with the space after the keyword
+						signedDataDigest = digest(signedDataStart, tokenEnd[0] + 1);
+					}
+					lineEnd = parseSignature(lineEnd);
+				}
+				else if (startsWith(lineStart, lineEnd, BEGIN_OBJECT))
+				{
+					lineEnd = skipObject(lineEnd);
+				}
+				else if (isKeyword(KEYWORD_VERSION))
+				{
+					signedDataStart = lineStart;
+					version = tokenCount > 1 ? toString(tokenStart[1], tokenEnd[1]) : "";
+				}
+				else if (isKeyword(KEYWORD_VALID_AFTER))
+				{
+					validAfter = parseTimestampTokens(1);
+				}
+				else if (isKeyword(KEYWORD_FRESH_UNTIL))
+				{
+					freshUntil = parseTimestampTokens(1);
+				}
+				else if (isKeyword(KEYWORD_VALID_UNTIL))
+				{
+					validUntil = parseTimestampTokens(1);
+				}
+				else if (isKeyword(KEYWORD_FOOTER))
+				{
+					router = null;
+				}
+				else if (isKeyword(KEYWORD_BANDWIDTH_WEIGHTS))
+				{
+					parseBandwidthWeightsLine();
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	/**
+	 * "r" nickname identity digest publication(date time) IP ORPort DirPort
+	 *
+	 * @return the new router; null if the line is invalid
+	 */
+	private RouterStatusDescription parseRouterLine()
+	{
+		if (tokenCount < 9)
+		{
+			logger.debug("skip invalid router line at offset {}", tokenStart[0]);
+			return null;
+		}
+		final byte[] identity = decodeBase64(tokenStart[2], tokenEnd[2]);
+		final byte[] digest = decodeBase64(tokenStart[3], tokenEnd[3]);
+		final long publication = parseTimestamp(4);
+		final int orPort = parseInt(tokenStart[7], tokenEnd[7]);
+		final int dirPort = parseInt(tokenStart[8], tokenEnd[8]);
+		if (identity == null || digest == null || publication < 0 || orPort < 0 || dirPort < 0)
+		{
+			logger.debug("skip invalid router line at offset {}", tokenStart[0]);
+			return null;
+		}
+		final RouterStatusDescription result = new RouterStatusDescription();
+		result.setNickname(toString(tokenStart[1], tokenEnd[1]));
+		result.setFingerprint(identity);
+		result.setDigestDescriptor(digest);
+		result.setLastPublication(publication);
+		result.setIp(toString(tokenStart[6], tokenEnd[6]));
+		result.setOrPort(orPort);
+		result.setDirPort(dirPort);
+		return result;
+	}
+
+	/**
+	 * "w" Bandwidth=n [Measured=n] [Unmeasured=1]
+	 */
+	private void parseBandwidthLine(final RouterStatusDescription router)
+	{
+		for (int i = 1; i < tokenCount; i++)
+		{
+			final int length = KEYWORD_BANDWIDTH.length;
+			if (tokenEnd[i] - tokenStart[i] > length && regionMatches(tokenStart[i], KEYWORD_BANDWIDTH))
+			{
+				final int bandwidth = parseInt(tokenStart[i] + length, tokenEnd[i]);
+				if (bandwidth >= 0)
+				{
+					router.setBandwidth(bandwidth);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * "bandwidth-weights" [Wxx=n]...
+	 */
+	private void parseBandwidthWeightsLine()
+	{
+		for (int i = 1; i < tokenCount; i++)
+		{
+			int separator = tokenStart[i];
+			while (separator < tokenEnd[i] && document[separator] != '=')
+			{
+				separator++;
+			}
+			final int value = parseInt(separator + 1, tokenEnd[i]);
+			if (separator > tokenStart[i] && value >= 0)
+			{
+				bandwidthWeights.put(toString(tokenStart[i], separator), value);
+			}
+			else
+			{
+				logger.debug("skip invalid bandwidth weight at offset {}", tokenStart[i]);
+			}
+		}
+	}
+
+	/**
+	 * "directory-signature" [algorithm] identity signing-key-digest, followed
+	 * by the signature object.
+	 *
+	 * @param lineEnd
+	 *            end of the directory-signature line
+	 * @return end of the last line of the signature object
+	 */
+	private int parseSignature(final int lineEnd)
+	{
+		int identityIndex = 1;
+		boolean sha1 = true;
+		if (tokenCount == 4)
+		{
+			sha1 = tokenEnd[1] - tokenStart[1] == ALGORITHM_SHA1.length && regionMatches(tokenStart[1], ALGORITHM_SHA1);
+			identityIndex = 2;
+		}
+		else if (tokenCount != 3)
+		{
+			logger.debug("skip invalid directory-signature line at offset {}", tokenStart[0]);
+			return lineEnd;
+		}
+		final byte[] identityKeyDigest = decodeHex(tokenStart[identityIndex], tokenEnd[identityIndex]);
+		final byte[] signingKeyDigest = decodeHex(tokenStart[identityIndex + 1], tokenEnd[identityIndex + 1]);
+
+		// read the object
+		final int length = document.length;
+		int lineStart = lineEnd + 1;
+		if (lineStart >= length || !startsWith(lineStart, length, BEGIN_OBJECT))
+		{
+			return lineEnd;
+		}
+		final int objectStart = lineStart;
+		final byte[] base64 = new byte[1024];
+		int base64Length = 0;
+		int end = lineEnd;
+		while (lineStart < length)
+		{
+			end = lineStart;
+			while (end < length && document[end] != '\n')
+			{
+				end++;
+			}
+			if (startsWith(lineStart, end, END_OBJECT))
+			{
+				break;
+			}
+			if (lineStart != objectStart)
+			{
+				for (int i = lineStart; i < end && base64Length < base64.length; i++)
+				{
+					if (document[i] > ' ')
+					{
+						base64[base64Length++] = document[i];
+					}
+				}
+			}
+			lineStart = end + 1;
+		}
+		if (!sha1)
+		{
+			// only SHA-1 signatures are checked
+			return end;
+		}
+		final byte[] signature = decodeBase64(base64, 0, base64Length);
+		if (identityKeyDigest == null || signingKeyDigest == null || signature == null)
+		{
+			logger.debug("skip invalid directory-signature at offset {}", objectStart);
+			return end;
+		}
+		signatures.add(new Signature(new FingerprintImpl(identityKeyDigest), new FingerprintImpl(signingKeyDigest), signature));
+		return end;
+	}
+
+	/**
+	 * @return end of the END line of the object which starts at the next line
+	 */
+	private int skipObject(final int lineEnd)
+	{
+		final int length = document.length;
+		int lineStart = lineEnd + 1;
+		while (lineStart < length)
+		{
+			int end = lineStart;
+			while (end < length && document[end] != '\n')
+			{
+				end++;
+			}
+			if (startsWith(lineStart, end, END_OBJECT))
+			{
+				return end;
+			}
+			lineStart = end + 1;
+		}
+		return length;
+	}
+
+	// /////////////////////////////////////////////////////
+	// tokens
+	// /////////////////////////////////////////////////////
+
+	private void tokenize(final int lineStart, final int lineEnd)
+	{
+		tokenCount = 0;
+		int i = lineStart;
+		while (i < lineEnd && tokenCount < MAX_TOKENS)
+		{
+			while (i < lineEnd && (document[i] == ' ' || document[i] == '\t' || document[i] == '\r'))
+			{
+				i++;
+			}
+			if (i >= lineEnd)
+			{
+				break;
+			}
+			tokenStart[tokenCount] = i;
+			while (i < lineEnd && document[i] != ' ' && document[i] != '\t' && document[i] != '\r')
+			{
+				i++;
+			}
+			tokenEnd[tokenCount] = i;
+			tokenCount++;
+		}
+	}
+
+	private boolean isKeyword(final byte[] keyword)
+	{
+		return tokenEnd[0] - tokenStart[0] == keyword.length && regionMatches(tokenStart[0], keyword);
+	}
+
+	private boolean startsWith(final int start, final int end, final byte[] prefix)
+	{
+		return end - start >= prefix.length && regionMatches(start, prefix);
+	}
+
+	private boolean regionMatches(final int offset, final byte[] expected)
+	{
+		for (int i = 0; i < expected.length; i++)
+		{
+			if (document[offset + i] != expected[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String toString(final int start, final int end)
+	{
+		try
+		{
+			return new String(document, start, end - start, "ISO-8859-1");
+		}
+		catch (final UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the value; -1 if not a valid non-negative number
+	 */
+	private int parseInt(final int start, final int end)
+	{
+		if (start >= end || end - start > 9)
+		{
+			return -1;
+		}
+		int result = 0;
+		for (int i = start; i < end; i++)
+		{
+			final int digit = document[i] - '0';
+			if (digit < 0 || digit > 9)
+			{
+				return -1;
+			}
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the timestamp of the tokens dateIndex and dateIndex+1; null if invalid
+	 */
+	private Date parseTimestampTokens(final int dateIndex)
+	{
+		final long result = tokenCount > dateIndex + 1 ? parseTimestamp(dateIndex) : -1;
+		return result < 0 ? null : new Date(result);
+	}
+
+	/**
+	 * Parse "yyyy-MM-dd" "HH:mm:ss" as UTC.
+	 *
+	 * @return milliseconds since 1970; -1 if invalid
+	 */
+	private long parseTimestamp(final int dateIndex)
+	{
+		final int date = tokenStart[dateIndex];
+		final int time = tokenStart[dateIndex + 1];
+		if (tokenEnd[dateIndex] - date != 10 || tokenEnd[dateIndex + 1] - time != 8)
+		{
+			return -1;
+		}
+		final int year = parseInt(date, date + 4);
+		final int month = parseInt(date + 5, date + 7);
+		final int day = parseInt(date + 8, date + 10);
+		final int hour = parseInt(time, time + 2);
+		final int minute = parseInt(time + 3, time + 5);
+		final int second = parseInt(time + 6, time + 8);
+		if (year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59
+				|| second < 0 || second > 60)
+		{
+			return -1;
+		}
+		// days since 1970-01-01 of the proleptic Gregorian calendar
+		final int y = month <= 2 ? year - 1 : year;
+		final int era = y / 400;
+		final int yearOfEra = y - era * 400;
+		final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		final long days = era * 146097L + dayOfEra - 719468L;
+		return ((days * 24L + hour) * 60L + minute) * 60000L + second * 1000L;
+	}
+
+	private byte[] decodeBase64(final int start, final int end)
+	{
+		return decodeBase64(document, start, end);
+	}
+
+	/**
+	 * Decode base64 with or without padding.
+	 *
+	 * @return the decoded bytes; null if invalid
+	 */
+	private static byte[] decodeBase64(final byte[] data, final int start, final int end)
+	{
+		int last = end;
+		while (last > start && data[last - 1] == '=')
+		{
+			last--;
+		}
+		final int chars = last - start;
+		if (chars % 4 == 1)
+		{
+			return null;
+		}
+		final byte[] result = new byte[chars * 3 / 4];
+		int buffer = 0;
+		int bits = 0;
+		int pos = 0;
+		for (int i = start; i < last; i++)
+		{
+			final int c = data[i];
+			final int value = c >= 0 && c < 128 ? BASE64_VALUES[c] : -1;
+			if (value < 0)
+			{
+				return null;
+			}
+			buffer = (buffer << 6) | value;
+			bits += 6;
+			if (bits >= 8)
+			{
+				bits -= 8;
+				result[pos++] = (byte) (buffer >> bits);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the decoded bytes; null if invalid
+	 */
+	private byte[] decodeHex(final int start, final int end)
+	{
+		if ((end - start) % 2 != 0)
+		{
+			return null;
+		}
+		final byte[] result = new byte[(end - start) / 2];
+		for (int i = 0; i < result.length; i++)
+		{
+			final int high = Character.digit(document[start + 2 * i], 16);
+			final int low = Character.digit(document[start + 2 * i + 1], 16);
+			if (high < 0 || low < 0)
+			{
+				return null;
+			}
+			result[i] = (byte) ((high << 4) | low);
+		}
+		return result;
+	}
+
+	private byte[] digest(final int start, final int end)
+	{
+		try
+		{
+			final MessageDigest messageDigest = MessageDigest.getInstance(Encryption.DIGEST_ALGORITHM);
+			messageDigest.update(document, start, end - start);
+			return messageDigest.digest();
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] ascii(final String s)
+	{
+		final byte[] result = new byte[s.length()];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = (byte) s.charAt(i);
+		}
+		return result;
+	}
+}
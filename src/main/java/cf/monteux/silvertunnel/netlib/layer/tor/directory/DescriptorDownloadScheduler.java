@@ -0,0 +1,426 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cf.monteux.silvertunnel.netlib.api.NetLayer;
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Downloads router descriptors by digest from several directory mirrors in
+ * parallel.
+ *
+ * The missing descriptors are split into batches of at most
+ * {@link DescriptorFetcher#MAXIMUM_ALLOWED_DIGESTS}. Each batch is fetched from
+ * the mirror with the fewest running downloads and the best measured
+ * throughput; up to {@link #MAX_PIPELINED_BATCHES} waiting batches are sent to
+ * the same mirror as pipelined requests. Descriptors which were not delivered
+ * (failed or incomplete answer) are queued again and fetched from another
+ * mirror. Every answer is handed to the {@link BatchHandler} as soon as it
+ * arrives.
+ *
+ * @author Tobias Boese
+ */
+final class DescriptorDownloadScheduler
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(DescriptorDownloadScheduler.class);
+
+	/** maximum number of parallel downloads. */
+	private static final int MAX_PARALLEL_DOWNLOADS = 4;
+	/** a descriptor is requested at most this often. */
+	private static final int MAX_ATTEMPTS_PER_DESCRIPTOR = 3;
+	/** a mirror is not used anymore after this number of failures. */
+	private static final int MAX_FAILURES_PER_MIRROR = 2;
+	/** maximum number of batches requested from a mirror at once. */
+	private static final int MAX_PIPELINED_BATCHES = 3;
+
+	/**
+	 * Processes the descriptors of one answer.
+	 */
+	interface BatchHandler
+	{
+		/**
+		 * @param descriptors
+		 *            the router descriptors as received from the mirror
+		 * @return the parsed routers
+		 */
+		Map<Fingerprint, Router> descriptorsReceived(String descriptors);
+	}
+
+	/**
+	 * Descriptors to download with one request.
+	 */
+	private static final class Batch
+	{
+		/** key=fingerprint of the router, value=digest of the descriptor in hex. */
+		private final Map<Fingerprint, String> digests;
+		/** number of previous attempts. */
+		private final int attempts;
+		/** mirrors which failed to deliver (parts of) this batch. */
+		private final Set<Mirror> triedMirrors;
+
+		Batch(final Map<Fingerprint, String> digests, final int attempts, final Set<Mirror> triedMirrors)
+		{
+			this.digests = digests;
+			this.attempts = attempts;
+			this.triedMirrors = triedMirrors;
+		}
+	}
+
+	/**
+	 * A directory mirror with its statistics.
+	 */
+	private static final class Mirror
+	{
+		private final Router router;
+		/** number of downloads running right now. */
+		private int activeDownloads;
+		/** number of failed downloads. */
+		private int failures;
+		/** received bytes (chars) of all successful downloads. */
+		private long bytes;
+		/** duration of all successful downloads. */
+		private long millis;
+
+		Mirror(final Router router)
+		{
+			this.router = router;
+		}
+
+		/**
+		 * @return measured throughput in bytes per ms; unknown mirrors get the best value to be tried out
+		 */
+		double getThroughput()
+		{
+			return millis == 0 ? Double.MAX_VALUE : (double) bytes / millis;
+		}
+
+		@Override
+		public String toString()
+		{
+			return router.getNickname() + "(failures=" + failures + ",bytes=" + bytes + ",millis=" + millis + ")";
+		}
+	}
+
+	private final List<Mirror> mirrors = new ArrayList<Mirror>();
+	private final NetLayer dirConnectionNetLayer;
+	private final BatchHandler handler;
+
+	/** batches waiting for a download. */
+	private final LinkedBlockingQueue<Batch> pendingBatches = new LinkedBlockingQueue<Batch>();
+	/** number of batches which are pending or being downloaded. */
+	private final AtomicInteger openBatches = new AtomicInteger();
+	/** number of received descriptors. */
+	private final AtomicInteger loadedDescriptors = new AtomicInteger();
+
+	/**
+	 * @param mirrors
+	 *            the directory servers which may be used
+	 * @param dirConnectionNetLayer
+	 *            used to connect to the mirrors
+	 * @param handler
+	 *            processes the answers
+	 */
+	DescriptorDownloadScheduler(final Collection<Router> mirrors,
+	                            final NetLayer dirConnectionNetLayer,
+	                            final BatchHandler handler)
+	{
+		for (final Router router : mirrors)
+		{
+			if (router.getDirPort() > 0)
+			{
+				this.mirrors.add(new Mirror(router));
+			}
+		}
+		// mirrors without statistics are tried in random order
+		Collections.shuffle(this.mirrors);
+		this.dirConnectionNetLayer = dirConnectionNetLayer;
+		this.handler = handler;
+	}
+
+	/**
+	 * Download the given descriptors; blocks until all are loaded, no mirror
+	 * is left or the timeout is reached.
+	 *
+	 * @param digests
+	 *            key=fingerprint of the router, value=digest of the descriptor in hex
+	 * @param timeoutMillis
+	 *            overall timeout
+	 * @return number of received descriptors
+	 */
+	int download(final Map<Fingerprint, String> digests, final long timeoutMillis)
+	{
+		if (digests.isEmpty() || mirrors.isEmpty())
+		{
+			return 0;
+		}
+		final long start = System.currentTimeMillis();
+		final long deadline = start + timeoutMillis;
+		Map<Fingerprint, String> current = new LinkedHashMap<Fingerprint, String>();
+		for (final Map.Entry<Fingerprint, String> entry : digests.entrySet())
+		{
+			current.put(entry.getKey(), entry.getValue());
+			if (current.size() == DescriptorFetcher.MAXIMUM_ALLOWED_DIGESTS)
+			{
+				queue(new Batch(current, 0, new HashSet<Mirror>()));
+				current = new LinkedHashMap<Fingerprint, String>();
+			}
+		}
+		if (!current.isEmpty())
+		{
+			queue(new Batch(current, 0, new HashSet<Mirror>()));
+		}
+
+		final int numberOfWorkers = Math.min(MAX_PARALLEL_DOWNLOADS, Math.min(mirrors.size(), openBatches.get()));
+		final ExecutorService executor = Executors.newFixedThreadPool(numberOfWorkers);
+		try
+		{
+			for (int i = 0; i < numberOfWorkers; i++)
+			{
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						work(deadline);
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (final InterruptedException e)
+		{
+			logger.debug("interrupted while waiting for descriptor downloads");
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		if (logger.isDebugEnabled())
+		{
+			synchronized (mirrors)
+			{
+				logger.debug("loaded {} of {} descriptors in {} ms from mirrors {}",
+				             new Object[] {loadedDescriptors.get(), digests.size(), System.currentTimeMillis() - start, mirrors});
+			}
+		}
+		return loadedDescriptors.get();
+	}
+
+	private void queue(final Batch batch)
+	{
+		openBatches.incrementAndGet();
+		pendingBatches.add(batch);
+	}
+
+	/**
+	 * Download batches until there is nothing left to do.
+	 */
+	private void work(final long deadline)
+	{
+		try
+		{
+			while (openBatches.get() > 0 && System.currentTimeMillis() < deadline)
+			{
+				final Batch batch = pendingBatches.poll(100, TimeUnit.MILLISECONDS);
+				if (batch == null)
+				{
+					// other workers are still downloading; their batches might come back
+					continue;
+				}
+				process(batch);
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			logger.debug("descriptor download worker interrupted");
+		}
+	}
+
+	/**
+	 * Download one batch (and further waiting batches for the same mirror) and
+	 * queue the descriptors which were not delivered.
+	 */
+	private void process(final Batch firstBatch)
+	{
+		final List<Batch> batches = new ArrayList<Batch>(MAX_PIPELINED_BATCHES);
+		batches.add(firstBatch);
+		try
+		{
+			final Mirror mirror = chooseMirror(firstBatch);
+			if (mirror == null)
+			{
+				logger.debug("no mirror left for {} descriptors", firstBatch.digests.size());
+				return;
+			}
+			long receivedBytes = 0;
+			long duration = 0;
+			boolean anythingReceived = false;
+			try
+			{
+				addWaitingBatches(batches, mirror);
+				final List<List<String>> digests = new ArrayList<List<String>>(batches.size());
+				for (final Batch batch : batches)
+				{
+					digests.add(new ArrayList<String>(batch.digests.values()));
+				}
+				final long start = System.currentTimeMillis();
+				final List<String> answers = DescriptorFetcher.downloadDescriptorBatchesByDigest(digests,
+				                                                                                 mirror.router,
+				                                                                                 dirConnectionNetLayer);
+				duration = System.currentTimeMillis() - start;
+				for (int i = 0; i < batches.size(); i++)
+				{
+					final String descriptors = answers.get(i);
+					if (descriptors != null)
+					{
+						receivedBytes += descriptors.length();
+					}
+					anythingReceived |= handleAnswer(batches.get(i), mirror, descriptors);
+				}
+			}
+			finally
+			{
+				// also after an unexpected exception, otherwise the mirror stays busy
+				synchronized (mirrors)
+				{
+					mirror.activeDownloads--;
+					if (!anythingReceived)
+					{
+						mirror.failures++;
+					}
+					else
+					{
+						mirror.bytes += receivedBytes;
+						mirror.millis += Math.max(1, duration);
+					}
+				}
+			}
+		}
+		finally
+		{
+			openBatches.addAndGet(-batches.size());
+		}
+	}
+
+	/**
+	 * Take further waiting batches which can be requested from the mirror.
+	 */
+	private void addWaitingBatches(final List<Batch> batches, final Mirror mirror)
+	{
+		final List<Batch> otherBatches = new ArrayList<Batch>();
+		while (batches.size() < MAX_PIPELINED_BATCHES)
+		{
+			final Batch batch = pendingBatches.poll();
+			if (batch == null)
+			{
+				break;
+			}
+			if (batch.triedMirrors.contains(mirror))
+			{
+				otherBatches.add(batch);
+			}
+			else
+			{
+				batches.add(batch);
+			}
+		}
+		pendingBatches.addAll(otherBatches);
+	}
+
+	/**
+	 * Parse one answer and queue the descriptors which were not delivered.
+	 * 
+	 * @return true if at least one descriptor was received
+	 */
+	private boolean handleAnswer(final Batch batch, final Mirror mirror, final String descriptors)
+	{
+		Map<Fingerprint, Router> parsed = null;
+		if (descriptors != null)
+		{
+			parsed = handler.descriptorsReceived(descriptors);
+		}
+		final Map<Fingerprint, String> missing = new LinkedHashMap<Fingerprint, String>();
+		for (final Map.Entry<Fingerprint, String> entry : batch.digests.entrySet())
+		{
+			if (parsed == null || !parsed.containsKey(entry.getKey()))
+			{
+				missing.put(entry.getKey(), entry.getValue());
+			}
+		}
+		loadedDescriptors.addAndGet(batch.digests.size() - missing.size());
+
+		if (!missing.isEmpty() && batch.attempts + 1 < MAX_ATTEMPTS_PER_DESCRIPTOR)
+		{
+			// resume with the missing descriptors on another mirror
+			final Set<Mirror> triedMirrors = new HashSet<Mirror>(batch.triedMirrors);
+			triedMirrors.add(mirror);
+			queue(new Batch(missing, batch.attempts + 1, triedMirrors));
+		}
+		return missing.size() < batch.digests.size();
+	}
+
+	/**
+	 * @return the mirror for the batch (already counted as active); null if none is usable
+	 */
+	private Mirror chooseMirror(final Batch batch)
+	{
+		synchronized (mirrors)
+		{
+			Mirror best = null;
+			for (final Mirror mirror : mirrors)
+			{
+				if (mirror.failures >= MAX_FAILURES_PER_MIRROR || batch.triedMirrors.contains(mirror))
+				{
+					continue;
+				}
+				if (best == null
+						|| mirror.activeDownloads < best.activeDownloads
+						|| (mirror.activeDownloads == best.activeDownloads && mirror.getThroughput() > best.getThroughput()))
+				{
+					best = mirror;
+				}
+			}
+			if (best != null)
+			{
+				best.activeDownloads++;
+			}
+			return best;
+		}
+	}
+}
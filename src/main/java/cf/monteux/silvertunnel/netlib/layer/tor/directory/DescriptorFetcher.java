@@ -17,6 +17,8 @@
  */
 package cf.monteux.silvertunnel.netlib.layer.tor.directory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import cf.monteux.silvertunnel.netlib.api.NetLayer;
@@ -26,8 +28,6 @@ import cf.monteux.silvertunnel.netlib.tool.SimpleHttpClientCompressed;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-//TODO : modify DescriptorFetcher to download the and split (and process) the descriptors during download
-
 /**
  * Descriptor-Fetcher Class. 
  * Implements the different ways of fetching the server descriptors.
@@ -52,6 +52,35 @@ public final class DescriptorFetcher
 	public static String downloadDescriptorsByDigest(final List<String> nodesDigestsToLoad,
 	                                                 final RouterStatusDescription directoryServer,
 	                                                 final NetLayer dirConnectionNetLayer)
+	{
+		return downloadDescriptorsByDigest(nodesDigestsToLoad,
+		                                   new TcpipNetAddress(directoryServer.getIp(), directoryServer.getDirPort()),
+		                                   directoryServer.getNickname(),
+		                                   dirConnectionNetLayer);
+	}
+
+	/**
+	 * Download the descriptors for the given digests.
+	 * 
+	 * @param nodesDigestsToLoad the digests of the router descriptor in hex-notation (as list)
+	 * @param directoryServer which server should be used for fetching the descriptor(s)
+	 * @param dirConnectionNetLayer which {@link NetLayer} should be used for communication
+	 * @return the descriptors as single String; null in the case of an error
+	 */
+	public static String downloadDescriptorsByDigest(final List<String> nodesDigestsToLoad,
+	                                                 final Router directoryServer,
+	                                                 final NetLayer dirConnectionNetLayer)
+	{
+		return downloadDescriptorsByDigest(nodesDigestsToLoad,
+		                                   directoryServer.getDirAddress(),
+		                                   directoryServer.getNickname(),
+		                                   dirConnectionNetLayer);
+	}
+
+	private static String downloadDescriptorsByDigest(final List<String> nodesDigestsToLoad,
+	                                                  final TcpipNetAddress hostAndPort,
+	                                                  final String nickname,
+	                                                  final NetLayer dirConnectionNetLayer)
 	{
 		if (nodesDigestsToLoad == null || nodesDigestsToLoad.isEmpty())
 		{
@@ -73,7 +102,6 @@ public final class DescriptorFetcher
 		try
 		{
 			final String path = "/tor/server/d/" + builder.substring(0, builder.length() - 1);
-			final TcpipNetAddress hostAndPort = new TcpipNetAddress(directoryServer.getIp(), directoryServer.getDirPort());
 
 			final String httpResponse = SimpleHttpClientCompressed.getInstance().get(dirConnectionNetLayer, hostAndPort, path);
 			return httpResponse;
@@ -83,14 +111,58 @@ public final class DescriptorFetcher
 		{
 			if (logger.isDebugEnabled())
 			{
-				logger.debug("downloadSingleDescriptor() from "
-					+ directoryServer.getNickname() + " failed: "
+				logger.debug("downloadDescriptorsByDigest() from "
+					+ nickname + " failed: "
 					+ e.getMessage(), e);
 			}
 			return null;
 		}
 	}
 
+	/**
+	 * Download several batches of descriptors from one directory server. The
+	 * requests are pipelined over one connection if the server supports it.
+	 * 
+	 * @param batches the digests of the router descriptors in hex-notation, per request
+	 * @param directoryServer which server should be used for fetching the descriptors
+	 * @param dirConnectionNetLayer which {@link NetLayer} should be used for communication
+	 * @return the descriptors of each batch as single String (in the order of the batches);
+	 *         null for a failed batch
+	 */
+	public static List<String> downloadDescriptorBatchesByDigest(final List<List<String>> batches,
+	                                                             final Router directoryServer,
+	                                                             final NetLayer dirConnectionNetLayer)
+	{
+		final List<String> paths = new ArrayList<String>(batches.size());
+		for (final List<String> batch : batches)
+		{
+			if (batch.isEmpty() || batch.size() > MAXIMUM_ALLOWED_DIGESTS)
+			{
+				throw new IllegalArgumentException("between 1 and " + MAXIMUM_ALLOWED_DIGESTS + " digests can be downloaded at once");
+			}
+			final StringBuilder builder = new StringBuilder("/tor/server/d/");
+			for (final String digest : batch)
+			{
+				builder.append(digest).append('+');
+			}
+			paths.add(builder.substring(0, builder.length() - 1));
+		}
+		try
+		{
+			return SimpleHttpClientCompressed.getInstance().getAll(dirConnectionNetLayer, directoryServer.getDirAddress(), paths);
+		}
+		catch (final Exception e)
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("downloadDescriptorBatchesByDigest() from "
+					+ directoryServer.getNickname() + " failed: "
+					+ e.getMessage(), e);
+			}
+			return Collections.<String> nCopies(batches.size(), null);
+		}
+	}
+
 	/**
 	 * Download all descriptors.
 	 * 
@@ -52,6 +52,7 @@
 
 package cf.monteux.silvertunnel.netlib.layer.tor.directory;
 
+import cf.monteux.silvertunnel.netlib.tool.HttpContentDecoder;
 import cf.monteux.silvertunnel.netlib.tool.SimpleHttpClientCompressed;
 import cf.monteux.silvertunnel.netlib.tool.ConvenientStreamReader;
 import cf.monteux.silvertunnel.netlib.tool.ConvenientStreamWriter;
@@ -69,9 +70,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -143,25 +144,13 @@ public final class Directory
 	private DirectoryConsensus directoryConsensus;
     /** List of Guards. */
     private GuardList guardList;
-	/** cache: number of running routers in the consensus. */
-	private int numOfRunningRoutersInDirectoryConsensus = 0;
 	/**
-	 * cache of a combination of fingerprintsRouters+directoryConsensus: valid
-	 * routers + status.
+	 * combination of fingerprintsRouters+directoryConsensus: valid routers +
+	 * status, exit port index, neighbours and running count.
 	 * 
-	 * key=identity key
+	 * Replaced as a whole after each consensus; readers never lock.
 	 */
-	private Map<Fingerprint, Router> validRoutersByFingerprint = new HashMap<Fingerprint, Router>();
-	/**
-	 * Map that has class C address as key, and a HashSet with fingerprints of
-	 * Nodes that have IP-Address of that class.
-	 */
-	private final Map<String, HashSet<Fingerprint>> addressNeighbours;
-	/**
-	 * HashMap where keys are CountryCodes, and values are HashSets with
-	 * fingerprints of Nodes having an IP-address in the specific country.
-	 */
-	private final Map<String, HashSet<Fingerprint>> countryNeighbours;
+	private volatile RouterSnapshot routerSnapshot = RouterSnapshot.EMPTY;
 	/** HashSet excluded by config nodes. */
 	private final HashSet<Fingerprint> excludedNodesByConfig;
 	/** SecureRandom generator. */
@@ -176,6 +165,8 @@ public final class Directory
 	private static final long ONE_DAY_IN_MS = 1L * 24L * 60L * 60L * 1000L;
 
 	private static final Pattern IPCLASSC_PATTERN = Parsing.compileRegexPattern("(.*)\\.");
+	/** flags matching every router. */
+	private static final RouterFlags NO_FLAGS = new RouterFlags();
 
     /**
      * Get the list of Guards.
@@ -206,55 +197,23 @@ public final class Directory
 		this.lowerDirConnectionNetLayer = new ControlNetLayer(lowerDirConnectionNetLayer, cp);
 
 		// rest
-		addressNeighbours = new HashMap<String, HashSet<Fingerprint>>();
-		countryNeighbours = new HashMap<String, HashSet<Fingerprint>>();
 		rnd = new SecureRandom();
 		excludedNodesByConfig = new HashSet<Fingerprint>(TorConfig.getAvoidedNodeFingerprints());
         guardList = new GuardList(this);
 	}
 
-	/**
-	 * Add s to addressNeighbours and countryNeighbours.
-	 * 
-	 * @param r
-	 */
-	private void addToNeighbours(final Router r)
-	{
-		HashSet<Fingerprint> neighbours;
-		final String ipClassCString = Parsing.parseStringByRE(r.getAddress().getHostAddress(), IPCLASSC_PATTERN, "");
-
-		// add it to the addressNeighbours
-		neighbours = addressNeighbours.get(ipClassCString);
-		if (neighbours == null)
-		{
-			// first entry for this ipClassCString
-			neighbours = new HashSet<Fingerprint>();
-			addressNeighbours.put(ipClassCString, neighbours);
-		}
-		neighbours.add(r.getFingerprint());
-
-		// add it to the country neighbors
-		neighbours = countryNeighbours.get(r.getCountryCode());
-		if (neighbours == null)
-		{
-			// first entry for this s.countryCode
-			neighbours = new HashSet<Fingerprint>();
-			countryNeighbours.put(r.getCountryCode(), neighbours);
-		}
-		neighbours.add(r.getFingerprint());
-	}
-
 	/**
 	 * 
 	 * @return true if directory was loaded and enough routers are available
 	 */
 	public boolean isDirectoryReady()
 	{
-		if (numOfRunningRoutersInDirectoryConsensus > 0)
+		final RouterSnapshot snapshot = routerSnapshot;
+		if (snapshot.getNumOfRunningRoutersInConsensus() > 0)
 		{
-			final long minDescriptors = Math.max(Math.round(TorConfig.getMinDescriptorsPercentage() * numOfRunningRoutersInDirectoryConsensus),
+			final long minDescriptors = Math.max(Math.round(TorConfig.getMinDescriptorsPercentage() * snapshot.getNumOfRunningRoutersInConsensus()),
 													TorConfig.getMinDescriptors());
-			return validRoutersByFingerprint.size() > Math.max(minDescriptors, TorConfig.getRouteMinLength());
+			return snapshot.getRouters().size() > Math.max(minDescriptors, TorConfig.getRouteMinLength());
 		}
 		else
 		{
@@ -465,6 +424,13 @@ public final class Directory
 						{
 							// result is acceptable
 							logger.debug("use new consensus");
+							if (logger.isDebugEnabled())
+							{
+								logger.debug("directory transfers: received bytes={}, decoded bytes={}, saved by compression={}",
+								             HttpContentDecoder.getReceivedBytes(),
+								             HttpContentDecoder.getDecodedBytes(),
+								             HttpContentDecoder.getBytesSaved());
+							}
 							// save the directoryConsensus for later
 							// Tor-startups
 							stringStorage.put(STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT, newDirectoryConsensusStr);
@@ -509,45 +475,56 @@ public final class Directory
 			// update router details
 			fetchDescriptors(allFingerprintsRouters, directoryConsensus);
 
-			// merge directoryConsensus&fingerprintsRouters ->
-			// validRoutersBy[Fingerprint|Name]
+			// merge directoryConsensus&fingerprintsRouters -> new snapshot;
+			// routers with unchanged status are taken over, changed ones are copied
+			// (the published Router objects are never modified)
 			final Map<Fingerprint, Router> newValidRoutersByfingerprint = new HashMap<Fingerprint, Router>();
-			final Map<Fingerprint, Router> newExitnodeRouters = new HashMap<Fingerprint, Router>();
-			final Map<Fingerprint, Router> newFastRouters = new HashMap<Fingerprint, Router>();
-			final Map<Fingerprint, Router> newGuardRouters = new HashMap<Fingerprint, Router>();
-			final Map<Fingerprint, Router> newStableRouters = new HashMap<Fingerprint, Router>();
-			final Map<Fingerprint, Router> newStableAndFastRouters = new HashMap<Fingerprint, Router>();
+			final Map<String, Set<Fingerprint>> newAddressNeighbours = new HashMap<String, Set<Fingerprint>>();
+			final Map<String, Set<Fingerprint>> newCountryNeighbours = new HashMap<String, Set<Fingerprint>>();
 			int newNumOfRunningRoutersInDirectoryConsensus = 0;
+			int changedRouters = 0;
+			int exitRouters = 0;
+			int fastRouters = 0;
+			int guardRouters = 0;
+			int stableRouters = 0;
+			int stableAndFastRouters = 0;
 			for (final RouterStatusDescription networkStatusDescription : directoryConsensus.getFingerprintsNetworkStatusDescriptors().values())
 			{
 				// one server of consensus
 				final Fingerprint fingerprint = networkStatusDescription.getFingerprint();
-				final Router r = allFingerprintsRouters.get(fingerprint);
+				Router r = allFingerprintsRouters.get(fingerprint);
 				if (r != null && r.isValid())
 				{
 					// valid server with description
-					r.updateServerStatus(networkStatusDescription);
+					if (!networkStatusDescription.getRouterFlags().equals(r.getRouterFlags())
+							|| networkStatusDescription.getBandwidth() != r.getConsensusBandwidth())
+					{
+						r = r.cloneReliable();
+						r.updateServerStatus(networkStatusDescription);
+						allFingerprintsRouters.put(fingerprint, r);
+						changedRouters++;
+					}
 					newValidRoutersByfingerprint.put(fingerprint, r);
-					addToNeighbours(r);
+					RouterSnapshot.addToNeighbours(r, getIpClassC(r.getAddress().getHostAddress()), newAddressNeighbours, newCountryNeighbours);
 					if (r.isDirv2Exit() || r.isExitNode())
 					{
-						newExitnodeRouters.put(fingerprint, r);
+						exitRouters++;
 					}
 					if (r.isDirv2Fast())
 					{
-						newFastRouters.put(fingerprint, r);
+						fastRouters++;
 					}
 					if (r.isDirv2Guard())
 					{
-						newGuardRouters.put(fingerprint, r);
+						guardRouters++;
 					}
 					if (r.isDirv2Stable())
 					{
-						newStableRouters.put(fingerprint, r);
+						stableRouters++;
 					}
 					if (r.isDirv2Fast() && r.isDirv2Stable())
 					{
-						newStableAndFastRouters.put(fingerprint, r);
+						stableAndFastRouters++;
 					}
 				}
 				if (networkStatusDescription.getRouterFlags().isRunning())
@@ -555,18 +532,20 @@ public final class Directory
 					newNumOfRunningRoutersInDirectoryConsensus++;
 				}
 			}
-			validRoutersByFingerprint = newValidRoutersByfingerprint;
-			// TODO : exchange to incremental updating the list (now we have to wait until all routers are parsed)
-			numOfRunningRoutersInDirectoryConsensus = newNumOfRunningRoutersInDirectoryConsensus;
+			routerSnapshot = new RouterSnapshot(newValidRoutersByfingerprint,
+			                                    newAddressNeighbours,
+			                                    newCountryNeighbours,
+			                                    newNumOfRunningRoutersInDirectoryConsensus,
+			                                    directoryConsensus.getBandwidthWeights());
 
 			if (logger.isDebugEnabled())
 			{
-				logger.debug("updated torServers, new size=" + validRoutersByFingerprint.size());
-				logger.debug("number of exit routers : " + newExitnodeRouters.size());
-				logger.debug("number of fast routers : " + newFastRouters.size());
-				logger.debug("number of stable routers : " + newStableRouters.size());
-				logger.debug("number of stable&fast routers : " + newStableAndFastRouters.size());
-				logger.debug("number of guard routers : " + newGuardRouters.size());
+				logger.debug("updated torServers, new size=" + newValidRoutersByfingerprint.size() + ", changed status=" + changedRouters);
+				logger.debug("number of exit routers : " + exitRouters);
+				logger.debug("number of fast routers : " + fastRouters);
+				logger.debug("number of stable routers : " + stableRouters);
+				logger.debug("number of stable&fast routers : " + stableAndFastRouters);
+				logger.debug("number of guard routers : " + guardRouters);
 			}
 			// write server descriptors to local cache
 			try
@@ -575,8 +554,8 @@ public final class Directory
 				FileOutputStream fileOutputStream = new FileOutputStream(
 				                     TempfileStringStorage.getTempfileFile(DIRECTORY_CACHED_ROUTER_DESCRIPTORS));
                 ConvenientStreamWriter convenientStreamWriter = new ConvenientStreamWriter(fileOutputStream);
-                convenientStreamWriter.writeInt(validRoutersByFingerprint.size());
-				for (Router router : validRoutersByFingerprint.values())
+                convenientStreamWriter.writeInt(newValidRoutersByfingerprint.size());
+				for (Router router : newValidRoutersByfingerprint.values())
 				{
                     router.save(convenientStreamWriter);
 				}
@@ -747,6 +726,10 @@ public final class Directory
 		{
 			logger.warn("error while parsing the router descriptors in parallel", exception);
 		}
+		finally
+		{
+			executor.shutdown();
+		}
 		if (results != null && !results.isEmpty())
 		{
 			for (Future<Router> item : results)
@@ -776,10 +759,8 @@ public final class Directory
 		}
 		return result;
 	}
-	/** Minimum length of the descriptors. */
-	private static final int ALL_DESCRIPTORS_STR_MIN_LEN = 1000;
-	/** How many routers are allowed to be fetched separately? */
-	private static final int THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS = DescriptorFetcher.MAXIMUM_ALLOWED_DIGESTS;
+	/** overall timeout for loading the missing router descriptors. */
+	private static final long DESCRIPTORS_DOWNLOAD_TIMEOUT_MILLIS = 3 * TorConfig.DIR_OVERALL_TIMEOUT_MILLIS;
 
 	/**
 	 * Trigger download of missing descriptors from directory caches.
@@ -811,7 +792,6 @@ public final class Directory
 		//
 
 		// try to load from local cache
-		String allDescriptors;
 		if (fingerprintsRouters.size() == 0)
 		{
 			// try to load from local cache
@@ -854,60 +834,34 @@ public final class Directory
 			}
 		}
 
-		// load from directory server
+		// load from directory server(s): in batches, from several mirrors in parallel
 		logger.debug("load {} routers from dir server(s) - start", fingerprintsOfRoutersToLoad.size());
-		int successes = 0;
-		if (fingerprintsOfRoutersToLoad.size() <= THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS)
+		final Map<Fingerprint, RouterStatusDescription> consensusEntries = directoryConsensus.getFingerprintsNetworkStatusDescriptors();
+		final Map<Fingerprint, String> digestsToLoad = new LinkedHashMap<Fingerprint, String>();
+		for (final Fingerprint fingerprint : fingerprintsOfRoutersToLoad)
 		{
-			// load the descriptors separately
-			// TODO: implement it
-			final int attempts = fingerprintsOfRoutersToLoad.size();
-			logger.debug("loaded {} of {} missing routers from directory server(s) with multiple requests", successes, attempts);
+			digestsToLoad.put(fingerprint, consensusEntries.get(fingerprint).getDigestDescriptorAsHex());
 		}
-		else
+		final DescriptorDownloadScheduler scheduler = new DescriptorDownloadScheduler(getDirRouters(),
+		                                                                              lowerDirConnectionNetLayer,
+		                                                                              new DescriptorDownloadScheduler.BatchHandler()
 		{
-			// load all description with one request (usually done during startup)
-			final List<Router> dirRouters = new ArrayList<Router>(getDirRouters());
-			while (dirRouters.size() > 0)
+			@Override
+			public Map<Fingerprint, Router> descriptorsReceived(final String descriptors)
 			{
-				final int i = rnd.nextInt(dirRouters.size());
-				final Router directoryServer = dirRouters.get(i);
-				dirRouters.remove(i);
-				if (directoryServer.getDirPort() < 1)
-				{
-					// cannot be used as directory server
-					continue;
-				}
-				allDescriptors = DescriptorFetcher.downloadAllDescriptors(directoryServer, lowerDirConnectionNetLayer);
-
-				// split into single server descriptors
-				if (allDescriptors != null && allDescriptors.length() >= ALL_DESCRIPTORS_STR_MIN_LEN)
+				// parse each batch as soon as it arrives
+				final Map<Fingerprint, Router> parsedServers = parseRouterDescriptors(descriptors);
+				for (final Router r : parsedServers.values())
 				{
-					final Map<Fingerprint, Router> parsedServers = parseRouterDescriptors(allDescriptors);
-					int attempts = 0;
-					for (final Fingerprint fingerprint : fingerprintsOfRoutersToLoad)
+					if (fingerprintsOfRoutersToLoad.contains(r.getFingerprint()))
 					{
-						// one searched fingerprint
-						final Router r = parsedServers.get(fingerprint);
-						attempts++;
-						if (r != null)
-						{
-							// found searched descriptor
-							fingerprintsRouters.put(fingerprint, r);
-							successes++;
-						}
+						fingerprintsRouters.put(r.getFingerprint(), r);
 					}
-					if (logger.isDebugEnabled())
-					{
-						logger.debug("loaded " + successes + " of " 
-								+ attempts + " missing routers from directory server \"" 
-								+ directoryServer.getNickname()
-								+ "\" with single request");
-					}
-					break;
 				}
+				return parsedServers;
 			}
-		}
+		});
+		final int successes = scheduler.download(digestsToLoad, DESCRIPTORS_DOWNLOAD_TIMEOUT_MILLIS);
 		logger.debug("load routers from dir server(s), loaded {} routers - finished", successes);
 	}
 
@@ -991,11 +945,12 @@ public final class Directory
 	public Set<Fingerprint> excludeRelatedNodes(final Router r)
 	{
 		final HashSet<Fingerprint> excludedServerfingerprints = new HashSet<Fingerprint>();
-		HashSet<Fingerprint> myAddressNeighbours, myCountryNeighbours;
+		final RouterSnapshot snapshot = routerSnapshot;
+		Set<Fingerprint> myAddressNeighbours, myCountryNeighbours;
 
 		if (TorConfig.isRouteUniqueClassC())
 		{
-			myAddressNeighbours = getAddressNeighbours(r.getAddress().getHostAddress());
+			myAddressNeighbours = snapshot.getAddressNeighbours(getIpClassC(r.getAddress().getHostAddress()));
 			if (myAddressNeighbours != null)
 			{
 				excludedServerfingerprints.addAll(myAddressNeighbours);
@@ -1009,7 +964,7 @@ public final class Directory
 		// exclude all country insider, if desired
 		if (TorConfig.isRouteUniqueCountry())
 		{
-			myCountryNeighbours = countryNeighbours.get(r.getCountryCode());
+			myCountryNeighbours = snapshot.getCountryNeighbours(r.getCountryCode());
 			if (myCountryNeighbours != null)
 			{
 				excludedServerfingerprints.addAll(myCountryNeighbours);
@@ -1039,7 +994,7 @@ public final class Directory
 										final boolean onlyFast,
 										final boolean onlyStable)
 	{
-		Map<Fingerprint, Router> routersToChooseFrom = new HashMap<Fingerprint, Router>(torRouters);
+		final Map<Fingerprint, Router> routersToChooseFrom = torRouters;
 		Set<Fingerprint> listOfExcludedRouters = new HashSet<Fingerprint>(excludedServerFingerprints);
 		if (onlyFast)
 		{
@@ -1093,6 +1048,80 @@ public final class Directory
 		return null;
 	}
 
+	/**
+	 * Selecting a random node for a position in the circuit, weighted by its
+	 * consensus bandwidth and the bandwidth-weights of the consensus (see
+	 * path-spec). Falls back to the ranking if the consensus has no
+	 * bandwidth-weights.
+	 * 
+	 * @param torRouters
+	 *            a list of all Routers to choose from
+	 * @param excludedServerFingerprints
+	 *            a list of all Routers which should be excluded
+	 * @param position
+	 *            the position of the node in the circuit
+	 * @param rankingInfluenceIndex
+	 *            0 = select completely randomly, 1 = select by weighted
+	 *            bandwidth only
+	 * @return a {@link Router}; null if there is no suitable one
+	 */
+	public Router selectRandomNode(final Map<Fingerprint, Router> torRouters,
+										final HashSet<Fingerprint> excludedServerFingerprints,
+										final BandwidthWeights.Position position,
+										final float rankingInfluenceIndex,
+										final boolean onlyFast,
+										final boolean onlyStable)
+	{
+		final BandwidthWeights bandwidthWeights = routerSnapshot.getBandwidthWeights();
+		if (bandwidthWeights == null)
+		{
+			return selectRandomNode(torRouters, excludedServerFingerprints, rankingInfluenceIndex, onlyFast, onlyStable);
+		}
+		// collect the candidates and their weights
+		final List<Router> candidates = new ArrayList<Router>(torRouters.size());
+		final double[] weights = new double[torRouters.size()];
+		double weightSum = 0;
+		for (final Router router : torRouters.values())
+		{
+			if (!router.isDirv2Running()
+					|| (onlyFast && !router.isDirv2Fast())
+					|| (onlyStable && !router.isDirv2Stable())
+					|| excludedServerFingerprints.contains(router.getFingerprint())
+					|| excludedNodesByConfig.contains(router.getFingerprint()))
+			{
+				continue;
+			}
+			final double weight = bandwidthWeights.getWeightedBandwidth(router, position) * router.getPunishment();
+			weights[candidates.size()] = weight;
+			weightSum += weight;
+			candidates.add(router);
+		}
+		if (candidates.isEmpty())
+		{
+			return null;
+		}
+		if (weightSum <= 0)
+		{
+			// no bandwidth known: all candidates are equal
+			Arrays.fill(weights, 1);
+			weightSum = candidates.size();
+		}
+		// mix with the uniform distribution as the user prefers; the sum stays
+		// the same
+		final double uniformWeight = weightSum / candidates.size();
+		double serverRandom = rnd.nextDouble() * weightSum;
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			serverRandom -= weights[i] * rankingInfluenceIndex + uniformWeight * (1 - rankingInfluenceIndex);
+			if (serverRandom <= 0)
+			{
+				return candidates.get(i);
+			}
+		}
+		// rounding errors
+		return candidates.get(candidates.size() - 1);
+	}
+
 	/**
 	 * Find a router by the given IP address and onion port.
 	 * 
@@ -1234,14 +1263,11 @@ public final class Directory
 	}
 
 	/**
-	 * Return the set of neighbors by address of the specific IP in the dotted
-	 * notation.
+	 * Return the class C network of the specific IP in the dotted notation.
 	 */
-	private HashSet<Fingerprint> getAddressNeighbours(final String address)
+	private static String getIpClassC(final String address)
 	{
-		final String ipClassCString = Parsing.parseStringByRE(address, IPCLASSC_PATTERN, "");
-		final HashSet<Fingerprint> neighbours = addressNeighbours.get(ipClassCString);
-		return neighbours;
+		return Parsing.parseStringByRE(address, IPCLASSC_PATTERN, "");
 	}
 
 	/**
@@ -1258,7 +1284,7 @@ public final class Directory
 	{
 		if (logger.isDebugEnabled())
 		{
-			for (final Router r : validRoutersByFingerprint.values())
+			for (final Router r : routerSnapshot.getRouters().values())
 			{
 				logger.debug(r.toString());
 			}
@@ -1267,20 +1293,11 @@ public final class Directory
 
 	/**
 	 * Get Map with all Routers which are valid and not excluded by Config.
-	 * @return a Map with valid routers
+	 * @return a Map with valid routers (read-only, taken from the current snapshot)
 	 */
 	public Map<Fingerprint, Router> getValidRoutersByFingerprint()
 	{
-		HashMap<Fingerprint, Router> result = new HashMap<Fingerprint, Router>(validRoutersByFingerprint);
-		Iterator<Entry<Fingerprint, Router>>itRouter = result.entrySet().iterator();
-		while (itRouter.hasNext())
-		{
-			if (!TorConfig.isCountryAllowed(itRouter.next().getValue().getCountryCode()))
-			{
-				itRouter.remove();
-			}
-		}
-		return result;
+		return routerSnapshot.getRoutersByFlags(NO_FLAGS);
 	}
 
     /**
@@ -1293,28 +1310,33 @@ public final class Directory
     }
 	/**
 	 * Get Map with all Routers which are valid and not excluded by Config and matches the given flags.
-	 * @return a Map with valid routers
+	 * @return a Map with valid routers (read-only, taken from the current snapshot)
 	 */
 	public Map<Fingerprint, Router> getValidRoutersByFlags(final RouterFlags flags)
 	{
-		HashMap<Fingerprint, Router> result = new HashMap<Fingerprint, Router>(validRoutersByFingerprint);
-		Iterator<Entry<Fingerprint, Router>>itRouter = result.entrySet().iterator();
-		while (itRouter.hasNext())
+		final Map<Fingerprint, Router> result = routerSnapshot.getRoutersByFlags(flags);
+        logger.debug("routers found for given flags (" + flags.toString() + ") {}", result.size());
+		return result;
+	}
+
+	/**
+	 * Get all exit routers which are valid, not excluded by Config, match the given flags
+	 * and accept the given port for at least one address.
+	 * 
+	 * The exact exit policy check for the destination address still has to be done by the caller.
+	 * 
+	 * @param flags the {@link RouterFlags} the routers have to match
+	 * @param port the destination port; 0 = no port restriction
+	 * @return a Map with the candidate exit routers (read-only, taken from the current snapshot)
+	 */
+	public Map<Fingerprint, Router> getValidExitRoutersByFlags(final RouterFlags flags, final int port)
+	{
+		if (port == 0)
 		{
-			Router router = itRouter.next().getValue();
-			if (!TorConfig.isCountryAllowed(router.getCountryCode()))
-			{
-				itRouter.remove();
-			}
-			else
-			{
-				if (!router.getRouterFlags().match(flags))
-				{
-					itRouter.remove();
-				}
-			}
+			return getValidRoutersByFlags(flags);
 		}
-        logger.debug("routers found for given flags (" + flags.toString() + ") {}", result.size());
+		final Map<Fingerprint, Router> result = routerSnapshot.getExitRoutersByFlags(flags, port);
+		logger.debug("exit routers found for given flags (" + flags.toString() + ") and port " + port + " {}", result.size());
 		return result;
 	}
 
@@ -19,24 +19,20 @@
 
 package cf.monteux.silvertunnel.netlib.layer.tor.directory;
 
+import java.security.interfaces.RSAPublicKey;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.xml.bind.DatatypeConverter;
 
 import cf.monteux.silvertunnel.netlib.layer.tor.api.Fingerprint;
 import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
-import cf.monteux.silvertunnel.netlib.layer.tor.util.Encoding;
-import cf.monteux.silvertunnel.netlib.layer.tor.util.Encryption;
-import cf.monteux.silvertunnel.netlib.layer.tor.util.Parsing;
+import cf.monteux.silvertunnel.netlib.layer.tor.util.SignatureVerifier;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.TorException;
-import cf.monteux.silvertunnel.netlib.layer.tor.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -58,8 +54,8 @@ public class DirectoryConsensus
 
 	private Map<Fingerprint, RouterStatusDescription> fingerprintsNetworkStatusDescriptors = new HashMap<Fingerprint, RouterStatusDescription>();
 
-	private static final Pattern VERSION_PATTERN = Parsing.compileRegexPattern("^network-status-version (\\d+)");
-	private static final Pattern SIGNEDDATA_PATTERN = Parsing.compileRegexPattern("^(network-status-version.*?directory-signature )");
+	/** null if the consensus has no (complete) bandwidth-weights line. */
+	private BandwidthWeights bandwidthWeights;
 
 	/**
 	 * Parse a directory protocol V3 network-status consensus document.
@@ -80,17 +76,19 @@ public class DirectoryConsensus
 	                          final Date currentDate) throws TorException, ParseException
 	{
 
+		// parse the complete document in one pass
+		final ConsensusParser parser = new ConsensusParser(consensusStr);
+
 		// Check the version
-		final String version = Parsing.parseStringByRE(consensusStr, VERSION_PATTERN, "");
-		if (!version.equals("3"))
+		if (!parser.getVersion().equals("3"))
 		{
 			throw new TorException("wrong network status version");
 		}
 
-		// parse and check valid-after, fresh-until, valid-until
-		setValidAfter(Parsing.parseTimestampLine("valid-after", consensusStr));
-		setFreshUntil(Parsing.parseTimestampLine("fresh-until", consensusStr));
-		setValidUntil(Parsing.parseTimestampLine("valid-until", consensusStr));
+		// check valid-after, fresh-until, valid-until
+		setValidAfter(parser.getValidAfter());
+		setFreshUntil(parser.getFreshUntil());
+		setValidUntil(parser.getValidUntil());
 		if (logger.isDebugEnabled())
 		{
 			logger.debug("Directory.parseDirV3NetworkStatus: Consensus document validAfter="
@@ -106,73 +104,54 @@ public class DirectoryConsensus
 					+ getValidUntil() + " for currentDate=" + currentDate);
 		}
 
-		final byte[] signedData = Parsing.parseStringByRE(consensusStr,	SIGNEDDATA_PATTERN, "").getBytes();
-		logger.debug("consensus: extracted signed data (length)={}", signedData.length);
-
-		// Parse signatures
-		final Pattern pSignature = Pattern
-				.compile(
-						"^directory-signature (\\S+) (\\S+)\\s*\n-----BEGIN SIGNATURE-----\n(.*?)-----END SIGNATURE",
-						Pattern.UNIX_LINES + Pattern.MULTILINE
-								+ Pattern.CASE_INSENSITIVE + Pattern.DOTALL);
-		final Matcher mSig = pSignature.matcher(consensusStr);
-		final Set<Fingerprint> dirIdentityKeyDigestOfMatchingSignatures = new HashSet<Fingerprint>();
-		while (mSig.find())
+		// find the certificates of the signers
+		final List<byte[]> signatures = new ArrayList<byte[]>();
+		final List<AuthorityKeyCertificate> signatureCertificates = new ArrayList<AuthorityKeyCertificate>();
+		final List<RSAPublicKey> signingKeys = new ArrayList<RSAPublicKey>();
+		for (final ConsensusParser.Signature signature : parser.getSignatures())
 		{
-			final byte[] identityKeyDigest = DatatypeConverter.parseHexBinary(mSig.group(1));
-			final byte[] signingKeyDigest = DatatypeConverter.parseHexBinary(mSig.group(2));
-			String sigBase64 = mSig.group(3);
-			while (sigBase64.length() % 4 != 0)
-			{
-				sigBase64 += "="; // add missing padding
-			}
-			final byte[] signature = DatatypeConverter.parseBase64Binary(sigBase64);
 			if (logger.isDebugEnabled())
 			{
-				logger.debug("Directory.parseDirV3NetworkStatus: Extracted identityKeyDigest(hex)="
-						+ Encoding.toHexString(identityKeyDigest));
-				logger.debug("Directory.parseDirV3NetworkStatus: Extracted signingKeyDigest(hex)="
-						+ Encoding.toHexString(signingKeyDigest));
-				logger.debug("Directory.parseDirV3NetworkStatus: Found signature(base64)="
-						+ DatatypeConverter.printBase64Binary(signature));
+				logger.debug("Directory.parseDirV3NetworkStatus: Extracted identityKeyDigest="
+						+ signature.getIdentityKeyDigest() + ", signingKeyDigest=" + signature.getSigningKeyDigest());
 			}
-
-			// verify signature
 			final AuthorityKeyCertificate authorityKeyCertificate = authorityKeyCertificates
-					.getCertByFingerprints(new FingerprintImpl(identityKeyDigest), 
-					                       new FingerprintImpl(signingKeyDigest));
+					.getCertByFingerprints(signature.getIdentityKeyDigest(), signature.getSigningKeyDigest());
 			if (authorityKeyCertificate == null)
 			{
 				logger.debug("No authorityKeyCertificate found");
 				continue;
 			}
-			if (logger.isDebugEnabled())
-			{
-				logger.debug("authorityKeyCertificate signingKeyDigest(hex)="
-						+ Encoding.toHexString(authorityKeyCertificate
-								.getDirSigningKeyDigest().getBytes()));
-			}
-			if (signature.length < 1)
+			if (signature.getSignature().length < 1)
 			{
 				logger.debug("No signature found in network status");
 				continue;
 			}
-			if (!Encryption.verifySignature(signature, authorityKeyCertificate.getDirSigningKey(), signedData))
+			// remember signature for verification
+			signatures.add(signature.getSignature());
+			signatureCertificates.add(authorityKeyCertificate);
+			signingKeys.add(authorityKeyCertificate.getDirSigningKey());
+		}
+
+		// verify all signatures in parallel
+		final byte[] signedDataDigest = parser.getSignedDataDigest();
+		if (signedDataDigest == null)
+		{
+			throw new TorException("Directory signature verification failed: no signed data found");
+		}
+		final boolean[] verified = SignatureVerifier.verifySignaturesWithHash(signatures, signingKeys, signedDataDigest);
+		final Set<Fingerprint> dirIdentityKeyDigestOfMatchingSignatures = new HashSet<Fingerprint>();
+		for (int i = 0; i < verified.length; i++)
+		{
+			final Fingerprint identityKeyDigest = signatureCertificates.get(i).getDirIdentityKeyDigest();
+			if (!verified[i])
 			{
-				if (logger.isDebugEnabled())
-				{
-					logger.debug("Directory signature verification failed for identityKeyDigest(hex)="
-						+ Encoding.toHexString(identityKeyDigest));
-				}
+				logger.debug("Directory signature verification failed for identityKeyDigest={}", identityKeyDigest);
 				continue;
 			}
 			// verification successful for this signature
-			dirIdentityKeyDigestOfMatchingSignatures.add(authorityKeyCertificate.getDirIdentityKeyDigest());
-			if (logger.isDebugEnabled())
-			{
-				logger.debug("single signature verification ok for identityKeyDigest(hex)="
-					+ Encoding.toHexString(identityKeyDigest));
-			}
+			dirIdentityKeyDigestOfMatchingSignatures.add(identityKeyDigest);
+			logger.debug("single signature verification ok for identityKeyDigest={}", identityKeyDigest);
 		}
 		final int CONSENSUS_MIN_VALID_SIGNATURES = 4;
 		final int sigNum = dirIdentityKeyDigestOfMatchingSignatures.size();
@@ -184,28 +163,19 @@ public class DirectoryConsensus
 		}
 		logger.debug("signature verification accepted");
 
-		// Parse the single routers
-		final Pattern pRouter = Pattern
-				.compile("^r (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) (\\d+) (\\d+)\\s*\ns ([a-z0-9 ]+)?",
-						 Pattern.UNIX_LINES + Pattern.MULTILINE + Pattern.CASE_INSENSITIVE + Pattern.DOTALL);
-		final Matcher m = pRouter.matcher(consensusStr);
-		// Loop to extract all routers
-		while (m.find())
+		// take the running routers
+		for (final RouterStatusDescription sinfo : parser.getRouters())
 		{
-			final RouterStatusDescription sinfo = new RouterStatusDescription();
-			sinfo.setNickname(m.group(1));
-			sinfo.setFingerprint(m.group(2));
-			sinfo.setDigestDescriptor(m.group(3));
-			sinfo.setLastPublication(Util.parseUtcTimestampAsLong(m.group(4) + " " + m.group(5)));
-			sinfo.setIp(m.group(6));
-			sinfo.setOrPort(Integer.parseInt(m.group(7)));
-			sinfo.setDirPort(Integer.parseInt(m.group(8)));
-			sinfo.setRouterFlags(m.group(9));
-			if (sinfo.getRouterFlags().isRunning())
+			if (sinfo.getRouterFlags() != null && sinfo.getRouterFlags().isRunning())
 			{
 				getFingerprintsNetworkStatusDescriptors().put(sinfo.getFingerprint(), sinfo);
 			}
 		}
+		bandwidthWeights = BandwidthWeights.parse(parser.getBandwidthWeights());
+		if (bandwidthWeights == null)
+		{
+			logger.debug("no bandwidth-weights in consensus, path selection falls back to the ranking index");
+		}
 	}
 
 	/**
@@ -346,4 +316,12 @@ public class DirectoryConsensus
 	{
 		this.fingerprintsNetworkStatusDescriptors = fingerprintsNetworkStatusDescriptors;
 	}
+
+	/**
+	 * @return the bandwidth-weights of the consensus; null if not available
+	 */
+	public BandwidthWeights getBandwidthWeights()
+	{
+		return bandwidthWeights;
+	}
 }
@@ -0,0 +1,89 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
+
+/**
+ * Inverted index "port -&gt; exit routers accepting it" for one state of the
+ * directory.
+ *
+ * The candidates of a port are determined once (on the first request for that
+ * port) and reused until the directory creates a new index. A candidate accepts
+ * the port for at least one address; the exact check against the destination
+ * address still has to be done with {@link Router#exitPolicyAccepts}.
+ *
+ * @author Tobias Boese
+ */
+final class ExitPortIndex
+{
+	/** an index without any router. */
+	static final ExitPortIndex EMPTY = new ExitPortIndex(Collections.<Router> emptyList());
+
+	/** all routers of the index. */
+	private final List<Router> routers;
+	/** cache: port -&gt; routers accepting the port. */
+	private final ConcurrentMap<Integer, List<Router>> routersByPort = new ConcurrentHashMap<Integer, List<Router>>();
+
+	/**
+	 * @param routers
+	 *            all valid routers of the directory
+	 */
+	ExitPortIndex(final Collection<Router> routers)
+	{
+		this.routers = new ArrayList<Router>(routers);
+	}
+
+	/**
+	 * @param port
+	 *            the destination port
+	 * @return all exit routers accepting the port for at least one address
+	 *         (read-only)
+	 */
+	List<Router> getRoutersAcceptingPort(final int port)
+	{
+		final Integer key = port;
+		List<Router> result = routersByPort.get(key);
+		if (result == null)
+		{
+			final List<Router> candidates = new ArrayList<Router>();
+			for (final Router router : routers)
+			{
+				if (router.exitPolicyAcceptsPort(port))
+				{
+					candidates.add(router);
+				}
+			}
+			result = Collections.unmodifiableList(candidates);
+			final List<Router> previous = routersByPort.putIfAbsent(key, result);
+			if (previous != null)
+			{
+				result = previous;
+			}
+		}
+		return result;
+	}
+}
@@ -19,7 +19,10 @@
 package cf.monteux.silvertunnel.netlib.layer.tor.directory;
 
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -32,6 +35,11 @@ import cf.monteux.silvertunnel.netlib.layer.tor.util.Parsing;
  * 
  * An object is read only.
  * 
+ * Fingerprints of the usual length (20 bytes) are stored in two longs and an
+ * int with a precomputed hash code; other lengths keep their byte array.
+ * Fingerprints of routers should be created with {@link #intern(byte[])} so
+ * that every router identity exists only once per JVM.
+ * 
  * @author hapke
  */
 public final class FingerprintImpl implements Fingerprint, Cloneable, Serializable
@@ -39,11 +47,24 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = -1621113144294310736L;
-	/** internal byte array containing the data of the fingerprint. */
+	private static final long serialVersionUID = -1621113144294310737L;
+	/** length of a fingerprint which is stored in the compact fields. */
+	private static final int COMPACT_LENGTH = 20;
+	/** intern table, see {@link #intern(FingerprintImpl)}. */
+	private static final Map<FingerprintImpl, WeakReference<FingerprintImpl>> INTERNED = new WeakHashMap<FingerprintImpl, WeakReference<FingerprintImpl>>();
+
+	/** bytes 0..7 of a compact fingerprint. */
+	private long high;
+	/** bytes 8..15 of a compact fingerprint. */
+	private long middle;
+	/** bytes 16..19 of a compact fingerprint. */
+	private int low;
+	/** data of a fingerprint which is not compact; null if compact. */
 	private byte[] bytes;
+	/** precomputed hash code. */
+	private int hash;
 	/** cache of result of getHex(). */
-	private String hexCache;
+	private transient String hexCache;
 
 	/**
 	 * Create an {@link Fingerprint} object by using the BASE64 encoded data.
@@ -68,6 +89,40 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 		setIdentityKey(identityKey);
 	}
 
+	/**
+	 * Get the shared instance of a fingerprint.
+	 * 
+	 * @param identityKey the byte array containing the identyKey
+	 * @return the interned fingerprint
+	 */
+	public static FingerprintImpl intern(final byte[] identityKey)
+	{
+		return intern(new FingerprintImpl(identityKey));
+	}
+
+	/**
+	 * Get the shared instance of a fingerprint: equal fingerprints which are
+	 * interned are the same object. Instances which are not referenced anymore
+	 * are removed from the intern table by the garbage collector.
+	 * 
+	 * @param fingerprint the fingerprint
+	 * @return the interned fingerprint
+	 */
+	public static FingerprintImpl intern(final FingerprintImpl fingerprint)
+	{
+		synchronized (INTERNED)
+		{
+			final WeakReference<FingerprintImpl> ref = INTERNED.get(fingerprint);
+			final FingerprintImpl existing = (ref == null) ? null : ref.get();
+			if (existing != null)
+			{
+				return existing;
+			}
+			INTERNED.put(fingerprint, new WeakReference<FingerprintImpl>(fingerprint));
+			return fingerprint;
+		}
+	}
+
 	private void setIdentityKey(final byte[] identityKey)
 	{
 		// check parameter
@@ -82,7 +137,41 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 		}
 
 		// save value
-		this.bytes = identityKey;
+		if (identityKey.length == COMPACT_LENGTH)
+		{
+			high = readLong(identityKey, 0);
+			middle = readLong(identityKey, 8);
+			low = (int) readLong(identityKey, 16, 4);
+			hash = (int) (high ^ (high >>> 32) ^ middle ^ (middle >>> 32)) * 31 + low;
+		}
+		else
+		{
+			bytes = identityKey.clone();
+			hash = Arrays.hashCode(bytes);
+		}
+	}
+
+	private static long readLong(final byte[] data, final int offset)
+	{
+		return readLong(data, offset, 8);
+	}
+
+	private static long readLong(final byte[] data, final int offset, final int length)
+	{
+		long result = 0;
+		for (int i = 0; i < length; i++)
+		{
+			result = (result << 8) | (data[offset + i] & 0xff);
+		}
+		return result;
+	}
+
+	private static void writeLong(final long value, final byte[] data, final int offset, final int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			data[offset + i] = (byte) (value >>> (8 * (length - 1 - i)));
+		}
 	}
 
 	/**
@@ -93,7 +182,7 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 	{
 		if (hexCache == null)
 		{
-			hexCache = Parsing.renderFingerprint(bytes, false);
+			hexCache = Parsing.renderFingerprint(getBytesInternal(), false);
 		}
 		return hexCache;
 	}
@@ -104,7 +193,7 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 	@Override
 	public String getHexWithSpaces()
 	{
-		return Parsing.renderFingerprint(bytes, true);
+		return Parsing.renderFingerprint(getBytesInternal(), true);
 	}
 
 	/**
@@ -113,8 +202,22 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 	@Override
 	public byte[] getBytes()
 	{
-		final byte[] result = new byte[bytes.length];
-		System.arraycopy(bytes, 0, result, 0, bytes.length);
+		return getBytesInternal();
+	}
+
+	/**
+	 * @return a new array with the data of the fingerprint
+	 */
+	private byte[] getBytesInternal()
+	{
+		if (bytes != null)
+		{
+			return bytes.clone();
+		}
+		final byte[] result = new byte[COMPACT_LENGTH];
+		writeLong(high, result, 0, 8);
+		writeLong(middle, result, 8, 8);
+		writeLong(low, result, 16, 4);
 		return result;
 	}
 
@@ -127,18 +230,30 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 	@Override
 	public int hashCode()
 	{
-		return Arrays.hashCode(bytes);
+		return hash;
 	}
 
 	@Override
 	public boolean equals(final Object obj)
 	{
+		if (this == obj)
+		{
+			return true;
+		}
 		if (!(obj instanceof FingerprintImpl))
 		{
 			return false;
 		}
 		final FingerprintImpl o = (FingerprintImpl) obj;
-		return Arrays.equals(this.bytes, o.bytes);
+		if (hash != o.hash)
+		{
+			return false;
+		}
+		if (bytes != null || o.bytes != null)
+		{
+			return Arrays.equals(this.bytes, o.bytes);
+		}
+		return high == o.high && middle == o.middle && low == o.low;
 	}
 
 	/**
@@ -150,27 +265,42 @@ public final class FingerprintImpl implements Fingerprint, Cloneable, Serializab
 	@Override
 	public int compareTo(final Fingerprint other)
 	{
-		// performance optimization should be possible if necessary:
+		if (other instanceof FingerprintImpl)
+		{
+			final FingerprintImpl o = (FingerprintImpl) other;
+			if (bytes == null && o.bytes == null)
+			{
+				// same order as the hex notation: unsigned comparison
+				int result = compareUnsigned(high, o.high);
+				if (result == 0)
+				{
+					result = compareUnsigned(middle, o.middle);
+				}
+				if (result == 0)
+				{
+					result = compareUnsigned(low & 0xffffffffL, o.low & 0xffffffffL);
+				}
+				return result;
+			}
+		}
 		return getHex().compareTo(other.getHex());
 	}
 
+	private static int compareUnsigned(final long a, final long b)
+	{
+		final long x = a + Long.MIN_VALUE;
+		final long y = b + Long.MIN_VALUE;
+		return (x < y) ? -1 : ((x == y) ? 0 : 1);
+	}
+
 	/**
-	 * Clone, but do not throw an exception.
+	 * Fingerprints are immutable, so no copy is needed.
 	 * 
-	 * @return a cloned {@link Fingerprint} object
-	 * @throws RuntimeException
-	 *             when cloning is not supported
+	 * @return this object
 	 */
 	@Override
-	public Fingerprint cloneReliable() throws RuntimeException
+	public Fingerprint cloneReliable()
 	{
-		try
-		{
-			return (Fingerprint) clone();
-		}
-		catch (final CloneNotSupportedException e)
-		{
-			throw new RuntimeException(e);
-		}
+		return this;
 	}
 }
@@ -41,7 +41,7 @@ public class GuardEntry {
      * @param convenientStreamReader the ConvenientStreamReader which contains the data for this GuardEntry
      */
     public GuardEntry(final ConvenientStreamReader convenientStreamReader) throws IOException{
-        fingerprint = new FingerprintImpl(convenientStreamReader.readByteArray());
+        fingerprint = FingerprintImpl.intern(convenientStreamReader.readByteArray());
         firstDiscard = convenientStreamReader.readLong();
         unsuccessfulConnect = convenientStreamReader.readInt();
         lastUnsuccessfulConnect = convenientStreamReader.readLong();
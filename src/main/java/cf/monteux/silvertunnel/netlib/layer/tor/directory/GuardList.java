@@ -206,7 +206,7 @@ public class GuardList {
         flags.setValid(true);
 
         Map<Fingerprint, Router> guards = directory.getValidRoutersByFlags(flags);
-        Router guard = directory.selectRandomNode(guards, excluded, prop.getRankingInfluenceIndex(), prop.isFastRoute(), prop.isStableRoute());
+        Router guard = directory.selectRandomNode(guards, excluded, BandwidthWeights.Position.GUARD, prop.getRankingInfluenceIndex(), prop.isFastRoute(), prop.isStableRoute());
         routerList.add(guard);
         logger.debug("adding guard {} to list", guard.getFingerprint().getHex());
     }
@@ -50,6 +50,7 @@ import javax.xml.bind.DatatypeConverter;
 
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Encoding;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Encryption;
+import cf.monteux.silvertunnel.netlib.layer.tor.util.SignatureVerifier;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.TorException;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Util;
 import org.apache.logging.log4j.LogManager;
@@ -337,7 +338,7 @@ public final class RendezvousServiceDescriptor implements Serializable
 			{
 				logger.warn("unexpected", e);
 			}
-			if (checkSignature && !Encryption.verifySignature(signature, permanentPublicKey, signedData))
+			if (checkSignature && !SignatureVerifier.verifySignature(signature, permanentPublicKey, signedData))
 			{
 				throw new TorException("dirKeyCertification check failed");
 			}
@@ -434,6 +435,19 @@ public final class RendezvousServiceDescriptor implements Serializable
 		return isPublicationTimeValid(System.currentTimeMillis());
 	}
 
+	/**
+	 * @return the point in time (in ms) when this descriptor is not valid
+	 *         anymore; 0 if the publication time is unknown
+	 */
+	public long getExpirationTime()
+	{
+		if (publicationTime == null)
+		{
+			return 0;
+		}
+		return publicationTime + MAX_SERVICE_DESCRIPTOR_AGE_IN_MS;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -54,7 +54,12 @@
 package cf.monteux.silvertunnel.netlib.layer.tor.directory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import cf.monteux.silvertunnel.netlib.api.NetLayer;
@@ -109,6 +114,10 @@ public class RendezvousServiceDescriptorService
 	/**
 	 * Loads a RendezvousServiceDescriptor from the network.
 	 * 
+	 * All hidden service directories responsible for the descriptor (of all
+	 * replicas) are queried in parallel. The first validly signed descriptor
+	 * wins, the other requests are cancelled.
+	 * 
 	 * @param z
 	 *            the z-part of the address/domain name = rendezvous descriptor
 	 *            service ID
@@ -117,17 +126,18 @@ public class RendezvousServiceDescriptorService
 	 *            NetLayer to establish stream that goes through Tor network -
 	 *            used to load rendezvous ServiceDescriptor
 	 */
-	public RendezvousServiceDescriptor loadRendezvousServiceDescriptorFromDirectory(String z,
-																					Directory directory,
-																					NetLayer torNetLayer) throws IOException
+	public RendezvousServiceDescriptor loadRendezvousServiceDescriptorFromDirectory(final String z,
+																					final Directory directory,
+																					final NetLayer torNetLayer) throws IOException
 	{
 		final String hiddenServicePermanentIdBase32 = z;
 		final Long now = System.currentTimeMillis();
 		final String PRE = "loadRendezvousServiceDescriptorFromDirectory(): ";
 
-		int attempts = TorConfig.getRetriesConnect();
-		while (attempts > 0)
+		for (int attempts = TorConfig.getRetriesConnect(); attempts > 0; attempts--)
 		{
+			// one task per responsible hidden service directory server
+			final Collection<Callable<RendezvousServiceDescriptor>> allTasks = new ArrayList<Callable<RendezvousServiceDescriptor>>();
 			for (int replica = 0; replica < RENDEZVOUS_NUMBER_OF_NON_CONSECUTIVE_REPLICAS; replica++)
 			{
 				final byte[] descriptorId = RendezvousServiceDescriptorUtil.getRendezvousDescriptorId(hiddenServicePermanentIdBase32, replica, now)
@@ -135,48 +145,76 @@ public class RendezvousServiceDescriptorService
 				final String descriptorIdBase32 = Encoding.toBase32(descriptorId);
 				final String descriptorIdHex = Encoding.toHexStringNoColon(descriptorId);
 				final Fingerprint descriptorIdAsFingerprint = new FingerprintImpl(descriptorId);
+				final int replicaFinal = replica;
 
-				// try the routers/hidden service directory servers that are
+				// the routers/hidden service directory servers that are
 				// responsible for the descriptorId
 				final Collection<Router> routers = directory.getThreeHiddenDirectoryServersWithFingerprintGreaterThan(descriptorIdAsFingerprint);
 				for (final Router r : routers)
 				{
-					TcpipNetAddress dirAddress = r.getDirAddress();
-					dirAddress = new TcpipNetAddress(dirAddress.getHostnameOrIpaddress() + ":" + dirAddress.getPort());
-					logger.info(PRE + "try fetching service descriptor for " + z + " with descriptorID base32/hex=" + descriptorIdBase32 + "/"
-							+ descriptorIdHex + " (with replica=" + replica + ") from " + r);
-
-					// try to load from one router/hidden service directory
-					// server
-					String response = null;
-					try
+					allTasks.add(new Callable<RendezvousServiceDescriptor>()
 					{
-						response = retrieveServiceDescriptor(torNetLayer, dirAddress, descriptorIdBase32);
-					}
-					catch (final Exception e)
-					{
-						logger.warn("unable to connect to or to load data from directory server " + r + "(" + e.getMessage() + ")", e);
-						continue;
-					}
-
-					// response: OK
-					if (logger.isDebugEnabled())
-					{
-						logger.debug(PRE + "found descriptorIdBase32=" + descriptorIdBase32 + " with result(plain)=" + response);
-					}
-					try
-					{
-						final RendezvousServiceDescriptor result = new RendezvousServiceDescriptor(response, System.currentTimeMillis());
-						return result;
+						/** load and parse the descriptor from one hidden service directory server */
+						@Override
+						public RendezvousServiceDescriptor call() throws Exception
+						{
+							TcpipNetAddress dirAddress = r.getDirAddress();
+							dirAddress = new TcpipNetAddress(dirAddress.getHostnameOrIpaddress() + ":" + dirAddress.getPort());
+							logger.info(PRE + "try fetching service descriptor for " + z + " with descriptorID base32/hex=" + descriptorIdBase32 + "/"
+									+ descriptorIdHex + " (with replica=" + replicaFinal + ") from " + r);
+							final String response;
+							try
+							{
+								response = retrieveServiceDescriptor(torNetLayer, dirAddress, descriptorIdBase32);
+							}
+							catch (final Exception e)
+							{
+								logger.warn("unable to connect to or to load data from directory server " + r + "(" + e.getMessage() + ")", e);
+								throw e;
+							}
 
-					}
-					catch (final TorException e)
-					{
-						logger.info(PRE + "problem parsing Service Descriptor for " + z, e);
-						continue;
-					}
+							// response: OK
+							if (logger.isDebugEnabled())
+							{
+								logger.debug(PRE + "found descriptorIdBase32=" + descriptorIdBase32 + " with result(plain)=" + response);
+							}
+							try
+							{
+								// the constructor checks the signature
+								return new RendezvousServiceDescriptor(response, System.currentTimeMillis());
+							}
+							catch (final TorException e)
+							{
+								logger.info(PRE + "problem parsing Service Descriptor for " + z, e);
+								throw e;
+							}
+						}
+					});
 				}
-				--attempts;
+			}
+			if (allTasks.isEmpty())
+			{
+				break;
+			}
+
+			final ExecutorService executor = Executors.newFixedThreadPool(allTasks.size());
+			try
+			{
+				return executor.invokeAny(allTasks);
+			}
+			catch (final ExecutionException e)
+			{
+				logger.debug(PRE + "no responsible directory server delivered a valid service descriptor for " + z);
+			}
+			catch (final InterruptedException e)
+			{
+				logger.debug("got InterruptedException : {}", e.getMessage(), e);
+				Thread.currentThread().interrupt();
+				break;
+			}
+			finally
+			{
+				executor.shutdownNow();
 			}
 		}
 		logger.warn(PRE + "unable to fetch service descriptor for " + z);
@@ -431,6 +431,17 @@ public final class RouterFlags {
         return true;
     }
 
+    /**
+     * @return the flags as bit mask (bit i = flag with index i); used as key for caches
+     */
+    int getBits() {
+        int bits = 0;
+        for (int i = value.nextSetBit(0); i >= 0; i = value.nextSetBit(i + 1)) {
+            bits |= 1 << i;
+        }
+        return bits;
+    }
+
     @Override
     public String toString() {
         StringBuilder buffer = new StringBuilder();
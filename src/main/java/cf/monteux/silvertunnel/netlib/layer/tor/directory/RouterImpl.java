@@ -42,6 +42,7 @@ import java.security.MessageDigest;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -113,17 +114,25 @@ public final class RouterImpl implements Router, Cloneable
 
 	private int uptime;
 
-	private RSAPublicKey onionKey;
+	/** PKCS1 encoding of the onion key; decoded on first use. */
+	private byte[] onionKeyEncoded;
+	/** cache: decoded onion key. */
+	private volatile RSAPublicKey onionKey;
 
-	private RSAPublicKey signingKey;
+	/** PKCS1 encoding of the signing key; decoded on first use. */
+	private byte[] signingKeyEncoded;
+	/** cache: decoded signing key. */
+	private volatile RSAPublicKey signingKey;
 
 	private RouterExitPolicy[] exitpolicy;
+	/** exitpolicy compiled for fast lookups. */
+	private CompiledRouterExitPolicy compiledExitPolicy = CompiledRouterExitPolicy.REJECT_ALL;
 
 	private byte[] routerSignature;
 	private String contact;
 
-	/** Fingerprints of the routers of the family. */
-	private Set<Fingerprint> family = new HashSet<Fingerprint>();
+	/** Fingerprints of the routers of the family; shared empty set if there is no family. */
+	private Set<Fingerprint> family = Collections.emptySet();
 
 	/** based on the time of loading this data. */
 	private long validUntil;
@@ -139,6 +148,10 @@ public final class RouterImpl implements Router, Cloneable
 
 	/** internal Server-Ranking data. */
 	private float rankingIndex;
+	/** bandwidth of the consensus in kilobytes per second; 0 if unknown. */
+	private long consensusBandwidth;
+	/** product of all punishments; applied to the bandwidth weighted selection. */
+	private float punishment = 1;
 	/** see updateServerRanking(). */
 	private static final int HIGH_BANDWIDTH = 2097152;
 	/** see updateServerRanking(). */
@@ -168,7 +181,7 @@ public final class RouterImpl implements Router, Cloneable
 		parseRouterDescriptor(routerDescriptor);
 		updateServerRanking();
 
-		this.countryCode = LookupServiceUtil.getCountryCodeOfIpAddress(this.address);
+		this.countryCode = dedup(LookupServiceUtil.getCountryCodeOfIpAddress(this.address));
 	}
 
 	/**
@@ -230,6 +243,7 @@ public final class RouterImpl implements Router, Cloneable
 	public void updateServerStatus(final RouterStatusDescription statusDescription)
 	{
 		routerFlags = statusDescription.getRouterFlags();
+		consensusBandwidth = statusDescription.getBandwidth();
 	}
 	/** this is used for binary de-/serialization. */
 	private static final byte CURRENT_BINARY_VERSION = 1;
@@ -261,14 +275,14 @@ public final class RouterImpl implements Router, Cloneable
 		{
 			throw new TorException("error while parsing address field.", exception);
 		}
-		countryCode = convenientStreamReader.readString();
+		countryCode = dedup(convenientStreamReader.readString());
 		orPort = convenientStreamReader.readInt();
 		socksPort = convenientStreamReader.readInt();
 		dirPort = convenientStreamReader.readInt();
 		bandwidthAvg = convenientStreamReader.readInt();
 		bandwidthBurst = convenientStreamReader.readInt();
 		bandwidthObserved = convenientStreamReader.readInt();
-		platform = convenientStreamReader.readString();
+		platform = dedup(convenientStreamReader.readString());
 		published = convenientStreamReader.readLong();
 		int count = convenientStreamReader.readInt();
 		if (count == 0)
@@ -277,7 +291,7 @@ public final class RouterImpl implements Router, Cloneable
 		}
 		else
 		{
-			fingerprint = new FingerprintImpl(convenientStreamReader.readByteArray(count));
+			fingerprint = FingerprintImpl.intern(convenientStreamReader.readByteArray(count));
 		}
 		count = convenientStreamReader.readInt();
 		if (count == 0)
@@ -286,11 +300,11 @@ public final class RouterImpl implements Router, Cloneable
 		}
 		else
 		{
-			v3ident = new FingerprintImpl(convenientStreamReader.readByteArray(count));
+			v3ident = FingerprintImpl.intern(convenientStreamReader.readByteArray(count));
 		}
 		uptime = convenientStreamReader.readInt();
-		onionKey = Encryption.extractBinaryRSAKey(convenientStreamReader.readByteArray());
-		signingKey = Encryption.extractBinaryRSAKey(convenientStreamReader.readByteArray());
+		onionKeyEncoded = convenientStreamReader.readByteArray();
+		signingKeyEncoded = convenientStreamReader.readByteArray();
 		count = convenientStreamReader.readInt();
 		if (count == 0)
 		{
@@ -304,15 +318,17 @@ public final class RouterImpl implements Router, Cloneable
 				exitpolicy[i] = RouterExitPolicyImpl.parseFrom(convenientStreamReader);
 			}
 		}
+		compiledExitPolicy = CompiledRouterExitPolicy.compile(exitpolicy);
 		routerSignature = convenientStreamReader.readByteArray();
-		contact = convenientStreamReader.readString();
+		contact = dedup(convenientStreamReader.readString());
 		count = convenientStreamReader.readInt();
-		family.clear();
+		family = Collections.emptySet();
 		if (count > 0)
 		{
+			family = new HashSet<Fingerprint>(count);
 			for (int i = 0; i < count; i++)
 			{
-				family.add(new FingerprintImpl(convenientStreamReader.readByteArray()));
+				family.add(FingerprintImpl.intern(convenientStreamReader.readByteArray()));
 			}
 		}
 		validUntil = convenientStreamReader.readLong();
@@ -348,8 +364,8 @@ public final class RouterImpl implements Router, Cloneable
 			convenientStreamWriter.writeByteArray(v3ident.getBytes(), true);
 		}
 		convenientStreamWriter.writeInt(uptime);
-		convenientStreamWriter.writeByteArray(Encryption.getPKCS1EncodingFromRSAPublicKey(onionKey), true);
-		convenientStreamWriter.writeByteArray(Encryption.getPKCS1EncodingFromRSAPublicKey(signingKey), true);
+		convenientStreamWriter.writeByteArray(getOnionKeyEncoded(), true);
+		convenientStreamWriter.writeByteArray(signingKeyEncoded, true);
 		convenientStreamWriter.writeInt(exitpolicy.length);
 		for (RouterExitPolicy exitPolicy : exitpolicy)
 		{
@@ -527,12 +543,12 @@ public final class RouterImpl implements Router, Cloneable
 							this.dirPort = Integer.parseInt(tmpElements[5]);
 							break;
 						case PLATFORM:
-							this.platform = tmpLine[i].substring("platform".length() + 1);
+							this.platform = dedup(tmpLine[i].substring("platform".length() + 1));
 							break;
 						case FINGERPRINT:
 							try
 							{
-								fingerprint = new FingerprintImpl(DatatypeConverter.parseHexBinary(tmpLine[i].substring("fingerprint".length())
+								fingerprint = FingerprintImpl.intern(DatatypeConverter.parseHexBinary(tmpLine[i].substring("fingerprint".length())
 										.replaceAll(" ", "")));
 							}
 							catch (final Exception e)
@@ -554,14 +570,18 @@ public final class RouterImpl implements Router, Cloneable
 							bandwidthObserved = Integer.parseInt(tmpElements[3]);
 							break;
 						case CONTACT:
-							contact = tmpLine[i].substring("contact".length() + 1);
+							contact = dedup(tmpLine[i].substring("contact".length() + 1));
 							break;
 						case FAMILY:
 							for (int n = 1; n < tmpElements.length; n++)
 							{
 								if (tmpElements[n].startsWith("$"))
 								{
-									family.add(new FingerprintImpl(DatatypeConverter.parseHexBinary(tmpElements[n].substring(1, 41))));
+									if (family.isEmpty())
+									{
+										family = new HashSet<Fingerprint>();
+									}
+									family.add(FingerprintImpl.intern(DatatypeConverter.parseHexBinary(tmpElements[n].substring(1, 41))));
 								}
 								else
 								{
@@ -597,7 +617,7 @@ public final class RouterImpl implements Router, Cloneable
 							}
 							tmpOnionKey.append(tmpLine[i]).append('\n');
 							mdMessage.update(tmpOnionKey.toString().getBytes());
-							onionKey = Encryption.extractPublicRSAKey(tmpOnionKey.toString());
+							onionKeyEncoded = decodePEMPublicKey(tmpOnionKey);
 							break;
 						case SIGNING_KEY:
 							StringBuffer tmpSigningKey = new StringBuffer();
@@ -609,7 +629,7 @@ public final class RouterImpl implements Router, Cloneable
 							}
 							tmpSigningKey.append(tmpLine[i]).append('\n');
 							mdMessage.update(tmpSigningKey.toString().getBytes());
-							signingKey = Encryption.extractPublicRSAKey(tmpSigningKey.toString());
+							signingKeyEncoded = decodePEMPublicKey(tmpSigningKey);
 							break;
 						case ROUTER_SIGNATURE:
 							StringBuffer tmpSignature = new StringBuffer();
@@ -653,8 +673,7 @@ public final class RouterImpl implements Router, Cloneable
 		// verify signing-key against fingerprint
 		try
 		{
-			final byte[] pkcs = Encryption.getPKCS1EncodingFromRSAPublicKey(signingKey);
-			final byte[] keyHash = Encryption.getDigest(pkcs);
+			final byte[] keyHash = Encryption.getDigest(signingKeyEncoded);
 			if (!new FingerprintImpl(keyHash).equals(fingerprint))
 			{
 				throw new TorException("Server " + nickname + " doesn't verify signature vs fingerprint");
@@ -670,8 +689,10 @@ public final class RouterImpl implements Router, Cloneable
 		}
 
 		// check the validity of the signature
+		// (the key is decoded here only; the router keeps the encoded key)
+		final RSAPublicKey descriptorSigningKey = Encryption.extractBinaryRSAKey(signingKeyEncoded);
 		final byte[] sha1Digest = mdMessage.digest();
-		if (!Encryption.verifySignatureWithHash(routerSignature, signingKey, sha1Digest))
+		if (!Encryption.verifySignatureWithHash(routerSignature, descriptorSigningKey, sha1Digest))
 		{
 			logger.info("Server -> router-signature check failed for " + nickname);
 			throw new TorException("Server " + nickname + ": description signature verification failed");
@@ -679,6 +700,7 @@ public final class RouterImpl implements Router, Cloneable
 
 		// exit policy
 		exitpolicy = parseExitPolicy(exitPolicyString.toString());
+		compiledExitPolicy = CompiledRouterExitPolicy.compile(exitpolicy);
 		// usually in directory the hostname is already set to the IP
 		// so, following resolve just converts it to the InetAddress
 		try
@@ -751,6 +773,7 @@ public final class RouterImpl implements Router, Cloneable
 			logger.debug("Punishing " + toLongString());
 		}
 		rankingIndex *= punishmentFactor;
+		punishment *= punishmentFactor;
 	}
 
 	/**
@@ -794,15 +817,21 @@ public final class RouterImpl implements Router, Cloneable
 			ip = 0xffffffffL;
 		}
 
-		for (int i = 0; i < exitpolicy.length; ++i)
-		{
-			if ((exitpolicy[i].getLoPort() <= port) && (exitpolicy[i].getHiPort() >= port)
-					&& (exitpolicy[i].getIp() == (ip & exitpolicy[i].getNetmask())))
-			{
-				return exitpolicy[i].isAccept();
-			}
-		}
-		return false;
+		return compiledExitPolicy.accepts(ip, port);
+	}
+
+	/**
+	 * can be used to query the exit policies whether this server would allow
+	 * outgoing connections to the given port for at least one destination
+	 * address.
+	 * 
+	 * @param port
+	 *            the port that is to be connected to
+	 * @return true if the port is accepted for at least one address
+	 */
+	public boolean exitPolicyAcceptsPort(final int port)
+	{
+		return compiledExitPolicy.acceptsPort(port);
 	}
 
 	/**
@@ -819,17 +848,7 @@ public final class RouterImpl implements Router, Cloneable
 	@Override
 	public boolean isExitNode()
 	{
-		if (!routerFlags.isBadExit() && routerFlags.isExit())
-		{
-			for (RouterExitPolicy singleExitPolicy : exitpolicy)
-			{
-				if (singleExitPolicy.isAccept())
-				{
-					return true;
-				}
-			}
-		}
-		return false;
+		return !routerFlags.isBadExit() && routerFlags.isExit() && compiledExitPolicy.acceptsSomething();
 	}
 
 	/**
@@ -864,8 +883,8 @@ public final class RouterImpl implements Router, Cloneable
 		sb.append("bandwidth: ").append(bandwidthAvg).append(' ').append(bandwidthBurst).append(' ').append(bandwidthObserved).append('\n');
 		sb.append("fingerprint:").append(fingerprint).append('\n');
 		sb.append("validUntil:").append(new Date(validUntil)).append('\n');
-		sb.append("onion key:").append(onionKey).append('\n');
-		sb.append("signing key:").append(signingKey).append('\n');
+		sb.append("onion key:").append(getOnionKey()).append('\n');
+		sb.append("signing key:").append(getSigningKey()).append('\n');
 		sb.append("signature:").append(DatatypeConverter.printHexBinary(routerSignature)).append('\n');
 		sb.append("exit policies:").append('\n');
 		for (int i = 0; i < exitpolicy.length; ++i)
@@ -1013,13 +1032,65 @@ public final class RouterImpl implements Router, Cloneable
 	@Override
 	public RSAPublicKey getOnionKey()
 	{
-		return onionKey;
+		RSAPublicKey result = onionKey;
+		if (result == null && onionKeyEncoded != null)
+		{
+			result = Encryption.extractBinaryRSAKey(onionKeyEncoded);
+			onionKey = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the PKCS1 encoding of the onion key
+	 */
+	private byte[] getOnionKeyEncoded()
+	{
+		if (onionKeyEncoded == null && onionKey != null)
+		{
+			onionKeyEncoded = Encryption.getPKCS1EncodingFromRSAPublicKey(onionKey);
+		}
+		return onionKeyEncoded;
 	}
 
 	@Override
 	public RSAPublicKey getSigningKey()
 	{
-		return signingKey;
+		RSAPublicKey result = signingKey;
+		if (result == null && signingKeyEncoded != null)
+		{
+			result = Encryption.extractBinaryRSAKey(signingKeyEncoded);
+			signingKey = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Decode the body of a PEM encoded "RSA PUBLIC KEY" without creating the
+	 * key object.
+	 * 
+	 * @param pem the PEM block including the BEGIN and END line
+	 * @return the PKCS1 encoding of the key
+	 * @throws TorException if the PEM block is malformed
+	 */
+	private static byte[] decodePEMPublicKey(final CharSequence pem) throws TorException
+	{
+		final String str = pem.toString();
+		final int begin = str.indexOf('\n', str.indexOf("BEGIN RSA PUBLIC KEY"));
+		final int end = str.indexOf("-----END RSA PUBLIC KEY");
+		if (begin < 0 || end < begin)
+		{
+			throw new TorException("invalid RSA public key");
+		}
+		return DatatypeConverter.parseBase64Binary(str.substring(begin + 1, end).replaceAll("\\s", ""));
+	}
+
+	/**
+	 * Share equal strings (platform, contact, country) between the routers.
+	 */
+	private static String dedup(final String value)
+	{
+		return value == null ? null : value.intern();
 	}
 
 	@Override
@@ -1114,6 +1185,18 @@ public final class RouterImpl implements Router, Cloneable
 		return rankingIndex;
 	}
 
+	@Override
+	public long getConsensusBandwidth()
+	{
+		return consensusBandwidth;
+	}
+
+	@Override
+	public float getPunishment()
+	{
+		return punishment;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1138,13 +1221,13 @@ public final class RouterImpl implements Router, Cloneable
 		result = prime * result + ((hostname == null) ? 0 : hostname.hashCode());
 		result = prime * result + (int) lastUpdate;
 		result = prime * result + ((nickname == null) ? 0 : nickname.hashCode());
-		result = prime * result + ((onionKey == null) ? 0 : onionKey.hashCode());
+		result = prime * result + Arrays.hashCode(getOnionKeyEncoded());
 		result = prime * result + orPort;
 		result = prime * result + ((platform == null) ? 0 : platform.hashCode());
 		result = prime * result + (int) published;
 		result = prime * result + Float.floatToIntBits(rankingIndex);
 		result = prime * result + Arrays.hashCode(routerSignature);
-		result = prime * result + ((signingKey == null) ? 0 : signingKey.hashCode());
+		result = prime * result + Arrays.hashCode(signingKeyEncoded);
 		result = prime * result + socksPort;
 		result = prime * result + uptime;
 		result = prime * result + ((v3ident == null) ? 0 : v3ident.hashCode());
@@ -1278,14 +1361,7 @@ public final class RouterImpl implements Router, Cloneable
 		{
 			return false;
 		}
-		if (onionKey == null)
-		{
-			if (other.onionKey != null)
-			{
-				return false;
-			}
-		}
-		else if (!onionKey.equals(other.onionKey))
+		if (!Arrays.equals(getOnionKeyEncoded(), other.getOnionKeyEncoded()))
 		{
 			return false;
 		}
@@ -1316,14 +1392,7 @@ public final class RouterImpl implements Router, Cloneable
 		{
 			return false;
 		}
-		if (signingKey == null)
-		{
-			if (other.signingKey != null)
-			{
-				return false;
-			}
-		}
-		else if (!Arrays.equals(signingKey.getEncoded(), other.signingKey.getEncoded()))
+		if (!Arrays.equals(signingKeyEncoded, other.signingKeyEncoded))
 		{
 			return false;
 		}
@@ -0,0 +1,300 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
+import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Immutable view of the valid routers of one directory state.
+ *
+ * The {@link Directory} builds a new snapshot for each consensus and publishes
+ * it with a single volatile write. Readers (path selection, stream handling)
+ * use the snapshot without locking and without copying; all returned maps and
+ * sets are read-only.
+ *
+ * Filtered views (by flags, by exit port, without avoided countries) are
+ * computed on the first request and shared by all later callers until the
+ * avoided countries of the {@link TorConfig} change. The fields needed for
+ * these filters are kept in parallel arrays, so filtering does not touch the
+ * router objects.
+ *
+ * @author Tobias Boese
+ */
+final class RouterSnapshot
+{
+	/** a snapshot without any router. */
+	static final RouterSnapshot EMPTY = new RouterSnapshot(new HashMap<Fingerprint, Router>(),
+	                                                       new HashMap<String, Set<Fingerprint>>(),
+	                                                       new HashMap<String, Set<Fingerprint>>(),
+	                                                       0,
+	                                                       null);
+
+	/** maximum number of cached (flags, port) views; the cache is cleared if exceeded. */
+	private static final int MAX_CACHED_EXIT_VIEWS = 1024;
+
+	/** key=identity key. */
+	private final Map<Fingerprint, Router> routers;
+	/** the routers in the order of the following arrays. */
+	private final Router[] routerArray;
+	/** flags of routerArray[i] as returned by {@link RouterFlags#getBits()}. */
+	private final int[] flagBits;
+	/** country code of routerArray[i]. */
+	private final String[] countryCodes;
+	/** exit routers by accepted port. */
+	private final ExitPortIndex exitPortIndex;
+	/** class C address -&gt; fingerprints of the routers in that network. */
+	private final Map<String, Set<Fingerprint>> addressNeighbours;
+	/** country code -&gt; fingerprints of the routers in that country. */
+	private final Map<String, Set<Fingerprint>> countryNeighbours;
+	/** number of running routers in the consensus. */
+	private final int numOfRunningRoutersInConsensus;
+	/** bandwidth-weights of the consensus; null if not available. */
+	private final BandwidthWeights bandwidthWeights;
+
+	/** cached filtered views; replaced when the avoided countries change. */
+	private volatile Views views;
+
+	/**
+	 * Filtered views for one state of the avoided countries.
+	 */
+	private static final class Views
+	{
+		private final int avoidedCountriesVersion;
+		/** key=flag bits. */
+		private final ConcurrentMap<Integer, Map<Fingerprint, Router>> byFlags = new ConcurrentHashMap<Integer, Map<Fingerprint, Router>>();
+		/** key=flag bits &lt;&lt; 16 | port. */
+		private final ConcurrentMap<Long, Map<Fingerprint, Router>> exitByFlagsAndPort = new ConcurrentHashMap<Long, Map<Fingerprint, Router>>();
+
+		Views(final int avoidedCountriesVersion)
+		{
+			this.avoidedCountriesVersion = avoidedCountriesVersion;
+		}
+	}
+
+	/**
+	 * @param routers
+	 *            the valid routers; the map must not be changed afterwards
+	 * @param addressNeighbours
+	 *            class C address -&gt; fingerprints; must not be changed afterwards
+	 * @param countryNeighbours
+	 *            country code -&gt; fingerprints; must not be changed afterwards
+	 * @param numOfRunningRoutersInConsensus
+	 *            number of running routers in the consensus
+	 * @param bandwidthWeights
+	 *            bandwidth-weights of the consensus; null if not available
+	 */
+	RouterSnapshot(final Map<Fingerprint, Router> routers,
+	               final Map<String, Set<Fingerprint>> addressNeighbours,
+	               final Map<String, Set<Fingerprint>> countryNeighbours,
+	               final int numOfRunningRoutersInConsensus,
+	               final BandwidthWeights bandwidthWeights)
+	{
+		this.routers = Collections.unmodifiableMap(routers);
+		this.addressNeighbours = Collections.unmodifiableMap(addressNeighbours);
+		this.countryNeighbours = Collections.unmodifiableMap(countryNeighbours);
+		this.numOfRunningRoutersInConsensus = numOfRunningRoutersInConsensus;
+		this.bandwidthWeights = bandwidthWeights;
+		final int size = routers.size();
+		this.routerArray = new Router[size];
+		this.flagBits = new int[size];
+		this.countryCodes = new String[size];
+		final Map<Fingerprint, Router> exitRouters = new HashMap<Fingerprint, Router>();
+		int i = 0;
+		for (final Router router : routers.values())
+		{
+			routerArray[i] = router;
+			flagBits[i] = router.getRouterFlags().getBits();
+			countryCodes[i] = router.getCountryCode();
+			i++;
+			if (router.isDirv2Exit() || router.isExitNode())
+			{
+				exitRouters.put(router.getFingerprint(), router);
+			}
+		}
+		this.exitPortIndex = new ExitPortIndex(exitRouters.values());
+		this.views = new Views(TorConfig.getAvoidedCountriesVersion());
+	}
+
+	/**
+	 * Add the router to the neighbour maps which will be passed to the constructor.
+	 *
+	 * @param router
+	 *            the router
+	 * @param ipClassC
+	 *            the class C network of the router
+	 * @param addressNeighbours
+	 *            class C address -&gt; fingerprints
+	 * @param countryNeighbours
+	 *            country code -&gt; fingerprints
+	 */
+	static void addToNeighbours(final Router router,
+	                            final String ipClassC,
+	                            final Map<String, Set<Fingerprint>> addressNeighbours,
+	                            final Map<String, Set<Fingerprint>> countryNeighbours)
+	{
+		Set<Fingerprint> neighbours = addressNeighbours.get(ipClassC);
+		if (neighbours == null)
+		{
+			// first entry for this ipClassC
+			neighbours = new HashSet<Fingerprint>();
+			addressNeighbours.put(ipClassC, neighbours);
+		}
+		neighbours.add(router.getFingerprint());
+
+		neighbours = countryNeighbours.get(router.getCountryCode());
+		if (neighbours == null)
+		{
+			// first entry for this country code
+			neighbours = new HashSet<Fingerprint>();
+			countryNeighbours.put(router.getCountryCode(), neighbours);
+		}
+		neighbours.add(router.getFingerprint());
+	}
+
+	/**
+	 * @return all valid routers, including the ones of avoided countries (read-only)
+	 */
+	Map<Fingerprint, Router> getRouters()
+	{
+		return routers;
+	}
+
+	/**
+	 * @return number of running routers in the consensus
+	 */
+	int getNumOfRunningRoutersInConsensus()
+	{
+		return numOfRunningRoutersInConsensus;
+	}
+
+	/**
+	 * @return bandwidth-weights of the consensus; null if not available
+	 */
+	BandwidthWeights getBandwidthWeights()
+	{
+		return bandwidthWeights;
+	}
+
+	/**
+	 * @param ipClassC
+	 *            the class C network
+	 * @return the fingerprints of the routers in that network; null if none
+	 */
+	Set<Fingerprint> getAddressNeighbours(final String ipClassC)
+	{
+		return addressNeighbours.get(ipClassC);
+	}
+
+	/**
+	 * @param countryCode
+	 *            the country code
+	 * @return the fingerprints of the routers in that country; null if none
+	 */
+	Set<Fingerprint> getCountryNeighbours(final String countryCode)
+	{
+		return countryNeighbours.get(countryCode);
+	}
+
+	/**
+	 * @param flags
+	 *            the flags the routers have to match
+	 * @return the routers which are not in an avoided country and match the
+	 *         flags (read-only)
+	 */
+	Map<Fingerprint, Router> getRoutersByFlags(final RouterFlags flags)
+	{
+		final Views currentViews = getViews();
+		final Integer key = flags.getBits();
+		Map<Fingerprint, Router> result = currentViews.byFlags.get(key);
+		if (result == null)
+		{
+			final int wanted = key;
+			final Map<Fingerprint, Router> filtered = new HashMap<Fingerprint, Router>();
+			for (int i = 0; i < routerArray.length; i++)
+			{
+				if ((flagBits[i] & wanted) == wanted && TorConfig.isCountryAllowed(countryCodes[i]))
+				{
+					filtered.put(routerArray[i].getFingerprint(), routerArray[i]);
+				}
+			}
+			// nothing filtered out: share the complete map
+			result = filtered.size() == routers.size() ? routers : Collections.unmodifiableMap(filtered);
+			currentViews.byFlags.putIfAbsent(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param flags
+	 *            the flags the routers have to match
+	 * @param port
+	 *            the destination port
+	 * @return the exit routers which are not in an avoided country, match the
+	 *         flags and accept the port for at least one address (read-only)
+	 */
+	Map<Fingerprint, Router> getExitRoutersByFlags(final RouterFlags flags, final int port)
+	{
+		final Views currentViews = getViews();
+		final Long key = ((long) flags.getBits() << 16) | (port & 0xffff);
+		Map<Fingerprint, Router> result = currentViews.exitByFlagsAndPort.get(key);
+		if (result == null)
+		{
+			final Map<Fingerprint, Router> filtered = new HashMap<Fingerprint, Router>();
+			for (final Router router : exitPortIndex.getRoutersAcceptingPort(port))
+			{
+				if (TorConfig.isCountryAllowed(router.getCountryCode()) && router.getRouterFlags().match(flags))
+				{
+					filtered.put(router.getFingerprint(), router);
+				}
+			}
+			result = Collections.unmodifiableMap(filtered);
+			if (currentViews.exitByFlagsAndPort.size() >= MAX_CACHED_EXIT_VIEWS)
+			{
+				currentViews.exitByFlagsAndPort.clear();
+			}
+			currentViews.exitByFlagsAndPort.putIfAbsent(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the views matching the current avoided countries
+	 */
+	private Views getViews()
+	{
+		final int version = TorConfig.getAvoidedCountriesVersion();
+		Views result = views;
+		if (result.avoidedCountriesVersion != version)
+		{
+			result = new Views(version);
+			views = result;
+		}
+		return result;
+	}
+}
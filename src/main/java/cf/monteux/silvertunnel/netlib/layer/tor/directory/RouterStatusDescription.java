@@ -49,6 +49,8 @@ public final class RouterStatusDescription
 	private int orPort, dirPort;
 	/** Router flags. (stable, valid, running, etc)*/
 	private RouterFlags routerFlags;
+	/** bandwidth weight of the "w" line in kilobytes per second; 0 if unknown. */
+	private long bandwidth;
 
 	// /////////////////////////////////////////////////////
 	// getters and setters
@@ -75,12 +77,12 @@ public final class RouterStatusDescription
 
 	public void setFingerprint(final String fingerprint)
 	{
-		this.fingerprint = new FingerprintImpl(fingerprint);
+		this.fingerprint = FingerprintImpl.intern(new FingerprintImpl(fingerprint));
 	}
 
 	public void setFingerprint(final byte[] fingerprint)
 	{
-		this.fingerprint = new FingerprintImpl(fingerprint);
+		this.fingerprint = FingerprintImpl.intern(fingerprint);
 	}
 
 	public void setFingerprint(final Fingerprint fingerprint)
@@ -207,4 +209,20 @@ public final class RouterStatusDescription
 	{
 		this.routerFlags = new RouterFlags(routerFlags);
 	}
+
+	/**
+	 * @return the bandwidth weight of the consensus in kilobytes per second; 0 if unknown
+	 */
+	public long getBandwidth()
+	{
+		return bandwidth;
+	}
+
+	/**
+	 * @param bandwidth the bandwidth weight of the consensus in kilobytes per second
+	 */
+	public void setBandwidth(final long bandwidth)
+	{
+		this.bandwidth = bandwidth;
+	}
 }
@@ -1,20 +1,3 @@
-/*
- * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
- * Copyright (c) 20132 silvertunnel-ng.org
- *
- * This program is free software; you can redistribute it and/or modify it
- * under the terms of the GNU General Public License as published by the Free
- * Software Foundation; either version 2 of the License, or (at your option)
- * any later version.
- *
- * This program is distributed in the hope that it will be useful, but WITHOUT
- * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
- * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
- * more details.
- *
- * You should have received a copy of the GNU General Public License along
- * with this program; if not, see <http://www.gnu.org/licenses/>.
- */
 /*
  * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
  * Copyright (c) 2013 silvertunnel-ng.org
@@ -35,18 +18,53 @@
 
 package cf.monteux.silvertunnel.netlib.layer.tor.hiddenservice;
 
-import java.io.*;
-import java.util.HashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cf.monteux.silvertunnel.netlib.layer.tor.common.TorConfig;
 import cf.monteux.silvertunnel.netlib.layer.tor.directory.RendezvousServiceDescriptor;
+import cf.monteux.silvertunnel.netlib.util.TempfileStringStorage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * This class takes care of caching the Hiddenservice descriptors.
- * 
+ *
+ * Lookups are lock-free. The number of entries is limited by
+ * {@link TorConfig#getCacheHiddenServiceDescriptorSize()}; when the limit is
+ * exceeded, expired entries and then the least recently used entries are
+ * evicted. Entries expire with the publication time of their descriptor.
+ *
+ * Entries which are used frequently are fetched again shortly before they
+ * expire (if a {@link HiddenServiceDescriptorLoader} is set), so that popular
+ * hidden services don't pay for a directory lookup.
+ *
+ * The cache is persisted as append-only log (one record per added descriptor)
+ * which is compacted from time to time.
+ *
  * @author Tobias Boese
  *
  */
@@ -54,86 +72,355 @@ public final class HiddenServiceDescriptorCache
 {
 	/** class logger. */
 	private static final Logger logger = LogManager.getLogger(HiddenServiceDescriptorCache.class);
+
+	/** name of the cache file. */
+	private static final String CACHE_FILE_KEY = "hidden_service_descriptors.log";
+	/** the cache is trimmed to this fraction of its maximum size when evicting. */
+	private static final double EVICTION_TARGET_RATIO = 0.9;
+	/** refresh popular entries when they expire within this time. */
+	private static final long REFRESH_BEFORE_EXPIRATION_MS = 6L * 60L * 60L * 1000L;
+	/** an entry is popular if it was requested at least this often. */
+	private static final int REFRESH_MIN_HITS = 3;
+	/** an entry is popular only if it was requested within this time. */
+	private static final long REFRESH_MAX_IDLE_MS = 60L * 60L * 1000L;
+	/** interval of the maintenance task. */
+	private static final long MAINTENANCE_INTERVAL_MS = 60L * 1000L;
+	/** compact the cache file if it contains more records than this factor times the live entries. */
+	private static final int COMPACTION_FACTOR = 2;
+
 	/**
-	 * 
+	 *
 	 */
 	private HiddenServiceDescriptorCache()
 	{
 	}
-	/** instance of {@link HiddenServiceDescriptorCache}.*/
-	private static HiddenServiceDescriptorCache instance;
+
+	/** lazily created instance of {@link HiddenServiceDescriptorCache}. */
+	private static final class InstanceHolder
+	{
+		/** instance of {@link HiddenServiceDescriptorCache}.*/
+		private static final HiddenServiceDescriptorCache INSTANCE = new HiddenServiceDescriptorCache();
+
+		static
+		{
+			INSTANCE.init();
+		}
+	}
+
 	/**
 	 * @return get an instance of {@link HiddenServiceDescriptorCache}.
 	 */
-	public static synchronized HiddenServiceDescriptorCache getInstance()
+	public static HiddenServiceDescriptorCache getInstance()
 	{
-		if (instance == null)
+		return InstanceHolder.INSTANCE;
+	}
+
+	/** cached {@link RendezvousServiceDescriptor}s. */
+	private final ConcurrentMap<String, Entry> cachedRendezvousServiceDescriptors = new ConcurrentHashMap<String, Entry>();
+	/** used to refresh popular entries; null if no refreshing should be done. */
+	private volatile HiddenServiceDescriptorLoader loader;
+	/** guards the cache file. */
+	private final Object fileLock = new Object();
+	/** number of records in the cache file. */
+	private int recordsInFile;
+	/** guards the eviction. */
+	private final Object evictionLock = new Object();
+	/** runs the refresh and compaction. */
+	private Timer maintenanceTimer;
+
+	/**
+	 * A cached descriptor with its usage statistics.
+	 */
+	private static final class Entry
+	{
+		/** the cached descriptor. */
+		private final RendezvousServiceDescriptor descriptor;
+		/** the descriptor is not valid after this point in time. */
+		private final long expirationTime;
+		/** last time the entry was requested. */
+		private volatile long lastAccess;
+		/** number of requests since the entry was added. */
+		private final AtomicInteger hits = new AtomicInteger();
+		/** true while a refresh is running. */
+		private volatile boolean refreshing;
+
+		Entry(final RendezvousServiceDescriptor descriptor, final long now)
+		{
+			this.descriptor = descriptor;
+			this.expirationTime = descriptor.getExpirationTime();
+			this.lastAccess = now;
+		}
+
+		boolean isExpired(final long now)
 		{
-			instance = new HiddenServiceDescriptorCache();
-			instance.init();
-		}			
-		
-		return instance;
+			return !descriptor.isPublicationTimeValid(now);
+		}
 	}
-	/** cached {@link RendezvousServiceDescriptor}. */
-	private static Map<String, RendezvousServiceDescriptor> cachedRendezvousServiceDescriptors = new HashMap<String, RendezvousServiceDescriptor>();
 
 	/**
 	 * Init the cache.
-	 * 
+	 *
 	 * - Cleans the cache.
-	 * - if option in {@link TorConfig} is set it will load the saved Descriptors from disk into the cache if it is not older than 24h
+	 * - if option in {@link TorConfig} is set it will load the saved Descriptors from disk into the cache if they are still valid
+	 * - starts the maintenance task
 	 */
 	public synchronized void init()
 	{
 		cachedRendezvousServiceDescriptors.clear();
 		if (TorConfig.isCacheHiddenServiceDescriptor())
 		{
+			loadCacheFromDisk();
+		}
+		if (maintenanceTimer == null)
+		{
+			maintenanceTimer = new Timer("HiddenServiceDescriptorCache", true);
+			maintenanceTimer.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						removeExpiredEntries();
+						refreshPopularEntries();
+						compactIfNeeded();
+					}
+					catch (final Exception exception)
+					{
+						logger.warn("maintenance of hiddenservice descriptor cache failed", exception);
+					}
+				}
+			}, MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS);
+		}
+	}
+
+	/**
+	 * Set the loader used to refresh popular entries before they expire.
+	 *
+	 * @param loader the loader; null to disable refreshing
+	 */
+	public void setLoader(final HiddenServiceDescriptorLoader loader)
+	{
+		this.loader = loader;
+	}
+
+	/**
+	 * Replay the records of the cache file; the last record of an address wins.
+	 */
+	private void loadCacheFromDisk()
+	{
+		boolean damaged = false;
+		synchronized (fileLock)
+		{
+			recordsInFile = 0;
+			final long now = System.currentTimeMillis();
+			DataInputStream in = null;
 			try
 			{
-				FileInputStream fileInputStream = new FileInputStream(TorConfig.getTempDirectory() 
-						   											+ "\\"
-						   											+ TorConfig.FILENAME_PREFIX
-						   											+ "hidden_service_descriptor.cache");
-				ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-				cachedRendezvousServiceDescriptors = (Map<String, RendezvousServiceDescriptor>) objectInputStream.readObject();
-				objectInputStream.close();
-						   							
+				final BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(getCacheFile()));
+				in = new DataInputStream(buffered);
+				while (true)
+				{
+					buffered.mark(1);
+					if (buffered.read() < 0)
+					{
+						break; // end of file
+					}
+					buffered.reset();
+					final String z;
+					final byte[] data;
+					try
+					{
+						z = in.readUTF();
+						data = new byte[in.readInt()];
+						in.readFully(data);
+					}
+					catch (final EOFException exception)
+					{
+						// incomplete last record (e.g. crash while appending): rewrite the file
+						logger.info("cache file of hiddenservice descriptors is truncated");
+						damaged = true;
+						break;
+					}
+					recordsInFile++;
+					try
+					{
+						final ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(data));
+						final RendezvousServiceDescriptor descriptor = (RendezvousServiceDescriptor) objectInputStream.readObject();
+						if (descriptor.isPublicationTimeValid(now))
+						{
+							cachedRendezvousServiceDescriptors.put(z, new Entry(descriptor, now));
+						}
+						else
+						{
+							cachedRendezvousServiceDescriptors.remove(z);
+						}
+					}
+					catch (final Exception exception)
+					{
+						logger.debug("skipping unreadable hiddenservice descriptor record of {}", z, exception);
+					}
+				}
+				logger.debug("loaded {} cached hiddenservice descriptors from {} records",
+						cachedRendezvousServiceDescriptors.size(), recordsInFile);
 			}
-            catch (FileNotFoundException exception) {
-                logger.info("no cached hiddenservice descriptors found");
-            }
-			catch (Exception exception)
+			catch (final FileNotFoundException exception)
+			{
+				logger.info("no cached hiddenservice descriptors found");
+			}
+			catch (final Exception exception)
 			{
 				logger.warn("could not load cached hiddenservice descriptors because of exception", exception);
 			}
+			finally
+			{
+				closeQuietly(in);
+			}
+		}
+		evictIfNeeded();
+		if (damaged)
+		{
+			saveCacheToDisk();
+		}
+		else
+		{
+			compactIfNeeded();
 		}
 	}
+
 	/**
 	 * Saves the cache to disk.
+	 *
+	 * Writes a compacted cache file containing only the live entries.
+	 */
+	public void saveCacheToDisk()
+	{
+		if (!TorConfig.isCacheHiddenServiceDescriptor())
+		{
+			return; // dont save cache to disk
+		}
+		synchronized (fileLock)
+		{
+			logger.debug("saving {} cached hiddenservice descriptors to disk", cachedRendezvousServiceDescriptors.size());
+			DataOutputStream out = null;
+			try
+			{
+				final File file = getCacheFile();
+				final File tempFile = new File(file.getPath() + ".tmp");
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+				int records = 0;
+				for (final Map.Entry<String, Entry> entry : cachedRendezvousServiceDescriptors.entrySet())
+				{
+					writeRecord(out, entry.getKey(), entry.getValue().descriptor);
+					records++;
+				}
+				out.close();
+				out = null;
+				if (!tempFile.renameTo(file))
+				{
+					// renameTo() does not replace existing files on all platforms
+					if (!file.delete() || !tempFile.renameTo(file))
+					{
+						throw new IOException("could not replace " + file);
+					}
+				}
+				recordsInFile = records;
+			}
+			catch (final Exception exception)
+			{
+				logger.warn("cant save hiddenservice descriptor cache due to exception", exception);
+			}
+			finally
+			{
+				closeQuietly(out);
+			}
+		}
+	}
+
+	/**
+	 * Append a single record to the cache file.
 	 */
-	public synchronized void saveCacheToDisk()
+	private void appendToDisk(final String z, final RendezvousServiceDescriptor descriptor)
 	{
 		if (!TorConfig.isCacheHiddenServiceDescriptor())
 		{
 			return; // dont save cache to disk
 		}
-		logger.debug("saving {} cached hiddenservice descriptors to disk", cachedRendezvousServiceDescriptors.size());
-		try
+		synchronized (fileLock)
+		{
+			DataOutputStream out = null;
+			try
+			{
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getCacheFile(), true)));
+				writeRecord(out, z, descriptor);
+				out.close();
+				out = null;
+				recordsInFile++;
+			}
+			catch (final Exception exception)
+			{
+				logger.warn("cant append to hiddenservice descriptor cache due to exception", exception);
+			}
+			finally
+			{
+				closeQuietly(out);
+			}
+		}
+	}
+
+	/**
+	 * Write one record: the address followed by the length-prefixed serialized descriptor.
+	 */
+	private static void writeRecord(final DataOutputStream out,
+	                                final String z,
+	                                final RendezvousServiceDescriptor descriptor) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes);
+		objectOutputStream.writeObject(descriptor);
+		objectOutputStream.close();
+		out.writeUTF(z);
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	/**
+	 * Compact the cache file if it contains too many outdated records.
+	 */
+	private void compactIfNeeded()
+	{
+		final int live = cachedRendezvousServiceDescriptors.size();
+		final boolean needed;
+		synchronized (fileLock)
 		{
-			FileOutputStream fileOutputStream = new FileOutputStream(TorConfig.getTempDirectory() 
-																   + "\\"
-																   + TorConfig.FILENAME_PREFIX
-					                                               + "hidden_service_descriptor.cache");
-			ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-			objectOutputStream.writeObject(cachedRendezvousServiceDescriptors);
-			objectOutputStream.close();
+			needed = recordsInFile > COMPACTION_FACTOR * live + 1;
 		}
-		catch (Exception exception)
+		if (needed)
+		{
+			saveCacheToDisk();
+		}
+	}
+
+	private static File getCacheFile() throws IOException
+	{
+		return TempfileStringStorage.getTempfileFile(CACHE_FILE_KEY);
+	}
+
+	private static void closeQuietly(final Closeable closeable)
+	{
+		if (closeable != null)
 		{
-			logger.warn("cant save hiddenservice descriptor cache due to exception", exception);
+			try
+			{
+				closeable.close();
+			}
+			catch (final IOException exception)
+			{
+				logger.debug("could not close stream", exception);
+			}
 		}
 	}
+
 	/**
 	 * Add a {@link RendezvousServiceDescriptor} to the cache.
 	 * @param z the onion address without .onion
@@ -141,34 +428,153 @@ public final class HiddenServiceDescriptorCache
 	 */
 	public void put(final String z, final RendezvousServiceDescriptor descriptor)
 	{
+		if (descriptor == null)
+		{
+			return;
+		}
 		logger.debug("adding {} to cache", z);
-		cachedRendezvousServiceDescriptors.put(z, descriptor);
-		saveCacheToDisk();
+		final Entry entry = new Entry(descriptor, System.currentTimeMillis());
+		final Entry previous = cachedRendezvousServiceDescriptors.put(z, entry);
+		if (previous != null)
+		{
+			// keep the popularity of the address
+			entry.hits.set(previous.hits.get());
+		}
+		appendToDisk(z, descriptor);
+		evictIfNeeded();
 	}
+
 	/**
 	 * Try to get a cached {@link RendezvousServiceDescriptor}.
-	 * 
+	 *
 	 * @param z the onion address without .onion
 	 * @return {@link RendezvousServiceDescriptor} or null if not found/not valid anymore
 	 */
 	public RendezvousServiceDescriptor get(final String z)
 	{
-		RendezvousServiceDescriptor result = cachedRendezvousServiceDescriptors.get(z);
-		if (result == null)
+		final Entry entry = cachedRendezvousServiceDescriptors.get(z);
+		if (entry == null)
 		{
 			return null; // nothing found
 		}
-		if (result.isPublicationTimeValid())
+		final long now = System.currentTimeMillis();
+		if (!entry.isExpired(now))
 		{
 			logger.debug("found cached descriptor for {}", z);
-			return result; // valid so return it
+			entry.lastAccess = now;
+			entry.hits.incrementAndGet();
+			return entry.descriptor; // valid so return it
 		}
 		//not valid anymore so remove it
 		logger.debug("removing {} because its too old", z);
-		synchronized (cachedRendezvousServiceDescriptors) 
+		cachedRendezvousServiceDescriptors.remove(z, entry);
+		return null;
+	}
+
+	/**
+	 * @return the number of cached descriptors
+	 */
+	public int size()
+	{
+		return cachedRendezvousServiceDescriptors.size();
+	}
+
+	/**
+	 * Remove all entries which are not valid anymore.
+	 */
+	private void removeExpiredEntries()
+	{
+		final long now = System.currentTimeMillis();
+		for (final Map.Entry<String, Entry> entry : cachedRendezvousServiceDescriptors.entrySet())
 		{
-			cachedRendezvousServiceDescriptors.remove(z);
+			if (entry.getValue().isExpired(now))
+			{
+				cachedRendezvousServiceDescriptors.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Evict entries if the cache is larger than allowed:
+	 * first the expired entries, then the least recently used ones.
+	 */
+	private void evictIfNeeded()
+	{
+		final int maxSize = TorConfig.getCacheHiddenServiceDescriptorSize();
+		if (cachedRendezvousServiceDescriptors.size() <= maxSize)
+		{
+			return;
+		}
+		synchronized (evictionLock)
+		{
+			removeExpiredEntries();
+			final int targetSize = Math.max(1, (int) (maxSize * EVICTION_TARGET_RATIO));
+			final int toRemove = cachedRendezvousServiceDescriptors.size() - targetSize;
+			if (cachedRendezvousServiceDescriptors.size() <= maxSize || toRemove <= 0)
+			{
+				return;
+			}
+			final List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(cachedRendezvousServiceDescriptors.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>()
+			{
+				@Override
+				public int compare(final Map.Entry<String, Entry> o1, final Map.Entry<String, Entry> o2)
+				{
+					final long a1 = o1.getValue().lastAccess;
+					final long a2 = o2.getValue().lastAccess;
+					return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < toRemove && i < entries.size(); i++)
+			{
+				final Map.Entry<String, Entry> entry = entries.get(i);
+				cachedRendezvousServiceDescriptors.remove(entry.getKey(), entry.getValue());
+			}
+			logger.debug("evicted {} hiddenservice descriptors from cache", toRemove);
+		}
+	}
+
+	/**
+	 * Fetch popular entries again shortly before they expire.
+	 */
+	private void refreshPopularEntries()
+	{
+		final HiddenServiceDescriptorLoader currentLoader = loader;
+		if (currentLoader == null)
+		{
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		for (final Map.Entry<String, Entry> mapEntry : cachedRendezvousServiceDescriptors.entrySet())
+		{
+			final String z = mapEntry.getKey();
+			final Entry entry = mapEntry.getValue();
+			if (entry.refreshing
+					|| entry.expirationTime - now > REFRESH_BEFORE_EXPIRATION_MS
+					|| entry.hits.get() < REFRESH_MIN_HITS
+					|| now - entry.lastAccess > REFRESH_MAX_IDLE_MS)
+			{
+				continue;
+			}
+			entry.refreshing = true;
+			try
+			{
+				logger.debug("refreshing cached descriptor for {}", z);
+				final RendezvousServiceDescriptor descriptor = currentLoader.load(z);
+				if (descriptor != null && descriptor.getExpirationTime() > entry.expirationTime
+						&& cachedRendezvousServiceDescriptors.get(z) == entry)
+				{
+					put(z, descriptor);
+				}
+			}
+			catch (final Exception exception)
+			{
+				logger.debug("could not refresh cached descriptor for {}", z, exception);
+			}
+			finally
+			{
+				entry.refreshing = false;
+			}
 		}
-		return null;
 	}
 }
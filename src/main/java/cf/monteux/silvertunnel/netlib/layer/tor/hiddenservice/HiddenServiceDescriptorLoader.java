@@ -0,0 +1,44 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.hiddenservice;
+
+import java.io.IOException;
+
+import cf.monteux.silvertunnel.netlib.layer.tor.directory.RendezvousServiceDescriptor;
+
+/**
+ * Fetches a fresh {@link RendezvousServiceDescriptor} from the Tor network.
+ *
+ * Used by the {@link HiddenServiceDescriptorCache} to refresh popular entries
+ * before they expire.
+ *
+ * @author Tobias Boese
+ *
+ */
+public interface HiddenServiceDescriptorLoader
+{
+	/**
+	 * Load the descriptor of a hidden service.
+	 *
+	 * @param z the onion address without .onion
+	 * @return the descriptor; null if none could be found
+	 * @throws IOException if the descriptor could not be retrieved
+	 */
+	RendezvousServiceDescriptor load(String z) throws IOException;
+}
@@ -20,7 +20,6 @@ package cf.monteux.silvertunnel.netlib.layer.tor.stream;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.QueueHandler;
@@ -40,7 +39,7 @@ class QueueTor2JavaHandler implements QueueHandler
 
 	private final TCPStream stream;
 	/** read from tor and output to this stream. */
-	private PipedInputStream sin;
+	private SafePipedInputStream sin;
 	/** private end of this pipe. */
 	private PipedOutputStream fromtor;
 	/** as stop() is depreciated we use this toggle variable. */
@@ -74,6 +73,7 @@ class QueueTor2JavaHandler implements QueueHandler
 		{
 			logger.debug("got Exception : {}", e.getMessage(), e);
 		}
+		sin.writerClosed();
 	}
 
 	/** return TRUE, if cell was handled. */
@@ -94,12 +94,28 @@ class QueueTor2JavaHandler implements QueueHandler
 		}
 
 		final CellRelay relay = (CellRelay) cell;
+		if (stream.isConnecting())
+		{
+			// optimistic stream: answer to RELAY_BEGIN
+			if (relay.isTypeConnected())
+			{
+				stream.connected(relay);
+				return true;
+			}
+			else if (relay.isTypeEnd())
+			{
+				stream.connectRefused(relay);
+				return true;
+			}
+		}
 		if (relay.isTypeData())
 		{
 			logger.debug("QueueTor2JavaHandler.handleCell(): stream {} received data", stream.getId());
 			try
 			{
 				fromtor.write(relay.getData(), 0, relay.getLength());
+				// wake up the reader
+				fromtor.flush();
 			}
 			catch (final IOException e)
 			{
@@ -124,8 +140,34 @@ class QueueTor2JavaHandler implements QueueHandler
 		return false;
 	}
 
+	/**
+	 * Let reads fail after the stream could not be connected.
+	 */
+	void fail(final IOException failure)
+	{
+		this.stopped = true;
+		sin.writerFailed(failure);
+		try
+		{
+			fromtor.close();
+		}
+		catch (final Exception e)
+		{
+			logger.debug("got Exception : {}", e.getMessage(), e);
+		}
+	}
+
 	public InputStream getInputStream()
 	{
 		return sin;
 	}
+
+	/**
+	 * @param timeoutInMs
+	 *            maximum time a read waits for data; 0=no timeout
+	 */
+	void setReadTimeout(final int timeoutInMs)
+	{
+		sin.setReadTimeout(timeoutInMs);
+	}
 }
@@ -61,6 +61,17 @@ public final class ResolveStream extends TCPStream {
      * (reverse-DNS-lookup)
      */
     public List<NetAddress> resolve(final String hostname) throws TorException, IOException {
+        return resolveWithTtl(hostname).getAddresses();
+    }
+
+    /**
+     * creates a new stream and does an anonymous DNS-Lookup. <br>
+     *
+     * @param hostname a host name to be resolved, or for a reverse lookup:
+     *                 A.B.C.D.in-addr.arpa
+     * @return the answers together with the smallest TTL of them
+     */
+    public ResolvedAddresses resolveWithTtl(final String hostname) throws TorException, IOException {
         circuit.assignStreamId(this);
         // add resolved hostname to the history
         circuit.getStreamHistory().add(hostname);
@@ -80,7 +91,7 @@ public final class ResolveStream extends TCPStream {
         int len = buffer.getNextByteAsInt();
 
         byte[] value = buffer.getNextByteArray(len);
-        buffer.getNextInt(); // ignore the TTL for now
+        int ttlSeconds = toTtlSeconds(buffer.getNextInt());
 
         // check for error
         if (type == (byte) 0xf0) {
@@ -105,8 +116,19 @@ public final class ResolveStream extends TCPStream {
             len = buffer.getNextByteAsInt();
 
             value = buffer.getNextByteArray(len);
-            buffer.getNextInt(); // ignore the TTL for now
+            final int ttl = toTtlSeconds(buffer.getNextInt());
+            if (len > 0) {
+                ttlSeconds = Math.min(ttlSeconds, ttl);
+            }
         }
-        return result;
+        return new ResolvedAddresses(result, ttlSeconds);
+    }
+
+    /**
+     * @param ttl the TTL field of an answer (unsigned)
+     * @return the TTL in seconds, limited to Integer.MAX_VALUE
+     */
+    private static int toTtlSeconds(final int ttl) {
+        return ttl < 0 ? Integer.MAX_VALUE : ttl;
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.stream;
+
+import java.util.List;
+
+import cf.monteux.silvertunnel.netlib.api.NetAddress;
+
+/**
+ * Answer of a RELAY_RESOLVE request: the addresses and their time-to-live.
+ *
+ * @author Tobias Boese
+ */
+public final class ResolvedAddresses
+{
+	/** the resolved addresses (or host names for a reverse lookup). */
+	private final List<NetAddress> addresses;
+	/** smallest TTL of all answers in seconds. */
+	private final int ttlSeconds;
+
+	/**
+	 * @param addresses
+	 *            the resolved addresses
+	 * @param ttlSeconds
+	 *            smallest TTL of all answers in seconds
+	 */
+	public ResolvedAddresses(final List<NetAddress> addresses, final int ttlSeconds)
+	{
+		this.addresses = addresses;
+		this.ttlSeconds = ttlSeconds;
+	}
+
+	/**
+	 * @return the resolved addresses (or host names for a reverse lookup)
+	 */
+	public List<NetAddress> getAddresses()
+	{
+		return addresses;
+	}
+
+	/**
+	 * @return smallest TTL of all answers in seconds
+	 */
+	public int getTtlSeconds()
+	{
+		return ttlSeconds;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ResolvedAddresses(addresses=" + addresses + ",ttlSeconds=" + ttlSeconds + ")";
+	}
+}
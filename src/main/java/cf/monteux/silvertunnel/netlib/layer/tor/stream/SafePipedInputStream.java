@@ -18,7 +18,9 @@
 package cf.monteux.silvertunnel.netlib.layer.tor.stream;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PipedInputStream;
+import java.net.SocketTimeoutException;
 
 /**
  * this class is meant to simulate the behavior of a standard stream. It's
@@ -26,19 +28,80 @@ import java.io.PipedInputStream;
  * if the connection has been closed by the remote side, where a InputStream
  * would only return a 'null'.
  * 
+ * Reads can time out like reads of a socket with SO_TIMEOUT: they wait on the
+ * pipe buffer itself, the writer wakes them up by flushing.
+ * 
+ * If the writer failed (e.g. the stream could not be connected), reads throw
+ * an IOException once the buffered data is consumed.
+ * 
  * @author Lexi Pimenidis
  * @see PipedInputStream
  * @see InputStream
  */
 class SafePipedInputStream extends PipedInputStream
 {
+	/** maximum time a read waits for data; 0=no timeout. */
+	private volatile int readTimeout;
+	/** set if the writer closed the pipe. */
+	private volatile boolean writerClosed;
+	/** set if the writer failed. */
+	private volatile IOException failure;
+
+	/**
+	 * @param timeoutInMs
+	 *            maximum time a read waits for data; 0=no timeout
+	 */
+	void setReadTimeout(final int timeoutInMs)
+	{
+		this.readTimeout = timeoutInMs;
+	}
+
+	/**
+	 * Called after the connected PipedOutputStream was closed.
+	 */
+	synchronized void writerClosed()
+	{
+		writerClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called instead of {@link #writerClosed()} if no data will ever come.
+	 * 
+	 * @param failure
+	 *            reason, thrown by reads
+	 */
+	synchronized void writerFailed(final IOException failure)
+	{
+		this.failure = failure;
+		writerClosed();
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the writer failed
+	 */
+	private void checkFailure() throws IOException
+	{
+		final IOException e = failure;
+		if (e != null)
+		{
+			throw new IOException(e.getMessage(), e);
+		}
+	}
 
 	@Override
 	public int read() throws IOException
 	{
 		try
 		{
-			return super.read();
+			awaitData();
+			final int result = super.read();
+			if (result < 0)
+			{
+				checkFailure();
+			}
+			return result;
 		}
 		catch (final IOException e)
 		{
@@ -47,6 +110,7 @@ class SafePipedInputStream extends PipedInputStream
 			final String msg = e.getMessage();
 			if (msg != null && msg.equals("Write end dead"))
 			{
+				checkFailure();
 				return -1;
 			}
 			else
@@ -61,7 +125,13 @@ class SafePipedInputStream extends PipedInputStream
 	{
 		try
 		{
-			return super.read(b, off, len);
+			awaitData();
+			final int result = super.read(b, off, len);
+			if (result < 0)
+			{
+				checkFailure();
+			}
+			return result;
 		}
 		catch (final IOException e)
 		{
@@ -72,6 +142,7 @@ class SafePipedInputStream extends PipedInputStream
 					&& (msg.equals("Write end dead") || msg
 							.equals("Pipe closed")))
 			{
+				checkFailure();
 				b = null;
 				return 0;
 			}
@@ -81,4 +152,37 @@ class SafePipedInputStream extends PipedInputStream
 			}
 		}
 	}
+
+	/**
+	 * Wait until data is available or the writer closed the pipe.
+	 * 
+	 * @throws SocketTimeoutException
+	 *             if the read timeout expired
+	 */
+	private synchronized void awaitData() throws IOException
+	{
+		final int timeout = readTimeout;
+		if (timeout <= 0)
+		{
+			return;
+		}
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (available() == 0 && !writerClosed)
+		{
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				throw new SocketTimeoutException("Read timed out");
+			}
+			try
+			{
+				wait(remaining);
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for data");
+			}
+		}
+	}
 }
@@ -39,9 +39,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.impl.ReadTimeoutNetSocket;
 import cf.monteux.silvertunnel.netlib.layer.tor.api.Router;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.Circuit;
 import cf.monteux.silvertunnel.netlib.layer.tor.circuit.Queue;
@@ -74,7 +79,7 @@ import org.apache.logging.log4j.Logger;
  * @author Michael Koellejan
  * @author Tobias Boese
  */
-public class TCPStream implements Stream, NetSocket
+public class TCPStream implements Stream, ReadTimeoutNetSocket
 {
 	/** */
 	private static final Logger logger = LogManager.getLogger(TCPStream.class);
@@ -99,6 +104,24 @@ public class TCPStream implements Stream, NetSocket
 	private final int queueTimeout = TorConfig.queueTimeoutStreamBuildup;
 	// TODO: do we need this?
 	public static final int QUEUE_TIMEOUNT2 = 20;
+	/** optimistic data: at most this many bytes are sent before RELAY_CONNECTED. */
+	private static final int OPTIMISTIC_DATA_MAX_BYTES = 32 * CellRelay.RELAY_DATA_SIZE;
+	/**
+	 * reasons of RELAY_END, after which an optimistic stream is tried again on
+	 * another circuit (i.e. not caused by the destination itself).
+	 */
+	private static final int[] REPLAY_REASONS = { 1, 4, 5, 7, 8, 9, 10, 11 };
+	/** replays optimistic streams: not on the thread that dispatches cells. */
+	private static final ExecutorService REPLAY_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "TCPStream replay");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 
 	/** the {@link Circuit} which this {@link Stream} is attached to. */
 	protected transient Circuit circuit;
@@ -107,8 +130,8 @@ public class TCPStream implements Stream, NetSocket
 	/** receives incoming data. */
 	protected Queue queue;
 	private InetAddress resolvedAddress;
-	// TODO: private TCPStreamProperties sp;
-	private boolean established;
+	private TCPStreamProperties sp;
+	private volatile boolean established;
 	private boolean closed;
 
 	/** set by CellRelay. descriptive Strings are in CellRelay.REASON_TO_STRING */
@@ -126,6 +149,20 @@ public class TCPStream implements Stream, NetSocket
 	/** last time, a cell was send. */
 	private long lastCellSentDate;
 
+	/** begin of the stream setup, used for the ranking of the circuit. */
+	private long startSetupTime;
+	/** true while an optimistic stream waits for RELAY_CONNECTED. */
+	private volatile boolean connecting;
+	/** set if an optimistic stream could not be connected. */
+	private IOException connectFailure;
+	/** guards the optimistic state: data sent so far and the replay. */
+	private final transient Object connectLock = new Object();
+	/** data sent before RELAY_CONNECTED, resent in case of a replay. */
+	private final List<byte[]> optimisticData = new ArrayList<byte[]>();
+	private int optimisticDataBytes;
+	/** circuits to replay an optimistic stream on. */
+	private List<Circuit> replayCircuits;
+
 	/**
 	 * creates a stream on top of a existing circuit. users and programmers
 	 * should never call this function, but Tor.connect() instead.
@@ -142,17 +179,49 @@ public class TCPStream implements Stream, NetSocket
 																		   TorException, 
 																		   TorNoAnswerException
 	{
-		// TODO: this.sp = sp;
+		this(circuit, sp, null);
+	}
+
+	/**
+	 * creates a stream on top of a existing circuit. users and programmers
+	 * should never call this function, but Tor.connect() instead.
+	 * 
+	 * With {@link TCPStreamProperties#isOptimisticData()} the constructor
+	 * returns right after sending RELAY_BEGIN; data written to the stream is
+	 * sent at once (optimistic data, proposal 181). If the exit refuses the
+	 * stream for a reason not caused by the destination, the stream is tried
+	 * again on the next replay circuit. Otherwise reads and writes fail with
+	 * an IOException.
+	 * 
+	 * @param circuit
+	 *            the circuit to build the stream through
+	 * @param sp
+	 *            the host etc. to connect to
+	 * @param replayCircuits
+	 *            circuits to try if the exit refuses an optimistic stream; may
+	 *            be null
+	 * @see Tor
+	 * @see Circuit
+	 * @see TCPStreamProperties
+	 */
+	public TCPStream(final Circuit circuit, final TCPStreamProperties sp, final List<Circuit> replayCircuits) throws IOException,
+																		   TorException,
+																		   TorNoAnswerException
+	{
+		this.sp = sp;
 		established = false;
 		created = System.currentTimeMillis();
 		lastAction = created;
 		lastCellSentDate = created;
 		// stream establishment duration
 		int setupDuration;
-		long startSetupTime;
 
 		// attach stream to circuit
 		this.circuit = circuit;
+		if (!sp.isConnectToDirServer() && !circuit.claimIsolation(sp.getIsolationKey()))
+		{
+			throw new TorException("TCPStream: " + circuit + " is isolated for other streams");
+		}
 		circuit.assignStreamId(this);
 		queue = new Queue(queueTimeout);
 		closed = false;
@@ -163,6 +232,28 @@ public class TCPStream implements Stream, NetSocket
 		}
 
 		startSetupTime = System.currentTimeMillis();
+		if (sp.isOptimisticData() && !sp.isConnectToDirServer())
+		{
+			// don't wait for RELAY_CONNECTED: QueueTor2JavaHandler reports it
+			this.replayCircuits = replayCircuits == null ? new ArrayList<Circuit>() : new ArrayList<Circuit>(replayCircuits);
+			connecting = true;
+			qhT2J = new QueueTor2JavaHandler(this);
+			this.queue.addHandler(qhT2J);
+			outputStream = new TCPStreamOutputStream(this);
+			try
+			{
+				sendCell(new CellRelayBegin(this, sp));
+			}
+			catch (final TorException e)
+			{
+				connecting = false;
+				circuit.reportStreamFailure(this);
+				closed = true;
+				close(true);
+				throw e;
+			}
+			return;
+		}
 		if (sp.isConnectToDirServer())
 		{
 			// connected to a dir server
@@ -212,38 +303,7 @@ public class TCPStream implements Stream, NetSocket
 
 		setupDuration = (int) (System.currentTimeMillis() - startSetupTime);
 
-		// store resolved IP in TCPStreamProperties
-		switch (relay.getLength())
-		{
-			case 4 + 4:
-				// IPv4 address
-				final byte[] ip = new byte[4];
-				System.arraycopy(relay.getData(), 0, ip, 0, ip.length);
-				try
-				{
-					resolvedAddress = InetAddress.getByAddress(ip);
-					sp.setAddr(resolvedAddress);
-					sp.setAddrResolved(true);
-					if (logger.isDebugEnabled())
-					{
-						logger.debug("TCPStream: storing resolved IP "
-							+ resolvedAddress.toString());
-					}
-				}
-				catch (final IOException e)
-				{
-					logger.info("unexpected for resolved ip={}", Arrays.toString(ip), e);
-				}
-				break;
-			case 4 + 1 + 16 + 4:
-				// IPv6 address
-				// TODO: not yet implemented
-                logger.warn("IPv6 not implemented yet");
-				break;
-			default:
-				logger.error("this should not happen, unexpected length received : {}", relay.getLength());
-				break;
-		}
+		storeResolvedAddress(relay);
 
 		// create reading threads to relay between user-side and tor-side
 		// tor2java = new TCPStreamThreadTor2Java(this);
@@ -345,11 +405,350 @@ public class TCPStream implements Stream, NetSocket
 	protected TCPStream(final Circuit circuit)
 	{
 		this.circuit = circuit;
+		created = System.currentTimeMillis();
+		lastAction = created;
+		lastCellSentDate = created;
 	}
+	/**
+	 * store resolved IP of RELAY_CONNECTED in TCPStreamProperties.
+	 */
+	private void storeResolvedAddress(final CellRelay relay)
+	{
+		switch (relay.getLength())
+		{
+			case 4 + 4:
+				// IPv4 address
+				final byte[] ip = new byte[4];
+				System.arraycopy(relay.getData(), 0, ip, 0, ip.length);
+				try
+				{
+					resolvedAddress = InetAddress.getByAddress(ip);
+					sp.setAddr(resolvedAddress);
+					sp.setAddrResolved(true);
+					if (logger.isDebugEnabled())
+					{
+						logger.debug("TCPStream: storing resolved IP "
+							+ resolvedAddress.toString());
+					}
+				}
+				catch (final IOException e)
+				{
+					logger.info("unexpected for resolved ip={}", Arrays.toString(ip), e);
+				}
+				break;
+			case 4 + 1 + 16 + 4:
+				// IPv6 address
+				// TODO: not yet implemented
+                logger.warn("IPv6 not implemented yet");
+				break;
+			case 0:
+				// no address sent (allowed by tor-spec.txt 6.2)
+				break;
+			default:
+				logger.error("this should not happen, unexpected length received : {}", relay.getLength());
+				break;
+		}
+	}
+
+	// /////////////////////////////////////////////////////
+	// optimistic data
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * @return true while an optimistic stream waits for RELAY_CONNECTED
+	 */
+	boolean isConnecting()
+	{
+		return connecting;
+	}
+
+	/**
+	 * Called by QueueTor2JavaHandler when an optimistic stream received
+	 * RELAY_CONNECTED.
+	 */
+	void connected(final CellRelay relay)
+	{
+		final int setupDuration = (int) (System.currentTimeMillis() - startSetupTime);
+		storeResolvedAddress(relay);
+		synchronized (connectLock)
+		{
+			if (!connecting)
+			{
+				return;
+			}
+			connecting = false;
+			optimisticData.clear();
+			optimisticDataBytes = 0;
+			replayCircuits = null;
+			established = true;
+			connectLock.notifyAll();
+		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("TCPStream: build optimistic stream " + toString() + " within " + setupDuration + " ms");
+		}
+		// attach stream to history
+		try
+		{
+			circuit.registerStream(sp, setupDuration);
+		}
+		catch (final TorException e)
+		{
+			// runs on the dispatcher: fail the stream instead of throwing.
+			// The exit knows the stream, so close() sends RELAY_END.
+			logger.warn("TCPStream: could not register optimistic stream {}: {}", toString(), e.getMessage());
+			final IOException failure = new IOException("TCPStream: could not register stream: " + e.getMessage());
+			outputStream.fail(failure);
+			qhT2J.fail(failure);
+			close(false);
+			return;
+		}
+		circuit.getTorEventService().fireEvent(
+				new TorEvent(TorEvent.STREAM_BUILD, this, "Stream build: "
+						+ toString()));
+	}
+
+	/**
+	 * Called by QueueTor2JavaHandler when the exit answered RELAY_BEGIN of an
+	 * optimistic stream with RELAY_END: replay the stream on another circuit
+	 * or fail.
+	 */
+	void connectRefused(final CellRelay relay)
+	{
+		final int reason = relay.getPayload()[0] & 0xff;
+		closedForReason = reason;
+		circuit.reportStreamFailure(this);
+		if (isReplayReason(reason))
+		{
+			final Circuit next = nextReplayCircuit();
+			if (next != null)
+			{
+				if (logger.isDebugEnabled())
+				{
+					logger.debug("TCPStream: replay " + toString() + " refused with " + relay.getReasonForClosing());
+				}
+				final Circuit previous = circuit;
+				REPLAY_EXECUTOR.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						replay(previous, next);
+					}
+				});
+				return;
+			}
+		}
+		closeEndedByExit(new IOException("TCPStream: exit refused the connection: " + relay.getReasonForClosing()));
+	}
+
+	/**
+	 * Close an optimistic stream the exit has already ended: no RELAY_END is
+	 * sent back, also not by an application thread woken up by the failure.
+	 */
+	private void closeEndedByExit(final IOException failure)
+	{
+		closed = true;
+		failConnect(failure);
+		close(true);
+	}
+
+	private static boolean isReplayReason(final int reason)
+	{
+		for (final int replayReason : REPLAY_REASONS)
+		{
+			if (reason == replayReason)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next usable replay circuit; null=none left
+	 */
+	private Circuit nextReplayCircuit()
+	{
+		synchronized (connectLock)
+		{
+			while (replayCircuits != null && !replayCircuits.isEmpty())
+			{
+				final Circuit next = replayCircuits.remove(0);
+				if (!next.isClosed() && next.isEstablished())
+				{
+					return next;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Move the stream from the previous to the next circuit and send
+	 * RELAY_BEGIN and the data sent so far again.
+	 */
+	private void replay(final Circuit previous, final Circuit first)
+	{
+		previous.removeStream(streamId);
+		Circuit next = first;
+		while (next != null)
+		{
+			synchronized (connectLock)
+			{
+				if (!connecting)
+				{
+					// failed meanwhile, e.g. closed by the application
+					return;
+				}
+				try
+				{
+					if (!next.claimIsolation(sp.getIsolationKey()))
+					{
+						throw new TorException("TCPStream: " + next + " is isolated for other streams");
+					}
+					circuit = next;
+					streamId = 0;
+					next.assignStreamId(this);
+					startSetupTime = System.currentTimeMillis();
+					lastAction = startSetupTime;
+					streamLevelFlowControlSend = STREAM_LEVEL_FLOW_WINDOW;
+					streamLevelFlowControlRecv = STREAM_LEVEL_FLOW_WINDOW;
+					// under connectLock to keep BEGIN ahead of new data; the
+					// remembered data fits into the fresh window, so this
+					// never waits for a SENDME
+					transmit(new CellRelayBegin(this, sp));
+					for (final byte[] data : optimisticData)
+					{
+						final CellRelayData cell = new CellRelayData(this);
+						cell.setLength(data.length);
+						System.arraycopy(data, 0, cell.getData(), 0, data.length);
+						transmit(cell);
+					}
+					return;
+				}
+				catch (final Exception e)
+				{
+					logger.info("TCPStream: replay of stream on {} failed: {}", next, e.getMessage());
+					next.removeStream(streamId);
+				}
+			}
+			next = nextReplayCircuit();
+		}
+		closeEndedByExit(new IOException("TCPStream: exit refused the connection, replay not possible: " + closedForReason));
+	}
+
+	/**
+	 * Let pending and future reads and writes of an optimistic stream fail.
+	 */
+	private void failConnect(final IOException failure)
+	{
+		synchronized (connectLock)
+		{
+			if (!connecting)
+			{
+				return;
+			}
+			connecting = false;
+			connectFailure = failure;
+			optimisticData.clear();
+			optimisticDataBytes = 0;
+			replayCircuits = null;
+			connectLock.notifyAll();
+		}
+		logger.info("TCPStream: optimistic stream {} failed: {}", toString(), failure.getMessage());
+		outputStream.fail(failure);
+		qhT2J.fail(failure);
+	}
+
+	/**
+	 * Remember a data cell of an optimistic stream for a replay. Waits while
+	 * too much data is unconfirmed.
+	 */
+	private void rememberOptimisticData(final CellRelayData cell) throws TorException
+	{
+		// safety net: the stream is closed after this time by CircuitScheduler
+		final long deadline = System.currentTimeMillis() + 2L * queueTimeout * 1000 + 1000;
+		while (connecting && optimisticDataBytes + cell.getLength() > OPTIMISTIC_DATA_MAX_BYTES)
+		{
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				throw new TorException("TCPStream: timeout while waiting for RELAY_CONNECTED");
+			}
+			try
+			{
+				connectLock.wait(remaining);
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new TorException("interrupted while waiting for RELAY_CONNECTED", e);
+			}
+		}
+		if (connectFailure != null)
+		{
+			throw new TorException(connectFailure.getMessage(), connectFailure);
+		}
+		if (connecting)
+		{
+			final byte[] data = new byte[cell.getLength()];
+			System.arraycopy(cell.getData(), 0, data, 0, data.length);
+			optimisticData.add(data);
+			optimisticDataBytes += data.length;
+		}
+	}
+
+	// /////////////////////////////////////////////////////
+	// cells
+	// /////////////////////////////////////////////////////
+
 	/** used for waiting for sendme cell. */
 	private final transient Object waitForSendme = new Object();
 	@Override
 	public void sendCell(final Cell cell) throws TorException
+	{
+		if (connecting && cell instanceof CellRelayData)
+		{
+			final Circuit target;
+			synchronized (connectLock)
+			{
+				if (connecting)
+				{
+					rememberOptimisticData((CellRelayData) cell);
+					target = circuit;
+				}
+				else
+				{
+					target = null;
+				}
+			}
+			if (target != null)
+			{
+				// transmit without connectLock: it can wait for a SENDME and
+				// the dispatcher needs the lock in connected(). The cell stays
+				// on the circuit it was built for - a replay sends the
+				// remembered copy on the next one.
+				transmit(cell, target);
+				return;
+			}
+		}
+		transmit(cell);
+	}
+
+	/** send a cell without remembering it for a replay. */
+	private void transmit(final Cell cell) throws TorException
+	{
+		transmit(cell, circuit);
+	}
+
+	/**
+	 * send a cell without remembering it for a replay.
+	 * 
+	 * @param target
+	 *            the circuit to send the cell on
+	 */
+	private void transmit(final Cell cell, final Circuit target) throws TorException
 	{
 		// update 'action'-timestamp, if not padding cell
 		lastCellSentDate = System.currentTimeMillis();
@@ -377,10 +776,15 @@ public class TCPStream implements Stream, NetSocket
 		// send cell
 		try
 		{
-			circuit.sendCell(cell);
+			target.sendCell(cell);
 		}
 		catch (final IOException e)
 		{
+			if (connecting)
+			{
+				// not connected yet: a replay may follow
+				throw new TorException(e);
+			}
 			// if there's an error in sending a cell, close this stream
 			this.circuit.reportStreamFailure(this);
 			close(false);
@@ -389,6 +793,7 @@ public class TCPStream implements Stream, NetSocket
 	}
 
 	/** send a stream-layer dummy. */
+	@Override
 	public void sendKeepAlive()
 	{
 		try
@@ -429,6 +834,10 @@ public class TCPStream implements Stream, NetSocket
 		{
 			logger.debug("TCPStream.close(): closing stream " + toString());
 		}
+		if (connecting)
+		{
+			failConnect(new IOException("TCPStream: closed before the exit confirmed the connection"));
+		}
 		circuit.getTorEventService().fireEvent(
 				new TorEvent(TorEvent.STREAM_CLOSED, this, "Stream closed: "
 						+ toString()));
@@ -480,6 +889,18 @@ public class TCPStream implements Stream, NetSocket
 		return qhT2J.getInputStream();
 	}
 
+	/**
+	 * Reads of the InputStream wait for the next data cell at most this long.
+	 * 
+	 * @see ReadTimeoutNetSocket#setReadTimeout(int)
+	 */
+	@Override
+	public boolean setReadTimeout(final int timeoutInMs)
+	{
+		qhT2J.setReadTimeout(timeoutInMs);
+		return true;
+	}
+
 	/**
 	 * use this to transmit data through the Tor-network
 	 * 
@@ -621,10 +1042,12 @@ public class TCPStream implements Stream, NetSocket
 		return resolvedAddress;
 	}
 
-	/*
-	 * TODO public TCPStreamProperties getSp() { return sp; }
-	 */
+	public TCPStreamProperties getSp()
+	{
+		return sp;
+	}
 
+	@Override
 	public boolean isEstablished()
 	{
 		return established;
@@ -648,6 +1071,7 @@ public class TCPStream implements Stream, NetSocket
 		return created;
 	}
 
+	@Override
 	public long getLastAction()
 	{
 		return lastAction;
@@ -64,6 +64,8 @@ class TCPStreamOutputStream extends OutputStream
 	private PipedInputStream fromjava;
 	/** as stop() is depreciated we use this toggle variable. */
 	private boolean stopped;
+	/** set if the stream could not be connected. */
+	private volatile IOException failure;
 	private final byte[] buffer;
 	private int bufferFilled;
 
@@ -90,6 +92,17 @@ class TCPStreamOutputStream extends OutputStream
 		this.stopped = true;
 	}
 
+	/**
+	 * Let writes fail after the stream could not be connected.
+	 * 
+	 * @param failure
+	 *            reason, thrown by writes
+	 */
+	void fail(final IOException failure)
+	{
+		this.failure = failure;
+	}
+
 	@Override
 	public void write(final int b) throws IOException
 	{
@@ -101,6 +114,10 @@ class TCPStreamOutputStream extends OutputStream
 	@Override
 	public synchronized void flush() throws IOException
 	{
+		if (failure != null)
+		{
+			throw new IOException(failure.getMessage(), failure);
+		}
 		if (stopped)
 		{
 			// do not throw new
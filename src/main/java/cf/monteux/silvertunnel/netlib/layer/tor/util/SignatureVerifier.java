@@ -0,0 +1,261 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.layer.tor.util;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Verifies RSA signatures of directory documents (consensus, authority key
+ * certificates, hidden service descriptors).
+ *
+ * Successful verifications are remembered by the digest of the signed data,
+ * the signature and the signing key, so a document which is parsed again (e.g.
+ * reloaded from the local cache or fetched again) is not verified again. The
+ * remembered results are kept in memory only: after a restart every document
+ * read from disk is verified again, so a manipulated local cache can not be
+ * accepted without RSA check.
+ *
+ * Several signatures of the same document are verified in parallel and the
+ * document is hashed only once.
+ *
+ * @author Tobias Boese
+ */
+public final class SignatureVerifier
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(SignatureVerifier.class);
+
+	/** maximum number of remembered verifications; the oldest are dropped. */
+	private static final int MAX_VERIFIED_SIGNATURES = 2048;
+	/** digest of the cache keys. */
+	private static final String CACHE_KEY_DIGEST_ALGORITHM = "SHA-256";
+
+	/** key=hex cache key, in order of insertion; guarded by itself. */
+	private static final Map<String, Boolean> verifiedSignatures = new LinkedHashMap<String, Boolean>()
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest)
+		{
+			return size() > MAX_VERIFIED_SIGNATURES;
+		}
+	};
+
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong verifications = new AtomicLong();
+
+	/** executor of the parallel verifications; created on first use. */
+	private static ExecutorService executor;
+
+	private SignatureVerifier()
+	{
+	}
+
+	/**
+	 * Check one signature.
+	 *
+	 * @param signature
+	 *            signature to check
+	 * @param signingKey
+	 *            public key of the signer
+	 * @param data
+	 *            the signed data
+	 * @return true, if the signature is correct
+	 */
+	public static boolean verifySignature(final byte[] signature, final PublicKey signingKey, final byte[] data)
+	{
+		return verifySignatureWithHash(signature, signingKey, Encryption.getDigest(data));
+	}
+
+	/**
+	 * Check several signatures of the same data in parallel.
+	 *
+	 * @param signatures
+	 *            signatures to check
+	 * @param signingKeys
+	 *            public key of the signer of signatures[i]
+	 * @param data
+	 *            the signed data
+	 * @return result[i]=true if signatures[i] is correct
+	 */
+	public static boolean[] verifySignatures(final List<byte[]> signatures, final List<? extends PublicKey> signingKeys, final byte[] data)
+	{
+		return verifySignaturesWithHash(signatures, signingKeys, Encryption.getDigest(data));
+	}
+
+	/**
+	 * Check several signatures of the same data in parallel.
+	 *
+	 * @param signatures
+	 *            signatures to check
+	 * @param signingKeys
+	 *            public key of the signer of signatures[i]
+	 * @param dataDigest
+	 *            the already calculated SHA-1 digest of the signed data
+	 * @return result[i]=true if signatures[i] is correct
+	 */
+	public static boolean[] verifySignaturesWithHash(final List<byte[]> signatures,
+	                                                 final List<? extends PublicKey> signingKeys,
+	                                                 final byte[] dataDigest)
+	{
+		final boolean[] result = new boolean[signatures.size()];
+		if (signatures.size() <= 1)
+		{
+			for (int i = 0; i < result.length; i++)
+			{
+				result[i] = verifySignatureWithHash(signatures.get(i), signingKeys.get(i), dataDigest);
+			}
+			return result;
+		}
+		final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(signatures.size());
+		for (int i = 0; i < result.length; i++)
+		{
+			final byte[] signature = signatures.get(i);
+			final PublicKey signingKey = signingKeys.get(i);
+			futures.add(getExecutor().submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call()
+				{
+					return verifySignatureWithHash(signature, signingKey, dataDigest);
+				}
+			}));
+		}
+		for (int i = 0; i < result.length; i++)
+		{
+			try
+			{
+				result[i] = futures.get(i).get();
+			}
+			catch (final ExecutionException e)
+			{
+				logger.debug("signature verification failed with exception", e.getCause());
+				result[i] = false;
+			}
+			catch (final InterruptedException e)
+			{
+				logger.debug("interrupted while waiting for signature verification");
+				Thread.currentThread().interrupt();
+				result[i] = false;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check one signature.
+	 *
+	 * @param signature
+	 *            signature to check
+	 * @param signingKey
+	 *            public key of the signer
+	 * @param dataDigest
+	 *            the already calculated SHA-1 digest of the signed data
+	 * @return true, if the signature is correct
+	 */
+	public static boolean verifySignatureWithHash(final byte[] signature, final PublicKey signingKey, final byte[] dataDigest)
+	{
+		if (signature == null || signingKey == null || dataDigest == null)
+		{
+			return false;
+		}
+		final String cacheKey = getCacheKey(signature, signingKey, dataDigest);
+		synchronized (verifiedSignatures)
+		{
+			if (verifiedSignatures.containsKey(cacheKey))
+			{
+				cacheHits.incrementAndGet();
+				return true;
+			}
+		}
+		verifications.incrementAndGet();
+		final boolean result = Encryption.verifySignatureWithHash(signature, signingKey, dataDigest);
+		if (result)
+		{
+			synchronized (verifiedSignatures)
+			{
+				verifiedSignatures.put(cacheKey, Boolean.TRUE);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of signatures which were accepted without RSA operation
+	 */
+	public static long getCacheHits()
+	{
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return number of signatures which were verified with RSA operation
+	 */
+	public static long getVerifications()
+	{
+		return verifications.get();
+	}
+
+	private static String getCacheKey(final byte[] signature, final PublicKey signingKey, final byte[] dataDigest)
+	{
+		final byte[] encodedKey = signingKey.getEncoded();
+		final byte[] input = new byte[dataDigest.length + signature.length + (encodedKey == null ? 0 : encodedKey.length)];
+		System.arraycopy(dataDigest, 0, input, 0, dataDigest.length);
+		System.arraycopy(signature, 0, input, dataDigest.length, signature.length);
+		if (encodedKey != null)
+		{
+			System.arraycopy(encodedKey, 0, input, dataDigest.length + signature.length, encodedKey.length);
+		}
+		return Encoding.toHexStringNoColon(Encryption.getDigest(CACHE_KEY_DIGEST_ALGORITHM, input));
+	}
+
+	private static synchronized ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "SignatureVerifier");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -20,12 +20,25 @@ package cf.monteux.silvertunnel.netlib.nameservice.tor;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import cf.monteux.silvertunnel.netlib.api.NetAddress;
 import cf.monteux.silvertunnel.netlib.api.NetAddressNameService;
 import cf.monteux.silvertunnel.netlib.api.util.IpNetAddress;
 import cf.monteux.silvertunnel.netlib.layer.tor.clientimpl.Tor;
+import cf.monteux.silvertunnel.netlib.layer.tor.stream.ResolvedAddresses;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -33,6 +46,11 @@ import org.apache.logging.log4j.Logger;
  * NetAddressNameService that resolves queries through the Tor anonymity
  * network. The DNS requests are sent and received by a tor server.
  * 
+ * Resolved names are cached with the TTL returned by the exit node (limited
+ * to {@link #MIN_TTL_SECONDS}..{@link #MAX_TTL_SECONDS}). Concurrent lookups
+ * of the same name share one request; lookups of different names are spread
+ * over the open circuits.
+ * 
  * To get an instance use TorNetLayer.getTorNetAddressNameService().
  * 
  * @author hapke
@@ -42,9 +60,44 @@ public class TorNetAddressNameService implements NetAddressNameService
 	/** */
 	private static final Logger logger = LogManager.getLogger(TorNetAddressNameService.class);
 
+	/** resolved names are cached at least this time. */
+	static final int MIN_TTL_SECONDS = 60;
+	/** resolved names are cached at most this time. */
+	static final int MAX_TTL_SECONDS = 60 * 60;
+	/** names which could not be resolved are cached this time. */
+	private static final int NEGATIVE_TTL_SECONDS = 60;
+	/** maximum number of cached names. */
+	private static final int MAX_ELEMENTS_IN_CACHE = 1000;
+	/** number of threads used by {@link #prefetch(Collection)}. */
+	private static final int PREFETCH_THREADS = 8;
+
 	/** {@link Tor} instance used for communications. */
 	private final Tor tor;
 
+	/** key=lower case host name. */
+	private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	/** resolves which are running right now; key=lower case host name. */
+	private final ConcurrentMap<String, FutureTask<NetAddress[]>> inFlight = new ConcurrentHashMap<String, FutureTask<NetAddress[]>>();
+	/** executes the prefetches; created on demand. */
+	private ExecutorService prefetchExecutor;
+
+	/**
+	 * A cached answer.
+	 */
+	private static final class CacheEntry
+	{
+		/** resolved addresses; null for a name which could not be resolved. */
+		private final NetAddress[] addresses;
+		/** the entry is valid until this point in time. */
+		private final long expirationTime;
+
+		CacheEntry(final NetAddress[] addresses, final long expirationTime)
+		{
+			this.addresses = addresses;
+			this.expirationTime = expirationTime;
+		}
+	}
+
 	/**
 	 * This constructor is only for internal use.
 	 * 
@@ -68,23 +121,109 @@ public class TorNetAddressNameService implements NetAddressNameService
 	@Override
 	public NetAddress[] getAddressesByName(final String hostname) throws UnknownHostException
 	{
+		if (hostname == null)
+		{
+			throw new UnknownHostException("hostname=null");
+		}
+		final String name = hostname.toLowerCase(Locale.ENGLISH);
+
+		// look for the result in the cache
+		final CacheEntry cached = cache.get(name);
+		if (cached != null)
+		{
+			if (cached.expirationTime > System.currentTimeMillis())
+			{
+				if (cached.addresses == null)
+				{
+					throw new UnknownHostException("hostname=\"" + hostname + "\" could be resolved in cache as negative result");
+				}
+				return cached.addresses.clone();
+			}
+			cache.remove(name, cached);
+		}
+
+		checkNetlibTorLoop();
+
+		// share the resolve with concurrent lookups of the same name
+		FutureTask<NetAddress[]> task = new FutureTask<NetAddress[]>(new Callable<NetAddress[]>()
+		{
+			@Override
+			public NetAddress[] call() throws Exception
+			{
+				return resolveAndCache(name);
+			}
+		});
+		final FutureTask<NetAddress[]> running = inFlight.putIfAbsent(name, task);
+		if (running == null)
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				inFlight.remove(name, task);
+			}
+		}
+		else
+		{
+			task = running;
+		}
+
 		try
 		{
-			checkNetlibTorLoop();
+			final NetAddress[] result = task.get();
+			return result == null ? null : result.clone();
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			final UnknownHostException e2 = new UnknownHostException("interrupted while resolving hostname=" + hostname);
+			e2.initCause(e);
+			throw e2;
+		}
+		catch (final ExecutionException e)
+		{
+			final Throwable cause = e.getCause();
+			if (cause instanceof UnknownHostException)
+			{
+				throw (UnknownHostException) cause;
+			}
+			final UnknownHostException e2 = new UnknownHostException("Error with hostname=" + hostname);
+			e2.initCause(cause);
+			throw e2;
+		}
+	}
 
+	/**
+	 * Resolve a name through Tor and cache the answer.
+	 * 
+	 * @param name
+	 *            lower case host name
+	 * @return the addresses; null in case of an unexpected error
+	 */
+	private NetAddress[] resolveAndCache(final String name) throws UnknownHostException
+	{
+		try
+		{
 			// resolve host name -> IP
-			final List<NetAddress> result = tor.resolveAll(hostname);
-			return result.toArray(new NetAddress[result.size()]);
+			final ResolvedAddresses resolved = tor.resolveAllWithTtl(name);
+			final List<NetAddress> addresses = resolved.getAddresses();
+			final NetAddress[] result = addresses.toArray(new NetAddress[addresses.size()]);
+			final int ttlSeconds = Math.max(MIN_TTL_SECONDS, Math.min(MAX_TTL_SECONDS, resolved.getTtlSeconds()));
+			putIntoCache(name, new CacheEntry(result, System.currentTimeMillis() + ttlSeconds * 1000L));
+			return result;
 
 		}
 		catch (final UnknownHostException e)
 		{
+			putIntoCache(name, new CacheEntry(null, System.currentTimeMillis() + NEGATIVE_TTL_SECONDS * 1000L));
 			throw e;
 
 		}
 		catch (final IOException e)
 		{
-			final UnknownHostException e2 = new UnknownHostException("Error with hostname=" + hostname);
+			final UnknownHostException e2 = new UnknownHostException("Error with hostname=" + name);
 			e2.initCause(e);
 			throw e2;
 		}
@@ -94,6 +233,93 @@ public class TorNetAddressNameService implements NetAddressNameService
         }
 	}
 
+	/**
+	 * Add an entry to the cache; make room if the cache is full.
+	 */
+	private void putIntoCache(final String name, final CacheEntry entry)
+	{
+		if (cache.size() >= MAX_ELEMENTS_IN_CACHE)
+		{
+			final long now = System.currentTimeMillis();
+			for (final Iterator<Map.Entry<String, CacheEntry>> it = cache.entrySet().iterator(); it.hasNext();)
+			{
+				if (it.next().getValue().expirationTime <= now)
+				{
+					it.remove();
+				}
+			}
+			// still full: drop arbitrary entries
+			for (final Iterator<String> it = cache.keySet().iterator(); it.hasNext() && cache.size() >= MAX_ELEMENTS_IN_CACHE;)
+			{
+				it.next();
+				it.remove();
+			}
+		}
+		cache.put(name, entry);
+	}
+
+	/**
+	 * Resolve the given names in the background, so that later lookups are
+	 * answered from the cache. Names which are already cached or being
+	 * resolved are skipped.
+	 * 
+	 * @param hostnames
+	 *            the names to resolve
+	 */
+	public void prefetch(final Collection<String> hostnames)
+	{
+		final long now = System.currentTimeMillis();
+		for (final String hostname : hostnames)
+		{
+			if (hostname == null)
+			{
+				continue;
+			}
+			final String name = hostname.toLowerCase(Locale.ENGLISH);
+			final CacheEntry cached = cache.get(name);
+			if ((cached != null && cached.expirationTime > now) || inFlight.containsKey(name))
+			{
+				continue;
+			}
+			getPrefetchExecutor().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						getAddressesByName(name);
+					}
+					catch (final UnknownHostException e)
+					{
+						logger.debug("prefetch of {} failed: {}", name, e.getMessage());
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the executor of the prefetches
+	 */
+	private synchronized ExecutorService getPrefetchExecutor()
+	{
+		if (prefetchExecutor == null)
+		{
+			prefetchExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "TorNetAddressNameService-prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return prefetchExecutor;
+	}
+
 	/** @see NetAddressNameService#getNamesByAddress(NetAddress) */
 	@Override
 	public String[] getNamesByAddress(final NetAddress netAddress) throws UnknownHostException
@@ -0,0 +1,531 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ *
+ * The {@link Encoder} does not use the dynamic table: it references the static
+ * table and sends everything else as literal (Huffman coded if shorter), so it
+ * has no state. The {@link Decoder} supports the complete specification.
+ *
+ * @author Tobias Boese
+ */
+final class Hpack
+{
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/** size overhead of an entry in the dynamic table. */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/** static table; index 0 is unused. */
+	private static final String[][] STATIC_TABLE = {
+		null,
+		{":authority", ""},
+		{":method", "GET"},
+		{":method", "POST"},
+		{":path", "/"},
+		{":path", "/index.html"},
+		{":scheme", "http"},
+		{":scheme", "https"},
+		{":status", "200"},
+		{":status", "204"},
+		{":status", "206"},
+		{":status", "304"},
+		{":status", "400"},
+		{":status", "404"},
+		{":status", "500"},
+		{"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"},
+		{"accept-language", ""},
+		{"accept-ranges", ""},
+		{"accept", ""},
+		{"access-control-allow-origin", ""},
+		{"age", ""},
+		{"allow", ""},
+		{"authorization", ""},
+		{"cache-control", ""},
+		{"content-disposition", ""},
+		{"content-encoding", ""},
+		{"content-language", ""},
+		{"content-length", ""},
+		{"content-location", ""},
+		{"content-range", ""},
+		{"content-type", ""},
+		{"cookie", ""},
+		{"date", ""},
+		{"etag", ""},
+		{"expect", ""},
+		{"expires", ""},
+		{"from", ""},
+		{"host", ""},
+		{"if-match", ""},
+		{"if-modified-since", ""},
+		{"if-none-match", ""},
+		{"if-range", ""},
+		{"if-unmodified-since", ""},
+		{"last-modified", ""},
+		{"link", ""},
+		{"location", ""},
+		{"max-forwards", ""},
+		{"proxy-authenticate", ""},
+		{"proxy-authorization", ""},
+		{"range", ""},
+		{"referer", ""},
+		{"refresh", ""},
+		{"retry-after", ""},
+		{"server", ""},
+		{"set-cookie", ""},
+		{"strict-transport-security", ""},
+		{"transfer-encoding", ""},
+		{"user-agent", ""},
+		{"vary", ""},
+		{"via", ""},
+		{"www-authenticate", ""},
+	};
+
+	/** key=name, value=first static index with this name. */
+	private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<String, Integer>();
+	/** key=name + '\0' + value, value=static index. */
+	private static final Map<String, Integer> STATIC_ENTRY_INDEX = new HashMap<String, Integer>();
+
+	static
+	{
+		for (int i = STATIC_TABLE.length - 1; i > 0; i--)
+		{
+			STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i);
+			if (STATIC_TABLE[i][1].length() > 0)
+			{
+				STATIC_ENTRY_INDEX.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i);
+			}
+		}
+	}
+
+	/**
+	 * Code lengths of the Huffman code (Appendix B); symbol 256 is EOS. The
+	 * code is canonical, so the codes are derived from the lengths.
+	 */
+	private static final byte[] HUFFMAN_CODE_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+		30,
+	};
+	private static final int HUFFMAN_EOS = 256;
+	/** Huffman code of each symbol, right aligned. */
+	private static final int[] HUFFMAN_CODES = new int[HUFFMAN_CODE_LENGTHS.length];
+	/**
+	 * Decoding tree: node n has the children TREE[2n] (bit 0) and TREE[2n+1]
+	 * (bit 1); a value &lt; 0 is the leaf of symbol -value-1, 0 is no child.
+	 */
+	private static final int[] HUFFMAN_TREE;
+
+	static
+	{
+		// assign the canonical codes: by length, then by symbol
+		int code = 0;
+		int previousLength = 0;
+		for (int length = 1; length <= 30; length++)
+		{
+			for (int symbol = 0; symbol < HUFFMAN_CODE_LENGTHS.length; symbol++)
+			{
+				if (HUFFMAN_CODE_LENGTHS[symbol] == length)
+				{
+					code <<= length - previousLength;
+					previousLength = length;
+					HUFFMAN_CODES[symbol] = code;
+					code++;
+				}
+			}
+		}
+		// build the decoding tree
+		final int[] tree = new int[2 * 2 * HUFFMAN_CODE_LENGTHS.length];
+		int nodes = 1;
+		for (int symbol = 0; symbol < HUFFMAN_CODE_LENGTHS.length; symbol++)
+		{
+			int node = 0;
+			for (int bit = HUFFMAN_CODE_LENGTHS[symbol] - 1; bit >= 0; bit--)
+			{
+				final int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+				if (bit == 0)
+				{
+					tree[child] = -symbol - 1;
+				}
+				else
+				{
+					if (tree[child] == 0)
+					{
+						tree[child] = nodes++;
+					}
+					node = tree[child];
+				}
+			}
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+	private Hpack()
+	{
+	}
+
+	/**
+	 * Encodes header lists; stateless.
+	 */
+	static final class Encoder
+	{
+		/**
+		 * @param headers
+		 *            name/value pairs, names in lower case
+		 * @return the header block
+		 */
+		byte[] encode(final List<String[]> headers)
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			for (final String[] header : headers)
+			{
+				final String name = header[0];
+				final String value = header[1];
+				final Integer entryIndex = STATIC_ENTRY_INDEX.get(name + '\0' + value);
+				if (entryIndex != null)
+				{
+					// indexed header field
+					writeInteger(out, 0x80, 7, entryIndex);
+					continue;
+				}
+				// literal header field without indexing (never indexed for secrets)
+				final int flags = isSensitive(name) ? 0x10 : 0x00;
+				final Integer nameIndex = STATIC_NAME_INDEX.get(name);
+				if (nameIndex != null)
+				{
+					writeInteger(out, flags, 4, nameIndex);
+				}
+				else
+				{
+					writeInteger(out, flags, 4, 0);
+					writeString(out, name);
+				}
+				writeString(out, value);
+			}
+			return out.toByteArray();
+		}
+
+		private static boolean isSensitive(final String name)
+		{
+			return "authorization".equals(name) || "proxy-authorization".equals(name) || "cookie".equals(name);
+		}
+
+		private static void writeString(final ByteArrayOutputStream out, final String value)
+		{
+			final byte[] raw = value.getBytes(ISO_8859_1);
+			final int huffmanLength = huffmanLength(raw);
+			if (huffmanLength < raw.length)
+			{
+				writeInteger(out, 0x80, 7, huffmanLength);
+				huffmanEncode(out, raw);
+			}
+			else
+			{
+				writeInteger(out, 0x00, 7, raw.length);
+				out.write(raw, 0, raw.length);
+			}
+		}
+	}
+
+	/**
+	 * Decodes header blocks; keeps the dynamic table of the connection.
+	 */
+	static final class Decoder
+	{
+		/** newest entry first; entries are {name, value}. */
+		private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+		private int dynamicTableSize;
+		/** maximum size announced by SETTINGS_HEADER_TABLE_SIZE. */
+		private final int maxAllowedTableSize;
+		/** current maximum size set by the encoder. */
+		private int maxTableSize;
+
+		/**
+		 * @param maxAllowedTableSize
+		 *            our SETTINGS_HEADER_TABLE_SIZE
+		 */
+		Decoder(final int maxAllowedTableSize)
+		{
+			this.maxAllowedTableSize = maxAllowedTableSize;
+			this.maxTableSize = maxAllowedTableSize;
+		}
+
+		/**
+		 * @param block
+		 *            complete header block
+		 * @return name/value pairs in the order of the block
+		 * @throws IOException
+		 *             on a compression error (connection error)
+		 */
+		List<String[]> decode(final byte[] block) throws IOException
+		{
+			final List<String[]> result = new ArrayList<String[]>();
+			final int[] position = new int[] {0};
+			while (position[0] < block.length)
+			{
+				final int b = block[position[0]] & 0xff;
+				if ((b & 0x80) != 0)
+				{
+					// indexed header field
+					final String[] entry = getEntry(readInteger(block, position, 7));
+					result.add(new String[] {entry[0], entry[1]});
+				}
+				else if ((b & 0xc0) == 0x40)
+				{
+					// literal with incremental indexing
+					final String[] header = readLiteral(block, position, 6);
+					add(header);
+					result.add(header);
+				}
+				else if ((b & 0xe0) == 0x20)
+				{
+					// dynamic table size update
+					final int size = readInteger(block, position, 5);
+					if (size > maxAllowedTableSize)
+					{
+						throw new IOException("HPACK: table size " + size + " exceeds " + maxAllowedTableSize);
+					}
+					maxTableSize = size;
+					evict();
+				}
+				else
+				{
+					// literal without indexing / never indexed
+					result.add(readLiteral(block, position, 4));
+				}
+			}
+			return result;
+		}
+
+		private String[] readLiteral(final byte[] block, final int[] position, final int prefixBits) throws IOException
+		{
+			final int nameIndex = readInteger(block, position, prefixBits);
+			final String name = nameIndex == 0 ? readString(block, position) : getEntry(nameIndex)[0];
+			return new String[] {name, readString(block, position)};
+		}
+
+		private String[] getEntry(final int index) throws IOException
+		{
+			if (index > 0 && index < STATIC_TABLE.length)
+			{
+				return STATIC_TABLE[index];
+			}
+			final int dynamicIndex = index - STATIC_TABLE.length;
+			if (index <= 0 || dynamicIndex >= dynamicTable.size())
+			{
+				throw new IOException("HPACK: invalid index " + index);
+			}
+			return dynamicTable.get(dynamicIndex);
+		}
+
+		private void add(final String[] header)
+		{
+			final int size = header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+			dynamicTable.addFirst(header);
+			dynamicTableSize += size;
+			evict();
+		}
+
+		private void evict()
+		{
+			while (dynamicTableSize > maxTableSize && !dynamicTable.isEmpty())
+			{
+				final String[] removed = dynamicTable.removeLast();
+				dynamicTableSize -= removed[0].length() + removed[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+	}
+
+	// /////////////////////////////////////////////////////
+	// primitives
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * Write an integer with an N-bit prefix (section 5.1).
+	 */
+	static void writeInteger(final ByteArrayOutputStream out, final int flags, final int prefixBits, final int value)
+	{
+		final int maxPrefix = (1 << prefixBits) - 1;
+		if (value < maxPrefix)
+		{
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | maxPrefix);
+		int rest = value - maxPrefix;
+		while (rest >= 0x80)
+		{
+			out.write((rest & 0x7f) | 0x80);
+			rest >>>= 7;
+		}
+		out.write(rest);
+	}
+
+	/**
+	 * Read an integer with an N-bit prefix (section 5.1).
+	 */
+	static int readInteger(final byte[] block, final int[] position, final int prefixBits) throws IOException
+	{
+		final int maxPrefix = (1 << prefixBits) - 1;
+		int value = block[position[0]++] & maxPrefix;
+		if (value < maxPrefix)
+		{
+			return value;
+		}
+		int shift = 0;
+		int b;
+		do
+		{
+			if (position[0] >= block.length || shift > 28)
+			{
+				throw new IOException("HPACK: invalid integer");
+			}
+			b = block[position[0]++] & 0xff;
+			value += (b & 0x7f) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+		if (value < 0)
+		{
+			throw new IOException("HPACK: integer overflow");
+		}
+		return value;
+	}
+
+	private static String readString(final byte[] block, final int[] position) throws IOException
+	{
+		if (position[0] >= block.length)
+		{
+			throw new IOException("HPACK: truncated string");
+		}
+		final boolean huffman = (block[position[0]] & 0x80) != 0;
+		final int length = readInteger(block, position, 7);
+		if (length > block.length - position[0])
+		{
+			throw new IOException("HPACK: truncated string");
+		}
+		final String result = huffman ? huffmanDecode(block, position[0], length)
+				: new String(block, position[0], length, ISO_8859_1);
+		position[0] += length;
+		return result;
+	}
+
+	private static int huffmanLength(final byte[] raw)
+	{
+		long bits = 0;
+		for (final byte b : raw)
+		{
+			bits += HUFFMAN_CODE_LENGTHS[b & 0xff];
+		}
+		return (int) ((bits + 7) / 8);
+	}
+
+	private static void huffmanEncode(final ByteArrayOutputStream out, final byte[] raw)
+	{
+		long buffer = 0;
+		int bits = 0;
+		for (final byte b : raw)
+		{
+			final int symbol = b & 0xff;
+			buffer = (buffer << HUFFMAN_CODE_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+			bits += HUFFMAN_CODE_LENGTHS[symbol];
+			while (bits >= 8)
+			{
+				bits -= 8;
+				out.write((int) (buffer >>> bits));
+			}
+		}
+		if (bits > 0)
+		{
+			// pad with the most significant bits of EOS (all ones)
+			out.write((int) ((buffer << (8 - bits)) | (0xff >>> bits)));
+		}
+	}
+
+	private static String huffmanDecode(final byte[] block, final int offset, final int length) throws IOException
+	{
+		final StringBuilder result = new StringBuilder(length * 8 / 5);
+		int node = 0;
+		/** bits since the last complete symbol; all of them must be 1 at the end. */
+		int paddingBits = 0;
+		boolean paddingAllOnes = true;
+		for (int i = offset; i < offset + length; i++)
+		{
+			final int b = block[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--)
+			{
+				final int value = (b >>> bit) & 1;
+				final int child = HUFFMAN_TREE[2 * node + value];
+				paddingBits++;
+				paddingAllOnes &= value == 1;
+				if (child < 0)
+				{
+					final int symbol = -child - 1;
+					if (symbol == HUFFMAN_EOS)
+					{
+						throw new IOException("HPACK: EOS in Huffman string");
+					}
+					result.append((char) symbol);
+					node = 0;
+					paddingBits = 0;
+					paddingAllOnes = true;
+				}
+				else if (child == 0)
+				{
+					throw new IOException("HPACK: invalid Huffman code");
+				}
+				else
+				{
+					node = child;
+				}
+			}
+		}
+		if (paddingBits > 7 || !paddingAllOnes)
+		{
+			throw new IOException("HPACK: invalid Huffman padding");
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,501 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cf.monteux.silvertunnel.netlib.api.NetLayer;
+import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.util.TcpipNetAddress;
+import cf.monteux.silvertunnel.netlib.layer.tls.TLSNetLayer;
+import cf.monteux.silvertunnel.netlib.layer.tls.TLSNetSocket;
+import cf.monteux.silvertunnel.netlib.layer.tor.TorNetLayer;
+import cf.monteux.silvertunnel.netlib.tool.PersistentHttpClient.Request;
+import cf.monteux.silvertunnel.netlib.tool.PersistentHttpClient.Response;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * HTTP/2 client: many requests to the same server share one connection (and
+ * therefore one Tor stream and one TLS handshake) instead of one connection
+ * per request.
+ *
+ * With secure=true the netLayer has to be a {@link TLSNetLayer}; h2 is offered
+ * by ALPN. With secure=false HTTP/2 is spoken without upgrade (h2c with prior
+ * knowledge), e.g. to onion services. Servers which do not speak HTTP/2 are
+ * remembered and served by the {@link PersistentHttpClient} from then on.
+ *
+ * One connection is kept per (NetLayer, server address, isolation key); a new
+ * one is opened when the server does not accept more concurrent streams.
+ *
+ * @author Tobias Boese
+ */
+public final class Http2Client
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(Http2Client.class);
+
+	private static Http2Client instance = new Http2Client();
+
+	/** ALPN protocol id of HTTP/2 over TLS. */
+	public static final String PROTOCOL_H2 = "h2";
+	private static final String[] APPLICATION_PROTOCOLS = {PROTOCOL_H2, "http/1.1"};
+	/** maximum time to wait for the SETTINGS of a new connection. */
+	private static final long CONNECTION_PREFACE_TIMEOUT_MILLIS = 60000L;
+	/** a server without HTTP/2 is asked again after this time. */
+	private static final long HTTP1_SERVER_TTL_MILLIS = 30L * 60L * 1000L;
+	/** maximum number of remembered servers without HTTP/2. */
+	private static final int MAX_HTTP1_SERVERS = 1024;
+	/** request headers which must not be sent with HTTP/2. */
+	private static final Set<String> CONNECTION_SPECIFIC_HEADERS = new HashSet<String>();
+	static
+	{
+		Collections.addAll(CONNECTION_SPECIFIC_HEADERS, "connection", "keep-alive", "proxy-connection",
+				"transfer-encoding", "upgrade", "host", "content-length");
+	}
+
+	private final ConcurrentMap<ServerKey, Http2Connection> connections = new ConcurrentHashMap<ServerKey, Http2Connection>();
+	/** to open at most one connection per server at the same time. */
+	private final ConcurrentMap<ServerKey, Object> connectLocks = new ConcurrentHashMap<ServerKey, Object>();
+	/** servers which do not speak HTTP/2 -&gt; time until this is assumed. */
+	private final ConcurrentMap<ServerKey, Long> http1Servers = new ConcurrentHashMap<ServerKey, Long>();
+
+	private final AtomicLong openedConnections = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong http1Requests = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/** resets the streams of expired requests; created on first use. */
+	private ScheduledExecutorService timeoutScheduler;
+
+	/**
+	 * @return the shared instance
+	 */
+	public static Http2Client getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Execute a HTTP request; falls back to HTTP/1.1 if the server does not
+	 * speak HTTP/2.
+	 *
+	 * @param netLayer
+	 *            used to connect to the server; a TLSNetLayer if secure=true
+	 * @param hostAndPort
+	 *            the server
+	 * @param secure
+	 *            true=https (h2 negotiated by ALPN), false=http (h2c with
+	 *            prior knowledge)
+	 * @param request
+	 *            the request
+	 * @return the response; its body has to be read or closed
+	 * @throws IOException
+	 *             in the case of any error; SocketTimeoutException if the
+	 *             timeout of the request expired
+	 */
+	public Response execute(final NetLayer netLayer, final TcpipNetAddress hostAndPort, final boolean secure, final Request request)
+			throws IOException
+	{
+		final ServerKey key = new ServerKey(netLayer, hostAndPort, secure, request.getIsolationKey());
+		for (int attempt = 0;; attempt++)
+		{
+			final Http2Connection connection = isHttp1Server(key) ? null : getConnection(key);
+			if (connection == null)
+			{
+				http1Requests.incrementAndGet();
+				return PersistentHttpClient.getInstance().execute(netLayer, hostAndPort, request);
+			}
+			try
+			{
+				return exchange(connection, request);
+			}
+			catch (final Http2Connection.RetryableException e)
+			{
+				// not processed by the server (GOAWAY, REFUSED_STREAM, connection lost)
+				if (attempt > 0 || !request.isIdempotent())
+				{
+					throw e;
+				}
+				logger.debug("retry request to {}: {}", hostAndPort, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Close the connections without open streams.
+	 */
+	public void closeIdleConnections()
+	{
+		for (final Map.Entry<ServerKey, Http2Connection> entry : connections.entrySet())
+		{
+			final Http2Connection connection = entry.getValue();
+			if (connection.getActiveStreams() == 0 && connections.remove(entry.getKey(), connection))
+			{
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the connection to use; null if the server does not speak HTTP/2
+	 */
+	private Http2Connection getConnection(final ServerKey key) throws IOException
+	{
+		Http2Connection connection = connections.get(key);
+		if (connection != null && connection.isUsable())
+		{
+			return connection;
+		}
+		Object lock = connectLocks.get(key);
+		if (lock == null)
+		{
+			final Object newLock = new Object();
+			lock = connectLocks.putIfAbsent(key, newLock);
+			if (lock == null)
+			{
+				lock = newLock;
+			}
+		}
+		synchronized (lock)
+		{
+			connection = connections.get(key);
+			if (connection != null && connection.isUsable())
+			{
+				return connection;
+			}
+			// closed connections are replaced; full ones continue to serve their streams
+			connection = connect(key);
+			if (connection == null)
+			{
+				addHttp1Server(key);
+				connections.remove(key);
+				return null;
+			}
+			connections.put(key, connection);
+			openedConnections.incrementAndGet();
+			return connection;
+		}
+	}
+
+	/**
+	 * @return the new connection; null if the server does not speak HTTP/2
+	 */
+	private Http2Connection connect(final ServerKey key) throws IOException
+	{
+		final Map<String, Object> properties = new HashMap<String, Object>();
+		if (key.isolationKey != null)
+		{
+			properties.put(TorNetLayer.PROPERTY_ISOLATION_KEY, key.isolationKey);
+		}
+		if (key.secure)
+		{
+			properties.put(TLSNetLayer.APPLICATION_PROTOCOLS, APPLICATION_PROTOCOLS);
+		}
+		final NetSocket socket = key.netLayer.createNetSocket(properties, null, key.address);
+		if (key.secure)
+		{
+			final String protocol = socket instanceof TLSNetSocket ? ((TLSNetSocket) socket).getApplicationProtocol() : null;
+			if (!PROTOCOL_H2.equals(protocol))
+			{
+				logger.debug("{} did not negotiate h2 (protocol={})", key.address, protocol);
+				socket.close();
+				return null;
+			}
+		}
+		try
+		{
+			return Http2Connection.open(socket, key.secure ? "https" : "http", getAuthority(key), CONNECTION_PREFACE_TIMEOUT_MILLIS);
+		}
+		catch (final ProtocolException e)
+		{
+			logger.debug("{} does not speak HTTP/2: {}", key.address, e.getMessage());
+			return null;
+		}
+	}
+
+	private Response exchange(final Http2Connection connection, final Request request) throws IOException
+	{
+		final List<String[]> headers = new ArrayList<String[]>();
+		headers.add(new String[] {":method", request.getMethod()});
+		headers.add(new String[] {":scheme", connection.getScheme()});
+		headers.add(new String[] {":authority", connection.getAuthority()});
+		headers.add(new String[] {":path", request.getPath()});
+		boolean acceptEncoding = false;
+		for (final Map.Entry<String, String> header : request.getHeaders().entrySet())
+		{
+			final String name = header.getKey().toLowerCase();
+			if (!CONNECTION_SPECIFIC_HEADERS.contains(name))
+			{
+				headers.add(new String[] {name, header.getValue()});
+				acceptEncoding |= "accept-encoding".equals(name);
+			}
+		}
+		if (request.isDecodeContent() && !acceptEncoding)
+		{
+			headers.add(new String[] {"accept-encoding", HttpContentDecoder.getAcceptEncoding()});
+		}
+		final byte[] body = request.getBody();
+		final boolean hasBody = body != null && body.length > 0;
+		if (body != null)
+		{
+			headers.add(new String[] {"content-length", Integer.toString(body.length)});
+		}
+
+		final Http2Connection.Stream stream = connection.newStream(headers, !hasBody);
+		requests.incrementAndGet();
+		if (request.getTimeoutMillis() > 0)
+		{
+			scheduleTimeout(stream, connection, request.getTimeoutMillis());
+		}
+		if (hasBody)
+		{
+			connection.writeData(stream, body);
+		}
+
+		final List<String[]> responseHeaders = stream.awaitHeaders();
+		int statusCode = -1;
+		final Map<String, String> headerMap = new HashMap<String, String>();
+		for (final String[] header : responseHeaders)
+		{
+			if (":status".equals(header[0]))
+			{
+				try
+				{
+					statusCode = Integer.parseInt(header[1]);
+				}
+				catch (final NumberFormatException e)
+				{
+					statusCode = -1;
+				}
+			}
+			else if (!header[0].startsWith(":"))
+			{
+				final String previous = headerMap.get(header[0]);
+				headerMap.put(header[0], previous == null ? header[1] : previous + ", " + header[1]);
+			}
+		}
+		if (statusCode < 0)
+		{
+			stream.getBody().close();
+			throw new IOException("response from " + connection.getAuthority() + " without valid :status");
+		}
+		InputStream responseBody = stream.getBody();
+		final String contentEncoding = headerMap.get("content-encoding");
+		if (request.isDecodeContent() && contentEncoding != null
+				&& !HttpContentDecoder.ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding.trim()))
+		{
+			responseBody = HttpContentDecoder.decode(contentEncoding, responseBody);
+		}
+		return new Response(statusCode, "HTTP/2 " + statusCode, headerMap, responseBody);
+	}
+
+	/**
+	 * Reset the stream when the timeout expires.
+	 */
+	private void scheduleTimeout(final Http2Connection.Stream stream, final Http2Connection connection, final long timeoutMillis)
+	{
+		stream.setTimeout(getTimeoutScheduler().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				timeouts.incrementAndGet();
+				stream.cancel(new SocketTimeoutException("request to " + connection.getAuthority() + " timed out after "
+						+ timeoutMillis + " ms"));
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS));
+	}
+
+	private synchronized ScheduledExecutorService getTimeoutScheduler()
+	{
+		if (timeoutScheduler == null)
+		{
+			timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "Http2Client-timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timeoutScheduler;
+	}
+
+	/**
+	 * @return true if the server recently did not speak HTTP/2
+	 */
+	private boolean isHttp1Server(final ServerKey key)
+	{
+		final Long until = http1Servers.get(key);
+		if (until == null)
+		{
+			return false;
+		}
+		if (until.longValue() > System.currentTimeMillis())
+		{
+			return true;
+		}
+		http1Servers.remove(key, until);
+		return false;
+	}
+
+	private void addHttp1Server(final ServerKey key)
+	{
+		final long now = System.currentTimeMillis();
+		if (http1Servers.size() >= MAX_HTTP1_SERVERS)
+		{
+			// drop the expired entries; if that is not enough, forget all
+			final Iterator<Long> it = http1Servers.values().iterator();
+			while (it.hasNext())
+			{
+				if (it.next().longValue() <= now)
+				{
+					it.remove();
+				}
+			}
+			if (http1Servers.size() >= MAX_HTTP1_SERVERS)
+			{
+				http1Servers.clear();
+			}
+		}
+		http1Servers.put(key, now + HTTP1_SERVER_TTL_MILLIS);
+	}
+
+	private static String getAuthority(final ServerKey key)
+	{
+		final int defaultPort = key.secure ? 443 : 80;
+		String host = key.address.getHostnameOrIpaddress();
+		if (host.indexOf(':') >= 0 && !host.startsWith("["))
+		{
+			// IPv6 literal
+			host = "[" + host + "]";
+		}
+		return key.address.getPort() == defaultPort ? host : host + ":" + key.address.getPort();
+	}
+
+	// /////////////////////////////////////////////////////
+	// metrics
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * @return number of opened HTTP/2 connections
+	 */
+	public long getOpenedConnections()
+	{
+		return openedConnections.get();
+	}
+
+	/**
+	 * @return number of currently pooled HTTP/2 connections
+	 */
+	public int getConnections()
+	{
+		return connections.size();
+	}
+
+	/**
+	 * @return number of requests sent with HTTP/2
+	 */
+	public long getRequests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * @return number of requests passed to the {@link PersistentHttpClient}
+	 */
+	public long getHttp1Requests()
+	{
+		return http1Requests.get();
+	}
+
+	/**
+	 * @return number of requests which expired
+	 */
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Http2Client(connections=" + getConnections() + ", opened=" + getOpenedConnections() + ", requests="
+				+ getRequests() + ", http1Requests=" + getHttp1Requests() + ", timeouts=" + getTimeouts() + ")";
+	}
+
+	/** key of the connection pool. */
+	private static final class ServerKey
+	{
+		private final NetLayer netLayer;
+		private final TcpipNetAddress address;
+		private final boolean secure;
+		/** null=shared. */
+		private final String isolationKey;
+
+		ServerKey(final NetLayer netLayer, final TcpipNetAddress address, final boolean secure, final String isolationKey)
+		{
+			this.netLayer = netLayer;
+			this.address = address;
+			this.secure = secure;
+			this.isolationKey = isolationKey;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ((System.identityHashCode(netLayer) * 31 + address.hashCode()) * 31
+					+ (isolationKey == null ? 0 : isolationKey.hashCode())) * 2 + (secure ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(final Object obj)
+		{
+			if (!(obj instanceof ServerKey))
+			{
+				return false;
+			}
+			final ServerKey other = (ServerKey) obj;
+			return netLayer == other.netLayer && address.equals(other.address) && secure == other.secure
+					&& (isolationKey == null ? other.isolationKey == null : isolationKey.equals(other.isolationKey));
+		}
+	}
+}
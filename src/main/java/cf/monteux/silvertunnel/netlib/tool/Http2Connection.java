@@ -0,0 +1,1101 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One HTTP/2 connection (RFC 7540) of the {@link Http2Client}: framing, HPACK
+ * state, flow control and the streams multiplexed over one NetSocket.
+ *
+ * Frames are read by one thread per connection; frames are written by the
+ * requesting threads under a write lock. Received data is credited to the
+ * connection window when it arrives and to the stream window when the
+ * application consumed it, so a slow reader only stalls its own stream.
+ *
+ * @author Tobias Boese
+ */
+final class Http2Connection
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(Http2Connection.class);
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("ISO-8859-1"));
+
+	private static final int TYPE_DATA = 0x0;
+	private static final int TYPE_HEADERS = 0x1;
+	private static final int TYPE_RST_STREAM = 0x3;
+	private static final int TYPE_SETTINGS = 0x4;
+	private static final int TYPE_PUSH_PROMISE = 0x5;
+	private static final int TYPE_PING = 0x6;
+	private static final int TYPE_GOAWAY = 0x7;
+	private static final int TYPE_WINDOW_UPDATE = 0x8;
+	private static final int TYPE_CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	private static final int ERROR_NO_ERROR = 0x0;
+	private static final int ERROR_PROTOCOL = 0x1;
+	private static final int ERROR_FLOW_CONTROL = 0x3;
+	private static final int ERROR_FRAME_SIZE = 0x6;
+	private static final int ERROR_REFUSED_STREAM = 0x7;
+	static final int ERROR_CANCEL = 0x8;
+	private static final int ERROR_COMPRESSION = 0x9;
+
+	/** initial window size of the protocol. */
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	/** our stream receive window. */
+	private static final int LOCAL_STREAM_WINDOW_SIZE = 1 << 20;
+	/** our connection receive window. */
+	private static final int LOCAL_CONNECTION_WINDOW_SIZE = 16 << 20;
+	/** we do not announce larger frames. */
+	private static final int LOCAL_MAX_FRAME_SIZE = 16384;
+	private static final int LOCAL_HEADER_TABLE_SIZE = 4096;
+	/** maximum size of a header block (incl. CONTINUATION frames). */
+	private static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+
+	private final NetSocket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final String scheme;
+	private final String authority;
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	/** only used by the reader thread. */
+	private final Hpack.Decoder decoder = new Hpack.Decoder(LOCAL_HEADER_TABLE_SIZE);
+	/** guards the output stream; frames of a header block are written at once. */
+	private final Object writeLock = new Object();
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+	private final CountDownLatch settingsReceived = new CountDownLatch(1);
+
+	// guarded by this
+	private int nextStreamId = 1;
+	private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+	private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+	private int peerMaxFrameSize = LOCAL_MAX_FRAME_SIZE;
+	private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+	private boolean goAway;
+	private boolean closed;
+
+	/** received but not yet credited bytes of the connection window; reader thread only. */
+	private int connectionBytesToCredit;
+
+	private Http2Connection(final NetSocket socket, final String scheme, final String authority) throws IOException
+	{
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024));
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+		this.scheme = scheme;
+		this.authority = authority;
+	}
+
+	/**
+	 * Send the connection preface and wait for the SETTINGS of the server.
+	 *
+	 * @param socket
+	 *            connection to the server; closed in the case of an error
+	 * @param scheme
+	 *            http or https
+	 * @param authority
+	 *            host[:port] of the server
+	 * @param timeoutMillis
+	 *            maximum time to wait for the SETTINGS of the server
+	 * @return the open connection
+	 * @throws ProtocolException
+	 *             if the server does not speak HTTP/2
+	 * @throws IOException
+	 *             in the case of other errors
+	 */
+	static Http2Connection open(final NetSocket socket, final String scheme, final String authority, final long timeoutMillis)
+			throws IOException
+	{
+		final Http2Connection connection = new Http2Connection(socket, scheme, authority);
+		try
+		{
+			synchronized (connection.writeLock)
+			{
+				connection.out.write(PREFACE);
+				final byte[] settings = new byte[3 * 6];
+				putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+				putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, LOCAL_STREAM_WINDOW_SIZE);
+				putSetting(settings, 12, SETTINGS_HEADER_TABLE_SIZE, LOCAL_HEADER_TABLE_SIZE);
+				connection.writeFrameLocked(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+				connection.writeFrameLocked(TYPE_WINDOW_UPDATE, 0, 0,
+						int32(LOCAL_CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE), 0, 4);
+				connection.out.flush();
+			}
+			final Thread reader = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					connection.readFrames();
+				}
+			}, "Http2Connection-" + authority);
+			reader.setDaemon(true);
+			reader.start();
+			if (!connection.settingsReceived.await(timeoutMillis, TimeUnit.MILLISECONDS))
+			{
+				throw new IOException("no SETTINGS from " + authority + " within " + timeoutMillis + " ms");
+			}
+			synchronized (connection)
+			{
+				if (connection.closed)
+				{
+					throw new ProtocolException(authority + " does not speak HTTP/2");
+				}
+			}
+			return connection;
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			connection.close();
+			throw new IOException("interrupted while opening HTTP/2 connection to " + authority);
+		}
+		catch (final IOException e)
+		{
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if a new stream can be started
+	 */
+	synchronized boolean isUsable()
+	{
+		return !closed && !goAway && streams.size() < peerMaxConcurrentStreams && nextStreamId > 0;
+	}
+
+	/**
+	 * @return true if the connection is closed or does not accept new streams
+	 */
+	synchronized boolean isClosed()
+	{
+		return closed || goAway;
+	}
+
+	/**
+	 * @return number of open streams
+	 */
+	int getActiveStreams()
+	{
+		return streams.size();
+	}
+
+	String getScheme()
+	{
+		return scheme;
+	}
+
+	String getAuthority()
+	{
+		return authority;
+	}
+
+	/**
+	 * Start a new stream by sending its HEADERS.
+	 *
+	 * @param headers
+	 *            pseudo headers first, names in lower case
+	 * @param endStream
+	 *            true if there is no request body
+	 * @return the new stream
+	 * @throws IOException
+	 */
+	Stream newStream(final List<String[]> headers, final boolean endStream) throws IOException
+	{
+		synchronized (writeLock)
+		{
+			final Stream stream;
+			synchronized (this)
+			{
+				if (closed || goAway)
+				{
+					throw new RetryableException("HTTP/2 connection to " + authority + " is closed");
+				}
+				stream = new Stream(nextStreamId, peerInitialWindowSize);
+				nextStreamId += 2;
+				streams.put(stream.id, stream);
+			}
+			boolean sent = false;
+			try
+			{
+				final byte[] block = encoder.encode(headers);
+				final int maxFrameSize = getPeerMaxFrameSize();
+				int offset = 0;
+				int type = TYPE_HEADERS;
+				do
+				{
+					final int length = Math.min(maxFrameSize, block.length - offset);
+					int flags = offset + length == block.length ? FLAG_END_HEADERS : 0;
+					if (type == TYPE_HEADERS && endStream)
+					{
+						flags |= FLAG_END_STREAM;
+					}
+					writeFrameLocked(type, flags, stream.id, block, offset, length);
+					offset += length;
+					type = TYPE_CONTINUATION;
+				}
+				while (offset < block.length);
+				out.flush();
+				sent = true;
+				return stream;
+			}
+			finally
+			{
+				if (!sent)
+				{
+					// the header compression state of both sides differs now
+					streams.remove(stream.id);
+					close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send the request body; waits for flow control credit.
+	 */
+	void writeData(final Stream stream, final byte[] body) throws IOException
+	{
+		boolean sent = false;
+		try
+		{
+			writeDataFrames(stream, body);
+			sent = true;
+		}
+		finally
+		{
+			if (!sent)
+			{
+				stream.abort(new IOException("request body to " + authority + " could not be sent"));
+			}
+		}
+	}
+
+	private void writeDataFrames(final Stream stream, final byte[] body) throws IOException
+	{
+		int offset = 0;
+		while (offset < body.length)
+		{
+			final int length;
+			synchronized (this)
+			{
+				while (!closed && stream.failure == null && (connectionSendWindow <= 0 || stream.sendWindow <= 0))
+				{
+					try
+					{
+						wait(1000L);
+					}
+					catch (final InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted while waiting for flow control credit");
+					}
+				}
+				if (stream.failure != null)
+				{
+					throw stream.failure;
+				}
+				if (closed)
+				{
+					throw new IOException("HTTP/2 connection to " + authority + " is closed");
+				}
+				length = (int) Math.min(Math.min(body.length - offset, peerMaxFrameSize),
+						Math.min(connectionSendWindow, stream.sendWindow));
+				connectionSendWindow -= length;
+				stream.sendWindow -= length;
+			}
+			writeFrame(TYPE_DATA, offset + length == body.length ? FLAG_END_STREAM : 0, stream.id, body, offset, length);
+			offset += length;
+		}
+	}
+
+	/**
+	 * Close the connection; open streams fail.
+	 */
+	void close()
+	{
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try
+		{
+			writeFrame(TYPE_GOAWAY, 0, 0, concat(int32(0), int32(ERROR_NO_ERROR)), 0, 8);
+		}
+		catch (final IOException e)
+		{
+			logger.debug("could not send GOAWAY: {}", e.toString());
+		}
+		closeSocket();
+		failAll(new RetryableException("HTTP/2 connection to " + authority + " closed"));
+		settingsReceived.countDown();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Http2Connection(" + scheme + "://" + authority + ", streams=" + streams.size() + ")";
+	}
+
+	// /////////////////////////////////////////////////////
+	// reading
+	// /////////////////////////////////////////////////////
+
+	private void readFrames()
+	{
+		final byte[] header = new byte[9];
+		boolean first = true;
+		try
+		{
+			while (true)
+			{
+				in.readFully(header);
+				final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+				final int type = header[3] & 0xff;
+				final int flags = header[4] & 0xff;
+				final int streamId = getInt(header, 5) & 0x7fffffff;
+				if (first && type != TYPE_SETTINGS)
+				{
+					throw new ProtocolException(authority + " does not speak HTTP/2");
+				}
+				first = false;
+				if (length > LOCAL_MAX_FRAME_SIZE)
+				{
+					throw new ConnectionError(ERROR_FRAME_SIZE, "frame of " + length + " bytes");
+				}
+				final byte[] payload = new byte[length];
+				in.readFully(payload);
+				switch (type)
+				{
+					case TYPE_DATA:
+						onData(flags, streamId, payload);
+						break;
+					case TYPE_HEADERS:
+						onHeaders(flags, streamId, payload);
+						break;
+					case TYPE_RST_STREAM:
+						onRstStream(streamId, payload);
+						break;
+					case TYPE_SETTINGS:
+						onSettings(flags, payload);
+						break;
+					case TYPE_PUSH_PROMISE:
+						throw new ConnectionError(ERROR_PROTOCOL, "PUSH_PROMISE although push is disabled");
+					case TYPE_PING:
+						if ((flags & FLAG_ACK) == 0)
+						{
+							writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, payload.length);
+						}
+						break;
+					case TYPE_GOAWAY:
+						onGoAway(payload);
+						break;
+					case TYPE_WINDOW_UPDATE:
+						onWindowUpdate(streamId, payload);
+						break;
+					case TYPE_CONTINUATION:
+						throw new ConnectionError(ERROR_PROTOCOL, "unexpected CONTINUATION");
+					default:
+						// PRIORITY and unknown frames are ignored
+						break;
+				}
+			}
+		}
+		catch (final ConnectionError e)
+		{
+			logger.info("HTTP/2 connection error with {}: {}", authority, e.getMessage());
+			try
+			{
+				writeFrame(TYPE_GOAWAY, 0, 0, concat(int32(0), int32(e.errorCode)), 0, 8);
+			}
+			catch (final IOException e1)
+			{
+				logger.debug("could not send GOAWAY: {}", e1.toString());
+			}
+			connectionFailed(new IOException("HTTP/2 connection error: " + e.getMessage()));
+		}
+		catch (final EOFException e)
+		{
+			connectionFailed(new RetryableException("HTTP/2 connection closed by " + authority));
+		}
+		catch (final IOException e)
+		{
+			connectionFailed(e);
+		}
+	}
+
+	private void connectionFailed(final IOException cause)
+	{
+		logger.debug("HTTP/2 connection to {} ended: {}", authority, cause.toString());
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		closeSocket();
+		failAll(cause instanceof RetryableException ? cause : new RetryableException(cause.getMessage()));
+		settingsReceived.countDown();
+	}
+
+	private void onData(final int flags, final int streamId, final byte[] payload) throws IOException
+	{
+		final int padding = getPadding(flags, payload);
+		// flow control counts the complete frame
+		connectionBytesToCredit += payload.length;
+		if (connectionBytesToCredit >= LOCAL_CONNECTION_WINDOW_SIZE / 2)
+		{
+			writeFrame(TYPE_WINDOW_UPDATE, 0, 0, int32(connectionBytesToCredit), 0, 4);
+			connectionBytesToCredit = 0;
+		}
+		final Stream stream = streams.get(streamId);
+		if (stream == null)
+		{
+			return;
+		}
+		final int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+		stream.onData(payload, offset, payload.length - offset - padding, payload.length, (flags & FLAG_END_STREAM) != 0);
+	}
+
+	private void onHeaders(final int flags, final int streamId, final byte[] payload) throws IOException
+	{
+		final int padding = getPadding(flags, payload);
+		int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+		if ((flags & FLAG_PRIORITY) != 0)
+		{
+			offset += 5;
+		}
+		if (offset + padding > payload.length)
+		{
+			throw new ConnectionError(ERROR_PROTOCOL, "invalid HEADERS frame");
+		}
+		final ByteArrayOutputStream block = new ByteArrayOutputStream(payload.length);
+		block.write(payload, offset, payload.length - offset - padding);
+		boolean endHeaders = (flags & FLAG_END_HEADERS) != 0;
+		final byte[] header = new byte[9];
+		while (!endHeaders)
+		{
+			in.readFully(header);
+			final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+			if ((header[3] & 0xff) != TYPE_CONTINUATION || (getInt(header, 5) & 0x7fffffff) != streamId)
+			{
+				throw new ConnectionError(ERROR_PROTOCOL, "CONTINUATION expected");
+			}
+			if (length > LOCAL_MAX_FRAME_SIZE || block.size() + length > MAX_HEADER_BLOCK_SIZE)
+			{
+				throw new ConnectionError(ERROR_FRAME_SIZE, "header block too large");
+			}
+			final byte[] continuation = new byte[length];
+			in.readFully(continuation);
+			block.write(continuation, 0, length);
+			endHeaders = (header[4] & FLAG_END_HEADERS) != 0;
+		}
+		// the block has to be decoded in any case to keep the HPACK state
+		final List<String[]> headers;
+		try
+		{
+			headers = decoder.decode(block.toByteArray());
+		}
+		catch (final IOException e)
+		{
+			throw new ConnectionError(ERROR_COMPRESSION, e.getMessage());
+		}
+		final Stream stream = streams.get(streamId);
+		if (stream != null)
+		{
+			stream.onHeaders(headers, (flags & FLAG_END_STREAM) != 0);
+		}
+	}
+
+	private void onRstStream(final int streamId, final byte[] payload)
+	{
+		final Stream stream = streams.get(streamId);
+		if (stream != null && payload.length >= 4)
+		{
+			final int errorCode = getInt(payload, 0);
+			final String message = "HTTP/2 stream " + streamId + " reset by " + authority + ", error " + errorCode;
+			stream.fail(errorCode == ERROR_REFUSED_STREAM ? new RetryableException(message) : new IOException(message));
+		}
+	}
+
+	private void onSettings(final int flags, final byte[] payload) throws IOException
+	{
+		if ((flags & FLAG_ACK) != 0)
+		{
+			return;
+		}
+		if (payload.length % 6 != 0)
+		{
+			throw new ConnectionError(ERROR_FRAME_SIZE, "invalid SETTINGS frame");
+		}
+		synchronized (this)
+		{
+			for (int i = 0; i < payload.length; i += 6)
+			{
+				final int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+				final int value = getInt(payload, i + 2);
+				switch (id)
+				{
+					case SETTINGS_MAX_CONCURRENT_STREAMS:
+						peerMaxConcurrentStreams = value;
+						break;
+					case SETTINGS_INITIAL_WINDOW_SIZE:
+						if (value < 0)
+						{
+							throw new ConnectionError(ERROR_FLOW_CONTROL, "invalid initial window size");
+						}
+						final int delta = value - peerInitialWindowSize;
+						peerInitialWindowSize = value;
+						for (final Stream stream : streams.values())
+						{
+							stream.sendWindow += delta;
+						}
+						notifyAll();
+						break;
+					case SETTINGS_MAX_FRAME_SIZE:
+						if (value < LOCAL_MAX_FRAME_SIZE || value > 0xffffff)
+						{
+							throw new ConnectionError(ERROR_PROTOCOL, "invalid max frame size");
+						}
+						peerMaxFrameSize = value;
+						break;
+					default:
+						// the encoder does not use the dynamic table: SETTINGS_HEADER_TABLE_SIZE does not matter
+						break;
+				}
+			}
+		}
+		writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+		settingsReceived.countDown();
+	}
+
+	private void onGoAway(final byte[] payload)
+	{
+		final int lastStreamId = payload.length >= 4 ? getInt(payload, 0) & 0x7fffffff : 0;
+		synchronized (this)
+		{
+			goAway = true;
+		}
+		logger.debug("GOAWAY from {}, last stream {}", authority, lastStreamId);
+		for (final Stream stream : streams.values())
+		{
+			if (stream.id > lastStreamId)
+			{
+				stream.fail(new RetryableException("HTTP/2 stream " + stream.id + " not processed by " + authority));
+			}
+		}
+	}
+
+	private void onWindowUpdate(final int streamId, final byte[] payload) throws IOException
+	{
+		if (payload.length != 4)
+		{
+			throw new ConnectionError(ERROR_FRAME_SIZE, "invalid WINDOW_UPDATE frame");
+		}
+		final int increment = getInt(payload, 0) & 0x7fffffff;
+		synchronized (this)
+		{
+			if (streamId == 0)
+			{
+				connectionSendWindow += increment;
+			}
+			else
+			{
+				final Stream stream = streams.get(streamId);
+				if (stream != null)
+				{
+					stream.sendWindow += increment;
+				}
+			}
+			notifyAll();
+		}
+	}
+
+	private static int getPadding(final int flags, final byte[] payload) throws IOException
+	{
+		if ((flags & FLAG_PADDED) == 0)
+		{
+			return 0;
+		}
+		if (payload.length < 1 || (payload[0] & 0xff) >= payload.length)
+		{
+			throw new ConnectionError(ERROR_PROTOCOL, "invalid padding");
+		}
+		return payload[0] & 0xff;
+	}
+
+	private void failAll(final IOException cause)
+	{
+		for (final Stream stream : streams.values())
+		{
+			stream.fail(cause);
+		}
+	}
+
+	// /////////////////////////////////////////////////////
+	// writing
+	// /////////////////////////////////////////////////////
+
+	private void writeFrame(final int type, final int flags, final int streamId, final byte[] payload, final int offset, final int length)
+			throws IOException
+	{
+		synchronized (writeLock)
+		{
+			writeFrameLocked(type, flags, streamId, payload, offset, length);
+			out.flush();
+		}
+	}
+
+	/**
+	 * The caller holds the writeLock.
+	 */
+	private void writeFrameLocked(final int type, final int flags, final int streamId, final byte[] payload, final int offset, final int length)
+			throws IOException
+	{
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(type);
+		out.write(flags);
+		out.write(int32(streamId));
+		out.write(payload, offset, length);
+	}
+
+	/**
+	 * Reset a stream; best effort.
+	 */
+	void resetStream(final int streamId, final int errorCode)
+	{
+		try
+		{
+			writeFrame(TYPE_RST_STREAM, 0, streamId, int32(errorCode), 0, 4);
+		}
+		catch (final IOException e)
+		{
+			logger.debug("could not send RST_STREAM: {}", e.toString());
+		}
+	}
+
+	private void creditStream(final int streamId, final int increment)
+	{
+		try
+		{
+			writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, int32(increment), 0, 4);
+		}
+		catch (final IOException e)
+		{
+			logger.debug("could not send WINDOW_UPDATE: {}", e.toString());
+		}
+	}
+
+	private synchronized int getPeerMaxFrameSize()
+	{
+		return peerMaxFrameSize;
+	}
+
+	private void closeSocket()
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (final IOException e)
+		{
+			logger.debug("got IOException : {}", e.getMessage(), e);
+		}
+	}
+
+	private static void putSetting(final byte[] buffer, final int offset, final int id, final int value)
+	{
+		buffer[offset] = (byte) (id >>> 8);
+		buffer[offset + 1] = (byte) id;
+		System.arraycopy(int32(value), 0, buffer, offset + 2, 4);
+	}
+
+	private static byte[] int32(final int value)
+	{
+		return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+	}
+
+	private static int getInt(final byte[] buffer, final int offset)
+	{
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8)
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	private static byte[] concat(final byte[] a, final byte[] b)
+	{
+		final byte[] result = new byte[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	// /////////////////////////////////////////////////////
+	// streams
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * The request was not processed by the server and can be sent again.
+	 */
+	static final class RetryableException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		RetryableException(final String message)
+		{
+			super(message);
+		}
+	}
+
+	/** error of the complete connection. */
+	private static final class ConnectionError extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int errorCode;
+
+		ConnectionError(final int errorCode, final String message)
+		{
+			super(message);
+			this.errorCode = errorCode;
+		}
+	}
+
+	/**
+	 * One request/response exchange.
+	 */
+	final class Stream
+	{
+		private final int id;
+		/** guarded by the connection. */
+		private long sendWindow;
+
+		// guarded by this stream
+		private List<String[]> responseHeaders;
+		private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+		private int chunkOffset;
+		private boolean endOfStream;
+		private volatile IOException failure;
+		private boolean finished;
+		/** consumed bytes not yet credited to the server. */
+		private int bytesToCredit;
+		private ScheduledFuture<?> timeout;
+		private final InputStream body = new BodyInputStream();
+
+		private Stream(final int id, final int sendWindow)
+		{
+			this.id = id;
+			this.sendWindow = sendWindow;
+		}
+
+		/**
+		 * @param timeout
+		 *            cancelled when the stream ends
+		 */
+		synchronized void setTimeout(final ScheduledFuture<?> timeout)
+		{
+			if (finished)
+			{
+				timeout.cancel(false);
+			}
+			else
+			{
+				this.timeout = timeout;
+			}
+		}
+
+		/**
+		 * @return the response headers (without interim responses)
+		 * @throws IOException
+		 *             if the stream failed before
+		 */
+		synchronized List<String[]> awaitHeaders() throws IOException
+		{
+			while (responseHeaders == null && failure == null)
+			{
+				try
+				{
+					wait();
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting for response");
+				}
+			}
+			if (responseHeaders == null)
+			{
+				finish();
+				throw failure;
+			}
+			return responseHeaders;
+		}
+
+		/**
+		 * @return the response body
+		 */
+		InputStream getBody()
+		{
+			return body;
+		}
+
+		/**
+		 * Abort the stream, e.g. because of a timeout.
+		 */
+		void cancel(final IOException cause)
+		{
+			fail(cause);
+			resetStream(id, ERROR_CANCEL);
+		}
+
+		/**
+		 * Abort the stream because the request could not be sent completely;
+		 * it is removed from the connection at once.
+		 */
+		void abort(final IOException cause)
+		{
+			synchronized (this)
+			{
+				fail(cause);
+				finish();
+				notifyAll();
+			}
+			resetStream(id, ERROR_CANCEL);
+		}
+
+		private synchronized void onHeaders(final List<String[]> headers, final boolean endStream)
+		{
+			if (responseHeaders == null)
+			{
+				boolean interim = false;
+				for (final String[] header : headers)
+				{
+					if (":status".equals(header[0]) && header[1].startsWith("1"))
+					{
+						interim = true;
+					}
+				}
+				if (!interim)
+				{
+					responseHeaders = headers;
+				}
+			}
+			// else: trailers are ignored
+			if (endStream)
+			{
+				endOfStream = true;
+			}
+			notifyAll();
+		}
+
+		private synchronized void onData(final byte[] payload, final int offset, final int length, final int frameLength,
+				final boolean endStream)
+		{
+			if (finished)
+			{
+				return;
+			}
+			if (length > 0)
+			{
+				final byte[] chunk = new byte[length];
+				System.arraycopy(payload, offset, chunk, 0, length);
+				chunks.add(chunk);
+			}
+			// padding is credited at once
+			bytesToCredit += frameLength - length;
+			if (endStream)
+			{
+				endOfStream = true;
+			}
+			notifyAll();
+		}
+
+		private synchronized void fail(final IOException cause)
+		{
+			if (failure == null && !(endOfStream && responseHeaders != null))
+			{
+				failure = cause;
+				notifyAll();
+			}
+		}
+
+		/** remove the stream from the connection; the caller holds the stream lock. */
+		private void finish()
+		{
+			if (!finished)
+			{
+				finished = true;
+				chunks.clear();
+				streams.remove(id);
+				if (timeout != null)
+				{
+					timeout.cancel(false);
+				}
+			}
+		}
+
+		private int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			int count;
+			int credit = 0;
+			synchronized (this)
+			{
+				while (chunks.isEmpty() && !endOfStream && failure == null && !finished)
+				{
+					try
+					{
+						wait();
+					}
+					catch (final InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted while reading response body");
+					}
+				}
+				if (chunks.isEmpty())
+				{
+					if (failure != null && !endOfStream)
+					{
+						finish();
+						throw failure;
+					}
+					finish();
+					return -1;
+				}
+				final byte[] chunk = chunks.getFirst();
+				count = Math.min(len, chunk.length - chunkOffset);
+				System.arraycopy(chunk, chunkOffset, b, off, count);
+				chunkOffset += count;
+				if (chunkOffset == chunk.length)
+				{
+					chunks.removeFirst();
+					chunkOffset = 0;
+				}
+				bytesToCredit += count;
+				if (!endOfStream && bytesToCredit >= LOCAL_STREAM_WINDOW_SIZE / 2)
+				{
+					credit = bytesToCredit;
+					bytesToCredit = 0;
+				}
+			}
+			if (credit > 0)
+			{
+				creditStream(id, credit);
+			}
+			return count;
+		}
+
+		private synchronized int available()
+		{
+			int result = -chunkOffset;
+			for (final byte[] chunk : chunks)
+			{
+				result += chunk.length;
+			}
+			return Math.max(0, result);
+		}
+
+		private void closeBody()
+		{
+			final boolean reset;
+			synchronized (this)
+			{
+				reset = !finished && !endOfStream && failure == null;
+				finish();
+				notifyAll();
+			}
+			if (reset)
+			{
+				resetStream(id, ERROR_CANCEL);
+			}
+		}
+
+		/** the response body. */
+		private final class BodyInputStream extends InputStream
+		{
+			@Override
+			public int read() throws IOException
+			{
+				final byte[] b = new byte[1];
+				final int count = read(b, 0, 1);
+				return count <= 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException
+			{
+				if (len == 0)
+				{
+					return 0;
+				}
+				return Stream.this.read(b, off, len);
+			}
+
+			@Override
+			public int available()
+			{
+				return Stream.this.available();
+			}
+
+			@Override
+			public void close()
+			{
+				closeBody();
+			}
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.tool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Content negotiation and streaming decoding of compressed HTTP bodies as
+ * served by Tor directory servers.
+ *
+ * deflate and gzip are always supported. x-zstd and x-tor-lzma (xz container)
+ * are offered to the server only if a decoder is found on the classpath:
+ * zstd-jni (com.github.luben.zstd) or aircompressor (io.airlift.compress, Java
+ * 8 or later) for zstd, XZ for Java (org.tukaani.xz) for lzma. aircompressor
+ * and XZ for Java are optional dependencies of netlib: applications which want
+ * these encodings have to add them, otherwise only deflate and gzip are used.
+ *
+ * For every encoding the received (compressed) and the decoded bytes are
+ * counted; see {@link #getBytesSaved()}.
+ *
+ * @author Tobias Boese
+ */
+public final class HttpContentDecoder
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(HttpContentDecoder.class);
+
+	/** encoding name: zstd. */
+	public static final String ENCODING_ZSTD = "x-zstd";
+	/** encoding name: lzma in xz container. */
+	public static final String ENCODING_LZMA = "x-tor-lzma";
+	/** encoding name: zlib. */
+	public static final String ENCODING_DEFLATE = "deflate";
+	/** encoding name: gzip. */
+	public static final String ENCODING_GZIP = "gzip";
+	/** encoding name: not compressed. */
+	public static final String ENCODING_IDENTITY = "identity";
+
+	/** constructor (InputStream) of the zstd decoder; null if not available. */
+	private static final Constructor<?> ZSTD_DECODER = findDecoder("com.github.luben.zstd.ZstdInputStream",
+	                                                                 "io.airlift.compress.zstd.ZstdInputStream");
+	/** constructor (InputStream) of the xz decoder; null if not available. */
+	private static final Constructor<?> LZMA_DECODER = findDecoder("org.tukaani.xz.XZInputStream");
+
+	/** value of the Accept-Encoding header, best encoding first. */
+	private static final String ACCEPT_ENCODING;
+
+	static
+	{
+		final StringBuilder accept = new StringBuilder();
+		if (ZSTD_DECODER != null)
+		{
+			accept.append(ENCODING_ZSTD).append(", ");
+		}
+		if (LZMA_DECODER != null)
+		{
+			accept.append(ENCODING_LZMA).append(", ");
+		}
+		accept.append(ENCODING_DEFLATE).append(", ").append(ENCODING_GZIP).append(", ").append(ENCODING_IDENTITY);
+		ACCEPT_ENCODING = accept.toString();
+		logger.debug("supported content encodings: {}", ACCEPT_ENCODING);
+	}
+
+	/** per encoding: [0]=received bytes, [1]=decoded bytes. */
+	private static final ConcurrentMap<String, AtomicLong[]> STATISTICS = new ConcurrentHashMap<String, AtomicLong[]>();
+
+	private HttpContentDecoder()
+	{
+	}
+
+	/**
+	 * @return the value for the Accept-Encoding request header
+	 */
+	public static String getAcceptEncoding()
+	{
+		return ACCEPT_ENCODING;
+	}
+
+	/**
+	 * @param encoding
+	 *            the encoding name
+	 * @return true if bodies of this encoding can be decoded
+	 */
+	public static boolean isSupported(final String encoding)
+	{
+		if (ENCODING_ZSTD.equals(encoding))
+		{
+			return ZSTD_DECODER != null;
+		}
+		if (ENCODING_LZMA.equals(encoding))
+		{
+			return LZMA_DECODER != null;
+		}
+		return ENCODING_DEFLATE.equals(encoding) || ENCODING_GZIP.equals(encoding) || ENCODING_IDENTITY.equals(encoding);
+	}
+
+	/**
+	 * Wrap the body with a streaming decoder.
+	 *
+	 * @param contentEncoding
+	 *            value of the Content-Encoding header; null = detect by the
+	 *            first bytes of the body
+	 * @param body
+	 *            the received body
+	 * @return the decoded body
+	 * @throws IOException
+	 *             if the encoding is not supported
+	 */
+	public static InputStream decode(final String contentEncoding, final InputStream body) throws IOException
+	{
+		String encoding = contentEncoding == null ? null : contentEncoding.trim().toLowerCase();
+		InputStream in = body;
+		if (encoding == null || encoding.length() == 0)
+		{
+			final PushbackInputStream pushbackInputStream = new PushbackInputStream(body, 6);
+			encoding = detect(pushbackInputStream);
+			in = pushbackInputStream;
+		}
+		final CountingInputStream received = new CountingInputStream(in, getStatistics(encoding)[0]);
+		final InputStream decoded;
+		if (ENCODING_IDENTITY.equals(encoding))
+		{
+			decoded = received;
+		}
+		else if (ENCODING_DEFLATE.equals(encoding))
+		{
+			decoded = new InflaterInputStream(received);
+		}
+		else if (ENCODING_GZIP.equals(encoding) || "x-gzip".equals(encoding))
+		{
+			decoded = new GZIPInputStream(received);
+		}
+		else if (ENCODING_ZSTD.equals(encoding) && ZSTD_DECODER != null)
+		{
+			decoded = newInstance(ZSTD_DECODER, received);
+		}
+		else if (ENCODING_LZMA.equals(encoding) && LZMA_DECODER != null)
+		{
+			decoded = newInstance(LZMA_DECODER, received);
+		}
+		else
+		{
+			throw new IOException("unsupported content encoding: " + contentEncoding);
+		}
+		return new CountingInputStream(decoded, getStatistics(encoding)[1]);
+	}
+
+	/**
+	 * @return received bytes per encoding
+	 */
+	public static Map<String, Long> getReceivedBytes()
+	{
+		return getStatistics(0);
+	}
+
+	/**
+	 * @return decoded bytes per encoding
+	 */
+	public static Map<String, Long> getDecodedBytes()
+	{
+		return getStatistics(1);
+	}
+
+	/**
+	 * @return number of bytes which did not have to be transferred because of compression
+	 */
+	public static long getBytesSaved()
+	{
+		long result = 0;
+		for (final AtomicLong[] counters : STATISTICS.values())
+		{
+			result += counters[1].get() - counters[0].get();
+		}
+		return result;
+	}
+
+	private static Map<String, Long> getStatistics(final int index)
+	{
+		final Map<String, Long> result = new TreeMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong[]> entry : STATISTICS.entrySet())
+		{
+			result.put(entry.getKey(), entry.getValue()[index].get());
+		}
+		return result;
+	}
+
+	private static AtomicLong[] getStatistics(final String encoding)
+	{
+		AtomicLong[] result = STATISTICS.get(encoding);
+		if (result == null)
+		{
+			final AtomicLong[] newCounters = new AtomicLong[] {new AtomicLong(), new AtomicLong()};
+			result = STATISTICS.putIfAbsent(encoding, newCounters);
+			if (result == null)
+			{
+				result = newCounters;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Detect the encoding by the magic bytes at the beginning of the body.
+	 */
+	private static String detect(final PushbackInputStream in) throws IOException
+	{
+		final byte[] signature = new byte[6];
+		int length = 0;
+		int count;
+		while (length < signature.length && (count = in.read(signature, length, signature.length - length)) > 0)
+		{
+			length += count;
+		}
+		if (length > 0)
+		{
+			in.unread(signature, 0, length);
+		}
+		if (length >= 2 && signature[0] == (byte) GZIPInputStream.GZIP_MAGIC && signature[1] == (byte) (GZIPInputStream.GZIP_MAGIC >> 8))
+		{
+			return ENCODING_GZIP;
+		}
+		if (length >= 4 && signature[0] == (byte) 0x28 && signature[1] == (byte) 0xb5 && signature[2] == (byte) 0x2f && signature[3] == (byte) 0xfd)
+		{
+			return ENCODING_ZSTD;
+		}
+		if (length >= 6 && signature[0] == (byte) 0xfd && signature[1] == '7' && signature[2] == 'z' && signature[3] == 'X'
+				&& signature[4] == 'Z' && signature[5] == 0)
+		{
+			return ENCODING_LZMA;
+		}
+		if (length >= 1 && signature[0] == (byte) 0x78)
+		{
+			return ENCODING_DEFLATE;
+		}
+		return ENCODING_IDENTITY;
+	}
+
+	private static Constructor<?> findDecoder(final String... classNames)
+	{
+		for (final String className : classNames)
+		{
+			try
+			{
+				return Class.forName(className).getConstructor(InputStream.class);
+			}
+			catch (final ClassNotFoundException e)
+			{
+				logger.debug("decoder {} not available", className);
+			}
+			catch (final NoSuchMethodException e)
+			{
+				logger.debug("decoder {} has no suitable constructor", className);
+			}
+			catch (final LinkageError e)
+			{
+				logger.debug("decoder {} could not be loaded: {}", className, e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	private static InputStream newInstance(final Constructor<?> constructor, final InputStream in) throws IOException
+	{
+		try
+		{
+			return (InputStream) constructor.newInstance(in);
+		}
+		catch (final InvocationTargetException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("could not create decoder " + constructor.getDeclaringClass().getName(), e.getCause());
+		}
+		catch (final Exception e)
+		{
+			throw new IOException("could not create decoder " + constructor.getDeclaringClass().getName(), e);
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it.
+	 */
+	private static final class CountingInputStream extends FilterInputStream
+	{
+		private final AtomicLong counter;
+
+		CountingInputStream(final InputStream in, final AtomicLong counter)
+		{
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int result = super.read();
+			if (result >= 0)
+			{
+				counter.incrementAndGet();
+			}
+			return result;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			final int result = super.read(b, off, len);
+			if (result > 0)
+			{
+				counter.addAndGet(result);
+			}
+			return result;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			final long result = super.skip(n);
+			if (result > 0)
+			{
+				counter.addAndGet(result);
+			}
+			return result;
+		}
+	}
+}
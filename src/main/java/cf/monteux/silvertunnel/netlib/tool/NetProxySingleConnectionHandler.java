@@ -35,29 +35,32 @@
 
 package cf.monteux.silvertunnel.netlib.tool;
 
+import java.io.IOException;
+
 import cf.monteux.silvertunnel.netlib.api.NetAddress;
 import cf.monteux.silvertunnel.netlib.api.NetFactory;
 import cf.monteux.silvertunnel.netlib.api.NetLayerIDs;
 import cf.monteux.silvertunnel.netlib.api.NetSocket;
-import cf.monteux.silvertunnel.netlib.api.impl.InterconnectUtil;
+import cf.monteux.silvertunnel.netlib.api.impl.RelayEngine;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
+ * Opens the lower layer connection for one accepted connection and hands the
+ * pair to the {@link RelayEngine}.
+ * 
  * @author hapke
  * @author Tobias Boese
  *
  */
-class NetProxySingleConnectionThread extends Thread
+class NetProxySingleConnectionHandler implements Runnable
 {
 	/** */
-	private static final Logger logger = LogManager.getLogger(NetProxySingleConnectionThread.class);
+	private static final Logger logger = LogManager.getLogger(NetProxySingleConnectionHandler.class);
 
 	private final NetSocket upperLayerNetSocket;
 	private final NetLayerIDs lowerNetLayerId;
 
-	private static long id;
-
 	/**
 	 * Be a proxy for a single connection.
 	 * 
@@ -66,10 +69,9 @@ class NetProxySingleConnectionThread extends Thread
 	 * @param lowerNetLayerId
 	 *            use this NetLayer to forward the data of the connection
 	 */
-	public NetProxySingleConnectionThread(NetSocket upperLayerNetSocket,
+	public NetProxySingleConnectionHandler(NetSocket upperLayerNetSocket,
 			NetLayerIDs lowerNetLayerId)
 	{
-		super(createUniqueThreadName());
 		this.upperLayerNetSocket = upperLayerNetSocket;
 		this.lowerNetLayerId = lowerNetLayerId;
 	}
@@ -85,21 +87,21 @@ class NetProxySingleConnectionThread extends Thread
 					.getNetLayerById(lowerNetLayerId)
 					.createNetSocket(null, null, remoteAddress);
 
-			// interconnect both sockets
-			InterconnectUtil.relay(upperLayerNetSocket, lowerLayerNetSocket);
+			// interconnect both sockets, the data is moved by the RelayEngine
+			RelayEngine.getInstance().relay(upperLayerNetSocket, lowerLayerNetSocket);
 		}
 		catch (final Exception e)
 		{
 			logger.warn("connection abborted", e);
+			try
+			{
+				upperLayerNetSocket.close();
+			}
+			catch (final IOException e1)
+			{
+				// no problem
+				logger.debug("got IOException : {}", e1.getMessage(), e1);
+			}
 		}
 	}
-
-	/**
-	 * @return a new unique name for a thread
-	 */
-	protected static synchronized String createUniqueThreadName()
-	{
-		id++;
-		return NetProxySingleConnectionThread.class.getName() + id;
-	}
 }
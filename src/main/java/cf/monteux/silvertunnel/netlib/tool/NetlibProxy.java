@@ -37,6 +37,10 @@ package cf.monteux.silvertunnel.netlib.tool;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cf.monteux.silvertunnel.netlib.api.NetFactory;
 import cf.monteux.silvertunnel.netlib.api.NetLayerIDs;
@@ -78,6 +82,23 @@ public class NetlibProxy
 	private static volatile boolean stopped = false;
 	private static NetServerSocket netServerSocket;
 
+	/**
+	 * Opens the lower layer connections; the data is moved by the RelayEngine,
+	 * so a thread is only needed while a connection is being established.
+	 */
+	private static final ExecutorService CONNECTION_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, NetProxySingleConnectionHandler.class.getName() + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	/**
 	 * Start the program, but not from command line.
 	 * 
@@ -140,8 +161,8 @@ public class NetlibProxy
 			while (!stopped)
 			{
 				final NetSocket upperLayerNetSocket = netServerSocket.accept();
-				new NetProxySingleConnectionThread(upperLayerNetSocket,
-						lowerLayerNetLayerId).start();
+				CONNECTION_EXECUTOR.execute(new NetProxySingleConnectionHandler(
+						upperLayerNetSocket, lowerLayerNetLayerId));
 			}
 		}
 		catch (final Exception e)
@@ -0,0 +1,1321 @@
+/*
+ * SilverTunnel-Monteux Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cf.monteux.silvertunnel.netlib.tool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cf.monteux.silvertunnel.netlib.api.NetLayer;
+import cf.monteux.silvertunnel.netlib.api.NetSocket;
+import cf.monteux.silvertunnel.netlib.api.util.TcpipNetAddress;
+import cf.monteux.silvertunnel.netlib.layer.tor.TorNetLayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * HTTP/1.1 client which keeps the connections to a server alive and
+ * pipelines consecutive GET requests.
+ *
+ * Idle connections are kept per (NetLayer, server address, isolation key) and
+ * reused by the next request to the same server with the same isolation key;
+ * the isolation key is passed to the NetLayer as
+ * {@link TorNetLayer#PROPERTY_ISOLATION_KEY}, so requests with different keys
+ * never share a connection or a Tor circuit. Response bodies are returned as
+ * streams (chunked or fixed length, optionally decoded by
+ * {@link HttpContentDecoder}); the connection goes back to the pool when the
+ * body was read completely or closed. Servers which close the connection after
+ * each response (like most Tor directory servers speaking HTTP/1.0) are
+ * remembered and get one request per connection from then on.
+ *
+ * A {@link Request} can have a timeout for the complete exchange. Connect and
+ * idle timeouts can still be defined by wrapping the lowerNetLayer by a
+ * ControlNetLayer.
+ *
+ * @author Tobias Boese
+ */
+public final class PersistentHttpClient
+{
+	/** */
+	private static final Logger logger = LogManager.getLogger(PersistentHttpClient.class);
+
+	private static PersistentHttpClient instance = new PersistentHttpClient();
+
+	/**
+	 * @return singleton instance
+	 */
+	public static PersistentHttpClient getInstance()
+	{
+		return instance;
+	}
+
+	/** idle connections older than this are closed instead of being reused. */
+	private static final long MAX_IDLE_MILLIS = 60L * 1000L;
+	/** default maximum number of idle connections per server. */
+	private static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_SERVER = 8;
+	/** unread rest of a body which is still drained to keep the connection. */
+	private static final long MAX_DRAIN_BYTES = 64L * 1024L;
+	/** maximum length of a line of the response header. */
+	private static final int MAX_HEADER_LINE_LENGTH = 8192;
+	/** maximum number of lines of the response header. */
+	private static final int MAX_HEADER_LINES = 100;
+	/** port which is omitted in the Host header. */
+	private static final int DEFAULT_PORT = 80;
+
+	/**
+	 * Processes the responses of {@link PersistentHttpClient#pipeline}.
+	 */
+	public interface ResponseHandler
+	{
+		/**
+		 * Called once per requested path, in the order of the request. The
+		 * part of the body not read by the handler is skipped afterwards.
+		 *
+		 * @param path
+		 *            the requested path
+		 * @param response
+		 *            the response to it
+		 * @throws IOException
+		 *             stops the pipeline
+		 */
+		void handleResponse(String path, Response response) throws IOException;
+	}
+
+	/**
+	 * A request for {@link PersistentHttpClient#execute}.
+	 */
+	public static final class Request
+	{
+		private final String method;
+		private final String path;
+		/** in order of insertion. */
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private byte[] body;
+		private String isolationKey;
+		private long timeoutMillis;
+		private boolean decodeContent;
+
+		/**
+		 * @param method
+		 *            e.g. GET, HEAD, POST
+		 * @param path
+		 *            the path (and query) of the URL
+		 */
+		public Request(final String method, final String path)
+		{
+			this.method = method.toUpperCase();
+			this.path = normalize(path);
+		}
+
+		/**
+		 * @return the method
+		 */
+		public String getMethod()
+		{
+			return method;
+		}
+
+		/**
+		 * @return the path
+		 */
+		public String getPath()
+		{
+			return path;
+		}
+
+		/**
+		 * @param name
+		 *            header name
+		 * @param value
+		 *            header value
+		 */
+		public void setHeader(final String name, final String value)
+		{
+			headers.put(name, value);
+		}
+
+		/**
+		 * @param headers
+		 *            additional request headers; may be null
+		 */
+		public void setHeaders(final Map<String, String> headers)
+		{
+			if (headers != null)
+			{
+				this.headers.putAll(headers);
+			}
+		}
+
+		/**
+		 * @param body
+		 *            the request body, sent with Content-Length; null=no body
+		 */
+		public void setBody(final byte[] body)
+		{
+			this.body = body;
+		}
+
+		/**
+		 * @param isolationKey
+		 *            requests with different keys never share a connection;
+		 *            null=shared
+		 */
+		public void setIsolationKey(final String isolationKey)
+		{
+			this.isolationKey = isolationKey;
+		}
+
+		/**
+		 * @param timeoutMillis
+		 *            maximum duration from sending the request until the end of
+		 *            the response body; 0=no timeout
+		 */
+		public void setTimeoutMillis(final long timeoutMillis)
+		{
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		/**
+		 * @param decodeContent
+		 *            true=offer the encodings of {@link HttpContentDecoder} and
+		 *            return the decoded body
+		 */
+		public void setDecodeContent(final boolean decodeContent)
+		{
+			this.decodeContent = decodeContent;
+		}
+
+		Map<String, String> getHeaders()
+		{
+			return headers;
+		}
+
+		byte[] getBody()
+		{
+			return body;
+		}
+
+		String getIsolationKey()
+		{
+			return isolationKey;
+		}
+
+		long getTimeoutMillis()
+		{
+			return timeoutMillis;
+		}
+
+		boolean isDecodeContent()
+		{
+			return decodeContent;
+		}
+
+		boolean isIdempotent()
+		{
+			return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+		}
+	}
+
+	/**
+	 * A received response with a streaming body.
+	 */
+	public static final class Response
+	{
+		private final int statusCode;
+		private final String statusLine;
+		/** key=lower case header name. */
+		private final Map<String, String> headers;
+		private final InputStream body;
+
+		Response(final int statusCode, final String statusLine, final Map<String, String> headers, final InputStream body)
+		{
+			this.statusCode = statusCode;
+			this.statusLine = statusLine;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		/**
+		 * @return the HTTP status code
+		 */
+		public int getStatusCode()
+		{
+			return statusCode;
+		}
+
+		/**
+		 * @return the first line of the response
+		 */
+		public String getStatusLine()
+		{
+			return statusLine;
+		}
+
+		/**
+		 * @return true for status codes 2xx
+		 */
+		public boolean isSuccessful()
+		{
+			return statusCode >= 200 && statusCode < 300;
+		}
+
+		/**
+		 * @param name
+		 *            the header name (case insensitive)
+		 * @return the header value; null if not present
+		 */
+		public String getHeader(final String name)
+		{
+			return headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * The body has to be read completely or closed, otherwise the connection
+		 * cannot be reused.
+		 *
+		 * @return the body; still encoded unless decoding was requested
+		 */
+		public InputStream getBody()
+		{
+			return body;
+		}
+
+		Response withBody(final InputStream newBody)
+		{
+			return new Response(statusCode, statusLine, headers, newBody);
+		}
+	}
+
+	/** key of the connection pool. */
+	private static final class ServerKey
+	{
+		private final NetLayer netLayer;
+		private final TcpipNetAddress address;
+		/** null=shared. */
+		private final String isolationKey;
+
+		ServerKey(final NetLayer netLayer, final TcpipNetAddress address, final String isolationKey)
+		{
+			this.netLayer = netLayer;
+			this.address = address;
+			this.isolationKey = isolationKey;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (System.identityHashCode(netLayer) * 31 + address.hashCode()) * 31
+					+ (isolationKey == null ? 0 : isolationKey.hashCode());
+		}
+
+		@Override
+		public boolean equals(final Object obj)
+		{
+			if (!(obj instanceof ServerKey))
+			{
+				return false;
+			}
+			final ServerKey other = (ServerKey) obj;
+			return netLayer == other.netLayer && address.equals(other.address)
+					&& (isolationKey == null ? other.isolationKey == null : isolationKey.equals(other.isolationKey));
+		}
+	}
+
+	/** one connection to a server. */
+	private static final class Connection
+	{
+		private final NetSocket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		/** was used for a previous request. */
+		private boolean reused;
+		private long lastUsed;
+		/** closed because the request timeout expired. */
+		private volatile boolean timedOut;
+		/**
+		 * token of the request exchange which currently uses the connection;
+		 * whoever resets it first (end of body or timeout) decides about the
+		 * connection.
+		 */
+		private final AtomicReference<Object> exchange = new AtomicReference<Object>();
+
+		Connection(final NetSocket socket) throws IOException
+		{
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (final IOException e)
+			{
+				logger.debug("exception while closing connection: {}", e.getMessage());
+			}
+		}
+	}
+
+	/** idle connections. */
+	private final ConcurrentMap<ServerKey, LinkedList<Connection>> idleConnections = new ConcurrentHashMap<ServerKey, LinkedList<Connection>>();
+	/** servers which closed the connection after a response. */
+	private final Set<TcpipNetAddress> serversWithoutKeepAlive = Collections.newSetFromMap(new ConcurrentHashMap<TcpipNetAddress, Boolean>());
+
+	private volatile int maxIdleConnectionsPerServer = DEFAULT_MAX_IDLE_CONNECTIONS_PER_SERVER;
+
+	private final AtomicLong openedConnections = new AtomicLong();
+	private final AtomicLong reusedConnections = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/** closes the connections of expired requests; created on first use. */
+	private ScheduledExecutorService timeoutScheduler;
+
+	/**
+	 * Execute a HTTP GET request.
+	 *
+	 * @param netLayer
+	 *            used to connect to the server
+	 * @param hostAndPort
+	 *            the server
+	 * @param path
+	 *            the path
+	 * @param requestHeaders
+	 *            additional request headers; may be null
+	 * @return the response; its body has to be read or closed
+	 * @throws IOException
+	 *             in the case of any error
+	 */
+	public Response get(final NetLayer netLayer,
+	                    final TcpipNetAddress hostAndPort,
+	                    final String path,
+	                    final Map<String, String> requestHeaders) throws IOException
+	{
+		final Request request = new Request("GET", path);
+		request.setHeaders(requestHeaders);
+		return execute(netLayer, hostAndPort, request);
+	}
+
+	/**
+	 * Execute a HTTP request.
+	 *
+	 * @param netLayer
+	 *            used to connect to the server
+	 * @param hostAndPort
+	 *            the server
+	 * @param request
+	 *            the request
+	 * @return the response; its body has to be read or closed
+	 * @throws IOException
+	 *             in the case of any error; SocketTimeoutException if the
+	 *             timeout of the request expired
+	 */
+	public Response execute(final NetLayer netLayer, final TcpipNetAddress hostAndPort, final Request request) throws IOException
+	{
+		final ServerKey key = new ServerKey(netLayer, hostAndPort, request.isolationKey);
+		// the Request of the caller stays unchanged
+		Map<String, String> headers = request.headers;
+		if (request.decodeContent && !containsIgnoreCase(headers, "Accept-Encoding"))
+		{
+			headers = new LinkedHashMap<String, String>(headers);
+			headers.put("Accept-Encoding", HttpContentDecoder.getAcceptEncoding());
+		}
+		for (int attempt = 0;; attempt++)
+		{
+			final Connection connection = borrow(key);
+			final Object exchange = new Object();
+			connection.exchange.set(exchange);
+			final ScheduledFuture<?> timeout = scheduleTimeout(connection, exchange, request.timeoutMillis);
+			try
+			{
+				writeRequest(connection, hostAndPort, request.method, request.path, headers, request.body);
+				connection.out.flush();
+				requests.incrementAndGet();
+				final Response response = readResponse(key, connection, "HEAD".equals(request.method), new BodyListener()
+				{
+					@Override
+					public void bodyFinished(final boolean reusable)
+					{
+						if (timeout != null)
+						{
+							timeout.cancel(false);
+						}
+						// a timeout which already fired owns (and closes) the connection
+						if (connection.exchange.compareAndSet(exchange, null) && reusable)
+						{
+							release(key, connection);
+						}
+						else
+						{
+							connection.close();
+						}
+					}
+				});
+				InputStream body = response.getBody();
+				if (timeout != null)
+				{
+					body = new DeadlineInputStream(body, connection);
+				}
+				final String contentEncoding = response.getHeader("Content-Encoding");
+				// e.g. HEAD, 204 and 304 carry the encoding of a body they do not have
+				if (request.decodeContent && contentEncoding != null && hasBody(request, response)
+						&& !HttpContentDecoder.ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding.trim()))
+				{
+					body = HttpContentDecoder.decode(contentEncoding, body);
+				}
+				return body == response.getBody() ? response : response.withBody(body);
+			}
+			catch (final IOException e)
+			{
+				if (timeout != null)
+				{
+					timeout.cancel(false);
+				}
+				if (!connection.exchange.compareAndSet(exchange, null) && !connection.timedOut)
+				{
+					// the body was read and the connection handed back: the
+					// failure is not caused by the connection
+					throw e;
+				}
+				connection.close();
+				if (connection.timedOut)
+				{
+					throw new SocketTimeoutException("request to " + hostAndPort + " timed out after " + request.timeoutMillis + " ms");
+				}
+				// the server might have closed an idle connection: retry once with a new one
+				if (!connection.reused || attempt > 0 || !request.isIdempotent())
+				{
+					throw e;
+				}
+				logger.debug("reused connection to {} failed, retry with new connection: {}", hostAndPort, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Execute several HTTP GET requests to the same server. If the server
+	 * keeps connections alive the requests are sent at once (pipelined),
+	 * otherwise one after another.
+	 *
+	 * @param netLayer
+	 *            used to connect to the server
+	 * @param hostAndPort
+	 *            the server
+	 * @param paths
+	 *            the paths to request
+	 * @param requestHeaders
+	 *            additional request headers; may be null
+	 * @param handler
+	 *            gets the responses in the order of the paths
+	 * @throws IOException
+	 *             in the case of any error
+	 */
+	public void pipeline(final NetLayer netLayer,
+	                     final TcpipNetAddress hostAndPort,
+	                     final List<String> paths,
+	                     final Map<String, String> requestHeaders,
+	                     final ResponseHandler handler) throws IOException
+	{
+		final ServerKey key = new ServerKey(netLayer, hostAndPort, null);
+		final LinkedList<String> remaining = new LinkedList<String>();
+		for (final String path : paths)
+		{
+			remaining.add(normalize(path));
+		}
+		boolean retried = false;
+		while (!remaining.isEmpty())
+		{
+			final Connection connection = borrow(key);
+			// without known keep-alive support only the first request is sent
+			final int numberOfRequests = serversWithoutKeepAlive.contains(hostAndPort) ? 1 : remaining.size();
+			final boolean[] reusable = new boolean[] {false};
+			boolean received = false;
+			try
+			{
+				final Iterator<String> it = remaining.iterator();
+				for (int i = 0; i < numberOfRequests; i++)
+				{
+					writeRequest(connection, hostAndPort, "GET", it.next(), requestHeaders, null);
+				}
+				connection.out.flush();
+				requests.addAndGet(numberOfRequests);
+				for (int i = 0; i < numberOfRequests; i++)
+				{
+					reusable[0] = false;
+					final Response response = readResponse(key, connection, false, new BodyListener()
+					{
+						@Override
+						public void bodyFinished(final boolean canBeReused)
+						{
+							reusable[0] = canBeReused;
+						}
+					});
+					received = true;
+					final String path = remaining.removeFirst();
+					try
+					{
+						handler.handleResponse(path, response);
+					}
+					finally
+					{
+						response.getBody().close();
+					}
+					if (!reusable[0])
+					{
+						// the rest has to be sent again on a new connection
+						break;
+					}
+				}
+			}
+			catch (final IOException e)
+			{
+				reusable[0] = false;
+				if (received || !connection.reused || retried)
+				{
+					connection.close();
+					throw e;
+				}
+				retried = true;
+				logger.debug("reused connection to {} failed, retry with new connection: {}", hostAndPort, e.getMessage());
+			}
+			finally
+			{
+				if (reusable[0])
+				{
+					release(key, connection);
+				}
+				else
+				{
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of opened connections
+	 */
+	public long getOpenedConnections()
+	{
+		return openedConnections.get();
+	}
+
+	/**
+	 * @return number of requests sent over an already used connection
+	 */
+	public long getReusedConnections()
+	{
+		return reusedConnections.get();
+	}
+
+	/**
+	 * @return number of sent requests
+	 */
+	public long getRequests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * @return number of requests aborted because of their timeout
+	 */
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	/**
+	 * @param maxIdleConnectionsPerServer
+	 *            maximum number of idle connections kept per server and
+	 *            isolation key
+	 */
+	public void setMaxIdleConnectionsPerServer(final int maxIdleConnectionsPerServer)
+	{
+		this.maxIdleConnectionsPerServer = maxIdleConnectionsPerServer;
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	public void closeIdleConnections()
+	{
+		for (final LinkedList<Connection> connections : idleConnections.values())
+		{
+			synchronized (connections)
+			{
+				for (final Connection connection : connections)
+				{
+					connection.close();
+				}
+				connections.clear();
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PersistentHttpClient(requests=" + requests.get()
+				+ ",openedConnections=" + openedConnections.get()
+				+ ",reusedConnections=" + reusedConnections.get()
+				+ ",timeouts=" + timeouts.get() + ")";
+	}
+
+	private static String normalize(final String path)
+	{
+		if (path == null || path.length() == 0)
+		{
+			return "/";
+		}
+		return path.startsWith("/") ? path : "/" + path;
+	}
+
+	/**
+	 * @return an idle connection or a new one
+	 */
+	private Connection borrow(final ServerKey key) throws IOException
+	{
+		final LinkedList<Connection> connections = idleConnections.get(key);
+		if (connections != null)
+		{
+			final long now = System.currentTimeMillis();
+			synchronized (connections)
+			{
+				while (!connections.isEmpty())
+				{
+					final Connection connection = connections.removeFirst();
+					if (now - connection.lastUsed < MAX_IDLE_MILLIS)
+					{
+						connection.reused = true;
+						reusedConnections.incrementAndGet();
+						return connection;
+					}
+					connection.close();
+				}
+			}
+		}
+		Map<String, Object> localProperties = null;
+		if (key.isolationKey != null)
+		{
+			localProperties = new HashMap<String, Object>();
+			localProperties.put(TorNetLayer.PROPERTY_ISOLATION_KEY, key.isolationKey);
+		}
+		final NetSocket socket = key.netLayer.createNetSocket(localProperties, null, key.address);
+		openedConnections.incrementAndGet();
+		return new Connection(socket);
+	}
+
+	/**
+	 * Put the connection back to the pool.
+	 */
+	private void release(final ServerKey key, final Connection connection)
+	{
+		connection.lastUsed = System.currentTimeMillis();
+		LinkedList<Connection> connections = idleConnections.get(key);
+		if (connections == null)
+		{
+			final LinkedList<Connection> newConnections = new LinkedList<Connection>();
+			connections = idleConnections.putIfAbsent(key, newConnections);
+			if (connections == null)
+			{
+				connections = newConnections;
+			}
+		}
+		synchronized (connections)
+		{
+			if (connections.size() < maxIdleConnectionsPerServer)
+			{
+				connections.addFirst(connection);
+				return;
+			}
+		}
+		connection.close();
+	}
+
+	private static void writeRequest(final Connection connection,
+	                                 final TcpipNetAddress hostAndPort,
+	                                 final String method,
+	                                 final String path,
+	                                 final Map<String, String> requestHeaders,
+	                                 final byte[] body) throws IOException
+	{
+		final StringBuilder request = new StringBuilder(128 + path.length());
+		request.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+		// a Host header of the caller overrides the default one
+		if (requestHeaders == null || !containsIgnoreCase(requestHeaders, "Host"))
+		{
+			request.append("Host: ").append(getHostHeader(hostAndPort)).append("\r\n");
+		}
+		if (requestHeaders != null)
+		{
+			for (final Map.Entry<String, String> header : requestHeaders.entrySet())
+			{
+				// the length is always taken from the body
+				if (!"Content-Length".equalsIgnoreCase(header.getKey()))
+				{
+					request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+				}
+			}
+		}
+		if (body != null)
+		{
+			request.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		request.append("\r\n");
+		connection.out.write(request.toString().getBytes("ISO-8859-1"));
+		if (body != null)
+		{
+			connection.out.write(body);
+		}
+	}
+
+	/**
+	 * @return host[:port] as in RFC 7230 section 5.4; IPv6 addresses in brackets
+	 */
+	static String getHostHeader(final TcpipNetAddress hostAndPort)
+	{
+		String host = hostAndPort.getHostnameOrIpaddress();
+		if (host.indexOf(':') >= 0 && !host.startsWith("["))
+		{
+			host = "[" + host + "]";
+		}
+		return hostAndPort.getPort() == DEFAULT_PORT ? host : host + ":" + hostAndPort.getPort();
+	}
+
+	/**
+	 * @return false if the response has no body, even if it has a
+	 *         Content-Encoding
+	 */
+	private static boolean hasBody(final Request request, final Response response)
+	{
+		final int statusCode = response.getStatusCode();
+		if ("HEAD".equals(request.method) || statusCode == 204 || statusCode == 304)
+		{
+			return false;
+		}
+		final String contentLength = response.getHeader("Content-Length");
+		return contentLength == null || !"0".equals(contentLength.trim());
+	}
+
+	private static boolean containsIgnoreCase(final Map<String, String> headers, final String name)
+	{
+		for (final String header : headers.keySet())
+		{
+			if (header.equalsIgnoreCase(name))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Close the connection when the timeout expires, unless the exchange
+	 * already ended.
+	 *
+	 * @param exchange
+	 *            token of the exchange which uses the connection
+	 * @return the scheduled task; null if there is no timeout
+	 */
+	private ScheduledFuture<?> scheduleTimeout(final Connection connection, final Object exchange, final long timeoutMillis)
+	{
+		if (timeoutMillis <= 0)
+		{
+			return null;
+		}
+		return getTimeoutScheduler().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!connection.exchange.compareAndSet(exchange, null))
+				{
+					// the body was finished in the meantime; the connection
+					// might already serve another request
+					return;
+				}
+				timeouts.incrementAndGet();
+				connection.timedOut = true;
+				connection.close();
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized ScheduledExecutorService getTimeoutScheduler()
+	{
+		if (timeoutScheduler == null)
+		{
+			timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "PersistentHttpClient-timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timeoutScheduler;
+	}
+
+	/**
+	 * Read status line and headers and prepare the body stream.
+	 */
+	private Response readResponse(final ServerKey key,
+	                              final Connection connection,
+	                              final boolean noBody,
+	                              final BodyListener listener) throws IOException
+	{
+		String statusLine = readLine(connection.in);
+		if (statusLine == null)
+		{
+			throw new IOException("connection closed before response from " + key.address);
+		}
+		// skip interim responses
+		while (statusLine.startsWith("HTTP/1.1 1"))
+		{
+			readHeaders(connection.in);
+			statusLine = readLine(connection.in);
+			if (statusLine == null)
+			{
+				throw new IOException("connection closed before response from " + key.address);
+			}
+		}
+		final String[] parts = statusLine.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+		{
+			throw new IOException("invalid status line from " + key.address + ": " + statusLine);
+		}
+		final int statusCode;
+		try
+		{
+			statusCode = Integer.parseInt(parts[1]);
+		}
+		catch (final NumberFormatException e)
+		{
+			throw new IOException("invalid status line from " + key.address + ": " + statusLine);
+		}
+		final Map<String, String> headers = readHeaders(connection.in);
+
+		// can the connection be used for the next request?
+		final String connectionHeader = headers.get("connection");
+		boolean keepAlive;
+		if ("HTTP/1.0".equals(parts[0]))
+		{
+			keepAlive = connectionHeader != null && connectionHeader.equalsIgnoreCase("keep-alive");
+		}
+		else
+		{
+			keepAlive = connectionHeader == null || !connectionHeader.equalsIgnoreCase("close");
+		}
+
+		// body framing
+		final InputStream body;
+		final String transferEncoding = headers.get("transfer-encoding");
+		final String contentLength = headers.get("content-length");
+		if (noBody || statusCode == 204 || statusCode == 304)
+		{
+			body = new FixedLengthInputStream(connection.in, 0, keepAlive, listener);
+		}
+		else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked"))
+		{
+			body = new ChunkedInputStream(connection.in, keepAlive, listener);
+		}
+		else if (contentLength != null)
+		{
+			final long length;
+			try
+			{
+				length = Long.parseLong(contentLength.trim());
+			}
+			catch (final NumberFormatException e)
+			{
+				throw new IOException("invalid Content-Length from " + key.address + ": " + contentLength);
+			}
+			body = new FixedLengthInputStream(connection.in, length, keepAlive, listener);
+		}
+		else
+		{
+			// body ends with the connection
+			keepAlive = false;
+			body = new FixedLengthInputStream(connection.in, Long.MAX_VALUE, false, listener);
+		}
+		if (keepAlive)
+		{
+			serversWithoutKeepAlive.remove(key.address);
+		}
+		else
+		{
+			serversWithoutKeepAlive.add(key.address);
+		}
+		return new Response(statusCode, statusLine, headers, body);
+	}
+
+	private static Map<String, String> readHeaders(final InputStream in) throws IOException
+	{
+		final Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 0; i < MAX_HEADER_LINES; i++)
+		{
+			final String line = readLine(in);
+			if (line == null || line.length() == 0)
+			{
+				return headers;
+			}
+			final int colon = line.indexOf(':');
+			if (colon > 0)
+			{
+				final String name = line.substring(0, colon).trim().toLowerCase();
+				final String value = line.substring(colon + 1).trim();
+				final String previous = headers.get(name);
+				headers.put(name, previous == null ? value : previous + ", " + value);
+			}
+		}
+		throw new IOException("too many header lines");
+	}
+
+	/**
+	 * @return the line without CR/LF; null at the end of the stream
+	 */
+	private static String readLine(final InputStream in) throws IOException
+	{
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int b;
+		while ((b = in.read()) >= 0)
+		{
+			if (b == '\n')
+			{
+				return line.toString("ISO-8859-1");
+			}
+			if (b != '\r')
+			{
+				if (line.size() >= MAX_HEADER_LINE_LENGTH)
+				{
+					throw new IOException("header line too long");
+				}
+				line.write(b);
+			}
+		}
+		return line.size() == 0 ? null : line.toString("ISO-8859-1");
+	}
+
+	/**
+	 * Gets informed when a body was read completely or closed.
+	 */
+	private interface BodyListener
+	{
+		/**
+		 * @param reusable
+		 *            true if the connection can be used for the next response
+		 */
+		void bodyFinished(boolean reusable);
+	}
+
+	/**
+	 * Base class of the body streams: does the book keeping at the end of the
+	 * body.
+	 */
+	private abstract static class BodyInputStream extends InputStream
+	{
+		protected final InputStream in;
+		private final boolean keepAlive;
+		private final BodyListener listener;
+		private boolean finished;
+
+		BodyInputStream(final InputStream in, final boolean keepAlive, final BodyListener listener)
+		{
+			this.in = in;
+			this.keepAlive = keepAlive;
+			this.listener = listener;
+		}
+
+		/**
+		 * @return unread bytes of the body (estimate); Long.MAX_VALUE if unknown
+		 */
+		protected abstract long remaining();
+
+		/** the body was read completely. */
+		protected void endOfBody()
+		{
+			finish(keepAlive);
+		}
+
+		/** the connection broke. */
+		protected void failed()
+		{
+			finish(false);
+		}
+
+		private void finish(final boolean reusable)
+		{
+			if (!finished)
+			{
+				finished = true;
+				listener.bodyFinished(reusable);
+			}
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final byte[] b = new byte[1];
+			final int count = read(b, 0, 1);
+			return count <= 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (finished)
+			{
+				return;
+			}
+			if (keepAlive && remaining() <= MAX_DRAIN_BYTES)
+			{
+				// skip the rest to keep the connection
+				final byte[] buffer = new byte[4096];
+				try
+				{
+					while (read(buffer, 0, buffer.length) >= 0)
+					{
+						// skip
+					}
+				}
+				catch (final IOException e)
+				{
+					failed();
+				}
+			}
+			failed();
+		}
+	}
+
+	/** body with known length (or until end of stream). */
+	private static final class FixedLengthInputStream extends BodyInputStream
+	{
+		private long remaining;
+
+		FixedLengthInputStream(final InputStream in, final long length, final boolean keepAlive, final BodyListener listener)
+		{
+			super(in, keepAlive, listener);
+			this.remaining = length;
+			if (length == 0)
+			{
+				endOfBody();
+			}
+		}
+
+		@Override
+		protected long remaining()
+		{
+			return remaining;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (remaining <= 0)
+			{
+				return -1;
+			}
+			final int count;
+			try
+			{
+				count = in.read(b, off, (int) Math.min(len, remaining));
+			}
+			catch (final IOException e)
+			{
+				failed();
+				throw e;
+			}
+			if (count < 0)
+			{
+				if (remaining != Long.MAX_VALUE)
+				{
+					failed();
+					throw new IOException("connection closed before end of body");
+				}
+				// body until end of stream
+				remaining = 0;
+				failed();
+				return -1;
+			}
+			if (remaining != Long.MAX_VALUE)
+			{
+				remaining -= count;
+				if (remaining == 0)
+				{
+					endOfBody();
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min(in.available(), remaining);
+		}
+	}
+
+	/** body with Transfer-Encoding: chunked. */
+	private static final class ChunkedInputStream extends BodyInputStream
+	{
+		/** bytes left in the current chunk; -1 = read chunk header next. */
+		private long chunkRemaining = -1;
+		private boolean eof;
+
+		ChunkedInputStream(final InputStream in, final boolean keepAlive, final BodyListener listener)
+		{
+			super(in, keepAlive, listener);
+		}
+
+		@Override
+		protected long remaining()
+		{
+			return eof ? 0 : Long.MAX_VALUE;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (eof)
+			{
+				return -1;
+			}
+			try
+			{
+				if (chunkRemaining <= 0)
+				{
+					if (chunkRemaining == 0)
+					{
+						// CRLF after the chunk data
+						readLine(in);
+					}
+					final String header = readLine(in);
+					if (header == null)
+					{
+						throw new IOException("connection closed inside chunked body");
+					}
+					final int semicolon = header.indexOf(';');
+					chunkRemaining = Long.parseLong((semicolon < 0 ? header : header.substring(0, semicolon)).trim(), 16);
+					if (chunkRemaining == 0)
+					{
+						// trailer
+						readHeaders(in);
+						eof = true;
+						endOfBody();
+						return -1;
+					}
+				}
+				final int count = in.read(b, off, (int) Math.min(len, chunkRemaining));
+				if (count < 0)
+				{
+					throw new IOException("connection closed inside chunked body");
+				}
+				chunkRemaining -= count;
+				return count;
+			}
+			catch (final NumberFormatException e)
+			{
+				failed();
+				throw new IOException("invalid chunk header");
+			}
+			catch (final IOException e)
+			{
+				failed();
+				throw e;
+			}
+		}
+	}
+
+	/** reports reads failing because of an expired request timeout as such. */
+	private static final class DeadlineInputStream extends FilterInputStream
+	{
+		private final Connection connection;
+
+		DeadlineInputStream(final InputStream in, final Connection connection)
+		{
+			super(in);
+			this.connection = connection;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			try
+			{
+				return super.read();
+			}
+			catch (final IOException e)
+			{
+				throw translate(e);
+			}
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			try
+			{
+				return super.read(b, off, len);
+			}
+			catch (final IOException e)
+			{
+				throw translate(e);
+			}
+		}
+
+		private IOException translate(final IOException e)
+		{
+			if (connection.timedOut && !(e instanceof SocketTimeoutException))
+			{
+				final SocketTimeoutException timeout = new SocketTimeoutException("request timed out");
+				timeout.initCause(e);
+				return timeout;
+			}
+			return e;
+		}
+	}
+}
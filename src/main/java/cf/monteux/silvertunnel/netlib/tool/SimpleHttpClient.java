@@ -38,12 +38,7 @@ package cf.monteux.silvertunnel.netlib.tool;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLStreamHandler;
 
-import cf.monteux.silvertunnel.netlib.adapter.url.NetlibURLStreamHandlerFactory;
 import cf.monteux.silvertunnel.netlib.api.NetLayer;
 import cf.monteux.silvertunnel.netlib.api.util.TcpipNetAddress;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Util;
@@ -53,8 +48,9 @@ import org.apache.logging.log4j.Logger;
 /**
  * This class provides methods for easy HTTP GET and HTTP POST requests.
  * 
- * All methods assume UTF-8 encoding. All methods do internally use
- * java.net.URL.
+ * All methods assume UTF-8 encoding. All methods do internally use the
+ * {@link PersistentHttpClient}, i.e. connections are kept alive if the server
+ * allows it.
  * 
  * @author hapke
  * @author Tobias Boese
@@ -95,7 +91,6 @@ public final class SimpleHttpClient
 	public String get(final NetLayer netLayer, TcpipNetAddress hostAndPort,
 			String path) throws IOException
 	{
-		String urlStr = null;
 		BufferedReader in = null;
 		final long startTime = System.currentTimeMillis();
 		try
@@ -107,28 +102,19 @@ public final class SimpleHttpClient
 						+ " and path=" + path);
 			}
 
-			// prepare URL handling on top of the lowerNetLayer
-			final NetlibURLStreamHandlerFactory factory = new NetlibURLStreamHandlerFactory(false);
-			factory.setNetLayerForHttpHttpsFtp(netLayer);
+			// send request over a (reused) connection
+			final PersistentHttpClient.Response httpResponse = PersistentHttpClient.getInstance().get(netLayer, hostAndPort, path, null);
+			in = new BufferedReader(new InputStreamReader(httpResponse.getBody(), Util.UTF8));
 
-			// create the suitable URL object
-			if (path != null && !path.startsWith("/"))
+			// is it a "successful" code?
+			if (!httpResponse.isSuccessful())
 			{
-				path = "/" + path;
+				throw new IOException(PROTOCOL_HTTP
+						+ " transfer was not successful for hostAndPort=" + hostAndPort
+						+ " and path=" + path + ": " + httpResponse.getStatusLine());
 			}
-			urlStr = PROTOCOL_HTTP + "://"
-					+ hostAndPort.getHostnameOrIpaddress() + ":"
-					+ hostAndPort.getPort() + path;
-			final URLStreamHandler handler = factory.createURLStreamHandler("http");
-			final URL context = null;
-			final URL url = new URL(context, urlStr, handler);
 
-			// open connection and read response
-			final URLConnection conn = url.openConnection();
-			conn.setDoOutput(false);
-			conn.setDoInput(true);
-			conn.connect();
-			in = new BufferedReader(new InputStreamReader(conn.getInputStream(), Util.UTF8));
+			// read response
 			String inputLine;
 			final StringBuffer response = new StringBuffer();
 			while ((inputLine = in.readLine()) != null)
@@ -137,27 +123,6 @@ public final class SimpleHttpClient
 				response.append(NL);
 			}
 
-			// read response code
-			if (conn instanceof HttpURLConnection)
-			{
-				final HttpURLConnection httpConnection = (HttpURLConnection) conn;
-				final int code = httpConnection.getResponseCode();
-
-				// is it a "successful" code?
-				if (!(code >= 200 && code < 300))
-				{
-					throw new IOException(PROTOCOL_HTTP
-							+ " transfer was not successful for url=" + urlStr);
-				}
-			}
-			else
-			{
-				// wrong protocol (handler)
-				throw new IOException(PROTOCOL_HTTP
-						+ " response code could not be determined for url="
-						+ urlStr);
-			}
-
 			// result
 			if (logger.isDebugEnabled())
 			{
@@ -187,8 +152,8 @@ public final class SimpleHttpClient
 				}
 				catch (final IOException e)
 				{
-					logger.warn("Exception while closing InputStream from url="
-							+ urlStr);
+					logger.warn("Exception while closing InputStream from hostAndPort="
+							+ hostAndPort + " and path=" + path);
 				}
 			}
 		}
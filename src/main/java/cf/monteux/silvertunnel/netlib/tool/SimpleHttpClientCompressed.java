@@ -35,7 +35,6 @@
 
 package cf.monteux.silvertunnel.netlib.tool;
 
-import cf.monteux.silvertunnel.netlib.adapter.url.NetlibURLStreamHandlerFactory;
 import cf.monteux.silvertunnel.netlib.api.NetLayer;
 import cf.monteux.silvertunnel.netlib.api.util.TcpipNetAddress;
 import cf.monteux.silvertunnel.netlib.layer.tor.util.Util;
@@ -44,20 +43,18 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.DataFormatException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
 /**
  * This class provides methods for easy HTTP GET and HTTP POST requests.
  *
- * All methods assume UTF-8 encoding. All methods do internally use
- * java.net.URL.
+ * All methods assume UTF-8 encoding. All methods do internally use the
+ * {@link PersistentHttpClient}, i.e. connections are kept alive if the server
+ * allows it.
  *
  * @author Tobias Boese
  */
@@ -82,6 +79,12 @@ public final class SimpleHttpClientCompressed {
      * Buffer size for receive.
      */
     private static final int BUFFER_SIZE = 512000;
+    /**
+     * Offer all encodings we can decode; servers which ignore the header
+     * answer the ".z" request with deflate.
+     */
+    private static final Map<String, String> REQUEST_HEADERS =
+            Collections.singletonMap("Accept-Encoding", HttpContentDecoder.getAcceptEncoding());
 
     /**
      * Execute HTTP GET request.
@@ -97,7 +100,6 @@ public final class SimpleHttpClientCompressed {
      * @throws DataFormatException
      */
     public String get(final NetLayer netLayer, TcpipNetAddress hostAndPort, String path) throws IOException, DataFormatException {
-        String urlStr = null;
         InputStream in = null;
         final long startTime = System.currentTimeMillis();
         try {
@@ -106,40 +108,20 @@ public final class SimpleHttpClientCompressed {
                 logger.debug("start download with hostAndPort=" + hostAndPort + " and path=" + path);
             }
 
-            // prepare URL handling on top of the lowerNetLayer
-            final NetlibURLStreamHandlerFactory factory = new NetlibURLStreamHandlerFactory(false);
-            factory.setNetLayerForHttpHttpsFtp(netLayer);
-
-            // create the suitable URL object
             if (path != null && !path.startsWith("/")) {
                 path = "/" + path;
             }
             path += ".z";
-            urlStr = PROTOCOL_HTTP + "://" + hostAndPort.getHostnameOrIpaddress() + ":" + hostAndPort.getPort() + path;
-            final URLStreamHandler handler = factory.createURLStreamHandler("http");
-            final URL context = null;
-            final URL url = new URL(context, urlStr, handler);
 
-            // open connection and read response
-            final URLConnection conn = url.openConnection();
-            conn.setDoOutput(false);
-            conn.setDoInput(true);
-            conn.connect();
-            // read response code
-            if (conn instanceof HttpURLConnection) {
-                final HttpURLConnection httpConnection = (HttpURLConnection) conn;
-                final int code = httpConnection.getResponseCode();
-
-                // is it a "successful" code?
-                if (!(code >= 200 && code < 300)) {
-                    // no: not successful
-                    throw new IOException(PROTOCOL_HTTP + " transfer was not successful for url=" + urlStr);
-                }
-            } else {
-                // wrong protocol (handler)
-                throw new IOException(PROTOCOL_HTTP + " response code could not be determined for url=" + urlStr);
+            // send request over a (reused) connection
+            final PersistentHttpClient.Response httpResponse = PersistentHttpClient.getInstance().get(netLayer, hostAndPort, path, REQUEST_HEADERS);
+            // is it a "successful" code?
+            if (!httpResponse.isSuccessful()) {
+                httpResponse.getBody().close();
+                throw new IOException(PROTOCOL_HTTP + " transfer was not successful for hostAndPort=" + hostAndPort
+                        + " and path=" + path + ": " + httpResponse.getStatusLine());
             }
-            in = getInputStream(conn.getInputStream());
+            in = getInputStream(httpResponse);
             final DynByteBuffer byteBuffer = new DynByteBuffer(BUFFER_SIZE);
             final byte[] buffer = new byte[BUFFER_SIZE];
             int count;
@@ -167,56 +149,70 @@ public final class SimpleHttpClientCompressed {
                 try {
                     in.close();
                 } catch (final IOException e) {
-                    logger.warn("Exception while closing InputStream from url=" + urlStr);
+                    logger.warn("Exception while closing InputStream from hostAndPort=" + hostAndPort + " and path=" + path);
                 }
             }
         }
     }
 
-    private InputStream getInputStream(final InputStream inputStream) throws IOException{
-        PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, 2);
-        byte[] signature = new byte[2];
-        pushbackInputStream.read(signature);
-        pushbackInputStream.unread(signature);
-        if (isGzipCompressed(signature)) {
-            return new GZIPInputStream(pushbackInputStream);
-        } else if(isZlibCompressed(signature)) {
-            return new InflaterInputStream(pushbackInputStream);
-        } else {
-            return pushbackInputStream;
-        }
-    }
-
     /**
-     * Determines if a byte array is compressed. The java.util.zip GZip
-     * implementaiton does not expose the GZip header so it is difficult to determine
-     * if a string is compressed.
+     * Execute several HTTP GET requests to the same server; the requests are
+     * pipelined if the server keeps the connection alive.
      *
-     * @param bytes an array of bytes
-     * @return true if the array is compressed or false otherwise
-     * @throws java.io.IOException if the byte array couldn't be read
+     * @param netLayer
+     * @param hostAndPort
+     * @param paths the paths (without ".z")
+     * @return the responses in the order of the paths; null for a failed request
+     * @throws IOException if the connection failed before any response was received
      */
-    private boolean isGzipCompressed(byte[] bytes) throws IOException {
-        if ((bytes == null) || (bytes.length < 2)) {
-            return false;
-        } else {
-            return ((bytes[0] == (byte) (GZIPInputStream.GZIP_MAGIC)) && (bytes[1] == (byte) (GZIPInputStream.GZIP_MAGIC >> 8)));
+    public List<String> getAll(final NetLayer netLayer, final TcpipNetAddress hostAndPort, final List<String> paths) throws IOException {
+        final List<String> compressedPaths = new ArrayList<String>(paths.size());
+        for (final String path : paths) {
+            compressedPaths.add(path + ".z");
         }
+        final List<String> result = new ArrayList<String>(paths.size());
+        final long startTime = System.currentTimeMillis();
+        try {
+            PersistentHttpClient.getInstance().pipeline(netLayer, hostAndPort, compressedPaths, REQUEST_HEADERS, new PersistentHttpClient.ResponseHandler() {
+                @Override
+                public void handleResponse(final String path, final PersistentHttpClient.Response response) throws IOException {
+                    if (!response.isSuccessful()) {
+                        logger.debug("transfer was not successful for hostAndPort=" + hostAndPort + " and path=" + path + ": " + response.getStatusLine());
+                        result.add(null);
+                        return;
+                    }
+                    final InputStream in = getInputStream(response);
+                    final DynByteBuffer byteBuffer = new DynByteBuffer(BUFFER_SIZE);
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        byteBuffer.append(buffer, 0, count);
+                    }
+                    result.add(new String(byteBuffer.toArray(), Util.UTF8));
+                }
+            });
+        } catch (final IOException e) {
+            if (result.isEmpty()) {
+                throw e;
+            }
+            logger.debug("pipeline to hostAndPort=" + hostAndPort + " broke after " + result.size() + " responses: " + e);
+        }
+        while (result.size() < paths.size()) {
+            result.add(null);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("end download of " + paths.size() + " paths with hostAndPort=" + hostAndPort + " in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return result;
     }
+
     /**
-     * Determines if a byte array is compressed. The java.util.zip GZip
-     * implementaiton does not expose the GZip header so it is difficult to determine
-     * if a string is compressed.
-     *
-     * @param bytes an array of bytes
-     * @return true if the array is compressed or false otherwise
-     * @throws java.io.IOException if the byte array couldn't be read
+     * @return the decoded body, according to the Content-Encoding of the
+     *         response or, if the server did not send one, to the first bytes
+     *         of the body
      */
-    private boolean isZlibCompressed(byte[] bytes) throws IOException {
-        if ((bytes == null) || (bytes.length < 1)) {
-            return false;
-        } else {
-            return (bytes[0] == (byte) 0x78 );
-        }
+    private InputStream getInputStream(final PersistentHttpClient.Response response) throws IOException {
+        return HttpContentDecoder.decode(response.getHeader("Content-Encoding"), response.getBody());
     }
 }
@@ -55,6 +55,7 @@ public final class DatabaseInfo
 	public static final int PROXY_EDITION = 8;
 	public static final int ASNUM_EDITION = 9;
 	public static final int NETSPEED_EDITION = 10;
+	public static final int COUNTRY_EDITION_V6 = 12;
 
 	private final String info;
 
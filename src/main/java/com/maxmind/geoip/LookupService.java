@@ -39,10 +39,9 @@ package com.maxmind.geoip;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import com.maxmind.geoip.util.InMemoryRandomAccessFile;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
 /**
  * Provides a lookup service for information based on an IP address. The
@@ -72,6 +71,12 @@ import org.apache.logging.log4j.Logger;
  * repeatedly.
  * <p>
  * 
+ * The binary tree of the database is decoded once when the instance is
+ * created into a sorted array of address ranges. Lookups are a binary search
+ * over this immutable array and need no locking, so an instance can be shared
+ * by any number of threads. Country editions for IPv4 and IPv6 are supported.
+ * <p>
+ * 
  * @author Matt Tucker (matt@jivesoftware.com)
  * @author hapke
  * @author Tobias Boese
@@ -79,29 +84,12 @@ import org.apache.logging.log4j.Logger;
  */
 public final class LookupService
 {
-	private static final Logger logger = LogManager.getLogger("TorTest");
-
-	/**
-	 * Database file.
-	 */
-	private InMemoryRandomAccessFile file = null;
-
 	/**
 	 * The database type. Default is the country edition.
 	 */
 	byte databaseType = DatabaseInfo.COUNTRY_EDITION;
 
-	int [] databaseSegments;
-	int recordLength;
-
-	String licenseKey;
-	int dnsService = 0;
-	int dboptions;
-	byte [] dbbuffer;
-	byte [] index_cache;
 	private static final int COUNTRY_BEGIN = 16776960;
-	private static final int STATE_BEGIN_REV0 = 16700000;
-	private static final int STATE_BEGIN_REV1 = 16000000;
 	private static final int STRUCTURE_INFO_MAX_SIZE = 20;
 	public static final int GEOIP_STANDARD = 0;
 	public static final int GEOIP_MEMORY_CACHE = 1;
@@ -112,10 +100,11 @@ public final class LookupService
 	public static final int GEOIP_CABLEDSL_SPEED = 2;
 	public static final int GEOIP_CORPORATE_SPEED = 3;
 
-	private static final int SEGMENT_RECORD_LENGTH = 3;
 	private static final int STANDARD_RECORD_LENGTH = 3;
-	private static final int ORG_RECORD_LENGTH = 4;
-	private static final int MAX_RECORD_LENGTH = 4;
+
+	/** first 12 bytes of an IPv4-mapped IPv6 address (::ffff:0:0/96). */
+	private static final long IPV4_MAPPED_HIGH = 0L;
+	private static final long IPV4_MAPPED_LOW_PREFIX = 0xffffL << 32;
 
 	private static final String[] COUNTRY_CODE = { "--", "AP", "EU", "AD", "AE",
 			"AF", "AG", "AI", "AL", "AM", "AN", "AO", "AQ", "AR", "AS", "AT",
@@ -140,7 +129,21 @@ public final class LookupService
 			"TN", "TO", "TL", "TR", "TT", "TV", "TW", "TZ", "UA", "UG", "UM",
 			"US", "UY", "UZ", "VA", "VC", "VE", "VG", "VI", "VN", "VU", "WF",
 			"WS", "YE", "YT", "RS", "ZA", "ZM", "ME", "ZW", "A1", "A2", "O1",
-			"AX", "GG", "IM", "JE", "BL", "MF" };
+			"AX", "GG", "IM", "JE", "BL", "MF", "BQ", "SS", "O1" };
+
+	/** true if the database is the IPv6 country edition. */
+	private final boolean ipv6;
+	/**
+	 * Start address of each range, ascending. IPv4: the address; IPv6: the
+	 * lower 64 bits of the address.
+	 */
+	private final long[] rangeStartLow;
+	/** IPv6 only: upper 64 bits of the start address of each range. */
+	private final long[] rangeStartHigh;
+	/** index into COUNTRY_CODE of each range. */
+	private final byte[] rangeCountry;
+
+	private volatile boolean closed;
 
 	/**
 	 * Create a new lookup service using the specified database file.
@@ -154,34 +157,37 @@ public final class LookupService
 	 */
 	public LookupService(final InputStream databaseFile, final int maxDatabaseFile) throws IOException
 	{
-		// read into memory
-		this.file = new InMemoryRandomAccessFile(databaseFile, maxDatabaseFile);
-
-		// avoid double buffering
-		dboptions = 0;
+		final byte[] data = InMemoryRandomAccessFile.getBytesOfInputStream(databaseFile, maxDatabaseFile);
+		init(new InMemoryRandomAccessFile(data));
+		ipv6 = databaseType == DatabaseInfo.COUNTRY_EDITION_V6;
 
-		// complete the initialization
-		init();
+		final RangeBuilder ranges = new RangeBuilder(ipv6);
+		try
+		{
+			ranges.decode(data, 0, ipv6 ? 127 : 31, 0L, 0L);
+		}
+		catch (final ArrayIndexOutOfBoundsException e)
+		{
+			throw new IOException("corrupt GeoIP database", e);
+		}
+		rangeStartLow = ranges.trimmedLow();
+		rangeStartHigh = ipv6 ? ranges.trimmedHigh() : null;
+		rangeCountry = ranges.trimmedCountry();
 	}
 
 	/**
 	 * Reads meta-data from the database file.
 	 * 
 	 * @throws java.io.IOException
-	 *             if an error occurs reading from the database file.
+	 *             if an error occurs reading from the database file or the
+	 *             database is no country edition.
 	 */
-	private void init() throws IOException
+	private void init(final InMemoryRandomAccessFile file) throws IOException
 	{
-		int i, j;
 		final byte[] delim = new byte[3];
-		final byte[] buf = new byte[SEGMENT_RECORD_LENGTH];
 
-		if (file == null)
-		{
-			return;
-		}
 		file.seek(file.length() - 3);
-		for (i = 0; i < STRUCTURE_INFO_MAX_SIZE; i++)
+		for (int i = 0; i < STRUCTURE_INFO_MAX_SIZE; i++)
 		{
 			file.read(delim);
 			if (delim[0] == -1 && delim[1] == -1 && delim[2] == -1)
@@ -193,43 +199,6 @@ public final class LookupService
 					// earlier
 					databaseType -= 105;
 				}
-				// Determine the database type.
-				if (databaseType == DatabaseInfo.REGION_EDITION_REV0)
-				{
-					databaseSegments = new int[1];
-					databaseSegments[0] = STATE_BEGIN_REV0;
-					recordLength = STANDARD_RECORD_LENGTH;
-				}
-				else if (databaseType == DatabaseInfo.REGION_EDITION_REV1)
-				{
-					databaseSegments = new int[1];
-					databaseSegments[0] = STATE_BEGIN_REV1;
-					recordLength = STANDARD_RECORD_LENGTH;
-				}
-				else if (databaseType == DatabaseInfo.CITY_EDITION_REV0
-						|| databaseType == DatabaseInfo.CITY_EDITION_REV1
-						|| databaseType == DatabaseInfo.ORG_EDITION
-						|| databaseType == DatabaseInfo.ISP_EDITION
-						|| databaseType == DatabaseInfo.ASNUM_EDITION)
-				{
-					databaseSegments = new int[1];
-					databaseSegments[0] = 0;
-					if (databaseType == DatabaseInfo.CITY_EDITION_REV0
-							|| databaseType == DatabaseInfo.CITY_EDITION_REV1
-							|| databaseType == DatabaseInfo.ASNUM_EDITION)
-					{
-						recordLength = STANDARD_RECORD_LENGTH;
-					}
-					else
-					{
-						recordLength = ORG_RECORD_LENGTH;
-					}
-					file.read(buf);
-					for (j = 0; j < SEGMENT_RECORD_LENGTH; j++)
-					{
-						databaseSegments[0] += (unsignedByteToInt(buf[j]) << (j * 8));
-					}
-				}
 				break;
 			}
 			else
@@ -237,35 +206,11 @@ public final class LookupService
 				file.seek(file.getFilePointer() - 4);
 			}
 		}
-		if ((databaseType == DatabaseInfo.COUNTRY_EDITION)
-				| (databaseType == DatabaseInfo.PROXY_EDITION)
-				| (databaseType == DatabaseInfo.NETSPEED_EDITION))
-		{
-			databaseSegments = new int[1];
-			databaseSegments[0] = COUNTRY_BEGIN;
-			recordLength = STANDARD_RECORD_LENGTH;
-		}
-		if ((dboptions & GEOIP_MEMORY_CACHE) == 1)
-		{
-			final int l = (int) file.length();
-			dbbuffer = new byte[l];
-			file.seek(0);
-			file.read(dbbuffer, 0, l);
-			file.close();
-		}
-		if ((dboptions & GEOIP_INDEX_CACHE) != 0)
-		{
-			final int l = databaseSegments[0] * recordLength * 2;
-			index_cache = new byte[l];
-			if (index_cache != null)
-			{
-				file.seek(0);
-				file.read(index_cache, 0, l);
-			}
-		}
-		else
+		file.close();
+		if (databaseType != DatabaseInfo.COUNTRY_EDITION
+				&& databaseType != DatabaseInfo.COUNTRY_EDITION_V6)
 		{
-			index_cache = null;
+			throw new IOException("unsupported GeoIP database edition " + databaseType);
 		}
 	}
 
@@ -274,153 +219,144 @@ public final class LookupService
 	 */
 	public void close()
 	{
-		try
-		{
-			if (file != null)
-			{
-				file.close();
-			}
-			file = null;
-		}
-		catch (final Exception e)
-		{
-			logger.debug("got Exception : {}", e.getMessage(), e);
-		}
+		closed = true;
+	}
+
+	/**
+	 * @return true if this is an IPv6 database
+	 */
+	public boolean isIPv6()
+	{
+		return ipv6;
+	}
+
+	/**
+	 * @return number of address ranges of the decoded database
+	 */
+	public int getRangeCount()
+	{
+		return rangeCountry.length;
 	}
 
 	/**
 	 * Returns the country the IP address is in.
 	 * 
-	 * @param ipAddress IP address as bte array
+	 * @param ipAddress IP address as byte array (4 bytes IPv4, 16 bytes IPv6)
 	 * @return the country the IP address is from.
 	 */
 	public String getCountry(final byte[] ipAddress)
 	{
-		return getCountry(bytesToLong(ipAddress));
+		if (ipAddress.length == 4)
+		{
+			return getCountry(bytesToLong(ipAddress, 0, 4));
+		}
+		final long high = bytesToLong(ipAddress, 0, 8);
+		final long low = bytesToLong(ipAddress, 8, 8);
+		if (ipv6)
+		{
+			return COUNTRY_CODE[seekCountry(high, low)];
+		}
+		if (high == IPV4_MAPPED_HIGH && (low & 0xffffffff00000000L) == IPV4_MAPPED_LOW_PREFIX)
+		{
+			return getCountry(low & 0xffffffffL);
+		}
+		checkOpen();
+		return COUNTRY_CODE[0];
 	}
 
 	/**
 	 * Returns the country the IP address is in.
 	 * 
 	 * @param ipAddress
-	 *            the IP address in long format.
+	 *            the IPv4 address in long format.
 	 * @return the country the IP address is from.
 	 */
 	public String getCountry(final long ipAddress)
 	{
-		if (file == null && (dboptions & GEOIP_MEMORY_CACHE) == 0)
-		{
-			throw new IllegalStateException("Database has been closed.");
-		}
-		final int ret = seekCountry(ipAddress) - COUNTRY_BEGIN;
-		if (ret == 0)
+		if (ipv6)
 		{
-			return COUNTRY_CODE[0];
-		}
-		else
-		{
-			return COUNTRY_CODE[ret];
+			return COUNTRY_CODE[seekCountry(IPV4_MAPPED_HIGH, IPV4_MAPPED_LOW_PREFIX | ipAddress)];
 		}
+		return COUNTRY_CODE[seekCountry(0L, ipAddress)];
 	}
 
 	/**
 	 * Finds the country index value given an IP address.
 	 * 
-	 * @param ipAddress
-	 *            the ip address to find in long format.
+	 * @param high
+	 *            upper 64 bits of the address (IPv6 only)
+	 * @param low
+	 *            the IPv4 address, or the lower 64 bits of the IPv6 address
 	 * @return the country index.
 	 */
-	private synchronized int seekCountry(final long ipAddress)
+	private int seekCountry(final long high, final long low)
 	{
-		final byte[] buf = new byte[2 * MAX_RECORD_LENGTH];
-		final int[] x = new int[2];
-		int offset = 0;
-		for (int depth = 31; depth >= 0; depth--)
+		checkOpen();
+		// find the last range starting at or before the address
+		int lo = 0;
+		int hi = rangeCountry.length - 1;
+		while (lo < hi)
 		{
-			if ((dboptions & GEOIP_MEMORY_CACHE) == 1)
+			final int mid = (lo + hi + 1) >>> 1;
+			if (compare(mid, high, low) <= 0)
 			{
-				// read from memory
-				for (int i = 0; i < 2 * MAX_RECORD_LENGTH; i++)
-				{
-					buf[i] = dbbuffer[2 * recordLength * offset + i];
-				}
-			}
-			else if ((dboptions & GEOIP_INDEX_CACHE) != 0)
-			{
-				// read from index cache
-				for (int i = 0; i < 2 * MAX_RECORD_LENGTH; i++)
-				{
-					buf[i] = index_cache[2 * recordLength * offset + i];
-				}
+				lo = mid;
 			}
 			else
 			{
-				// read from disk
-				try
-				{
-					file.seek(2 * recordLength * offset);
-					file.read(buf);
-				}
-				catch (final IOException e)
-				{
-					logger.warn("IO Exception", e);
-				}
-			}
-			for (int i = 0; i < 2; i++)
-			{
-				x[i] = 0;
-				for (int j = 0; j < recordLength; j++)
-				{
-					int y = buf[i * recordLength + j];
-					if (y < 0)
-					{
-						y += 256;
-					}
-					x[i] += y << (j * 8);
-				}
+				hi = mid - 1;
 			}
+		}
+		return rangeCountry[lo] & 0xFF;
+	}
 
-			if ((ipAddress & (1 << depth)) > 0)
-			{
-				if (x[1] >= databaseSegments[0])
-				{
-					return x[1];
-				}
-				offset = x[1];
-			}
-			else
+	/**
+	 * @return &lt;0, 0 or &gt;0 if the start of range i is below, equal to or
+	 *         above the address
+	 */
+	private int compare(final int i, final long high, final long low)
+	{
+		if (ipv6)
+		{
+			final int c = compareUnsigned(rangeStartHigh[i], high);
+			if (c != 0)
 			{
-				if (x[0] >= databaseSegments[0])
-				{
-					return x[0];
-				}
-				offset = x[0];
+				return c;
 			}
+			return compareUnsigned(rangeStartLow[i], low);
 		}
+		// IPv4 values are in 0..2^32-1
+		return rangeStartLow[i] < low ? -1 : (rangeStartLow[i] == low ? 0 : 1);
+	}
 
-		// shouldn't reach here
-		logger.error("Error seeking country while seeking {}", ipAddress);
-		return 0;
+	private static int compareUnsigned(final long a, final long b)
+	{
+		final long x = a + Long.MIN_VALUE;
+		final long y = b + Long.MIN_VALUE;
+		return x < y ? -1 : (x == y ? 0 : 1);
+	}
+
+	private void checkOpen()
+	{
+		if (closed)
+		{
+			throw new IllegalStateException("Database has been closed.");
+		}
 	}
 
 	/**
-	 * Returns the long version of an IP address given an InetAddress object.
+	 * Returns the long version of (a part of) an IP address.
 	 * 
 	 * @param address
-	 *            the InetAddress.
+	 *            the address bytes, network byte order.
 	 * @return the long form of the IP address.
 	 */
-	private static long bytesToLong(final byte[] address)
+	private static long bytesToLong(final byte[] address, final int offset, final int length)
 	{
 		long ipnum = 0;
-		for (int i = 0; i < 4; ++i)
+		for (int i = offset; i < offset + length; ++i)
 		{
-			long y = address[i];
-			if (y < 0)
-			{
-				y += 256;
-			}
-			ipnum += y << ((3 - i) * 8);
+			ipnum = (ipnum << 8) | (address[i] & 0xFF);
 		}
 		return ipnum;
 	}
@@ -429,4 +365,125 @@ public final class LookupService
 	{
 		return b & 0xFF;
 	}
+
+	// /////////////////////////////////////////////////////
+	// decoding of the database tree
+	// /////////////////////////////////////////////////////
+
+	/**
+	 * Walks the binary tree of the database depth first, left (0) before right
+	 * (1), so the leaves are found in ascending address order. Each leaf is the
+	 * start of a range that lasts until the next leaf; adjacent ranges with the
+	 * same country are merged.
+	 */
+	private static final class RangeBuilder
+	{
+		private final boolean ipv6;
+		private long[] low = new long[4096];
+		private long[] high;
+		private byte[] country = new byte[4096];
+		private int size;
+
+		RangeBuilder(final boolean ipv6)
+		{
+			this.ipv6 = ipv6;
+			high = ipv6 ? new long[4096] : null;
+		}
+
+		/**
+		 * @param data
+		 *            database content
+		 * @param offset
+		 *            node number
+		 * @param depth
+		 *            bit of the address selected by this node
+		 * @param prefixHigh
+		 *            address bits above depth (upper 64 bits)
+		 * @param prefixLow
+		 *            address bits above depth (lower 64 bits)
+		 */
+		void decode(final byte[] data, final int offset, final int depth, final long prefixHigh, final long prefixLow)
+				throws IOException
+		{
+			if (depth < 0)
+			{
+				throw new IOException("corrupt GeoIP database: tree deeper than the address");
+			}
+			final int pos = 2 * STANDARD_RECORD_LENGTH * offset;
+			for (int branch = 0; branch < 2; branch++)
+			{
+				int x = 0;
+				for (int j = 0; j < STANDARD_RECORD_LENGTH; j++)
+				{
+					x += unsignedByteToInt(data[pos + branch * STANDARD_RECORD_LENGTH + j]) << (j * 8);
+				}
+				long childHigh = prefixHigh;
+				long childLow = prefixLow;
+				if (branch == 1)
+				{
+					if (depth >= 64)
+					{
+						childHigh |= 1L << (depth - 64);
+					}
+					else
+					{
+						childLow |= 1L << depth;
+					}
+				}
+				if (x >= COUNTRY_BEGIN)
+				{
+					add(childHigh, childLow, x - COUNTRY_BEGIN);
+				}
+				else
+				{
+					decode(data, x, depth - 1, childHigh, childLow);
+				}
+			}
+		}
+
+		private void add(final long startHigh, final long startLow, int countryIndex)
+		{
+			if (countryIndex >= COUNTRY_CODE.length)
+			{
+				// country added to the database after this table
+				countryIndex = 0;
+			}
+			if (size > 0 && (country[size - 1] & 0xFF) == countryIndex)
+			{
+				return;
+			}
+			if (size == country.length)
+			{
+				final int newLength = size * 2;
+				low = Arrays.copyOf(low, newLength);
+				country = Arrays.copyOf(country, newLength);
+				if (ipv6)
+				{
+					high = Arrays.copyOf(high, newLength);
+				}
+			}
+			low[size] = startLow;
+			if (ipv6)
+			{
+				high[size] = startHigh;
+			}
+			country[size] = (byte) countryIndex;
+			size++;
+		}
+
+		long[] trimmedLow()
+		{
+			return Arrays.copyOf(low, size);
+		}
+
+		long[] trimmedHigh()
+		{
+			return Arrays.copyOf(high, size);
+		}
+
+		byte[] trimmedCountry()
+		{
+			return Arrays.copyOf(country, size);
+		}
+	}
 }